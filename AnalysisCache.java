@@ -0,0 +1,568 @@
+/**
+ * Sidecar cache of one analysis, so a re-run on a slightly changed image only
+ * analyzes what changed.
+ *
+ * What the analysis of a directory finds, and how it repairs it, depends on
+ * nothing but the directory's clusters and the FAT entries its chain is
+ * followed through (and, in recovery mode, the entries of the clusters its
+ * deleted entries point at). So the cache keeps CRC32C checksums of:
+ *		metadata	the reserved sectors and the FATs, one per MiB
+ *		chains		the FAT entries each directory's analysis read
+ *		clusters	every cluster of every directory walked
+ * and, per directory, its findings, its subdirectories, the first clusters
+ * its entries mark for the FAT check and the sectors its repairs changed.
+ *
+ * On the next run, if the boot sector or options differ, the cache is ignored
+ * and everything is analyzed. Otherwise a directory whose chain entries and
+ * clusters still check out is replayed instead of analyzed: its repaired
+ * sectors go back into the journal and its findings into the walk, in the
+ * order the analysis made them. A change elsewhere in the FATs, such as a new
+ * file's chain, doesn't stop it from being replayed. Which file shares a first
+ * cluster with another entry is settled afresh by the walker, since the other
+ * entry may have changed. If the metadata checksums still match and every
+ * directory was replayed, the FAT check's findings and repairs are reused too.
+ * A re-run then costs one CRC32C pass over the metadata and the directories.
+ *
+ * Every run writes a new cache, to a temporary file renamed over the old one.
+ * The file ends in a CRC32C of everything before it, and a cache that doesn't
+ * check out or can't be read is treated as no cache at all.
+ *
+ * File layout, big endian:
+ *		header		magic "FAT32CCH", version, volume offset and size, options,
+ *					bytes per cluster, offset of cluster 2, metadata checksums
+ *		directories	count, then per directory: first cluster, whether it is
+ *					the root, the checksum of its chain entries, its clusters
+ *					and their checksums, subdirectories, first cluster marks,
+ *					findings and repaired sectors
+ *		FAT check	findings and repaired sectors
+ *		trailer		CRC32C of the file up to here
+ * Offsets are into the volume, so a partition's cache doesn't depend on where
+ * the partition is on the disk.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+public class AnalysisCache {
+
+	private static final byte[] MAGIC = "FAT32CCH".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 5;
+	//Bytes of metadata per checksum
+	private static final int METADATA_REGION = 1 << 20;
+	//Options that change what the analysis finds
+	public static final int RECOVERY = 1;
+	public static final int LEGACY_VALIDATOR = 2;
+
+	/**
+	 * What the analysis of one directory found and did. Filled in by
+	 * analyzeDirectory while the directory is analyzed, or read from the cache.
+	 */
+	public static final class Directory {
+		final int firstCluster;
+		final boolean isRoot;
+		//Checksum of the FAT entries its analysis read
+		private int chainChecksum;
+		//Clusters of the directory, in chain order, and their checksums
+		private int[] clusters = new int[4];
+		private int[] checksums;
+		private int clusterCount;
+		private final List<Integer> subdirectories = new ArrayList<>();
+		//First clusters of its entries, in entry order
+		private DirectoryWalker.Marks marks = new DirectoryWalker.Marks();
+		private final List<Finding> findings = new ArrayList<>();
+		//Repaired sectors: offsets into the volume and their contents
+		private final List<Long> sectorOffsets = new ArrayList<>();
+		private final List<byte[]> sectors = new ArrayList<>();
+
+		Directory(int firstCluster, boolean isRoot) {
+			this.firstCluster = firstCluster;
+			this.isRoot = isRoot;
+		}
+
+		/**
+		 * Method to note a cluster of the directory, in chain order
+		 *
+		 * @param cluster - the cluster
+		 */
+		public void cluster(int cluster) {
+			if(clusterCount == clusters.length)
+				clusters = Arrays.copyOf(clusters, clusterCount * 2);
+			clusters[clusterCount++] = cluster;
+		}
+	}
+
+	private final FAT32Analyzer analyzer;
+	private final ImageSource image;
+	private final int options;
+	private final int bytesPerCluster;
+	private final long dataStart;
+	//Checksums of the metadata as it is now, computed once
+	private int[] metadataChecksums;
+	//Whether the metadata checksums of the last run still match
+	private boolean metadataUnchanged;
+	//Directories of the last run by first cluster, empty if the cache can't be used
+	private final Map<Integer, Directory> previous = new HashMap<>();
+	private List<Finding> previousFatFindings;
+	private List<Long> previousFatSectorOffsets = new ArrayList<>();
+	private List<byte[]> previousFatSectors = new ArrayList<>();
+	//Directories of this run, replayed or analyzed
+	private final ConcurrentLinkedQueue<Directory> directories = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger replayed = new AtomicInteger();
+	private final AtomicInteger analyzed = new AtomicInteger();
+	//Buffers to checksum clusters in, taken by one thread at a time and let go with the cache
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+	//Sectors of the metadata repaired before the FAT check, and the FAT check's results
+	private Set<Long> metadataSectorsBefore;
+	private List<Finding> fatFindings;
+	private boolean fatCheckReplayed;
+	//Why the last run's cache wasn't used, null if it was (or there was none)
+	private String staleReason;
+
+	/**
+	 * Constructor for the cache of an analyzer's volume, with its boot sector read
+	 *
+	 * @param analyzer - the analyzer
+	 * @param options - RECOVERY and LEGACY_VALIDATOR, as the analysis runs
+	 */
+	public AnalysisCache(FAT32Analyzer analyzer, int options) {
+		this.analyzer = analyzer;
+		this.image = analyzer.getImageSource();
+		this.options = options;
+		this.bytesPerCluster = analyzer.getBytesPerSector() * analyzer.getSectorsPerCluster();
+		this.dataStart = analyzer.clusterOffset(2);
+	}
+
+	/**
+	 * Method to read the cache of the last run, if it belongs to this volume. A
+	 * cache that is damaged or can't be read is ignored.
+	 *
+	 * @param file - the cache file, which may not exist
+	 * @return the number of directories that may be replayed
+	 */
+	public int load(File file) {
+		if(!file.isFile())
+			return 0;
+		try {
+			this.read(file);
+		} catch(IOException | RuntimeException e) {
+			staleReason = "it is damaged or can't be read";
+		}
+		if(staleReason != null) {
+			previous.clear();
+			previousFatFindings = null;
+			previousFatSectorOffsets.clear();
+			previousFatSectors.clear();
+			return 0;
+		}
+		return previous.size();
+	}
+
+	/**
+	 * Helper method to read a cache file, checking its CRC32C once it has been
+	 * read. Every count is checked against the size of the file before anything
+	 * is allocated for it.
+	 */
+	private void read(File file) throws IOException {
+		long length = file.length();
+		CRC32C crc = new CRC32C();
+		try(DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), crc))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if(!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+				staleReason = "it is not an analysis cache of this version";
+				return;
+			}
+			if(in.readLong() != image.base() || in.readLong() != image.size() || in.readInt() != options
+				|| in.readInt() != bytesPerCluster || in.readLong() != dataStart) {
+				staleReason = "it was made of another volume or with other options";
+				return;
+			}
+			int[] checksums = new int[count(in, length / 4)];
+			for(int i = 0; i < checksums.length; i++)
+				checksums[i] = in.readInt();
+
+			int directoryCount = count(in, length);
+			for(int d = 0; d < directoryCount; d++) {
+				Directory directory = new Directory(in.readInt(), in.readBoolean());
+				directory.chainChecksum = in.readInt();
+				directory.clusterCount = count(in, length / 8);
+				directory.clusters = new int[Math.max(1, directory.clusterCount)];
+				directory.checksums = new int[directory.clusterCount];
+				for(int i = 0; i < directory.clusterCount; i++) {
+					directory.clusters[i] = in.readInt();
+					directory.checksums[i] = in.readInt();
+				}
+				for(int i = count(in, length / 4); i > 0; i--)
+					directory.subdirectories.add(in.readInt());
+				for(int i = count(in, length / 17); i > 0; i--)
+					directory.marks.add(in.readInt(), in.readLong(), in.readBoolean(), in.readInt());
+				this.readFindings(in, length, directory.findings);
+				this.readSectors(in, length, directory.sectorOffsets, directory.sectors);
+				previous.put(directory.firstCluster, directory);
+			}
+			previousFatFindings = new ArrayList<>();
+			this.readFindings(in, length, previousFatFindings);
+			this.readSectors(in, length, previousFatSectorOffsets, previousFatSectors);
+
+			int computed = (int) crc.getValue();
+			if(in.readInt() != computed || in.read() != -1) {
+				staleReason = "its checksum doesn't match, it is damaged";
+				return;
+			}
+			metadataUnchanged = Arrays.equals(checksums, this.metadataChecksums());
+		}
+	}
+
+	/**
+	 * @return why the last run's cache couldn't be used, or null if it could
+	 */
+	public String staleReason() {
+		return staleReason;
+	}
+
+	/**
+	 * @return the number of directories replayed from the cache and analyzed, so far
+	 */
+	public int[] counts() {
+		return new int[] {replayed.get(), analyzed.get()};
+	}
+
+	/**
+	 * Method to replay a directory from the cache if its clusters haven't changed
+	 * since the last run. Called by the directory walker instead of analyzing it.
+	 *
+	 * @param firstCluster - the first cluster of the directory
+	 * @param isRoot - whether it is the root directory
+	 * @param findings - the list to add the directory's findings to
+	 * @param subdirectories - the list to add the first cluster of its subdirectories to
+	 * @param marks - the marks to add the first cluster of its entries to
+	 * @return true if it was replayed, false if it has to be analyzed
+	 */
+	public boolean replay(int firstCluster, boolean isRoot, List<Finding> findings, List<Integer> subdirectories, DirectoryWalker.Marks marks) {
+		Directory directory = previous.get(firstCluster);
+		if(directory == null || directory.isRoot != isRoot || this.chainChecksum(directory) != directory.chainChecksum)
+			return false;
+		for(int i = 0; i < directory.clusterCount; i++) {
+			if(this.checksum(directory.clusters[i]) != directory.checksums[i])
+				return false;
+		}
+
+		for(int i = 0; i < directory.sectors.size(); i++) {
+			byte[] sector = directory.sectors.get(i);
+			image.write(directory.sectorOffsets.get(i), sector, 0, sector.length);
+		}
+		findings.addAll(directory.findings);
+		subdirectories.addAll(directory.subdirectories);
+		for(int i = 0; i < directory.marks.size(); i++)
+			marks.add(directory.marks.cluster(i), directory.marks.offset(i), directory.marks.isDirectory(i), directory.marks.position(i));
+		directories.add(directory);
+		replayed.incrementAndGet();
+		analyzer.getMetrics().read((long) directory.clusterCount * bytesPerCluster);
+		return true;
+	}
+
+	/**
+	 * Method to start recording a directory that is about to be analyzed
+	 *
+	 * @param firstCluster - the first cluster of the directory
+	 * @param isRoot - whether it is the root directory
+	 * @return the record for analyzeDirectory to fill in
+	 */
+	public Directory record(int firstCluster, boolean isRoot) {
+		Directory directory = new Directory(firstCluster, isRoot);
+		directories.add(directory);
+		analyzed.incrementAndGet();
+		return directory;
+	}
+
+	/**
+	 * Method to finish recording a directory once it has been analyzed
+	 *
+	 * @param directory - the record
+	 * @param findings - the directory's findings
+	 * @param subdirectories - the first cluster of its subdirectories, in entry order
+	 * @param marks - the first cluster of its entries, in entry order
+	 */
+	public void recorded(Directory directory, List<Finding> findings, List<Integer> subdirectories, DirectoryWalker.Marks marks) {
+		directory.findings.addAll(findings);
+		directory.subdirectories.addAll(subdirectories);
+		directory.marks = marks;
+	}
+
+	/**
+	 * Method to run the FAT check, or reuse the last run's if the metadata hasn't
+	 * changed and every directory was replayed, so the FAT and every entry's first
+	 * cluster are as they were
+	 *
+	 * @param firstClusters - the first clusters of every live directory entry (and the root)
+	 * @return the findings of the FAT check
+	 */
+	public List<Finding> checkFAT(ClusterBitmap firstClusters) {
+		metadataSectorsBefore = new HashSet<>();
+		for(SectorJournal.Sector sector : image.journal().changedSectors()) {
+			if(this.isMetadataSector(sector.offset))
+				metadataSectorsBefore.add(sector.offset);
+		}
+		fatCheckReplayed = previousFatFindings != null && metadataUnchanged && analyzed.get() == 0 && replayed.get() == previous.size();
+		if(fatCheckReplayed) {
+			for(int i = 0; i < previousFatSectors.size(); i++) {
+				byte[] sector = previousFatSectors.get(i);
+				image.write(previousFatSectorOffsets.get(i), sector, 0, sector.length);
+			}
+			fatFindings = new ArrayList<>(previousFatFindings);
+		}
+		else {
+			fatFindings = FatChecker.check(analyzer, firstClusters);
+		}
+		return fatFindings;
+	}
+
+	/**
+	 * @return true if the FAT check was reused from the last run
+	 */
+	public boolean fatCheckReplayed() {
+		return fatCheckReplayed;
+	}
+
+	/**
+	 * Method to write the cache of this run, once the walk and the FAT check are done
+	 *
+	 * @param file - the cache file, replaced once the new cache is complete
+	 */
+	public void save(File file) throws IOException {
+		//Repaired sectors of this volume, handed to the directory their cluster belongs to
+		Map<Integer, Directory> byCluster = new HashMap<>();
+		for(Directory directory : directories) {
+			directory.sectorOffsets.clear();
+			directory.sectors.clear();
+			for(int i = 0; i < directory.clusterCount; i++)
+				byCluster.putIfAbsent(directory.clusters[i], directory);
+		}
+		List<Long> fatSectorOffsets = new ArrayList<>();
+		List<byte[]> fatSectors = new ArrayList<>();
+		for(SectorJournal.Sector sector : image.journal().changedSectors()) {
+			long offset = sector.offset - image.base();
+			if(offset < 0 || offset >= image.size())
+				continue;
+			if(offset < dataStart) {
+				if(!metadataSectorsBefore.contains(sector.offset)) {
+					fatSectorOffsets.add(offset);
+					fatSectors.add(sector.repaired);
+				}
+				continue;
+			}
+			Directory directory = byCluster.get((int) ((offset - dataStart) / bytesPerCluster) + 2);
+			if(directory != null) {
+				directory.sectorOffsets.add(offset);
+				directory.sectors.add(sector.repaired);
+			}
+		}
+
+		File temporary = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		CRC32C crc = new CRC32C();
+		try(DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16), crc))) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(image.base());
+			out.writeLong(image.size());
+			out.writeInt(options);
+			out.writeInt(bytesPerCluster);
+			out.writeLong(dataStart);
+			int[] checksums = this.metadataChecksums();
+			out.writeInt(checksums.length);
+			for(int checksum : checksums)
+				out.writeInt(checksum);
+
+			//A directory replayed twice (linked from two entries) is only kept once
+			Map<Integer, Directory> unique = new HashMap<>();
+			for(Directory directory : directories)
+				unique.putIfAbsent(directory.firstCluster, directory);
+			out.writeInt(unique.size());
+			for(Directory directory : unique.values()) {
+				if(directory.checksums == null || directory.checksums.length != directory.clusterCount) {
+					directory.checksums = new int[directory.clusterCount];
+					for(int i = 0; i < directory.clusterCount; i++)
+						directory.checksums[i] = this.checksum(directory.clusters[i]);
+				}
+				out.writeInt(directory.firstCluster);
+				out.writeBoolean(directory.isRoot);
+				out.writeInt(this.chainChecksum(directory));
+				out.writeInt(directory.clusterCount);
+				for(int i = 0; i < directory.clusterCount; i++) {
+					out.writeInt(directory.clusters[i]);
+					out.writeInt(directory.checksums[i]);
+				}
+				out.writeInt(directory.subdirectories.size());
+				for(int subdirectory : directory.subdirectories)
+					out.writeInt(subdirectory);
+				out.writeInt(directory.marks.size());
+				for(int i = 0; i < directory.marks.size(); i++) {
+					out.writeInt(directory.marks.cluster(i));
+					out.writeLong(directory.marks.offset(i));
+					out.writeBoolean(directory.marks.isDirectory(i));
+					out.writeInt(directory.marks.position(i));
+				}
+				writeFindings(out, directory.findings);
+				writeSectors(out, directory.sectorOffsets, directory.sectors);
+			}
+			writeFindings(out, fatFindings);
+			writeSectors(out, fatSectorOffsets, fatSectors);
+			out.writeInt((int) crc.getValue());
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Helper method to compute the checksums of the metadata, once
+	 */
+	private int[] metadataChecksums() {
+		if(metadataChecksums != null)
+			return metadataChecksums;
+		long end = Math.min(dataStart, image.size());
+		int[] checksums = new int[(int) ((end + METADATA_REGION - 1) / METADATA_REGION)];
+		byte[] buffer = new byte[METADATA_REGION];
+		CRC32C crc = new CRC32C();
+		for(int i = 0; i < checksums.length; i++) {
+			int length = (int) Math.min(METADATA_REGION, end - (long) i * METADATA_REGION);
+			image.readOriginal((long) i * METADATA_REGION, buffer, 0, length);
+			crc.reset();
+			crc.update(buffer, 0, length);
+			checksums[i] = (int) crc.getValue();
+		}
+		analyzer.getMetrics().read(end);
+		metadataChecksums = checksums;
+		return checksums;
+	}
+
+	/**
+	 * Helper method to compute the checksum of the FAT entries a directory's
+	 * analysis read: those of its clusters, and in recovery mode those of the free
+	 * run after each deleted entry's first cluster and the entry that ended it
+	 */
+	private int chainChecksum(Directory directory) {
+		FatTable fat = analyzer.getFAT();
+		CRC32C crc = new CRC32C();
+		for(int i = 0; i < directory.clusterCount; i++)
+			update(crc, fat.next(directory.clusters[i]));
+		for(Finding finding : directory.findings) {
+			if(finding.kind == Finding.Kind.DELETED_ENTRY) {
+				for(int i = 0; i <= finding.count; i++)
+					update(crc, fat.next(finding.cluster + i));
+			}
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Helper method to add a big endian int to a checksum
+	 */
+	private static void update(CRC32C crc, int value) {
+		for(int shift = 24; shift >= 0; shift -= 8)
+			crc.update(value >>> shift);
+	}
+
+	/**
+	 * Helper method to compute the checksum of a cluster as it is on disk
+	 *
+	 * @return the checksum, 0 for a cluster past the end of the volume
+	 */
+	private int checksum(int cluster) {
+		long offset = analyzer.clusterOffset(cluster);
+		if(offset < 0 || offset + bytesPerCluster > image.size())
+			return 0;
+		byte[] buffer = buffers.poll();
+		if(buffer == null)
+			buffer = new byte[bytesPerCluster];
+		image.readOriginal(offset, buffer, 0, bytesPerCluster);
+		CRC32C crc = new CRC32C();
+		crc.update(buffer, 0, bytesPerCluster);
+		buffers.offer(buffer);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Helper method to check whether a sector on the disk is in the volume's metadata
+	 */
+	private boolean isMetadataSector(long sector) {
+		long offset = sector - image.base();
+		return offset >= 0 && offset < dataStart && offset < image.size();
+	}
+
+	/**
+	 * Helper method to write a list of findings
+	 */
+	private static void writeFindings(DataOutputStream out, List<Finding> findings) throws IOException {
+		out.writeInt(findings.size());
+		for(Finding finding : findings)
+			finding.write(out);
+	}
+
+	/**
+	 * Helper method to read a list of findings written by writeFindings()
+	 */
+	private void readFindings(DataInputStream in, long length, List<Finding> findings) throws IOException {
+		for(int i = count(in, length); i > 0; i--)
+			findings.add(Finding.read(in));
+	}
+
+	/**
+	 * Helper method to write repaired sectors
+	 */
+	private static void writeSectors(DataOutputStream out, List<Long> offsets, List<byte[]> sectors) throws IOException {
+		out.writeInt(sectors.size());
+		for(int i = 0; i < sectors.size(); i++) {
+			out.writeLong(offsets.get(i));
+			out.writeInt(sectors.get(i).length);
+			out.write(sectors.get(i));
+		}
+	}
+
+	/**
+	 * Helper method to read repaired sectors written by writeSectors(), which have
+	 * to lie inside the volume
+	 */
+	private void readSectors(DataInputStream in, long length, List<Long> offsets, List<byte[]> sectors) throws IOException {
+		for(int i = count(in, length / 12); i > 0; i--) {
+			long offset = in.readLong();
+			byte[] sector = new byte[count(in, Math.min(length, bytesPerCluster))];
+			if(offset < 0 || offset + sector.length > image.size())
+				throw new IOException("Repaired sector at " + offset + " is outside of the volume.");
+			in.readFully(sector);
+			offsets.add(offset);
+			sectors.add(sector);
+		}
+	}
+
+	/**
+	 * Helper method to read a count, which can't be negative or larger than a limit
+	 */
+	private static int count(DataInputStream in, long limit) throws IOException {
+		int count = in.readInt();
+		if(count < 0 || count > limit)
+			throw new IOException("Count " + count + " is out of range.");
+		return count;
+	}
+}
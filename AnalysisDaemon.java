@@ -0,0 +1,457 @@
+/**
+ * Daemon mode: one warm JVM that analyzes images sent to it by clients.
+ *
+ * Starting a JVM and warming it up can take longer than analyzing a small
+ * image (an SD card, a USB stick), so the daemon stays resident and takes jobs
+ * over a local socket: a Unix-domain socket at a path, or a port on the
+ * loopback address. Each connection carries one job, one line of tab separated
+ * fields:
+ *		mode		copy (a repaired copy), patch (a patch file) or stop
+ *		input		the absolute path of the image
+ *		output		the absolute path of the repaired copy or patch
+ *		findings	the path to write the findings to as JSON Lines or CSV, or empty
+ *		metrics		text or json for the time of every phase, a .json path, or empty
+ * The daemon streams back everything the single image mode would have printed,
+ * as it is printed, then the job's timing and a last line "exit <status>", 0
+ * if the image was analyzed.
+ *
+ * Job lines are read on the accepting thread, which waits on every connection
+ * at once through a selector. A client that doesn't send its whole line within
+ * ten seconds is hung up on, so connections that never send anything can't
+ * hold a worker or the queue. Jobs then run concurrently on a fixed pool of
+ * workers, each with its own FAT32Analyzer. The queue in front of them is
+ * bounded: a job that finds it full is turned away with status 2 instead of
+ * waiting, so a flood of jobs can't pile up. A stop job doesn't go through the
+ * queue, so a busy daemon can always be stopped: it stops taking new jobs, and
+ * the daemon exits once the jobs already queued are done.
+ *
+ * Anyone who can connect can have files read and written as the daemon's
+ * user. A Unix-domain socket is bound in a directory only that user can reach
+ * and made readable and writable by that user alone before it is moved into
+ * place, so no one else can connect to it at any point. The loopback port is
+ * never reachable from other machines, but every local user can connect to
+ * it, so the daemon warns when it listens on one.
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class AnalysisDaemon {
+
+	//Jobs that may wait for a worker, per worker
+	private static final int QUEUE_PER_THREAD = 4;
+	//Time a client has to send its job line, and the longest line taken
+	private static final long JOB_LINE_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+	private static final int MAX_JOB_LINE = 1 << 16;
+	//Statuses a job ends with
+	public static final int ANALYZED = 0;
+	public static final int FAILED = 1;
+	public static final int BUSY = 2;
+
+	private final ServerSocketChannel server;
+	private final ThreadPoolExecutor workers;
+	private final AtomicLong jobs = new AtomicLong();
+
+	/**
+	 * Constructor for a daemon listening on a bound socket
+	 */
+	private AnalysisDaemon(ServerSocketChannel server, int threads) {
+		this.server = server;
+		this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD));
+	}
+
+	/**
+	 * Helper method to bind a Unix-domain socket that only this user can connect to.
+	 * The socket is created in a new directory only this user can reach, made
+	 * readable and writable by this user alone, then moved to its path, so there
+	 * is never a moment when someone else could connect. File systems without
+	 * POSIX permissions bind it in place.
+	 */
+	private static void bindPrivately(ServerSocketChannel server, Path socket) throws IOException {
+		if(!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			server.bind(UnixDomainSocketAddress.of(socket));
+			return;
+		}
+		Path parent = socket.toAbsolutePath().getParent();
+		Path directory = Files.createTempDirectory(parent, ".fat32-daemon", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		try {
+			Path bound = directory.resolve("socket");
+			server.bind(UnixDomainSocketAddress.of(bound));
+			Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+			Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(directory.resolve("socket"));
+			Files.delete(directory);
+		}
+	}
+
+	/**
+	 * Method to run the daemon until a stop job arrives
+	 *
+	 * @param address - a port number for the loopback address, or the path of a
+	 *                  Unix-domain socket
+	 * @param threads - the number of jobs to run at once
+	 */
+	public static void serve(String address, int threads) throws IOException {
+		ServerSocketChannel server;
+		Path socket = null;
+		if(address.matches("\\d+")) {
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+			System.out.println("Warning: every local user can connect to port " + address
+				+ " and have files read and written as this user. A Unix-domain socket can be kept to this user.");
+		}
+		else {
+			socket = Path.of(address);
+			//A socket file left behind by a daemon that died is in the way, a live one isn't
+			if(Files.exists(socket)) {
+				boolean live;
+				try {
+					SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+					live = true;
+				} catch(IOException ioe) {
+					live = false;
+				}
+				if(live)
+					throw new IOException("A daemon is already listening on " + address + ".");
+				Files.delete(socket);
+			}
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			AnalysisDaemon.bindPrivately(server, socket);
+		}
+
+		AnalysisDaemon daemon = new AnalysisDaemon(server, threads);
+		System.out.println("Listening on " + address + ", " + threads + " job(s) at a time.");
+		Job stop = null;
+		try {
+			stop = daemon.accept();
+		} finally {
+			server.close();
+			daemon.workers.shutdown();
+			try {
+				while(!daemon.workers.awaitTermination(1, TimeUnit.SECONDS));
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			if(socket != null)
+				Files.deleteIfExists(socket);
+		}
+		if(stop != null)
+			daemon.stopped(stop);
+		System.out.println("Stopped after " + daemon.jobs.get() + " job(s).");
+	}
+
+	/**
+	 * Method to send a job to a daemon and print what it streams back
+	 *
+	 * @param address - the daemon's port number or Unix-domain socket
+	 * @param mode - "copy", "patch" or "stop"
+	 * @param input - the image to analyze, null for a stop job
+	 * @param output - the repaired copy or patch to write, null for a stop job
+	 * @param findings - the file to write the findings to, or null
+	 * @param metrics - "text", "json" or a .json path for the metrics, or null
+	 * @param out - where to print what the daemon sends back
+	 * @return the status of the job: ANALYZED, FAILED or BUSY
+	 */
+	public static int submit(String address, String mode, File input, File output, File findings, String metrics, PrintStream out) throws IOException {
+		//The daemon has a working directory of its own, so every path goes absolute
+		String job = String.join("\t", mode, path(input), path(output), path(findings),
+				metrics == null ? "" : metrics.equals("text") || metrics.equals("json") ? metrics : new File(metrics).getAbsolutePath());
+		if(job.indexOf('\n') >= 0 || job.indexOf('\r') >= 0 || job.split("\t", -1).length != 5)
+			throw new IllegalArgumentException("Paths sent to the daemon can't contain tabs or line breaks.");
+		SocketAddress socketAddress = address.matches("\\d+")
+				? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address))
+				: UnixDomainSocketAddress.of(address);
+
+		SocketChannel channel;
+		try {
+			channel = SocketChannel.open(socketAddress);
+		} catch(IOException ioe) {
+			throw new IOException("No daemon is listening on " + address + " (" + ioe.getMessage() + ").", ioe);
+		}
+		try(channel) {
+			PrintStream request = new PrintStream(Channels.newOutputStream(channel), false, "UTF-8");
+			request.print(job + "\n");
+			request.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+			//Lines are printed one behind, the last one is the status
+			String previous = null;
+			for(String line = in.readLine(); line != null; line = in.readLine()) {
+				if(previous != null)
+					out.println(previous);
+				previous = line;
+			}
+			if(previous == null || !previous.matches("exit \\d+")) {
+				if(previous != null)
+					out.println(previous);
+				out.println("The daemon closed the connection before the job was done.");
+				return FAILED;
+			}
+			return Integer.parseInt(previous.substring(5));
+		}
+	}
+
+	/**
+	 * A connection whose job line is being read, or has been
+	 */
+	private static final class Job {
+		final SocketChannel channel;
+		final long accepted;
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		long number;
+		//When the line was complete, in System.nanoTime
+		long queued;
+
+		Job(SocketChannel channel, long accepted) {
+			this.channel = channel;
+			this.accepted = accepted;
+		}
+
+		/**
+		 * @return the line read, without its line break, or null if nothing was sent
+		 */
+		String line() {
+			byte[] bytes = line.toByteArray();
+			int length = bytes.length;
+			if(length > 0 && bytes[length - 1] == '\r')
+				length--;
+			return bytes.length == 0 ? null : new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Helper method to accept connections, read their job lines and queue them
+	 * until a stop job arrives
+	 *
+	 * @return the stop job, its connection still open
+	 */
+	private Job accept() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 12);
+		try(Selector selector = Selector.open()) {
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			List<Job> ready = new ArrayList<>();
+			while(true) {
+				selector.select(1000);
+				for(Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext();) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(key.isValid() && key.isAcceptable()) {
+						SocketChannel connection = server.accept();
+						if(connection != null) {
+							connection.configureBlocking(false);
+							connection.register(selector, SelectionKey.OP_READ, new Job(connection, System.nanoTime()));
+						}
+					}
+					else if(key.isValid() && key.isReadable() && this.read((Job) key.attachment(), buffer)) {
+						key.cancel();
+						ready.add((Job) key.attachment());
+					}
+				}
+
+				//Back to blocking for the workers, which needs the cancelled keys gone first
+				if(!ready.isEmpty())
+					selector.selectNow();
+				for(Job job : ready) {
+					job.channel.configureBlocking(true);
+					job.queued = System.nanoTime();
+					job.number = jobs.incrementAndGet();
+					String line = job.line();
+					if(line != null && line.startsWith("stop\t")) {
+						for(Job other : ready) {
+							if(other != job && other.number == 0)
+								this.close(other.channel);
+						}
+						this.hangUp(selector);
+						try {
+							PrintStream out = new PrintStream(Channels.newOutputStream(job.channel), true, "UTF-8");
+							out.println("Daemon stopping once the " + (workers.getActiveCount() + workers.getQueue().size()) + " job(s) ahead of this one are done.");
+						} catch(IOException ioe) {
+							//The client is gone, the daemon stops all the same
+						}
+						return job;
+					}
+					this.queue(job, line);
+				}
+				ready.clear();
+
+				//Hang up on clients that are too slow to send their job
+				long now = System.nanoTime();
+				for(SelectionKey key : selector.keys()) {
+					Job job = (Job) key.attachment();
+					if(job != null && key.isValid() && now - job.accepted > JOB_LINE_TIMEOUT) {
+						key.cancel();
+						this.close(job.channel);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper method to read what a client has sent of its job line so far
+	 *
+	 * @return true if the line is complete, or the client stopped sending
+	 */
+	private boolean read(Job job, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		int read;
+		try {
+			read = job.channel.read(buffer);
+		} catch(IOException ioe) {
+			read = -1;
+		}
+		if(read < 0)
+			return true;
+		for(int i = 0; i < read; i++) {
+			byte b = buffer.get(i);
+			if(b == '\n')
+				return true;
+			job.line.write(b);
+		}
+		//A line that long isn't a job, let the worker turn it away
+		return job.line.size() > MAX_JOB_LINE;
+	}
+
+	/**
+	 * Helper method to hand a job to the workers, or turn it away if they are busy
+	 */
+	private void queue(Job job, String line) {
+		try {
+			workers.execute(() -> this.job(job, line));
+		} catch(RejectedExecutionException ree) {
+			try(PrintStream out = new PrintStream(Channels.newOutputStream(job.channel), false, "UTF-8")) {
+				out.print("The daemon is busy, " + workers.getQueue().size() + " job(s) are waiting. Try again later.\nexit " + BUSY + "\n");
+			} catch(IOException ioe) {
+				//The client is gone, there is no one to tell
+			}
+			this.close(job.channel);
+		}
+	}
+
+	/**
+	 * Helper method to hang up on every client that hasn't sent its job yet
+	 */
+	private void hangUp(Selector selector) {
+		for(SelectionKey key : selector.keys()) {
+			if(key.attachment() != null) {
+				key.cancel();
+				this.close(((Job) key.attachment()).channel);
+			}
+		}
+	}
+
+	/**
+	 * Helper method to close a connection, whatever state it is in
+	 */
+	private void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch(IOException ioe) {
+			//Closed is closed
+		}
+	}
+
+	/**
+	 * Helper method to answer the stop job once the jobs ahead of it are done
+	 */
+	private void stopped(Job job) {
+		try(SocketChannel channel = job.channel;
+				PrintStream out = new PrintStream(Channels.newOutputStream(channel), true, "UTF-8")) {
+			String timing = String.format("Job %d finished in %.3f s.", job.number, (System.nanoTime() - job.queued) / 1e9);
+			out.println(timing);
+			out.print("exit " + ANALYZED + "\n");
+			out.flush();
+			System.out.println(timing + " stop");
+		} catch(IOException | RuntimeException e) {
+			System.out.println("Job " + job.number + " failed: " + e);
+		}
+	}
+
+	/**
+	 * Helper method run by a worker: run one job and stream its output back
+	 *
+	 * @param job - the job, whose connection is closed once it is done
+	 * @param line - the job line the client sent, or null if it sent none
+	 */
+	private void job(Job job, String line) {
+		long number = job.number;
+		try(SocketChannel channel = job.channel;
+				PrintStream out = new PrintStream(Channels.newOutputStream(channel), true, "UTF-8")) {
+			long started = System.nanoTime();
+			String[] fields = line == null ? new String[0] : line.split("\t", -1);
+			int status = FAILED;
+			if(fields.length == 5 && (fields[0].equals("copy") || fields[0].equals("patch")) && !fields[1].isEmpty() && !fields[2].isEmpty()) {
+				status = this.analyze(fields, out);
+			}
+			else {
+				out.println("Malformed job: " + line);
+			}
+			long done = System.nanoTime();
+			String timing = String.format("Job %d finished in %.3f s, after %.3f s in the queue.", number, (done - started) / 1e9, (started - job.queued) / 1e9);
+			out.println(timing);
+			out.print("exit " + status + "\n");
+			out.flush();
+			System.out.println(timing + (fields.length > 1 ? " " + (fields[0] + " " + fields[1]).trim() : "") + (status == ANALYZED ? "" : " (status " + status + ")"));
+		} catch(IOException | RuntimeException e) {
+			System.out.println("Job " + number + " failed: " + e);
+		}
+	}
+
+	/**
+	 * Helper method to analyze the image of a job
+	 *
+	 * @param fields - the fields of the job
+	 * @param out - the client's connection
+	 * @return the status of the job
+	 */
+	private int analyze(String[] fields, PrintStream out) {
+		File input = new File(fields[1]);
+		try(ImageSource image = FAT32Analyzer.getImage(input)) {
+			FAT32Analyzer analyzer = new FAT32Analyzer(image);
+			analyzer.setMetricsOutput(fields[4].isEmpty() ? null : fields[4]);
+			return analyzer.run(new File(fields[2]), fields[0].equals("patch"), fields[3].isEmpty() ? null : new File(fields[3]), out) ? ANALYZED : FAILED;
+		} catch(IOException | RuntimeException e) {
+			e.printStackTrace(out);
+			return FAILED;
+		}
+	}
+
+	/**
+	 * Helper method to turn a file into the absolute path sent for it, empty for none
+	 */
+	private static String path(File file) {
+		return file == null ? "" : file.getAbsolutePath();
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Batch mode: analyze many images in one JVM.
+ *
+ * The images to analyze are either every regular file in a directory or the
+ * paths listed in a manifest (one per line, blank lines and lines starting with
+ * # are skipped). Images are analyzed concurrently on a fixed size thread pool,
+ * which bounds how many images are being read at once. Each image gets its own
+ * FAT32Analyzer, its repaired copy (or patch), a .log file with everything
+ * the single image mode would have printed and, if asked for, its findings as
+ * JSON Lines or CSV and the hashes of the image and its output. One summary line per image is printed in input order.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+public class BatchAnalyzer {
+
+	/**
+	 * Method to analyze every image of a directory or manifest
+	 *
+	 * @param source - a directory of images, or a manifest file listing them
+	 * @param outputDirectory - the directory to write repaired images (or patches) and logs to
+	 * @param patchOutput - true to write patch files instead of repaired copies
+	 * @param findingsFormat - "jsonl" or "csv" to write each image's findings to a
+	 *                         .findings.jsonl or .findings.csv file, or null
+	 * @param hashPieceSize - -1 not to hash, 0 to hash each input and output, or the
+	 *                        size of the pieces to also list the hashes of
+	 * @param metricsFormat - "text" or "json" to end each image's log with the time
+	 *                        and throughput of every phase, or null
+	 * @param threads - the number of images to analyze at once
+	 * @return the number of images that couldn't be analyzed
+	 */
+	public static int run(File source, File outputDirectory, boolean patchOutput, String findingsFormat, long hashPieceSize, String metricsFormat, int threads) throws IOException {
+		if(findingsFormat != null && !findingsFormat.equals("jsonl") && !findingsFormat.equals("csv"))
+			throw new IllegalArgumentException("The findings format of a batch must be jsonl or csv.");
+		if(metricsFormat != null && !metricsFormat.equals("text") && !metricsFormat.equals("json"))
+			throw new IllegalArgumentException("The metrics format of a batch must be text or json.");
+		List<File> images = BatchAnalyzer.listImages(source);
+		Files.createDirectories(outputDirectory.toPath());
+
+		//Images with the same file name (possible in a manifest) get a numbered suffix
+		Set<String> usedNames = new HashSet<>();
+		List<Future<String>> results = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for(File image : images) {
+				String name = image.getName();
+				for(int i = 2; !usedNames.add(name); i++)
+					name = image.getName() + "-" + i;
+				File output = new File(outputDirectory, name + (patchOutput ? ".patch" : ".repaired.dd"));
+				File log = new File(outputDirectory, name + ".log");
+				File findings = findingsFormat == null ? null : new File(outputDirectory, name + ".findings." + findingsFormat);
+				results.add(executor.submit(() -> BatchAnalyzer.analyze(image, output, findings, log, patchOutput, hashPieceSize, metricsFormat)));
+			}
+
+			//Report in input order, whatever order the images finish in
+			int failed = 0;
+			for(int i = 0; i < images.size(); i++) {
+				String result;
+				try {
+					result = results.get(i).get();
+				} catch(ExecutionException ee) {
+					result = "FAILED (" + ee.getCause() + ")";
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					result = "FAILED (interrupted)";
+				}
+				if(result.startsWith("FAILED"))
+					failed++;
+				System.out.println(images.get(i) + ": " + result);
+			}
+			System.out.println((images.size() - failed) + " of " + images.size() + " image(s) analyzed.");
+			return failed;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Method to find the images named by a directory or manifest
+	 *
+	 * @param source - a directory of images, or a manifest file listing them
+	 * @return the images, sorted by name for a directory, in file order for a manifest
+	 */
+	public static List<File> listImages(File source) throws IOException {
+		List<File> images = new ArrayList<>();
+		if(source.isDirectory()) {
+			//The later segments of a split image are opened along with its first
+			File[] files = source.listFiles(file -> file.isFile() && !ImageSource.isLaterSegment(file));
+			if(files == null)
+				throw new IOException("Unable to list " + source + ".");
+			Arrays.sort(files);
+			images.addAll(Arrays.asList(files));
+		}
+		else {
+			for(String line : Files.readAllLines(source.toPath())) {
+				line = line.trim();
+				if(!line.isEmpty() && !line.startsWith("#"))
+					images.add(new File(line));
+			}
+		}
+		return images;
+	}
+
+	/**
+	 * Helper method to analyze one image of the batch, with its output going to a log
+	 *
+	 * @return a one line summary of the result
+	 */
+	private static String analyze(File image, File output, File findings, File log, boolean patchOutput, long hashPieceSize, String metricsFormat) throws IOException {
+		long start = System.nanoTime();
+		boolean analyzed;
+		try(PrintStream out = new PrintStream(new FileOutputStream(log), false, "UTF-8")) {
+			try {
+				try(ImageSource source = FAT32Analyzer.getImage(image)) {
+					FAT32Analyzer analyzer = new FAT32Analyzer(source);
+					if(hashPieceSize >= 0)
+						analyzer.setHashing(image, hashPieceSize);
+					analyzer.setMetricsOutput(metricsFormat);
+					analyzed = analyzer.run(output, patchOutput, findings, out);
+				}
+			} catch(IOException | RuntimeException e) {
+				e.printStackTrace(out);
+				return "FAILED (" + e + ", see " + log + ")";
+			}
+		}
+		String seconds = String.format("%.2f s", (System.nanoTime() - start) / 1e9);
+		if(!analyzed)
+			return "FAILED (boot sector and backup unusable, see " + log + ") " + seconds;
+		return "analyzed, written to " + output + " " + seconds;
+	}
+}
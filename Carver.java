@@ -0,0 +1,490 @@
+/**
+ * File carving over the free clusters of a volume.
+ *
+ * Only clusters the FAT marks as free are read, in one sequential pass:
+ *		1. A reader thread follows the FAT's free map and copies runs of free
+ *		   clusters into blocks, in disk order. Blocks come from a small fixed
+ *		   pool, so a slow scanner makes the reader wait instead of piling up
+ *		   memory, and nothing is held once it has been scanned and stitched.
+ *		2. Scanner threads look for file headers at the start of every cluster
+ *		   of a block (a file on FAT always starts on a cluster), and look for
+ *		   the matching footer in the rest of the block. Each block is boiled
+ *		   down to a Scan: its headers, where each footer first appears before
+ *		   its first header, and its first and last few bytes.
+ *		3. Scans are stitched together in disk order as they come in. The file
+ *		   whose footer wasn't in its own block is carried on to the next
+ *		   blocks until its footer (possibly straddling two blocks) or its limit
+ *		   turns up, so no part of the image is read twice. A file never
+ *		   runs past the end of its run of free clusters, the next header or the
+ *		   size limit of its type. Files without a footer are dropped.
+ * Carved files are then written out in disk order, straight from the image.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class Carver {
+
+	//Bytes read into one block (at least one cluster)
+	private static final int BLOCK_SIZE = 1 << 20;
+	//Blocks in the pool per scanner thread
+	private static final int BLOCKS_PER_THREAD = 2;
+	//Bytes a footer can start before the end of a block and still straddle it
+	private static final int OVERLAP = 7;
+
+	/**
+	 * A type of file that can be carved: its header, footer and size limit
+	 */
+	private static final class Signature {
+		final String extension;
+		final byte[] header;
+		final byte[] footer;
+		//Bytes that belong to the file after its footer
+		final int trailer;
+		final long maxSize;
+
+		Signature(String extension, byte[] header, byte[] footer, int trailer, long maxSize) {
+			this.extension = extension;
+			this.header = header;
+			this.footer = footer;
+			this.trailer = trailer;
+			this.maxSize = maxSize;
+		}
+	}
+
+	private static final Signature[] SIGNATURES = {
+		new Signature("jpg", bytes(0xFF, 0xD8, 0xFF), bytes(0xFF, 0xD9), 0, 32L << 20),
+		new Signature("png", bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A), bytes('I', 'E', 'N', 'D', 0xAE, 0x42, 0x60, 0x82), 0, 32L << 20),
+		new Signature("gif", ascii("GIF8"), bytes(0x00, 0x3B), 0, 16L << 20),
+		new Signature("pdf", ascii("%PDF-"), ascii("%%EOF"), 0, 256L << 20),
+		//The end of central directory record is 22 bytes, without a comment
+		new Signature("zip", bytes('P', 'K', 3, 4), bytes('P', 'K', 5, 6), 18, 256L << 20)
+	};
+
+	/**
+	 * A file found by its header, and how far it may go
+	 */
+	private static final class Candidate {
+		final Signature signature;
+		final long offset;
+		final int cluster;
+		//Absolute offset the file must end by
+		long limit;
+		//Absolute offset its footer can start at, right after its header
+		final long searchFrom;
+		//Absolute offset the file ends at, -1 while unknown
+		long end = -1;
+
+		Candidate(Signature signature, long offset, int cluster, long limit, long searchFrom) {
+			this.signature = signature;
+			this.offset = offset;
+			this.cluster = cluster;
+			this.limit = limit;
+			this.searchFrom = searchFrom;
+		}
+	}
+
+	/**
+	 * What a scanner found in a block, all the stitching needs to know about it
+	 * once the block itself has gone back to the pool
+	 */
+	private static final class Scan {
+		//The block, held until the scan is stitched
+		final Block block;
+		final long sequence;
+		final long offset;
+		final int length;
+		//The headers at its cluster starts, in order, with their ends if their footers were in the block
+		final List<Candidate> headers = new ArrayList<>();
+		//Absolute offset of the first footer of every signature before the first header, -1 for none
+		final long[] footers = new long[SIGNATURES.length];
+		//Its first and last few bytes, to find footers straddling two blocks
+		final byte[] head;
+		final byte[] tail;
+
+		Scan(Block block) {
+			this.block = block;
+			this.sequence = block.sequence;
+			this.offset = block.offset;
+			this.length = block.length;
+			this.head = Arrays.copyOf(block.data, Math.min(OVERLAP, block.length));
+			this.tail = Arrays.copyOfRange(block.data, Math.max(0, block.length - OVERLAP), block.length);
+		}
+
+		/**
+		 * @return the absolute offset of its first header, or its end if it has none
+		 */
+		long firstHeader() {
+			return headers.isEmpty() ? offset + length : headers.get(0).offset;
+		}
+	}
+
+	/**
+	 * A run of free clusters copied out of the image
+	 */
+	private static final class Block {
+		final byte[] data;
+		//Number of the block in disk order
+		long sequence;
+		long offset;
+		int length;
+		int firstCluster;
+		//Absolute offset the run of free clusters ends at
+		long runEnd;
+
+		Block(int size) {
+			this.data = new byte[size];
+		}
+	}
+
+	//Marks the end of the blocks, one per scanner
+	private static final Block END = new Block(0);
+
+	private final FAT32Analyzer analyzer;
+	private final ImageSource image;
+	private final int bytesPerCluster;
+	private final int clustersPerBlock;
+	private final BlockingQueue<Block> emptyBlocks;
+	private final BlockingQueue<Block> fullBlocks;
+	//Scans that came in ahead of the one to stitch next, by sequence number
+	private final Map<Long, Scan> scans = new HashMap<>();
+	private long nextSequence;
+	//The last scan stitched, and the file from it that is still looking for its footer
+	private Scan last;
+	private Candidate open;
+	//Every file whose end was found, in disk order
+	private final List<Candidate> carved = new ArrayList<>();
+	//The first failure of a scanner
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	/**
+	 * Constructor for a carver with a pool of blocks for its scanners
+	 */
+	private Carver(FAT32Analyzer analyzer, int threads) {
+		this.analyzer = analyzer;
+		this.image = analyzer.getImageSource();
+		this.bytesPerCluster = analyzer.getBytesPerSector() * analyzer.getSectorsPerCluster();
+		this.clustersPerBlock = Math.max(BLOCK_SIZE / bytesPerCluster, 1);
+		int blocks = threads * BLOCKS_PER_THREAD;
+		this.emptyBlocks = new ArrayBlockingQueue<>(blocks);
+		//Room for every block and every end marker, so putting one never waits
+		this.fullBlocks = new ArrayBlockingQueue<>(blocks + threads);
+		for(int i = 0; i < blocks; i++)
+			emptyBlocks.add(new Block(clustersPerBlock * bytesPerCluster));
+	}
+
+	/**
+	 * Method to carve files out of the free clusters of a volume
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded
+	 * @param skip - free clusters not to carve (already recovered some other way)
+	 * @param directory - the directory to write the carved files to
+	 * @param threads - the number of scanner threads
+	 * @return a finding for every carved file, in disk order
+	 */
+	public static List<Finding> carve(FAT32Analyzer analyzer, ClusterBitmap skip, File directory, int threads) throws IOException {
+		Carver carver = new Carver(analyzer, threads);
+		carver.scan(skip, threads);
+		return carver.write(directory);
+	}
+
+	/**
+	 * Helper method to run the reader and the scanners over every free cluster,
+	 * stitching their scans together into the carved files
+	 */
+	private void scan(ClusterBitmap skip, int threads) throws IOException {
+		ExecutorService scanners = Executors.newFixedThreadPool(threads);
+		Thread reader = Thread.currentThread();
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for(int i = 0; i < threads; i++)
+				results.add(scanners.submit(() -> this.scanBlocks(reader)));
+			try {
+				this.readFreeClusters(skip);
+			} finally {
+				//There is room for the end markers, so this never waits, even interrupted
+				for(int i = 0; i < threads; i++)
+					fullBlocks.add(END);
+			}
+			for(Future<?> result : results)
+				result.get();
+		} catch(InterruptedException ie) {
+			if(failure.get() != null)
+				throw new IOException("Carving failed.", failure.get());
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while carving.");
+		} catch(ExecutionException ee) {
+			//The failed scanner may have interrupted the reader after it was done reading
+			if(failure.get() != null)
+				Thread.interrupted();
+			throw new IOException("Carving failed.", ee.getCause());
+		} finally {
+			scanners.shutdownNow();
+		}
+	}
+
+	/**
+	 * Helper method run by the reader: copy every run of free clusters into
+	 * blocks, in disk order
+	 */
+	private void readFreeClusters(ClusterBitmap skip) throws InterruptedException {
+		FatTable fat = analyzer.getFAT();
+		long sequence = 0;
+		int cluster = 2;
+		while(cluster < fat.size()) {
+			if(!this.isCarvable(fat, skip, cluster)) {
+				cluster++;
+				continue;
+			}
+			int runStart = cluster;
+			while(cluster < fat.size() && this.isCarvable(fat, skip, cluster))
+				cluster++;
+			long runEnd = analyzer.clusterOffset(cluster);
+
+			for(int first = runStart; first < cluster; first += clustersPerBlock) {
+				Block block = emptyBlocks.take();
+				block.sequence = sequence++;
+				block.firstCluster = first;
+				block.offset = analyzer.clusterOffset(first);
+				block.length = Math.min(clustersPerBlock, cluster - first) * bytesPerCluster;
+				block.runEnd = runEnd;
+				image.read(block.offset, block.data, 0, block.length);
+				analyzer.getMetrics().read(block.length);
+				fullBlocks.put(block);
+			}
+		}
+	}
+
+	/**
+	 * Helper method to check whether a cluster is free, inside the image and not to be skipped
+	 */
+	private boolean isCarvable(FatTable fat, ClusterBitmap skip, int cluster) {
+		return fat.next(cluster) == FatTable.FREE_CLUSTER && !skip.get(cluster)
+			&& analyzer.clusterOffset(cluster) + bytesPerCluster <= image.size();
+	}
+
+	/**
+	 * Helper method run by each scanner: find headers in blocks until the end marker.
+	 * A scanner that fails interrupts the reader, which would otherwise wait forever
+	 * for blocks once every scanner is gone.
+	 *
+	 * @param reader - the thread reading the blocks
+	 */
+	private Void scanBlocks(Thread reader) throws InterruptedException {
+		try {
+			for(Block block = fullBlocks.take(); block != END; block = fullBlocks.take()) {
+				Scan scan;
+				try {
+					scan = this.scanBlock(block);
+				} catch(RuntimeException | Error e) {
+					emptyBlocks.add(block);
+					throw e;
+				}
+				this.stitch(scan);
+			}
+		} catch(RuntimeException | Error e) {
+			if(failure.compareAndSet(null, e))
+				reader.interrupt();
+			throw e;
+		}
+		return null;
+	}
+
+	/**
+	 * Helper method to find the headers at the cluster starts of a block, and their
+	 * footers if they are in the same block
+	 */
+	private Scan scanBlock(Block block) {
+		Scan scan = new Scan(block);
+		List<Candidate> found = scan.headers;
+		for(int start = 0; start < block.length; start += bytesPerCluster) {
+			for(Signature signature : SIGNATURES) {
+				if(!Carver.matches(block.data, start, block.length, signature.header))
+					continue;
+				long offset = block.offset + start;
+				long limit = Math.min(block.runEnd, offset + signature.maxSize);
+				found.add(new Candidate(signature, offset, block.firstCluster + start / bytesPerCluster, limit, offset + signature.header.length));
+				break;
+			}
+		}
+
+		for(int i = 0; i < found.size(); i++) {
+			Candidate candidate = found.get(i);
+			//Files can't run into the next file of the same run of free clusters
+			if(i + 1 < found.size())
+				candidate.limit = Math.min(candidate.limit, found.get(i + 1).offset);
+			int from = (int) (candidate.searchFrom - block.offset);
+			int to = (int) (Math.min(candidate.limit, block.offset + block.length) - block.offset);
+			int footer = Carver.indexOf(block.data, from, to, candidate.signature.footer);
+			if(footer >= 0)
+				candidate.end = Math.min(block.offset + footer + candidate.signature.footer.length + candidate.signature.trailer, candidate.limit);
+		}
+
+		//A file from an earlier block may end in this one, before its first header
+		int to = (int) (scan.firstHeader() - block.offset);
+		for(int i = 0; i < SIGNATURES.length; i++) {
+			int footer = Carver.indexOf(block.data, 0, to, SIGNATURES[i].footer);
+			scan.footers[i] = footer < 0 ? -1 : block.offset + footer;
+		}
+		return scan;
+	}
+
+	/**
+	 * Helper method to hand a scan over for stitching, and stitch every scan that
+	 * is next in disk order. Scans that come in early wait for the ones before
+	 * them and keep their blocks until then, so a slow scanner makes the reader
+	 * wait instead of letting scans pile up.
+	 */
+	private synchronized void stitch(Scan scan) {
+		scans.put(scan.sequence, scan);
+		for(Scan next = scans.remove(nextSequence); next != null; next = scans.remove(nextSequence)) {
+			this.stitchNext(next);
+			//There is room for every block, so this never waits
+			emptyBlocks.add(next.block);
+			nextSequence++;
+		}
+	}
+
+	/**
+	 * Helper method to stitch the next scan in disk order onto the ones before it:
+	 * end or drop the file carried over from them, then take its own files
+	 */
+	private void stitchNext(Scan scan) {
+		//A file carried over ends in a run of free clusters of its own, and before the next header
+		if(open != null && (last.offset + last.length != scan.offset || open.limit <= scan.offset))
+			open = null;
+		if(open != null) {
+			if(!scan.headers.isEmpty())
+				open.limit = Math.min(open.limit, scan.headers.get(0).offset);
+			long end = this.straddlingFooter(open, last.tail, scan.head, scan.offset);
+			if(end < 0) {
+				int signature = Arrays.asList(SIGNATURES).indexOf(open.signature);
+				long footer = scan.footers[signature];
+				if(footer >= 0 && footer + open.signature.footer.length <= open.limit)
+					end = footer + open.signature.footer.length;
+			}
+			if(end >= 0) {
+				open.end = Math.min(end + open.signature.trailer, open.limit);
+				carved.add(open);
+				open = null;
+			}
+			else if(open.limit <= scan.offset + scan.length) {
+				open = null;
+			}
+		}
+
+		for(Candidate candidate : scan.headers) {
+			if(candidate.end >= 0)
+				carved.add(candidate);
+			//Only the last header of a block can go on past it
+			else if(candidate.limit > scan.offset + scan.length)
+				open = candidate;
+		}
+		last = scan;
+	}
+
+	/**
+	 * Helper method to look for a file's footer straddling the end of one block and
+	 * the start of the next
+	 *
+	 * @param candidate - the file, with its limit set
+	 * @param tail - the last bytes of the first block
+	 * @param head - the first bytes of the second block
+	 * @param boundary - the absolute offset the second block starts at
+	 * @return the absolute offset right after the footer, or -1 if it isn't there
+	 */
+	private long straddlingFooter(Candidate candidate, byte[] tail, byte[] head, long boundary) {
+		byte[] footer = candidate.signature.footer;
+		byte[] both = new byte[tail.length + head.length];
+		System.arraycopy(tail, 0, both, 0, tail.length);
+		System.arraycopy(head, 0, both, tail.length, head.length);
+		for(int i = 0; i < tail.length; i++) {
+			long start = boundary - tail.length + i;
+			long end = start + footer.length;
+			if(start >= candidate.searchFrom && end > boundary && end <= candidate.limit && Carver.matches(both, i, both.length, footer))
+				return end;
+		}
+		return -1;
+	}
+
+	/**
+	 * Helper method to write out every file whose end was found
+	 */
+	private List<Finding> write(File directory) throws IOException {
+		List<Finding> findings = new ArrayList<>();
+		Files.createDirectories(directory.toPath());
+		for(Candidate candidate : carved) {
+			long size = candidate.end - candidate.offset;
+			File file = new File(directory, candidate.offset + "." + candidate.signature.extension);
+			try(FileChannel channel = new FileOutputStream(file).getChannel()) {
+				image.transferTo(candidate.offset, size, channel);
+			}
+			analyzer.getMetrics().read(size);
+			analyzer.getMetrics().written(size);
+			int clusters = (int) ((size + bytesPerCluster - 1) / bytesPerCluster);
+			findings.add(Finding.carvedFile(candidate.offset, candidate.cluster, clusters, size, file.getPath()));
+		}
+		return findings;
+	}
+
+	/**
+	 * Helper method to check for a pattern at a position of a buffer
+	 */
+	private static boolean matches(byte[] data, int position, int length, byte[] pattern) {
+		if(position + pattern.length > length)
+			return false;
+		for(int i = 0; i < pattern.length; i++) {
+			if(data[position + i] != pattern[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Helper method to find the first position of a pattern in part of a buffer
+	 *
+	 * @return the position, or -1 if the pattern isn't in [from, to)
+	 */
+	private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+		byte first = pattern[0];
+		for(int i = Math.max(from, 0); i + pattern.length <= to; i++) {
+			if(data[i] == first && Carver.matches(data, i, to, pattern))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Helper method to make a byte pattern out of ints
+	 */
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for(int i = 0; i < values.length; i++)
+			bytes[i] = (byte) values[i];
+		return bytes;
+	}
+
+	/**
+	 * Helper method to make a byte pattern out of text
+	 */
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * One bit per cluster, safe to set from several threads at once.
+ *
+ * Used wherever a pass over the volume has to remember something about every
+ * cluster (claimed directories, first clusters of entries, clusters reached
+ * through the FAT) in an eighth of a byte per cluster.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+public class ClusterBitmap {
+
+	private final AtomicLongArray words;
+	private final int size;
+
+	/**
+	 * Constructor for an empty bitmap
+	 *
+	 * @param size - the number of clusters (FAT entries) it covers
+	 */
+	public ClusterBitmap(int size) {
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+	}
+
+	/**
+	 * @return the number of clusters the bitmap covers
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Method to set a cluster's bit
+	 *
+	 * @param cluster - the cluster
+	 * @return true if the bit wasn't set before, false if some thread already set it
+	 */
+	public boolean set(int cluster) {
+		int word = cluster >>> 6;
+		long bit = 1L << cluster;
+		long current = words.get(word);
+		while((current & bit) == 0) {
+			if(words.compareAndSet(word, current, current | bit))
+				return true;
+			current = words.get(word);
+		}
+		return false;
+	}
+
+	/**
+	 * Method to check a cluster's bit
+	 *
+	 * @param cluster - the cluster
+	 * @return true if it is set
+	 */
+	public boolean get(int cluster) {
+		return (words.get(cluster >>> 6) & (1L << cluster)) != 0;
+	}
+}
@@ -0,0 +1,496 @@
+/**
+ * Persistent index of every live and deleted directory entry of a volume, for
+ * answering follow-up questions without reading the image again.
+ *
+ * The index is built from one PathWalker walk, before anything is repaired,
+ * and written as sorted primitive arrays and a pool of UTF-8 strings. It is
+ * read back by mapping the file, so opening it costs no more than checking
+ * its header, and a lookup is a binary search over the mapped arrays that only
+ * decodes the few strings it compares:
+ *		name		entries whose long or 8.3 name is this (any case)
+ *		path		the entry at this path (any case)
+ *		under		every entry below this directory
+ *		cluster		entries whose first cluster is this
+ *		offset		the entry at this offset of the disk
+ *
+ * An index belongs to one state of its image: it is refused once the image's
+ * size or modification time differs from when it was built, and opening it
+ * with verify also checks the SHA-256 of the volume.
+ *
+ * File layout, big endian, every section right after the one before:
+ *		header		magic "FAT32IDX", version, entry count n, name key count k,
+ *					pool size, image size, image modification time, volume
+ *					offset and size, volume SHA-256 as 64 hex characters
+ *		long[n]		entry offsets in the volume		(entries in path order,
+ *		long[n]		file sizes						 paths compared in lower
+ *		int[n]		path starts in the pool			 case)
+ *		int[n]		path lengths in bytes
+ *		int[n]		first clusters
+ *		int[k]		name key starts in the pool		(name keys in lower case
+ *		int[k]		name key lengths				 order)
+ *		int[k]		entry of each name key
+ *		int[n]		entries by first cluster
+ *		int[n]		entries by offset
+ *		byte[n]		flags: 1 deleted, 2 directory
+ *		byte[]		string pool
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+
+public class DirectoryIndex {
+
+	private static final byte[] MAGIC = "FAT32IDX".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 120;
+	private static final int DELETED = 1;
+	private static final int DIRECTORY = 2;
+
+	/**
+	 * One entry found by a lookup
+	 */
+	public static final class Entry {
+		//Full path, without a / at the end for a directory
+		public final String path;
+		//Offset of the short entry on the disk
+		public final long offset;
+		public final int cluster;
+		public final long size;
+		public final boolean deleted;
+		public final boolean directory;
+
+		Entry(String path, long offset, int cluster, long size, boolean deleted, boolean directory) {
+			this.path = path;
+			this.offset = offset;
+			this.cluster = cluster;
+			this.size = size;
+			this.deleted = deleted;
+			this.directory = directory;
+		}
+
+		@Override
+		public String toString() {
+			return path + (directory ? "/" : "") + (deleted ? " (deleted)" : "") + ", cluster " + cluster
+				+ (directory ? "" : ", " + size + " bytes") + ", entry at offset " + offset;
+		}
+	}
+
+	private final MappedByteBuffer index;
+	private final int entryCount;
+	private final int keyCount;
+	private final long volumeOffset;
+	//Where each section starts
+	private final int offsets;
+	private final int sizes;
+	private final int pathStarts;
+	private final int pathLengths;
+	private final int clusters;
+	private final int keyStarts;
+	private final int keyLengths;
+	private final int keyEntries;
+	private final int byCluster;
+	private final int byOffset;
+	private final int flags;
+	private final int pool;
+
+	private DirectoryIndex(MappedByteBuffer index) {
+		this.index = index;
+		this.entryCount = index.getInt(12);
+		this.keyCount = index.getInt(16);
+		this.volumeOffset = index.getLong(40);
+		int n = entryCount;
+		this.offsets = HEADER_SIZE;
+		this.sizes = offsets + 8 * n;
+		this.pathStarts = sizes + 8 * n;
+		this.pathLengths = pathStarts + 4 * n;
+		this.clusters = pathLengths + 4 * n;
+		this.keyStarts = clusters + 4 * n;
+		this.keyLengths = keyStarts + 4 * keyCount;
+		this.keyEntries = keyLengths + 4 * keyCount;
+		this.byCluster = keyEntries + 4 * keyCount;
+		this.byOffset = byCluster + 4 * n;
+		this.flags = byOffset + 4 * n;
+		this.pool = flags + n;
+	}
+
+	/**
+	 * Method to build the index of a volume and write it to a file
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded and its
+	 *                   directories not repaired yet
+	 * @param imageFile - the image file the volume is on
+	 * @param indexFile - the file to write the index to
+	 * @return the number of entries indexed
+	 */
+	public static int build(FAT32Analyzer analyzer, File imageFile, File indexFile) throws IOException {
+		ImageSource image = analyzer.getImageSource();
+		//The volume is hashed on a thread of its own while its tree is walked
+		ImageHasher hasher = ImageHasher.hashImage(image, 0, null);
+		analyzer.getMetrics().read(image.size());
+		long[] stamp = DirectoryIndex.stamp(imageFile);
+		long imageSize = stamp[0];
+		long imageModified = stamp[1];
+
+		List<String> paths = new ArrayList<>();
+		List<String> shortNames = new ArrayList<>();
+		long[][] columns = {new long[1024], new long[1024], new long[1024]};
+		PathWalker.walk(analyzer, (offset, path, deleted) -> {
+			int i = paths.size();
+			if(i == columns[0].length) {
+				for(int c = 0; c < columns.length; c++)
+					columns[c] = Arrays.copyOf(columns[c], i * 2);
+			}
+			boolean isDirectory = path.endsWith("/");
+			String stripped = isDirectory ? path.substring(0, path.length() - 1) : path;
+			paths.add(stripped);
+			//A long name can be looked up by its 8.3 name too
+			String shortName = deleted ? null : PathWalker.shortName(image, offset);
+			shortNames.add(shortName != null && !shortName.equalsIgnoreCase(stripped.substring(stripped.lastIndexOf('/') + 1)) ? shortName : null);
+			columns[0][i] = offset;
+			columns[1][i] = (Integer.toUnsignedLong(image.getIntLE(offset + 28)) << 2) | (deleted ? DELETED : 0) | (isDirectory ? DIRECTORY : 0);
+			columns[2][i] = (image.getShortLE(offset + 20) << 16) | image.getShortLE(offset + 26);
+		});
+		String sha256 = hasher.finish()[1];
+
+		//Entries in path order, names are found through their own sorted keys
+		int n = paths.size();
+		String[] lowerPaths = new String[n];
+		for(int i = 0; i < n; i++)
+			lowerPaths[i] = paths.get(i).toLowerCase(Locale.ROOT);
+		Integer[] order = new Integer[n];
+		for(int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, Comparator.<Integer, String>comparing(i -> lowerPaths[i]).thenComparing(i -> paths.get(i)).thenComparingLong(i -> columns[0][i]));
+
+		ByteArrayPool strings = new ByteArrayPool();
+		int[] pathStart = new int[n];
+		int[] pathLength = new int[n];
+		List<int[]> keys = new ArrayList<>();
+		List<String> lowerKeys = new ArrayList<>();
+		for(int e = 0; e < n; e++) {
+			String path = paths.get(order[e]);
+			byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+			pathStart[e] = strings.add(bytes);
+			pathLength[e] = bytes.length;
+			//The name is the end of the path, so its key shares the path's bytes
+			String name = path.substring(path.lastIndexOf('/') + 1);
+			int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+			keys.add(new int[] {pathStart[e] + bytes.length - nameLength, nameLength, e});
+			lowerKeys.add(name.toLowerCase(Locale.ROOT));
+			String shortName = shortNames.get(order[e]);
+			if(shortName != null) {
+				byte[] shortBytes = shortName.getBytes(StandardCharsets.UTF_8);
+				keys.add(new int[] {strings.add(shortBytes), shortBytes.length, e});
+				lowerKeys.add(shortName.toLowerCase(Locale.ROOT));
+			}
+		}
+		Integer[] keyOrder = new Integer[keys.size()];
+		for(int i = 0; i < keyOrder.length; i++)
+			keyOrder[i] = i;
+		Arrays.sort(keyOrder, Comparator.<Integer, String>comparing(lowerKeys::get).thenComparingInt(i -> keys.get(i)[2]));
+		//Position of each entry in path order
+		int[] position = new int[n];
+		for(int e = 0; e < n; e++)
+			position[order[e]] = e;
+		Integer[] clusterOrder = order.clone();
+		Arrays.sort(clusterOrder, Comparator.<Integer>comparingLong(i -> columns[2][i]).thenComparingInt(i -> position[i]));
+		Integer[] offsetOrder = order.clone();
+		Arrays.sort(offsetOrder, Comparator.<Integer>comparingLong(i -> columns[0][i]).thenComparingInt(i -> position[i]));
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16))) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt(keys.size());
+			out.writeInt(strings.size());
+			out.writeLong(imageSize);
+			out.writeLong(imageModified);
+			out.writeLong(image.base());
+			out.writeLong(image.size());
+			out.write(sha256.getBytes(StandardCharsets.US_ASCII));
+			for(int e = 0; e < n; e++)
+				out.writeLong(columns[0][order[e]]);
+			for(int e = 0; e < n; e++)
+				out.writeLong(columns[1][order[e]] >>> 2);
+			for(int e = 0; e < n; e++)
+				out.writeInt(pathStart[e]);
+			for(int e = 0; e < n; e++)
+				out.writeInt(pathLength[e]);
+			for(int e = 0; e < n; e++)
+				out.writeInt((int) columns[2][order[e]]);
+			for(Integer k : keyOrder)
+				out.writeInt(keys.get(k)[0]);
+			for(Integer k : keyOrder)
+				out.writeInt(keys.get(k)[1]);
+			for(Integer k : keyOrder)
+				out.writeInt(keys.get(k)[2]);
+			for(Integer i : clusterOrder)
+				out.writeInt(position[i]);
+			for(Integer i : offsetOrder)
+				out.writeInt(position[i]);
+			for(int e = 0; e < n; e++)
+				out.writeByte((int) (columns[1][order[e]] & 3));
+			strings.writeTo(out);
+		}
+		return n;
+	}
+
+	/**
+	 * Method to open an index, refusing it if its image changed since it was built
+	 *
+	 * @param indexFile - the index
+	 * @param imageFile - the image it was built from
+	 * @param verify - true to also check the SHA-256 of the volume, which reads all of it
+	 * @return the index
+	 */
+	public static DirectoryIndex open(File indexFile, File imageFile, boolean verify) throws IOException {
+		MappedByteBuffer index;
+		try(FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			if(channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+				throw new IOException(indexFile + " is not a directory index.");
+			index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		byte[] magic = new byte[MAGIC.length];
+		index.get(0, magic);
+		if(!Arrays.equals(magic, MAGIC) || index.getInt(8) != VERSION)
+			throw new IOException(indexFile + " is not a directory index of this version.");
+		DirectoryIndex directoryIndex = new DirectoryIndex(index);
+		if((long) directoryIndex.pool + index.getInt(20) != index.capacity())
+			throw new IOException(indexFile + " is truncated or damaged.");
+
+		long[] stamp = DirectoryIndex.stamp(imageFile);
+		if(stamp[0] != index.getLong(24) || stamp[1] != index.getLong(32))
+			throw new IOException(indexFile + " is out of date, " + imageFile + " changed since it was built.");
+		if(verify) {
+			byte[] expected = new byte[64];
+			index.get(56, expected);
+			String sha256;
+			try(ImageSource image = ImageSource.open(imageFile)) {
+				sha256 = ImageHasher.hashImage(image.partition(index.getLong(40), index.getLong(48)), 0, null).finish()[1];
+			}
+			if(!sha256.equals(new String(expected, StandardCharsets.US_ASCII)))
+				throw new IOException(indexFile + " is out of date, the contents of " + imageFile + " changed since it was built.");
+		}
+		return directoryIndex;
+	}
+
+	/**
+	 * Helper method to get the size and last modified time an index is checked
+	 * against: the total size of the segments of a split image, and the time the
+	 * last of them was modified
+	 */
+	private static long[] stamp(File imageFile) {
+		long[] stamp = new long[2];
+		for(File segment : ImageSource.segments(imageFile)) {
+			stamp[0] += segment.length();
+			stamp[1] = Math.max(stamp[1], segment.lastModified());
+		}
+		return stamp;
+	}
+
+	/**
+	 * @return the number of entries in the index
+	 */
+	public int size() {
+		return entryCount;
+	}
+
+	/**
+	 * Method to find the entries with a long or 8.3 name, in any case
+	 *
+	 * @param name - the name, without a path
+	 * @return the entries, in path order
+	 */
+	public List<Entry> name(String name) {
+		String key = name.toLowerCase(Locale.ROOT);
+		//First key not below the name
+		int low = 0;
+		int high = keyCount;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(this.lowerString(index.getInt(keyStarts + 4 * middle), index.getInt(keyLengths + 4 * middle)).compareTo(key) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		List<Entry> entries = new ArrayList<>();
+		for(int k = low; k < keyCount && this.lowerString(index.getInt(keyStarts + 4 * k), index.getInt(keyLengths + 4 * k)).equals(key); k++)
+			entries.add(this.entry(index.getInt(keyEntries + 4 * k)));
+		return entries;
+	}
+
+	/**
+	 * Method to find the entry at a path, in any case
+	 *
+	 * @param path - the full path, such as /DIR/FILE.TXT
+	 * @return the entries at the path, more than one only if deleted entries share it
+	 */
+	public List<Entry> path(String path) {
+		String key = normalize(path);
+		List<Entry> entries = new ArrayList<>();
+		for(int e = this.firstPath(key); e < entryCount && this.lowerPath(e).equals(key); e++)
+			entries.add(this.entry(e));
+		return entries;
+	}
+
+	/**
+	 * Method to find every entry below a directory, however deep
+	 *
+	 * @param directory - the full path of the directory, / for the whole tree
+	 * @return the entries, in path order
+	 */
+	public List<Entry> under(String directory) {
+		String prefix = normalize(directory) + "/";
+		List<Entry> entries = new ArrayList<>();
+		for(int e = this.firstPath(prefix); e < entryCount && this.lowerPath(e).startsWith(prefix); e++)
+			entries.add(this.entry(e));
+		return entries;
+	}
+
+	/**
+	 * Method to find the entries whose first cluster is a cluster
+	 *
+	 * @param cluster - the cluster
+	 * @return the entries, in path order
+	 */
+	public List<Entry> cluster(int cluster) {
+		int low = 0;
+		int high = entryCount;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(index.getInt(clusters + 4 * index.getInt(byCluster + 4 * middle)) < cluster)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		List<Entry> entries = new ArrayList<>();
+		for(int i = low; i < entryCount && index.getInt(clusters + 4 * index.getInt(byCluster + 4 * i)) == cluster; i++)
+			entries.add(this.entry(index.getInt(byCluster + 4 * i)));
+		return entries;
+	}
+
+	/**
+	 * Method to find the entry at an offset of the disk
+	 *
+	 * @param offset - the offset of the short entry on the disk
+	 * @return the entry, in a list that is empty if there is no entry there
+	 */
+	public List<Entry> offset(long offset) {
+		long volume = offset - volumeOffset;
+		int low = 0;
+		int high = entryCount;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(index.getLong(offsets + 8 * index.getInt(byOffset + 4 * middle)) < volume)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		List<Entry> entries = new ArrayList<>();
+		for(int i = low; i < entryCount && index.getLong(offsets + 8 * index.getInt(byOffset + 4 * i)) == volume; i++)
+			entries.add(this.entry(index.getInt(byOffset + 4 * i)));
+		return entries;
+	}
+
+	/**
+	 * Helper method to find the first entry whose lower case path isn't below a key
+	 */
+	private int firstPath(String key) {
+		int low = 0;
+		int high = entryCount;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(this.lowerPath(middle).compareTo(key) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Helper method to read the path of an entry in lower case
+	 */
+	private String lowerPath(int entry) {
+		return this.lowerString(index.getInt(pathStarts + 4 * entry), index.getInt(pathLengths + 4 * entry));
+	}
+
+	/**
+	 * Helper method to decode a string of the pool in lower case
+	 */
+	private String lowerString(int start, int length) {
+		return this.string(start, length).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Helper method to decode a string of the pool
+	 */
+	private String string(int start, int length) {
+		byte[] bytes = new byte[length];
+		index.get(pool + start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Helper method to read an entry by its position in path order
+	 */
+	private Entry entry(int e) {
+		int flag = index.get(flags + e);
+		return new Entry(this.string(index.getInt(pathStarts + 4 * e), index.getInt(pathLengths + 4 * e)),
+			volumeOffset + index.getLong(offsets + 8 * e), index.getInt(clusters + 4 * e), index.getLong(sizes + 8 * e),
+			(flag & DELETED) != 0, (flag & DIRECTORY) != 0);
+	}
+
+	/**
+	 * Helper method to turn a path typed in into the lower case form paths are
+	 * sorted by: starting with /, never ending in one, the root being empty
+	 */
+	private static String normalize(String path) {
+		String normalized = path.replace('\\', '/').toLowerCase(Locale.ROOT);
+		if(!normalized.startsWith("/"))
+			normalized = "/" + normalized;
+		while(normalized.endsWith("/"))
+			normalized = normalized.substring(0, normalized.length() - 1);
+		return normalized;
+	}
+
+	/**
+	 * Growable pool of byte strings
+	 */
+	private static final class ByteArrayPool {
+		private byte[] bytes = new byte[1 << 16];
+		private int size;
+
+		/**
+		 * @return where the string starts in the pool
+		 */
+		int add(byte[] string) {
+			if(size + string.length > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + string.length));
+			System.arraycopy(string, 0, bytes, size, string.length);
+			size += string.length;
+			return size - string.length;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			out.write(bytes, 0, size);
+		}
+	}
+}
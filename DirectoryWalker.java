@@ -0,0 +1,353 @@
+/**
+ * Parallel walker over the whole directory tree of a FAT32 volume.
+ *
+ * Every directory is analyzed by its own fork-join task, which runs the same
+ * per-entry checks as analyzeRoot and then forks one task per subdirectory
+ * (found through each entry's DIR_FstClusHI/LO). Each task keeps its findings
+ * in a node of its own, and the tree is flattened depth first in entry order
+ * while the tasks run: each directory is settled as soon as it is analyzed and
+ * its turn has come, and its findings are handed to the sink in batches, so
+ * they read like a depth first walk no matter which threads finish first.
+ * Only the directories analyzed ahead of their turn hold on to findings.
+ *
+ * Every directory cluster is claimed in a shared bitmap before it is walked,
+ * so cross-linked or looping directory trees are analyzed only once. Which
+ * entry owns a directory linked from several is only settled when the tree is
+ * flattened: the first one in depth first order does, and the others are reported
+ * as cross-linked. The first clusters of live entries are settled the same
+ * way, in depth first order, and marked in another bitmap for FatChecker, so
+ * the entry reported for sharing one doesn't depend on thread timing either.
+ *
+ * With an analysis cache, a directory whose clusters haven't changed since the
+ * last run is replayed from the cache instead of analyzed, and every directory
+ * that is analyzed is recorded for the next run.
+ *
+ * With a read scheduler, every directory is submitted to it as soon as it is
+ * claimed, so its clusters are read ahead in offset order while the tasks
+ * before it run.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+
+
+public class DirectoryWalker {
+
+	//Findings are handed to the sink in batches of about this many
+	private static final int BATCH_SIZE = 1024;
+
+	private final FAT32Analyzer analyzer;
+	//Set once a directory starting at a cluster has been claimed
+	private final ClusterBitmap claimed;
+	//Every claimed directory by its first cluster
+	private final Map<Integer, Directory> directories = new ConcurrentHashMap<>();
+	//The cache of the last run and the record of this one, null without one
+	private final AnalysisCache cache;
+	//The scheduler to read the frontier ahead with, null without one
+	private final ReadScheduler scheduler;
+	//Chain cursors own a bitset as large as the FAT, so the tasks take one from a
+	//pool of this walk's and put it back when done, and the pool goes with the walk
+	private final Queue<FatTable.Chain> chains = new ConcurrentLinkedQueue<>();
+	//Long name decoders reuse one char buffer, so they are pooled as well
+	private final Queue<LongNameDecoder> names = new ConcurrentLinkedQueue<>();
+	//Set once a task has failed, so the flatten stops waiting for directories
+	private boolean failed;
+	//Set if the flatten gave up, so the tasks still queued skip their directories
+	private volatile boolean stopped;
+
+	/**
+	 * Constructor for a walker over the volume of an analyzer
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded
+	 * @param cache - the analysis cache, or null
+	 * @param scheduler - the read scheduler, or null
+	 */
+	private DirectoryWalker(FAT32Analyzer analyzer, AnalysisCache cache, ReadScheduler scheduler) {
+		FatTable fat = analyzer.getFAT();
+		this.analyzer = analyzer;
+		this.claimed = new ClusterBitmap(fat.size());
+		this.cache = cache;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Method to analyze every directory reachable from the root
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded
+	 * @param firstClusters - a bitmap as large as the FAT to mark the root's cluster
+	 *                        and the first cluster of every live entry in
+	 * @param cache - the analysis cache to replay unchanged directories from and
+	 *                record analyzed ones in, or null
+	 * @param scheduler - the read scheduler to hand every claimed directory to, or null
+	 * @param sink - where to write every finding, in depth first order
+	 */
+	public static void walk(FAT32Analyzer analyzer, ClusterBitmap firstClusters, AnalysisCache cache, ReadScheduler scheduler, FindingSink sink) throws IOException {
+		DirectoryWalker walker = new DirectoryWalker(analyzer, cache, scheduler);
+		int rootCluster = analyzer.getRootCluster();
+		boolean rootIsData = analyzer.getFAT().isDataCluster(rootCluster);
+		if(rootIsData)
+			walker.claimed.set(rootCluster);
+		Directory root = new Directory(rootCluster, true);
+		walker.directories.put(rootCluster, root);
+		DirectoryTask task = walker.new DirectoryTask(null, root);
+		ForkJoinPool.commonPool().execute(task);
+
+		//Settle ownership and flatten the tree depth first as the directories are
+		//analyzed, with a stack of its own since trees can be thousands of levels deep
+		boolean flattened = false;
+		try {
+			ClusterBitmap owned = new ClusterBitmap(firstClusters.size());
+			if(rootIsData) {
+				owned.set(rootCluster);
+				firstClusters.set(rootCluster);
+			}
+			List<Finding> batch = new ArrayList<>();
+			Deque<Directory> pending = new ArrayDeque<>();
+			pending.push(root);
+			List<Directory> children = new ArrayList<>();
+			while(!pending.isEmpty()) {
+				Directory directory = pending.pop();
+				if(!walker.analyzed(directory))
+					task.join();
+				walker.directories.remove(directory.firstCluster);
+				directory.settle(firstClusters, batch);
+				children.clear();
+				for(int subdirectory : directory.subdirectories) {
+					if(owned.set(subdirectory))
+						children.add(walker.directories.get(subdirectory));
+					else
+						batch.add(Finding.crossLinkedDirectory(subdirectory));
+				}
+				for(int i = children.size() - 1; i >= 0; i--)
+					pending.push(children.get(i));
+				if(batch.size() >= BATCH_SIZE) {
+					sink.write(batch);
+					batch = new ArrayList<>();
+				}
+			}
+			sink.write(batch);
+			flattened = true;
+		} finally {
+			//Nothing may still be reading the image once the walk returns
+			if(!flattened) {
+				walker.stopped = true;
+				task.quietlyJoin();
+			}
+		}
+		task.join();
+	}
+
+	/**
+	 * Helper method to wait until a directory has been analyzed
+	 *
+	 * @return false if a task failed instead
+	 */
+	private synchronized boolean analyzed(Directory directory) throws IOException {
+		try {
+			while(!directory.analyzed && !failed)
+				this.wait();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			stopped = true;
+			throw new InterruptedIOException("Interrupted while walking the directory tree.");
+		}
+		return directory.analyzed;
+	}
+
+	/**
+	 * Helper method for a task to note that its directory has been analyzed, or
+	 * that it failed
+	 */
+	private synchronized void done(Directory directory, boolean analyzed) {
+		if(analyzed)
+			directory.analyzed = true;
+		else
+			failed = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * The first clusters a directory's live entries point at, in entry order, and
+	 * how many of the directory's findings were made before each one
+	 */
+	public static final class Marks {
+		private int[] clusters = new int[8];
+		private long[] offsets = new long[8];
+		private int[] positions = new int[8];
+		private boolean[] isDirectory = new boolean[8];
+		private int count;
+
+		/**
+		 * Method to note an entry's first cluster
+		 *
+		 * @param cluster - the first cluster
+		 * @param offset - the offset of the entry
+		 * @param isDirectory - whether the entry is a directory
+		 * @param position - the number of the directory's findings made before the entry's cluster was noted
+		 */
+		public void add(int cluster, long offset, boolean isDirectory, int position) {
+			if(count == clusters.length) {
+				clusters = Arrays.copyOf(clusters, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+				positions = Arrays.copyOf(positions, count * 2);
+				this.isDirectory = Arrays.copyOf(this.isDirectory, count * 2);
+			}
+			clusters[count] = cluster;
+			offsets[count] = offset;
+			positions[count] = position;
+			this.isDirectory[count] = isDirectory;
+			count++;
+		}
+
+		/**
+		 * @return the number of first clusters noted
+		 */
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * @return the first cluster noted i-th
+		 */
+		public int cluster(int i) {
+			return clusters[i];
+		}
+
+		/**
+		 * @return the offset of the entry noted i-th
+		 */
+		public long offset(int i) {
+			return offsets[i];
+		}
+
+		/**
+		 * @return whether the entry noted i-th is a directory
+		 */
+		public boolean isDirectory(int i) {
+			return isDirectory[i];
+		}
+
+		/**
+		 * @return the number of findings made before the i-th first cluster was noted
+		 */
+		public int position(int i) {
+			return positions[i];
+		}
+	}
+
+	/**
+	 * One directory of the tree: its own findings, its subdirectories and the first
+	 * clusters of its entries in entry order
+	 */
+	private static class Directory {
+		final int firstCluster;
+		final boolean isRoot;
+		final ArrayList<Finding> findings = new ArrayList<>();
+		final List<Integer> subdirectories = new ArrayList<>();
+		final Marks marks = new Marks();
+		//Set by the walker once the directory's task has filled in the above
+		boolean analyzed;
+
+		Directory(int firstCluster, boolean isRoot) {
+			this.firstCluster = firstCluster;
+			this.isRoot = isRoot;
+		}
+
+		/**
+		 * Method to mark the first clusters of the directory's entries and add its
+		 * findings, with a file whose first cluster was already marked reported
+		 * where its entry was met, then let go of the findings
+		 */
+		void settle(ClusterBitmap firstClusters, List<Finding> result) {
+			int mark = 0;
+			for(int i = 0; i <= findings.size(); i++) {
+				for(; mark < marks.size() && marks.position(mark) == i; mark++) {
+					if(!firstClusters.set(marks.cluster(mark)) && !marks.isDirectory(mark))
+						result.add(Finding.sharedFirstCluster(marks.cluster(mark), marks.offset(mark)));
+				}
+				if(i < findings.size())
+					result.add(findings.get(i));
+			}
+			findings.clear();
+			findings.trimToSize();
+		}
+	}
+
+	/**
+	 * Fork-join task that analyzes one directory and forks one task per subdirectory
+	 * nobody has claimed yet. Tasks never wait for their subdirectories, a task
+	 * completes once all of them have, so the depth of the tree never turns into
+	 * depth of the call stack.
+	 */
+	private class DirectoryTask extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 1L;
+		private final Directory directory;
+
+		DirectoryTask(DirectoryTask parent, Directory directory) {
+			super(parent);
+			this.directory = directory;
+		}
+
+		@Override
+		public void compute() {
+			boolean analyzed = false;
+			try {
+				if(!stopped)
+					this.analyze();
+				analyzed = true;
+			} finally {
+				done(directory, analyzed);
+			}
+			tryComplete();
+		}
+
+		/**
+		 * Helper method to analyze the directory (or replay it from the cache) and
+		 * fork a task for every subdirectory it claims
+		 */
+		private void analyze() {
+			if(scheduler != null)
+				scheduler.started(directory.firstCluster);
+			if(cache == null || !cache.replay(directory.firstCluster, directory.isRoot, directory.findings, directory.subdirectories, directory.marks)) {
+				AnalysisCache.Directory record = cache == null ? null : cache.record(directory.firstCluster, directory.isRoot);
+				//There are only ever as many cursors and decoders as tasks running at once
+				FatTable.Chain chain = chains.poll();
+				if(chain == null)
+					chain = analyzer.getFAT().chain();
+				LongNameDecoder decoder = names.poll();
+				if(decoder == null)
+					decoder = new LongNameDecoder();
+				analyzer.analyzeDirectory(directory.firstCluster, directory.isRoot, chain, decoder, directory.findings, directory.subdirectories, directory.marks, record);
+				chains.offer(chain);
+				names.offer(decoder);
+				if(record != null)
+					cache.recorded(record, directory.findings, directory.subdirectories, directory.marks);
+			}
+
+			List<Directory> claims = new ArrayList<>();
+			for(int subdirectory : directory.subdirectories) {
+				if(claimed.set(subdirectory)) {
+					Directory claim = new Directory(subdirectory, false);
+					directories.put(subdirectory, claim);
+					claims.add(claim);
+					if(scheduler != null)
+						scheduler.submit(subdirectory);
+				}
+			}
+			setPendingCount(claims.size());
+			for(Directory claim : claims)
+				new DirectoryTask(this, claim).fork();
+		}
+	}
+}
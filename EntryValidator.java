@@ -0,0 +1,212 @@
+/**
+ * Table-driven validation kernel for 32 byte short directory entries.
+ *
+ * Makes exactly the same checks and repairs, and reports exactly the same
+ * findings in the same order, as the original branch chains (kept in
+ * FAT32Analyzer.analyzeEntryLegacy), but:
+ *		a) name bytes and attributes are classified with 256 entry lookup
+ *		   tables instead of chains of range comparisons
+ *		b) the first 8 name bytes are read as one little endian long and
+ *		   checked all at once with SWAR (SIMD within a register) arithmetic.
+ *		   Names made only of digits, upper case letters and bytes 0x80 and up
+ *		   are accepted without looking at the bytes one by one.
+ *		c) nothing is allocated for an entry unless there is a finding to report
+ *
+ * The rules themselves are the legacy ones, including their quirks (the legacy
+ * checks compare signed bytes, so 0x80 - 0xFF are always legal, and lower case
+ * letters and spaces count as illegal).
+ */
+
+import java.util.List;
+
+
+public class EntryValidator {
+
+	//Byte to replace illegal characters with ('0')
+	private static final byte LEGAL_BYTE = 48;
+
+	//ILLEGAL_NAME_BYTE[b & 0xFF] is true if b is illegal in a short name
+	private static final boolean[] ILLEGAL_NAME_BYTE = new boolean[256];
+	//LEGAL_ATTRIBUTE[a & 0xFF] is true if a is an allowed attribute value
+	private static final boolean[] LEGAL_ATTRIBUTE = new boolean[256];
+
+	static {
+		//0x00-0x04 and 0x06-0x19 (0x05 stands in for a leading 0xE5)
+		for(int b = 0; b <= 25; b++)
+			ILLEGAL_NAME_BYTE[b] = b != 5;
+		//0x20, 0x22, 0x2A-0x2C, 0x2E, 0x2F, 0x3A-0x3F, 0x5B-0x5D, 0x61-0x7A, 0x7C
+		int[][] ranges = {{32, 32}, {34, 34}, {42, 44}, {46, 47}, {58, 63}, {91, 93}, {97, 122}, {124, 124}};
+		for(int[] range : ranges) {
+			for(int b = range[0]; b <= range[1]; b++)
+				ILLEGAL_NAME_BYTE[b] = true;
+		}
+
+		int[] attributes = {1, 2, 4, 8, 16, 32, 15};
+		for(int attribute : attributes)
+			LEGAL_ATTRIBUTE[attribute] = true;
+	}
+
+	//SWAR constants: the low bit and the high bit of every byte of a long
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+
+	/**
+	 * Method to check whether all 8 bytes of a long are certainly legal name bytes,
+	 * i.e. 0x30-0x39, 0x41-0x5A or 0x80-0xFF. A false result only means the bytes
+	 * have to be looked at one by one.
+	 *
+	 * @param word - 8 name bytes
+	 * @return true if every byte is in one of the always legal ranges
+	 */
+	public static boolean isClean(long word) {
+		//Work on the low 7 bits of each byte so no byte can carry or borrow into the next
+		long low = word & ~HIGHS;
+		long legal = (word & HIGHS) | inRange(low, 0x30, 0x39) | inRange(low, 0x41, 0x5A);
+		return legal == HIGHS;
+	}
+
+	/**
+	 * Helper method to find the bytes of a long that lie in a range
+	 *
+	 * @param low - 8 bytes, each below 0x80
+	 * @param from - the lowest value in the range
+	 * @param to - the highest value in the range (below 0x80)
+	 * @return a long with the high bit of every byte in [from, to] set
+	 */
+	private static long inRange(long low, int from, int to) {
+		//High bit set where byte >= from
+		long atLeast = (low | HIGHS) - ONES * from;
+		//High bit set where byte > to
+		long above = low + ONES * (0x7F - to);
+		return atLeast & ~above & HIGHS;
+	}
+
+	/**
+	 * Method to check whether a byte is illegal in a short name
+	 *
+	 * @param b - the name byte
+	 * @return true if the byte is illegal
+	 */
+	public static boolean isIllegalNameByte(byte b) {
+		return ILLEGAL_NAME_BYTE[b & 0xFF];
+	}
+
+	/**
+	 * Method to check whether a byte is an allowed directory entry attribute
+	 *
+	 * @param attribute - the attribute byte
+	 * @return true if the attribute is allowed
+	 */
+	public static boolean isLegalAttribute(byte attribute) {
+		return LEGAL_ATTRIBUTE[attribute & 0xFF];
+	}
+
+	/**
+	 * Method to check whether the next directory entry is an end marker (its first
+	 * two bytes are 0), or there is no next entry at all.
+	 *
+	 * @param image - the image holding the directory
+	 * @param nextOffset - the absolute offset of the next entry, or -1 if there isn't one
+	 * @return true if the directory ends before the next entry
+	 */
+	public static boolean isEndOfDirectory(ImageSource image, long nextOffset) {
+		if(nextOffset < 0 || nextOffset + 2 > image.size())
+			return true;
+		return image.get(nextOffset) == 0 && image.get(nextOffset + 1) == 0;
+	}
+
+	/**
+	 * Method to analyze a single 32 byte directory entry, searching for and
+	 * repairing illegal characters, invalid attributes and overwritten reserved bytes.
+	 *
+	 * @param image - the image holding the entry
+	 * @param currentOffset - the absolute offset of the directory entry
+	 * @param nextOffset - the absolute offset of the entry that follows it in the
+	 *                     directory, or -1 if it is the last one
+	 * @param findings - the list to add every problem found to
+	 * @return true if this entry marks the end of the directory, false otherwise
+	 */
+	public static boolean validate(ImageSource image, long currentOffset, long nextOffset, List<Finding> findings) {
+		byte firstByte = image.get(currentOffset);
+		byte entryAttribute = image.get(currentOffset + 11);
+		boolean done = false;
+		boolean longName = entryAttribute == 15;
+		//The name as it was found is only decoded if there's something to report,
+		//and always before any of its bytes are repaired
+		String name = null;
+
+		//Attribute check
+		if(!LEGAL_ATTRIBUTE[entryAttribute & 0xFF]) {
+			name = Finding.entryName(image, currentOffset);
+			findings.add(Finding.invalidAttribute(currentOffset, entryAttribute, name));
+		}
+
+		//Reserved byte
+		byte reserved = image.get(currentOffset + 12);
+		if(reserved != 0) {
+			if(name == null && !longName)
+				name = Finding.entryName(image, currentOffset);
+			image.put(currentOffset + 12, (byte) 0);
+			findings.add(Finding.reservedByte(currentOffset + 12, reserved, name));
+		}
+
+		//First byte: 0xE5 (-27) or 0x20 (32), or a 0 that isn't followed by zeros
+		if(firstByte == -27 || firstByte == 32) {
+			if(name == null && !longName)
+				name = Finding.entryName(image, currentOffset);
+			image.put(currentOffset, LEGAL_BYTE);
+			findings.add(Finding.illegalCharacter(currentOffset, firstByte, LEGAL_BYTE, name));
+		}
+		else if(firstByte == 0) {
+			if(image.get(currentOffset + 1) != 0 && image.get(currentOffset + 2) != 0) {
+				if(name == null && !longName)
+					name = Finding.entryName(image, currentOffset);
+				image.put(currentOffset, LEGAL_BYTE);
+				findings.add(Finding.illegalCharacter(currentOffset, firstByte, LEGAL_BYTE, name));
+			}
+			else if(isEndOfDirectory(image, nextOffset)) {
+				done = true;
+			}
+		}
+
+		//Long name entries only have their LDIR_FstClusLO reserved bytes checked
+		if(longName) {
+			int fstClusLO = image.getShortLE(currentOffset + 26);
+			if(fstClusLO != 0) {
+				image.put(currentOffset + 26, (byte) 0);
+				image.put(currentOffset + 27, (byte) 0);
+				findings.add(Finding.lfnReservedBytes(currentOffset + 26, fstClusLO));
+			}
+			return done;
+		}
+
+		//Name bytes. Clean names skip straight to the end-of-directory check, which
+		//the legacy code makes after every legal byte.
+		boolean anyLegal;
+		if(isClean(image.getLongLE(currentOffset))
+			&& !ILLEGAL_NAME_BYTE[image.get(currentOffset + 8) & 0xFF]
+			&& !ILLEGAL_NAME_BYTE[image.get(currentOffset + 9) & 0xFF]
+			&& !ILLEGAL_NAME_BYTE[image.get(currentOffset + 10) & 0xFF]) {
+			anyLegal = true;
+		}
+		else {
+			anyLegal = false;
+			for(long i = currentOffset; i < currentOffset + 11; i++) {
+				byte b = image.get(i);
+				if(ILLEGAL_NAME_BYTE[b & 0xFF]) {
+					if(name == null)
+						name = Finding.entryName(image, currentOffset);
+					image.put(i, LEGAL_BYTE);
+					findings.add(Finding.illegalCharacter(i, b, LEGAL_BYTE, name));
+				}
+				else {
+					anyLegal = true;
+				}
+			}
+		}
+		if(anyLegal && isEndOfDirectory(image, nextOffset))
+			done = true;
+
+		return done;
+	}
+}
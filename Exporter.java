@@ -0,0 +1,291 @@
+/**
+ * Export of the live files of a volume, with their directory tree, straight
+ * from the image.
+ *
+ * The tree is walked on one thread (see PathWalker), which follows each
+ * selected file's cluster chain through the in-memory FAT and cuts it into
+ * runs of contiguous clusters. Writing the files is left to a fixed pool of
+ * workers, which copy every run with FileChannel.transferTo, so file content
+ * goes from the image file to the exported file without passing through the
+ * heap. The pool's queue is bounded: when the workers fall behind, the walk
+ * writes the next file itself instead of queueing more, so exporting a large
+ * volume takes as much memory as a small one.
+ *
+ * Files can be selected with a glob over their full paths, matched without
+ * regard to case since FAT names aren't case sensitive, and/or by the entry
+ * offsets named in a findings file. Files are written as they are on disk,
+ * before any repair, and get the last write time of their entries. A file
+ * whose chain ends before its size is written as far as it goes and counted
+ * as truncated.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+public class Exporter {
+
+	//Files waiting for a worker, per worker
+	private static final int QUEUE_PER_THREAD = 4;
+	//The offset field of a findings file, as JSON Lines or as the second CSV column
+	private static final Pattern JSON_OFFSET = Pattern.compile("\"offset\":(-?\\d+)");
+	private static final Pattern CSV_OFFSET = Pattern.compile("^[A-Z_]+,(-?\\d+),");
+
+	private final FAT32Analyzer analyzer;
+	private final ImageSource image;
+	private final FatTable fat;
+	private final FatTable.Chain chain;
+	private final long bytesPerCluster;
+	private final Path root;
+	private final PathMatcher matcher;
+	private final Set<Long> selection;
+	private final ThreadPoolExecutor workers;
+	private final AtomicLong files = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong truncated = new AtomicLong();
+	//The first failure of a worker, thrown once the walk is done
+	private final AtomicReference<IOException> failure = new AtomicReference<>();
+	//Export directory of every directory the walk hasn't reached yet, by first cluster,
+	//so subdirectories that share a name don't share an export directory
+	private final Map<Integer, Path> targets = new HashMap<>();
+	//Export directory of the directory being walked and the names taken in it, in lower
+	//case, so entries of a damaged directory that share a name don't overwrite each
+	//other. Every directory is walked once and has an export directory of its own, and
+	//the walk hands over all of its entries before moving on to the next.
+	private Path directory;
+	private final Set<String> names = new HashSet<>();
+
+	/**
+	 * Constructor for an export of one volume
+	 */
+	private Exporter(FAT32Analyzer analyzer, Path root, String glob, Set<Long> selection, int threads) {
+		this.analyzer = analyzer;
+		this.image = analyzer.getImageSource();
+		this.fat = analyzer.getFAT();
+		this.chain = fat.chain();
+		this.bytesPerCluster = (long) analyzer.getBytesPerSector() * analyzer.getSectorsPerCluster();
+		this.root = root;
+		this.matcher = glob == null ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob.toLowerCase(Locale.ROOT));
+		this.selection = selection;
+		this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
+		this.targets.put(analyzer.getRootCluster(), root);
+	}
+
+	/**
+	 * Method to export the live files of a volume
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded
+	 * @param directory - the directory to rebuild the tree in
+	 * @param glob - a glob the full path of a file (like /DOCS/REPORT.PDF) must
+	 *               match, or null for every file
+	 * @param selection - the absolute disk offsets of the entries to export (see
+	 *                    readSelection), or null for every entry
+	 * @param threads - the number of workers writing files
+	 * @return the number of files exported, the bytes written and the number of
+	 *         truncated files
+	 */
+	public static long[] export(FAT32Analyzer analyzer, File directory, String glob, Set<Long> selection, int threads) throws IOException {
+		Path root = directory.toPath().toAbsolutePath().normalize();
+		Files.createDirectories(root);
+		Exporter exporter = new Exporter(analyzer, root, glob, selection, threads);
+		try {
+			PathWalker.walk(analyzer, new PathWalker.Visitor() {
+				@Override
+				public void entry(long offset, String path, boolean deleted) throws IOException {
+					exporter.entry(offset, path, deleted);
+				}
+
+				@Override
+				public void directory(int cluster) {
+					exporter.directory(cluster);
+				}
+			});
+		} finally {
+			exporter.workers.shutdown();
+			try {
+				while(!exporter.workers.awaitTermination(1, TimeUnit.SECONDS));
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(exporter.failure.get() != null)
+			throw exporter.failure.get();
+		return new long[] {exporter.files.get(), exporter.bytes.get(), exporter.truncated.get()};
+	}
+
+	/**
+	 * Method to read the entries to export from a findings file. Findings inside
+	 * an entry (a repaired byte of it, say) name the entry they are in.
+	 *
+	 * @param findings - a findings file written with --findings, as JSON Lines or CSV
+	 * @return the absolute disk offsets of the entries the findings are about
+	 */
+	public static Set<Long> readSelection(File findings) throws IOException {
+		Pattern offset = findings.getName().toLowerCase().endsWith(".csv") ? CSV_OFFSET : JSON_OFFSET;
+		Set<Long> selection = new HashSet<>();
+		try(BufferedReader in = Files.newBufferedReader(findings.toPath(), StandardCharsets.UTF_8)) {
+			for(String line = in.readLine(); line != null; line = in.readLine()) {
+				Matcher matcher = offset.matcher(line);
+				if(matcher.find() && Long.parseLong(matcher.group(1)) >= 0)
+					selection.add(Long.parseLong(matcher.group(1)) & ~31L);
+			}
+		}
+		return selection;
+	}
+
+	/**
+	 * Helper method called before the entries of each directory: look up its
+	 * export directory, which the entry that led the walk to it picked
+	 *
+	 * @param cluster - the first cluster of the directory
+	 */
+	private void directory(int cluster) {
+		directory = targets.remove(cluster);
+		names.clear();
+	}
+
+	/**
+	 * Helper method called for every entry of the walk: create its directory, or
+	 * cut its chain into runs and hand it to a worker
+	 *
+	 * @param offset - the offset of the short entry
+	 * @param path - its full path, ending in / for a directory
+	 * @param deleted - whether it is a deleted entry, which isn't exported
+	 */
+	private void entry(long offset, String path, boolean deleted) throws IOException {
+		if(deleted || failure.get() != null)
+			return;
+		boolean isDirectory = path.endsWith("/");
+		int slash = path.lastIndexOf('/', path.length() - (isDirectory ? 2 : 1));
+		String name = safeName(path.substring(slash + 1, path.length() - (isDirectory ? 1 : 0)));
+		//A name that is taken gets the entry's offset in front, like deleted files do
+		if(!names.add(name.toLowerCase(Locale.ROOT))) {
+			name = (image.base() + offset) + "-" + name;
+			names.add(name.toLowerCase(Locale.ROOT));
+		}
+		Path target = directory.resolve(name);
+		int cluster = (image.getShortLE(offset + 20) << 16) | image.getShortLE(offset + 26);
+		if(isDirectory) {
+			//The walk goes into a directory linked twice from the first entry only
+			if(fat.isDataCluster(cluster))
+				targets.putIfAbsent(cluster, target);
+			//Only a full export rebuilds empty directories, a selection only makes the parents it needs
+			if(matcher == null && selection == null)
+				Files.createDirectories(target);
+			return;
+		}
+		if(matcher != null && !matches(path))
+			return;
+		if(selection != null && !selection.contains(image.base() + offset))
+			return;
+
+		long size = Integer.toUnsignedLong(image.getIntLE(offset + 28));
+		long written = Timeline.epochMillis(image.getShortLE(offset + 24), image.getShortLE(offset + 22), 0);
+
+		//Runs of contiguous clusters as offset, length pairs, cut here since the
+		//chain cursor belongs to this thread
+		long[] runs = new long[8];
+		int count = 0;
+		long remaining = size;
+		if(size > 0 && fat.isDataCluster(cluster)) {
+			chain.start(cluster);
+			long runEnd = -1;
+			for(int next = chain.next(); next != -1 && remaining > 0; next = chain.next()) {
+				long start = analyzer.clusterOffset(next);
+				long length = Math.min(remaining, Math.min(bytesPerCluster, image.size() - start));
+				if(length <= 0)
+					break;
+				if(start == runEnd) {
+					runs[count - 1] += length;
+				} else {
+					if(count == runs.length)
+						runs = Arrays.copyOf(runs, count * 2);
+					runs[count++] = start;
+					runs[count++] = length;
+				}
+				runEnd = start + length;
+				remaining -= length;
+			}
+		}
+		if(remaining > 0)
+			truncated.incrementAndGet();
+
+		Files.createDirectories(directory);
+		long[] fileRuns = runs;
+		int runCount = count;
+		workers.execute(() -> write(target, fileRuns, runCount, written));
+	}
+
+	/**
+	 * Helper method run by a worker to write one file, run by run
+	 *
+	 * @param target - the file to write
+	 * @param runs - the runs of the file as offset, length pairs
+	 * @param count - the number of longs in runs that are used
+	 * @param written - the last write time of the file, or -1 if it has none
+	 */
+	private void write(Path target, long[] runs, int count, long written) {
+		try {
+			long length = 0;
+			try(FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for(int i = 0; i < count; i += 2) {
+					image.transferTo(runs[i], runs[i + 1], out);
+					length += runs[i + 1];
+				}
+			}
+			if(written >= 0)
+				Files.setLastModifiedTime(target, FileTime.fromMillis(written));
+			analyzer.getMetrics().read(length);
+			analyzer.getMetrics().written(length);
+			files.incrementAndGet();
+			bytes.addAndGet(length);
+		} catch(IOException ioe) {
+			failure.compareAndSet(null, ioe);
+		}
+	}
+
+	/**
+	 * Helper method to match the full path of an entry against the glob
+	 */
+	private boolean matches(String path) {
+		try {
+			return matcher.matches(Paths.get(path.toLowerCase(Locale.ROOT)));
+		} catch(InvalidPathException ipe) {
+			//Names the host can't have a path with can't match a glob either
+			return false;
+		}
+	}
+
+	/**
+	 * Helper method to make the name of an entry safe to use as a file name
+	 */
+	private static String safeName(String name) {
+		//A long name of . or .. mustn't lead out of the export directory
+		return name.equals(".") || name.equals("..") ? "_" : Recovery.fileName(name);
+	}
+}
@@ -0,0 +1,271 @@
+/**
+ * Bounded memory external merge sort of (key, text) records.
+ *
+ * Records are collected in memory until their estimated size reaches the
+ * memory budget, then sorted and spilled to a temporary file as one sorted
+ * run. At the end the runs are merged with a priority queue holding the head
+ * of each run, at most MAX_FAN_IN runs at a time (more runs are first merged
+ * into fewer, longer ones), so the heap never holds more than the budget plus
+ * one buffer per open run, however many records there are. Records that all
+ * fit in the budget are never written out at all.
+ *
+ * Records are ordered by key, then by text, so the output doesn't depend on
+ * the order the records were added in.
+ *
+ * Run file layout, repeated per record:
+ *		key			8 bytes, big endian
+ *		length		4 bytes, big endian
+ *		text		length bytes of UTF-8
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+public class ExternalSorter implements Closeable {
+
+	//Most runs merged at once, each with a read buffer of its own
+	private static final int MAX_FAN_IN = 64;
+	private static final int RUN_BUFFER_SIZE = 1 << 16;
+	//Estimated heap taken by a record besides its characters: the record, the
+	//string, its array headers and the reference to it
+	private static final long RECORD_OVERHEAD = 80;
+
+	private static final Comparator<Record> ORDER = Comparator.<Record>comparingLong(record -> record.key).thenComparing(record -> record.text);
+
+	/**
+	 * Receiver of the sorted records
+	 */
+	public interface Sink {
+		void accept(long key, String text) throws IOException;
+	}
+
+	/**
+	 * One record
+	 */
+	private static final class Record {
+		final long key;
+		final String text;
+
+		Record(long key, String text) {
+			this.key = key;
+			this.text = text;
+		}
+	}
+
+	private final long memoryBudget;
+	private final File temporaryDirectory;
+	private List<Record> records = new ArrayList<>();
+	private long recordBytes;
+	//Sorted runs spilled so far, oldest first
+	private final Deque<File> runs = new ArrayDeque<>();
+	private long count;
+
+	/**
+	 * Constructor for a sorter
+	 *
+	 * @param memoryBudget - about how many bytes of heap the records in memory may take
+	 * @param temporaryDirectory - where to spill sorted runs, or null for the system default
+	 */
+	public ExternalSorter(long memoryBudget, File temporaryDirectory) {
+		this.memoryBudget = memoryBudget;
+		this.temporaryDirectory = temporaryDirectory;
+	}
+
+	/**
+	 * Method to add a record, spilling a sorted run if the memory budget is reached
+	 *
+	 * @param key - what the record is sorted by first
+	 * @param text - the record's text, what it is sorted by second
+	 */
+	public void add(long key, String text) throws IOException {
+		records.add(new Record(key, text));
+		recordBytes += RECORD_OVERHEAD + 2L * text.length();
+		count++;
+		if(recordBytes >= memoryBudget)
+			this.spill();
+	}
+
+	/**
+	 * @return the number of records added
+	 */
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * @return the number of sorted runs spilled to temporary files so far
+	 */
+	public int runs() {
+		return runs.size();
+	}
+
+	/**
+	 * Method to hand every record to a sink in order. The sorter is empty afterwards.
+	 *
+	 * @param sink - the receiver of the records
+	 */
+	public void finish(Sink sink) throws IOException {
+		if(runs.isEmpty()) {
+			Record[] sorted = this.takeSorted();
+			for(Record record : sorted)
+				sink.accept(record.key, record.text);
+			return;
+		}
+		this.spill();
+		//Merge the oldest runs into longer ones until one merge can take them all
+		while(runs.size() > MAX_FAN_IN) {
+			List<File> group = new ArrayList<>();
+			for(int i = 0; i < MAX_FAN_IN; i++)
+				group.add(runs.removeFirst());
+			File merged = this.newRun();
+			runs.addLast(merged);
+			try(DataOutputStream out = openRun(merged)) {
+				merge(group, (key, text) -> writeRecord(out, key, text));
+			}
+			for(File run : group)
+				run.delete();
+		}
+		List<File> last = new ArrayList<>(runs);
+		runs.clear();
+		try {
+			merge(last, sink);
+		} finally {
+			for(File run : last)
+				run.delete();
+		}
+	}
+
+	/**
+	 * Method to delete any runs left behind, e.g. after a failure
+	 */
+	@Override
+	public void close() {
+		for(File run : runs)
+			run.delete();
+		runs.clear();
+		records = new ArrayList<>();
+	}
+
+	/**
+	 * Helper method to sort the records in memory and write them out as a run
+	 */
+	private void spill() throws IOException {
+		if(records.isEmpty())
+			return;
+		Record[] sorted = this.takeSorted();
+		File run = this.newRun();
+		runs.addLast(run);
+		try(DataOutputStream out = openRun(run)) {
+			for(Record record : sorted)
+				writeRecord(out, record.key, record.text);
+		}
+	}
+
+	/**
+	 * Helper method to take the records out of memory, sorted
+	 */
+	private Record[] takeSorted() {
+		Record[] sorted = records.toArray(new Record[0]);
+		records = new ArrayList<>();
+		recordBytes = 0;
+		Arrays.parallelSort(sorted, ORDER);
+		return sorted;
+	}
+
+	/**
+	 * Helper method to create a temporary file for a run
+	 */
+	private File newRun() throws IOException {
+		File run = File.createTempFile("fat32-sort-", ".run", temporaryDirectory);
+		run.deleteOnExit();
+		return run;
+	}
+
+	/**
+	 * Helper method to open a run for writing
+	 */
+	private static DataOutputStream openRun(File run) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE));
+	}
+
+	/**
+	 * Helper method to write one record to a run
+	 */
+	private static void writeRecord(DataOutputStream out, long key, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		out.writeLong(key);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Helper method to merge sorted runs into one sorted stream of records
+	 */
+	private static void merge(List<File> runs, Sink sink) throws IOException {
+		PriorityQueue<RunReader> heads = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> ORDER.compare(a.head, b.head));
+		List<RunReader> readers = new ArrayList<>();
+		try {
+			for(File run : runs) {
+				RunReader reader = new RunReader(run);
+				readers.add(reader);
+				if(reader.advance())
+					heads.add(reader);
+			}
+			while(!heads.isEmpty()) {
+				RunReader reader = heads.poll();
+				sink.accept(reader.head.key, reader.head.text);
+				if(reader.advance())
+					heads.add(reader);
+			}
+		} finally {
+			for(RunReader reader : readers)
+				reader.in.close();
+		}
+	}
+
+	/**
+	 * Reader of one run, holding its next record
+	 */
+	private static final class RunReader {
+		final DataInputStream in;
+		Record head;
+
+		RunReader(File run) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+		}
+
+		/**
+		 * @return false once the run has no records left
+		 */
+		boolean advance() throws IOException {
+			long key;
+			try {
+				key = in.readLong();
+			} catch(EOFException eofe) {
+				head = null;
+				return false;
+			}
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			head = new Record(key, new String(bytes, StandardCharsets.UTF_8));
+			return true;
+		}
+	}
+}
@@ -2,7 +2,7 @@
  * Analyzer and repair tool for FAT32 file system partitions
  *
  * Tasks:
- *		1) Read FAT32 partition into byte array 							(DONE)
+ *		1) Map FAT32 partition through a windowed image view 				(DONE)
  *		2) Begin at BPB and ensure it's not missing. Locate it via 			(DONE)
  *         the jmpBoot signature:
  *		   	jmpBoot[0] = 0xEB
@@ -13,10 +13,9 @@
  *		   	jmpBoot[1] = ??
  *		   	jmpBoot[2] = ??
  *		3) If BPB is missing, locate the backup at sector 6. 				(DONE)
- *         Can ensure we found the backups jmpBoot signature specifically
- *		   by calculating the offset and ensuring it is at the start of
- *		   a sector (regardless of bytes per sector, since all options
- *         for bytes per sector are divisible by 512)
+ *         Try BPB_BkBootSec first, then sector 6, and only then scan
+ *         the 512 byte aligned offsets for the jmpBoot signature (all
+ *         options for bytes per sector are divisible by 512)
  *		4) Compare BPB to backup and repair BPB using backup if they don't 	(DONE)
  *         match.
  *		5) Parse through intact BPB for information: 						(DONE)
@@ -36,9 +35,55 @@
  *         choices (i.e. directory entry's file attribute type) adhere
  *         to their requirements. Report to the user if not.
  *		9) Ensure reserved bytes aren't overwritten. Repair if so. 			(DONE)
+ *		10) Follow the root directory through its cluster chain in FAT #1 	(DONE)
+ *		    and descend into every subdirectory, in parallel
+ *		11) Journal repairs by sector and only write the sectors that 		(DONE)
+ *          changed, either as a repaired copy or as a patch file
+ *		12) Compare the FAT copies, find cross-linked clusters, lost 		(DONE)
+ *		    chains and bad end of chain markers, and check FSInfo
+ *		13) Recovery mode: list deleted entries instead of repairing 		(DONE)
+ *		    them, rebuild their cluster runs and carve free clusters
+ *		14) Find the FAT32 partitions of a whole-disk image (MBR, 			(DONE)
+ *		    extended partitions and GPT) and analyze them concurrently
+ *		15) Reassemble long names from their LFN entries, check their 		(DONE)
+ *		    checksums and report orphaned or mismatched runs
+ *		16) Time every phase and count bytes, entries and repairs, as 		(DONE)
+ *		    JFR events and an optional end of run summary
+ *		17) MAC time timeline of every live and deleted entry, sorted 		(DONE)
+ *		    with a bounded memory external merge sort
+ *		18) Persistent index of every entry by name, path, cluster and 		(DONE)
+ *		    offset, memory-mapped for lookups without the image
+ *		19) Incremental re-runs: replay unchanged directories and the 		(DONE)
+ *		    FAT check from a cache checked against CRC32C checksums
+ *		20) Read directory clusters ahead of the walk in offset order, 		(DONE)
+ *		    coalesced into long sequential reads
+ *		21) Export every file, or those matching a glob or named in a 		(DONE)
+ *		    findings file, copying cluster runs with transferTo
+ *		22) Split raw images (image.001, .002, ...) as one image, sparse 	(DONE)
+ *		    copies and read-ahead of the hasher and the copy
+ *		23) Daemon mode: one warm JVM that takes jobs from clients over a 	(DONE)
+ *		    Unix-domain socket or loopback port, with a bounded queue
  * 
  * Usage:
- *     	java FAT32Analyzer path/to/fat32.dd
+ *     	java FAT32Analyzer path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer path/to/fat32.001 path/to/output.dd
+ *     	java FAT32Analyzer --findings path/to/findings.jsonl path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --recover path/to/recovered/dir path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --hash-pieces 1M path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --metrics text path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --timeline path/to/timeline.csv path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --index path/to/fat32.idx path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --query path/to/fat32.idx name REPORT.DOC path/to/fat32.dd
+ *     	java FAT32Analyzer --cache path/to/fat32.cache path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --prefetch 64M path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --export path/to/export/dir --export-glob '**.pdf' path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --patch path/to/fat32.dd path/to/repairs.patch
+ *     	java FAT32Analyzer [--patch] [--threads n] --batch path/to/images path/to/output/dir
+ *     	java FAT32Analyzer --apply-patch path/to/repairs.patch path/to/fat32.dd
+ *     	java FAT32Analyzer --revert-patch path/to/repairs.patch path/to/fat32.dd
+ *     	java FAT32Analyzer --daemon path/to/analyzer.sock --threads 4
+ *     	java FAT32Analyzer --client path/to/analyzer.sock [--patch] path/to/fat32.dd path/to/output.dd
+ *     	java FAT32Analyzer --client path/to/analyzer.sock --stop
  *
  * @author Hannah Juraszek
  * @author Jordan Gillespie
@@ -47,94 +92,690 @@
  */
 
 import java.io.File;
-import java.io.*;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class FAT32Analyzer {
 
-	private static int bytesPerSector;
-	private static int sectorsPerCluster;
-	private static int reservedSectorCount;
-	private static int numFATs;
-	private static int sizeOfFAT;
-	private static int rootCluster;
-	private static byte[] fileContent;
+	//Everything parsed from an image lives in the analyzer of that image, so one
+	//JVM can analyze many images at the same time with one analyzer each
+	private final ImageSource image;
+	private int bytesPerSector;
+	private int sectorsPerCluster;
+	private int reservedSectorCount;
+	private int numFATs;
+	private int sizeOfFAT;
+	private int rootCluster;
+	private int totalSectors;
+	private FatTable fat;
+	private boolean legacyValidator;
+	//Where recovery mode writes deleted and carved files, null when not recovering
+	private File recoveryDirectory;
+	//The input file when the input and output are hashed, otherwise null
+	private File hashedInput;
+	//Size of the pieces listed when hashing, 0 for no lists
+	private long hashPieceSize;
+	//Timing and counters of the run, always kept since they cost next to nothing
+	private final Metrics metrics;
+	//Where the metrics summary goes at the end of the run: "text" or "json" for the
+	//console, or a .json file. Null for no summary.
+	private String metricsOutput;
+	//Where to write the MAC time timeline, null for none, and the heap its sort may take
+	private File timelineFile;
+	private long timelineMemory;
+	//Where to write the directory index, null for none
+	private File indexFile;
+	//Analysis cache to replay unchanged directories from and write this run to, null for none
+	private File cacheFile;
+	//Bytes of directory clusters to read ahead of the walk and keep track of, 0 for none
+	private long prefetchSize;
+	//Where to export files to, null for no export, which files and how many workers write them
+	private File exportDirectory;
+	private String exportGlob;
+	private Set<Long> exportSelection;
+	private int exportThreads;
 
 	public static void main(String[] args) throws IOException {
 		
 		File file;
 		String inputFileNamePath;
 		String outputFileNamePath;
-		boolean bpbPresent;
-		boolean bpbBackupPresent;
+		boolean patchOutput = false;
+		boolean batch = false;
+		String findings = null;
+		String recover = null;
+		boolean hash = false;
+		long hashPieceSize = 0;
+		String metricsOutput = null;
+		String timeline = null;
+		long timelineMemory = 64L << 20;
+		String index = null;
+		String cache = null;
+		long prefetch = 0;
+		String export = null;
+		String exportGlob = null;
+		String exportList = null;
+		String client = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		//Patch files can be applied or reverted without analyzing anything
+		if(args.length == 3 && (args[0].equals("--apply-patch") || args[0].equals("--revert-patch"))) {
+			boolean revert = args[0].equals("--revert-patch");
+			try {
+				int count = SectorJournal.applyPatch(new File(args[1]), new File(args[2]), revert);
+				System.out.println((revert ? "Reverted " : "Applied ") + count + " sector(s) of " + args[1] + " to " + args[2] + ".");
+			} catch(IOException ioe) {
+				System.out.println(ioe.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+
+		//A directory index answers lookups without analyzing anything
+		if(args.length >= 5 && args[0].equals("--query")) {
+			boolean verify = args[1].equals("--verify");
+			if(args.length == (verify ? 6 : 5)) {
+				int query = verify ? 2 : 1;
+				FAT32Analyzer.query(new File(args[query]), args[query + 1], args[query + 2], new File(args[query + 3]), verify);
+				return;
+			}
+		}
+
+		//A daemon keeps one warm JVM for the images clients send it
+		if((args.length == 2 || (args.length == 4 && args[2].equals("--threads"))) && args[0].equals("--daemon")) {
+			int jobs = args.length == 4 ? Integer.parseInt(args[3]) : threads;
+			if(jobs >= 1) {
+				try {
+					AnalysisDaemon.serve(args[1], jobs);
+				} catch(IOException ioe) {
+					System.out.println(ioe.getMessage());
+					System.exit(1);
+				}
+				return;
+			}
+		}
+		if(args.length == 3 && args[0].equals("--client") && args[2].equals("--stop")) {
+			try {
+				System.exit(AnalysisDaemon.submit(args[1], "stop", null, null, null, null, System.out));
+			} catch(IOException ioe) {
+				System.out.println(ioe.getMessage());
+				System.exit(1);
+			}
+		}
+
+		//Strip the options off the front of the arguments
+		int arg = 0;
+		while(arg < args.length && args[arg].startsWith("--")) {
+			if(args[arg].equals("--patch"))
+				//Write a patch file instead of a repaired copy
+				patchOutput = true;
+			else if(args[arg].equals("--batch"))
+				//Analyze a directory or manifest of images
+				batch = true;
+			else if(args[arg].equals("--threads") && arg + 1 < args.length)
+				//Number of images a batch analyzes at once
+				threads = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("--findings") && arg + 1 < args.length)
+				//Where to write the findings as JSON Lines or CSV (for a batch, jsonl or csv)
+				findings = args[++arg];
+			else if(args[arg].equals("--recover") && arg + 1 < args.length)
+				//List deleted entries and write deleted and carved files to a directory
+				recover = args[++arg];
+			else if(args[arg].equals("--hash"))
+				//MD5 and SHA-256 of the input and output
+				hash = true;
+			else if(args[arg].equals("--hash-pieces") && arg + 1 < args.length) {
+				//Also list the SHA-256 of every piece of this size (512, 4K, 1M, ...)
+				hash = true;
+				hashPieceSize = ImageGenerator.parseSize(args[++arg]);
+			}
+			else if(args[arg].equals("--timeline") && arg + 1 < args.length)
+				//Write a MAC time timeline of every entry, as CSV (.csv) or a body file
+				timeline = args[++arg];
+			else if(args[arg].equals("--timeline-memory") && arg + 1 < args.length)
+				//Heap the timeline's sort may take before it spills to temporary files
+				timelineMemory = ImageGenerator.parseSize(args[++arg]);
+			else if(args[arg].equals("--index") && arg + 1 < args.length)
+				//Write an index of every entry, for --query to look entries up in later
+				index = args[++arg];
+			else if(args[arg].equals("--cache") && arg + 1 < args.length)
+				//Reuse what the last run found in the parts of the image that didn't change
+				cache = args[++arg];
+			else if(args[arg].equals("--prefetch") && arg + 1 < args.length)
+				//Read directory clusters ahead of the walk in offset order, up to this much
+				prefetch = ImageGenerator.parseSize(args[++arg]);
+			else if(args[arg].equals("--export") && arg + 1 < args.length)
+				//Copy every live file out of the image into a directory, with its tree
+				export = args[++arg];
+			else if(args[arg].equals("--export-glob") && arg + 1 < args.length)
+				//Only export files whose full paths match this glob, like '/DOCS/**.pdf'
+				exportGlob = args[++arg];
+			else if(args[arg].equals("--export-list") && arg + 1 < args.length)
+				//Only export files whose entries are named in this findings file
+				exportList = args[++arg];
+			else if(args[arg].equals("--client") && arg + 1 < args.length)
+				//Hand the image to a running daemon instead of analyzing it in this JVM
+				client = args[++arg];
+			else if(args[arg].equals("--metrics") && arg + 1 < args.length)
+				//Print the time and throughput of every phase as text or json, or write them to a .json file
+				metricsOutput = args[++arg];
+			else
+				break;
+			arg++;
+		}
 
 		//Ensure proper usage
-		if(args.length != 2) {
-			System.out.println("Usage: java FAT32Analyzer path/to/input/file.dd path/to/output/file.dd");
+		if(args.length - arg != 2 || threads < 1 || hashPieceSize < 0 || timelineMemory < 1 || prefetch < 0 || (export == null && (exportGlob != null || exportList != null))
+				|| (batch && (recover != null || timeline != null || index != null || cache != null || prefetch != 0 || export != null))
+				|| (client != null && (batch || recover != null || hash || timeline != null || index != null || cache != null || prefetch != 0 || export != null))) {
+			System.out.println("Usage: java FAT32Analyzer [--findings path/to/findings.jsonl|.csv] [--recover path/to/recovery/directory] [--hash] [--hash-pieces size] [--timeline path/to/timeline.csv|.body] [--timeline-memory size] [--index path/to/image.idx] [--cache path/to/image.cache] [--prefetch size] [--export path/to/directory [--export-glob pattern] [--export-list path/to/findings.jsonl|.csv] [--threads n]] [--metrics text|json|path/to/metrics.json] path/to/input/file.dd path/to/output/file.dd");
+			System.out.println("       java FAT32Analyzer --patch path/to/input/file.dd path/to/output/file.patch");
+			System.out.println("       java FAT32Analyzer [--patch] [--threads n] [--findings jsonl|csv] [--hash] [--hash-pieces size] [--metrics text|json] --batch path/to/images/or/manifest.txt path/to/output/directory");
+			System.out.println("       java FAT32Analyzer --apply-patch path/to/file.patch path/to/image/file.dd");
+			System.out.println("       java FAT32Analyzer --revert-patch path/to/file.patch path/to/image/file.dd");
+			System.out.println("       java FAT32Analyzer --query [--verify] path/to/image.idx name|path|under|cluster|offset value path/to/image/file.dd");
+			System.out.println("       java FAT32Analyzer --daemon path/to/socket|port [--threads n]");
+			System.out.println("       java FAT32Analyzer --client path/to/socket|port [--patch] [--findings path/to/findings.jsonl|.csv] [--metrics text|json|path/to/metrics.json] path/to/input/file.dd path/to/output/file.dd");
+			System.out.println("       java FAT32Analyzer --client path/to/socket|port --stop");
 			System.exit(1);
 		}
 
 		//Store the input file name path
-		inputFileNamePath = args[0];
+		inputFileNamePath = args[arg];
 
 		//Store the output file name path
-		outputFileNamePath = args[1];
+		outputFileNamePath = args[arg + 1];
 
 		//Instantiate the file
 		file = new File(inputFileNamePath);
 
-		try{															
-			fileContent = FAT32Analyzer.getFileBytes(file);
-			System.out.println("Analyzing boot sector...");
-			bpbPresent = FAT32Analyzer.bpbEntry();
-			if(!bpbPresent) {
-				System.out.println("Boot sector is missing and/or modified. Checking backup...");
-				bpbBackupPresent = FAT32Analyzer.bpbBackup();
+		if(client != null) {
+			try {
+				int status = AnalysisDaemon.submit(client, patchOutput ? "patch" : "copy", file, new File(outputFileNamePath), findings == null ? null : new File(findings), metricsOutput, System.out);
+				if(status != AnalysisDaemon.ANALYZED)
+					System.exit(status);
+			} catch(IOException ioe) {
+				System.out.println(ioe.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
 
-				if(!bpbBackupPresent) {
-					System.out.println("Boot sector and backup boot sector are missing and/or corrupted beyond repair.");
-					System.exit(1);
+		if(batch) {
+			int failed = BatchAnalyzer.run(file, new File(outputFileNamePath), patchOutput, findings, hash ? hashPieceSize : -1, metricsOutput, threads);
+			if(failed > 0)
+				System.exit(1);
+			return;
+		}
+
+		try(ImageSource image = FAT32Analyzer.getImage(file)) {
+			FAT32Analyzer analyzer = new FAT32Analyzer(image);
+			if(recover != null)
+				analyzer.setRecoveryDirectory(new File(recover));
+			if(hash)
+				analyzer.setHashing(file, hashPieceSize);
+			analyzer.setMetricsOutput(metricsOutput);
+			if(timeline != null)
+				analyzer.setTimeline(new File(timeline), timelineMemory);
+			if(index != null)
+				analyzer.setIndex(new File(index));
+			if(cache != null)
+				analyzer.setCache(new File(cache));
+			analyzer.setPrefetch(prefetch);
+			if(export != null)
+				analyzer.setExport(new File(export), exportGlob, exportList == null ? null : Exporter.readSelection(new File(exportList)), threads);
+			if(!analyzer.run(new File(outputFileNamePath), patchOutput, findings == null ? null : new File(findings), System.out))
+				System.exit(1);
+		} catch ( IOException ioe){
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Constructor for an analyzer of a single image. The analyzer keeps everything
+	 * it parses from the image to itself, so analyzers of different images can be
+	 * used from different threads at the same time.
+	 *
+	 * @param image - the image to analyze
+	 */
+	public FAT32Analyzer(ImageSource image) {
+		this.image = image;
+		this.metrics = new Metrics(image.name());
+	}
+
+	/**
+	 * Method to analyze one image from start to finish and write the repairs
+	 *
+	 * @param input - the image to analyze, which is never modified
+	 * @param output - the file to write the repaired image (or patch) to
+	 * @param patchOutput - true to write a patch file instead of a repaired copy
+	 * @param findingsFile - a JSON Lines (or .csv) file to write every finding to, or null
+	 * @param out - where to print what is being done and what was found
+	 * @return false if the boot sector and its backup are both unusable, true otherwise
+	 */
+	public static boolean analyze(File input, File output, boolean patchOutput, File findingsFile, PrintStream out) throws IOException {
+		//The input is only read, repairs are journaled until the output is written
+		try(ImageSource image = FAT32Analyzer.getImage(input)) {
+			return new FAT32Analyzer(image).run(output, patchOutput, findingsFile, out);
+		}
+	}
+
+	/**
+	 * Method to run every analysis on this analyzer's image and write the repairs
+	 *
+	 * @param output - the file to write the repaired image (or patch) to
+	 * @param patchOutput - true to write a patch file instead of a repaired copy
+	 * @param findingsFile - a JSON Lines (or .csv) file to write every finding to, or null
+	 * @param out - where to print what is being done and what was found
+	 * @return false if the boot sector and its backup are both unusable, true otherwise
+	 */
+	@SuppressWarnings("try")
+	public boolean run(File output, boolean patchOutput, File findingsFile, PrintStream out) throws IOException {
+		//A copy hashes the input as it reads it, but a patch only reads the repaired
+		//sectors, so for a patch the input is read for its digests while it is analyzed
+		ImageHasher inputHasher = null;
+		if(hashedInput != null && patchOutput)
+			inputHasher = this.hashInput(output);
+
+		//A whole-disk image starts with a partition table rather than a boot sector
+		List<PartitionTable.Partition> partitions = new ArrayList<>();
+		if(!this.checkBPB(0)) {
+			try(Metrics.Phase phase = metrics.start("partition table")) {
+				for(PartitionTable.Partition partition : PartitionTable.read(image)) {
+					if(partition.fat32)
+						partitions.add(partition);
 				}
-				else {
-					System.out.println("Backup boot sector located.");
-					System.out.println("Boot sector repaired using the backup.");
+			}
+		}
+
+		//Findings are formatted and written on background threads as the analysis
+		//settles them, so only their counts are kept for the summary
+		boolean analyzed;
+		int repairedSectors = 0;
+		String[] outputDigests = null;
+		String summary;
+		long written = 0;
+		try(FindingWriter file = findingsFile == null ? null : FindingWriter.open(findingsFile)) {
+			FindingWriter console = new FindingWriter(out, FindingWriter.Format.TEXT);
+			try(console) {
+				FindingSink sink = file == null ? console : FindingSink.both(console, file);
+				analyzed = partitions.isEmpty() ? this.analyzeImage(out, sink) : this.analyzePartitions(partitions, out, sink);
+				if(analyzed) {
+					try(Metrics.Phase phase = metrics.start("write output")) {
+						//Write only what the repairs changed, unless the whole copy has to be hashed anyway
+						if(patchOutput) {
+							repairedSectors = image.journal().writePatch(image.size(), output);
+							if(hashedInput != null)
+								outputDigests = ImageHasher.hashFile(output, hashPieceSize, this.piecesFile(output, "output"));
+						}
+						else if(hashedInput != null) {
+							inputHasher = new ImageHasher(hashPieceSize, this.piecesFile(output, "input"));
+							ImageHasher outputHasher = new ImageHasher(hashPieceSize, this.piecesFile(output, "output"));
+							repairedSectors = image.journal().writeCopy(image, output, inputHasher, outputHasher);
+							outputDigests = outputHasher.finish();
+						}
+						else {
+							repairedSectors = image.journal().writeCopy(image, output);
+						}
+						//A copy reads the whole image, a patch only the repaired sectors
+						metrics.read(patchOutput ? (long) repairedSectors * SectorJournal.SECTOR_SIZE : image.size());
+						metrics.written(output.length());
+					}
 				}
 			}
+			//Every finding is on the console once it is closed, before anything else is printed
+			summary = console.summary();
+			if(file != null)
+				written = file.total();
+		}
+		if(!analyzed) {
+			//The digests of the input are worth having even if it can't be analyzed
+			if(hashedInput != null) {
+				if(inputHasher == null)
+					inputHasher = this.hashInput(output);
+				this.printDigests(out, this.finishHashing(inputHasher), null, output);
+			}
+			this.printMetrics(out);
+			return false;
+		}
+		out.println(summary);
+		if(findingsFile != null)
+			out.println(written + " finding(s) written to " + findingsFile + ".");
+		out.println(repairedSectors + " repaired sector(s) written to " + output + ".");
+		if(inputHasher != null)
+			this.printDigests(out, this.finishHashing(inputHasher), outputDigests, output);
+		this.printMetrics(out);
+		out.println("All done.");
+		return true;
+	}
+
+	/**
+	 * Method to analyze the volume of this analyzer's image (or partition view),
+	 * from its boot sector to its directory tree, without writing anything out
+	 * but the findings
+	 *
+	 * @param out - where to print what is being done
+	 * @param sink - where to write the findings as they are made
+	 * @return false if the boot sector and its backup are both unusable, true otherwise
+	 */
+	@SuppressWarnings("try")
+	public boolean analyzeImage(PrintStream out, FindingSink sink) throws IOException {
+		boolean bpbPresent;
+		boolean bpbBackupPresent;
+
+		out.println("Analyzing boot sector...");
+		try(Metrics.Phase phase = metrics.start("boot sector")) {
+			bpbPresent = this.bpbEntry();
+			metrics.read(Math.min(512, image.size()));
+		}
+		if(!bpbPresent) {
+			out.println("Boot sector is missing and/or modified. Checking backup...");
+			try(Metrics.Phase phase = metrics.start("backup boot sector")) {
+				bpbBackupPresent = this.bpbBackup();
+			}
+
+			if(!bpbBackupPresent) {
+				out.println("Boot sector and backup boot sector are missing and/or corrupted beyond repair.");
+				return false;
+			}
 			else {
-				System.out.println("Boot sector located.");
-			}
-			System.out.println("------------------------------------");
-			System.out.println("Bytes per sector: " + bytesPerSector);
-			System.out.println("Sectors per cluster: " + sectorsPerCluster);
-			System.out.println("Number of reserved sectors: " + reservedSectorCount);
-			System.out.println("Number of FATs: " + numFATs);
-			System.out.println("Size of FATs (in sectors): " + sizeOfFAT);
-			System.out.println("------------------------------------");
-		  	FAT32Analyzer.analyzeRoot();
-		  	System.out.println("All done.");
-		  	FileOutputStream fos = new FileOutputStream(outputFileNamePath);
-		  	fos.write(fileContent);	
-		
-		} catch ( IOException ioe){
-			ioe.printStackTrace();
+				out.println("Backup boot sector located.");
+				out.println("Boot sector repaired using the backup.");
+			}
+		}
+		else {
+			out.println("Boot sector located.");
+		}
+		out.println("------------------------------------");
+		out.println("Bytes per sector: " + bytesPerSector);
+		out.println("Sectors per cluster: " + sectorsPerCluster);
+		out.println("Number of reserved sectors: " + reservedSectorCount);
+		out.println("Number of FATs: " + numFATs);
+		out.println("Size of FATs (in sectors): " + sizeOfFAT);
+		out.println("------------------------------------");
+		//The timeline is taken before any directory entry is repaired
+		if(timelineFile != null) {
+			try(Metrics.Phase phase = metrics.start("timeline")) {
+				this.loadFAT();
+				long rows = Timeline.write(this, timelineFile, timelineMemory);
+				out.println(rows + " timeline row(s) written to " + timelineFile + ".");
+			}
+		}
+		if(indexFile != null) {
+			try(Metrics.Phase phase = metrics.start("index")) {
+				this.loadFAT();
+				int entries = DirectoryIndex.build(this, image.file(), indexFile);
+				out.println(entries + " entry(s) indexed in " + indexFile + ".");
+			}
+		}
+		//Files are exported as they are on disk, before their entries are repaired
+		if(exportDirectory != null) {
+			try(Metrics.Phase phase = metrics.start("export")) {
+				this.loadFAT();
+				long[] exported = Exporter.export(this, exportDirectory, exportGlob, exportSelection, exportThreads);
+				out.println(exported[0] + " file(s), " + exported[1] + " byte(s) exported to " + exportDirectory
+					+ (exported[2] > 0 ? ", " + exported[2] + " of them truncated where their chains end." : "."));
+			}
+		}
+		AnalysisCache cache = null;
+		if(cacheFile != null) {
+			try(Metrics.Phase phase = metrics.start("cache check")) {
+				cache = new AnalysisCache(this, (recoveryDirectory != null ? AnalysisCache.RECOVERY : 0) | (legacyValidator ? AnalysisCache.LEGACY_VALIDATOR : 0));
+				cache.load(cacheFile);
+			}
+			if(cache.staleReason() != null)
+				out.println("Analysis cache " + cacheFile + " not used, " + cache.staleReason() + ".");
+		}
+		//Recovery writes out the deleted entries the walk finds, so only those are kept
+		List<Finding> deleted = new ArrayList<>();
+		FindingSink volumeSink = sink;
+		if(recoveryDirectory != null) {
+			volumeSink = findings -> {
+				for(Finding finding : findings) {
+					if(finding.kind == Finding.Kind.DELETED_ENTRY)
+						deleted.add(finding);
+				}
+				sink.write(findings);
+			};
+		}
+		this.analyzeVolume(cache, volumeSink);
+		//What is printed next comes after the findings on the console
+		sink.flush();
+		if(cache != null) {
+			try(Metrics.Phase phase = metrics.start("cache write")) {
+				cache.save(cacheFile);
+			}
+			int[] counts = cache.counts();
+			out.println(counts[0] + " directory(s) replayed from the analysis cache, " + counts[1] + " analyzed"
+				+ (cache.fatCheckReplayed() ? ", FAT check replayed" : "") + ". Cache written to " + cacheFile + ".");
+		}
+		if(recoveryDirectory != null) {
+			try(Metrics.Phase phase = metrics.start("recovery")) {
+				sink.write(Recovery.recover(this, deleted, recoveryDirectory));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Method to analyze the FAT32 partitions of a whole-disk image at the same time,
+	 * one analyzer per partition, each through a view of the image starting at its
+	 * partition. The views share the image's journal, so every repair lands at its
+	 * offset on the disk. What each partition prints and finds is held back until
+	 * the partitions before it are done, so it all comes out in partition order.
+	 * (Task 14)
+	 *
+	 * @param partitions - the FAT32 partitions
+	 * @param out - where to print what is being done
+	 * @param sink - where to write the findings of every partition, relocated onto the disk
+	 * @return false if none of the partitions could be analyzed, true otherwise
+	 */
+	@SuppressWarnings("try")
+	public boolean analyzePartitions(List<PartitionTable.Partition> partitions, PrintStream out, FindingSink sink) throws IOException {
+		out.println("Partition table found, analyzing " + partitions.size() + " FAT32 partition(s)...");
+		List<PartitionOutput> outputs = new ArrayList<>();
+		List<FAT32Analyzer> analyzers = new ArrayList<>();
+		List<Future<Boolean>> results = new ArrayList<>();
+		//An extended partition can chain hundreds of logical ones, so no more threads than processors
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(partitions.size(), Runtime.getRuntime().availableProcessors()));
+		try(Metrics.Phase phase = metrics.start("partitions")) {
+			for(PartitionTable.Partition partition : partitions) {
+				PartitionOutput output = new PartitionOutput(partition, out, sink);
+				outputs.add(output);
+				FAT32Analyzer analyzer = new FAT32Analyzer(image.partition(partition.start, partition.length));
+				analyzer.legacyValidator = legacyValidator;
+				if(recoveryDirectory != null)
+					analyzer.recoveryDirectory = new File(recoveryDirectory, "partition-" + partition.number);
+				//Each partition gets a timeline and an index of its own, and a share of the sort's heap
+				if(timelineFile != null)
+					analyzer.setTimeline(partitionFile(timelineFile, partition.number), Math.max(1, timelineMemory / partitions.size()));
+				if(indexFile != null)
+					analyzer.indexFile = partitionFile(indexFile, partition.number);
+				if(cacheFile != null)
+					analyzer.cacheFile = partitionFile(cacheFile, partition.number);
+				if(prefetchSize > 0)
+					analyzer.prefetchSize = Math.max(1, prefetchSize / partitions.size());
+				if(exportDirectory != null)
+					analyzer.setExport(new File(exportDirectory, "partition-" + partition.number), exportGlob, exportSelection, Math.max(1, exportThreads / partitions.size()));
+				analyzers.add(analyzer);
+				results.add(executor.submit(() -> {
+					try(PrintStream partitionOut = new PrintStream(output, false, "UTF-8")) {
+						return analyzer.analyzeImage(partitionOut, output);
+					}
+				}));
+			}
+
+			boolean analyzed = false;
+			for(int i = 0; i < partitions.size(); i++) {
+				PartitionTable.Partition partition = partitions.get(i);
+				out.println(partition + ":");
+				outputs.get(i).pass();
+				try {
+					if(results.get(i).get())
+						analyzed = true;
+				} catch(ExecutionException ee) {
+					if(ee.getCause() instanceof IOException)
+						throw (IOException) ee.getCause();
+					throw new IOException("Unable to analyze partition " + partition.number + ".", ee.getCause());
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while analyzing the partitions.");
+				}
+				sink.flush();
+				metrics.add("partition " + partition.number + ": ", analyzers.get(i).metrics);
+			}
+			return analyzed;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Helper method to name the file of one partition after the file of the disk,
+	 * such as timeline.partition-2.csv for timeline.csv
+	 */
+	private static File partitionFile(File file, int number) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		name = dot > 0 ? name.substring(0, dot) + ".partition-" + number + name.substring(dot) : name + ".partition-" + number;
+		return new File(file.getAbsoluteFile().getParentFile(), name);
+	}
+
+	/**
+	 * Method to look entries up in a directory index and print them
+	 * (Task 18)
+	 *
+	 * @param indexFile - the index
+	 * @param kind - what to look up: name, path, under, cluster or offset
+	 * @param value - the name, path, cluster or offset to look up
+	 * @param imageFile - the image the index was built from
+	 * @param verify - true to check the SHA-256 of the volume before trusting the index
+	 */
+	public static void query(File indexFile, String kind, String value, File imageFile, boolean verify) {
+		try {
+			DirectoryIndex index = DirectoryIndex.open(indexFile, imageFile, verify);
+			long start = System.nanoTime();
+			List<DirectoryIndex.Entry> entries;
+			if(kind.equals("name"))
+				entries = index.name(value);
+			else if(kind.equals("path"))
+				entries = index.path(value);
+			else if(kind.equals("under"))
+				entries = index.under(value);
+			else if(kind.equals("cluster"))
+				entries = index.cluster(Integer.parseInt(value));
+			else if(kind.equals("offset"))
+				entries = index.offset(Long.parseLong(value));
+			else
+				throw new IOException("Unknown query " + kind + ", expected name, path, under, cluster or offset.");
+			long micros = (System.nanoTime() - start) / 1000;
+			for(DirectoryIndex.Entry entry : entries)
+				System.out.println(entry);
+			System.out.println(entries.size() + " of " + index.size() + " entry(s) found in " + micros + " microseconds.");
+		} catch(IOException | NumberFormatException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Helper method to start reading the input from start to end for its digests,
+	 * on a thread of its own
+	 */
+	private ImageHasher hashInput(File output) throws IOException {
+		//Counted in the total but in no phase
+		metrics.read(image.size());
+		return ImageHasher.hashImage(image, hashPieceSize, this.piecesFile(output, "input"));
+	}
+
+	/**
+	 * Helper method to wait for the digests of the input, timed as a phase of its own
+	 */
+	@SuppressWarnings("try")
+	private String[] finishHashing(ImageHasher inputHasher) throws IOException {
+		try(Metrics.Phase phase = metrics.start("input hash (wait)")) {
+			return inputHasher.finish();
 		}
 	}
 
 	/**
-	 * Method to quickly turn a file into a byte array
+	 * Helper method to print the metrics summary, or write it to a .json file
+	 */
+	private void printMetrics(PrintStream out) throws IOException {
+		if(metricsOutput == null)
+			return;
+		if(metricsOutput.equals("text")) {
+			out.print(metrics.text());
+		}
+		else if(metricsOutput.equals("json")) {
+			out.print(metrics.json());
+		}
+		else {
+			Files.write(new File(metricsOutput).toPath(), metrics.json().getBytes(StandardCharsets.UTF_8));
+			out.println("Metrics written to " + metricsOutput + ".");
+		}
+	}
+
+	/**
+	 * Helper method to name a list of piece hashes written next to the output
+	 *
+	 * @return the file, or null if no pieces are listed
+	 */
+	private File piecesFile(File output, String which) {
+		return hashPieceSize > 0 ? new File(output.getPath() + "." + which + ".pieces.csv") : null;
+	}
+
+	/**
+	 * Helper method to print the digests of the input and output and write them
+	 * to <output>.hashes, in the tagged format cksum -c checks
+	 *
+	 * @param inputDigests - the MD5 and SHA-256 of the input
+	 * @param outputDigests - the MD5 and SHA-256 of the output, or null if none was written
+	 */
+	private void printDigests(PrintStream out, String[] inputDigests, String[] outputDigests, File output) throws IOException {
+		StringBuilder hashes = new StringBuilder();
+		hashes.append("MD5 (").append(hashedInput.getPath()).append(") = ").append(inputDigests[0]).append('\n');
+		hashes.append("SHA256 (").append(hashedInput.getPath()).append(") = ").append(inputDigests[1]).append('\n');
+		out.println("Input MD5: " + inputDigests[0]);
+		out.println("Input SHA-256: " + inputDigests[1]);
+		if(outputDigests != null) {
+			hashes.append("MD5 (").append(output.getPath()).append(") = ").append(outputDigests[0]).append('\n');
+			hashes.append("SHA256 (").append(output.getPath()).append(") = ").append(outputDigests[1]).append('\n');
+			out.println("Output MD5: " + outputDigests[0]);
+			out.println("Output SHA-256: " + outputDigests[1]);
+		}
+		File hashesFile = new File(output.getPath() + ".hashes");
+		Files.write(hashesFile.toPath(), hashes.toString().getBytes(StandardCharsets.UTF_8));
+		out.println("Hashes written to " + hashesFile + ".");
+	}
+
+	/**
+	 * Method to open a file as a memory-mapped, windowed image. Repairs made
+	 * through the returned view are recorded in its journal, the file itself
+	 * is never modified.
 	 * (Task 1)
 	 * 
-	 * @param file - the file to be converted to byte array
-	 * @return the byte array of the file's contents
+	 * @param file - the image file to be mapped, or the first segment (.001) of a
+	 *               split image, which maps all of its segments
+	 * @return the windowed view of the file's contents
 	 */
-	public static byte[] getFileBytes(File file) throws IOException {
+	public static ImageSource getImage(File file) throws IOException {
 		
-		return Files.readAllBytes(file.toPath());
+		return ImageSource.open(file);
 
 	}
 
@@ -144,8 +785,8 @@ public class FAT32Analyzer {
 	 *
 	 * @return false if the BPB contains any errors/modifications that will cause corruption, true otherwise 
 	 */
-	public static boolean bpbEntry() {
-		return FAT32Analyzer.parseBPB(0);
+	public boolean bpbEntry() {
+		return this.parseBPB(0);
 	}
 
 
@@ -154,122 +795,176 @@ public class FAT32Analyzer {
 	 * and repair the sector 0 BPB with the backup.
 	 * (Task 3 & 4)
 	 *
+	 * The backup is looked for in three tiers, cheapest first:
+	 *		a) the sector named by BPB_BkBootSec (offset 50), if that field
+	 *		   survived whatever damaged the BPB
+	 *		b) sector 6, the location the spec recommends
+	 *		c) every 512 byte aligned offset of the image, scanned in parallel
+	 *		   chunks on a fork-join pool, stopping as soon as a candidate
+	 *		   passes checkBPB. The lowest such offset wins.
+	 *
 	 * @return false if the backup is missing, corrupted, or modified, true otherwise
 	 */
-	public static boolean bpbBackup(){
+	public boolean bpbBackup(){
 		/*Locate the backup*/
-		//Whether we were successful locating the backup or not, initialized to false
-		boolean foundBackup = false;
-		//int to store the offset of the backup BPB
-		int backupOffset = 0;
-		//For every byte in the file,
-		for(int i = 0; i < fileContent.length - 1; i++) {
-			//Store that byte
-			byte thisByte = fileContent[i];
-			//If the byte is 0xEB (-21)
-			if(thisByte == -21) {
-				//Check to see if the byte at index + 2 is 0x90 (-112) and check if
-				//the index we found this byte at is the start of a sector
-				//Also checks for the end signature word (0x55 at offset 510 and 
-				//0xAA at offset 511)
-				if(fileContent[i + 2] == -112 && fileContent[i + 510] == 85 && fileContent[i + 511] == -86 && i % 512 == 0) {
-					//If so, we found the backup, so store the offset
-					backupOffset = i;
-					//And set foundBackup to true to break us out of the while loop
-					foundBackup = true;
-					//Break out of the for loop
-					break;
-				}
-			}
-			//Otherwise if the byte is 0xE9 (-23)
-			else if(thisByte == -23) {
-				//Check to see if the index we found this byte at is the start of a sector
-				//and contains the end signature word
-				if(fileContent[i + 510] == 85 && fileContent[i + 511] == -86 && i % 512 == 0) {
-					//If so, we found the backup, so store the offset and break
-					backupOffset = i;
-					foundBackup = true;
-					break;
-				}
-			}
-		}
+		long backupOffset = this.locateBackup();
 
-		//If we iterated through the file and never found the backup, return false
-		if(foundBackup = false)
+		//If we never found an intact backup, return false
+		if(backupOffset < 0)
 			return false;
 
 		//Parse through the backup by passing in the backupOffset to parseBPB method
-		boolean backupIntact = FAT32Analyzer.parseBPB(backupOffset);
+		boolean backupIntact = this.parseBPB(backupOffset);
 
 		//If the backup is not intact (parseBPB returned false), return false
 		if(backupIntact == false)
 			return false;
 
 		/*Repair the BPB using this backup*/
-		//MAY BE INCORRECT, THIS IS A DRAFT
-		//NEED TO VERIFY CORRECTNESS
 		//Create a new byte array of size 512 (number of bytes in BPB)
 		byte[] backup = new byte[512];
-		//Store the backup BPB from fileContent in the backup array
-		int j = backupOffset;
-		for(int i = 0; i < 512;i++) {
-			//j is the index for fileContent
-			
-			backup[i] = fileContent[j];
-			
-			j++;
-			
+		//Store the backup BPB from the image in the backup array
+		image.read(backupOffset, backup, 0, 512);
+		//Write the backup over the BPB at the start of the image
+		image.write(0, backup, 0, 512);
+
+		//Finally, return true to indicate success
+		return true;
+	}
+
+	/**
+	 * Helper method to find the offset of an intact backup BPB
+	 *
+	 * @return the offset of the backup, or -1 if there isn't an intact one
+	 */
+	public long locateBackup() {
+		//Every legal bytes per sector value
+		int[] sectorSizes = {512, 1024, 2048, 4096};
+
+		//If the bytes per sector field is still legal, only trust that size
+		int primarySectorSize = image.size() >= 512 ? image.getShortLE(11) : 0;
+		for(int sectorSize : sectorSizes) {
+			if(primarySectorSize == sectorSize)
+				sectorSizes = new int[] {sectorSize};
 		}
-		//Index for fileContent
-		int index = 0;
-		//For every byte in the backup
-		for(byte backupByte : backup) {
-			//Write that byte to its respective location in the BPB of the fileContent
-			fileContent[index] = backupByte;
 
-			
-			//Increment fileContent index
-			index++;
+		//Tier 1: the sector BPB_BkBootSec points at
+		int bkBootSec = image.size() >= 512 ? image.getShortLE(50) : 0;
+		if(bkBootSec != 0 && bkBootSec != 0xFFFF) {
+			for(int sectorSize : sectorSizes) {
+				if(this.checkBPB((long) bkBootSec * sectorSize))
+					return (long) bkBootSec * sectorSize;
+			}
 		}
-		
 
-	
-		//Finally, return true to indicate success
-		return true;
+		//Tier 2: sector 6
+		for(int sectorSize : sectorSizes) {
+			if(this.checkBPB(6L * sectorSize))
+				return 6L * sectorSize;
+		}
+
+		//Tier 3: every 512 byte aligned offset, in parallel
+		AtomicLong found = new AtomicLong(Long.MAX_VALUE);
+		ForkJoinPool.commonPool().invoke(new BackupScan(0, image.size() / 512, found));
+		return found.get() == Long.MAX_VALUE ? -1 : found.get();
 	}
 
 	/**
-	 * Helper method to parse BPB structure, both sector 0 and backup. Also does
-	 * the storing of important information parsed from BPB.
+	 * Fork-join task that scans a range of 512 byte aligned offsets for an intact
+	 * BPB. Ranges are split in half until they are small enough to scan directly.
+	 * Every task gives up as soon as a lower offset has already been found, so the
+	 * scan ends shortly after the first backup turns up.
+	 */
+	private class BackupScan extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		//Number of sectors scanned directly by one task (32 MiB)
+		private static final long CHUNK = 1 << 16;
+
+		private final long firstSector;
+		private final long endSector;
+		private final AtomicLong found;
+
+		BackupScan(long firstSector, long endSector, AtomicLong found) {
+			this.firstSector = firstSector;
+			this.endSector = endSector;
+			this.found = found;
+		}
+
+		@Override
+		protected void compute() {
+			//Nothing in this range can beat a backup that's already been found
+			if(firstSector * 512 >= found.get())
+				return;
+
+			if(endSector - firstSector > CHUNK) {
+				long middle = (firstSector + endSector) >>> 1;
+				invokeAll(new BackupScan(firstSector, middle, found), new BackupScan(middle, endSector, found));
+				return;
+			}
+
+			long sector;
+			for(sector = firstSector; sector < endSector; sector++) {
+				long offset = sector * 512;
+				if(offset >= found.get())
+					break;
+				byte thisByte = image.get(offset);
+				//Cheap signature checks first: 0xEB ?? 0x90 or 0xE9 ?? ??, then 0x55 0xAA at the end
+				if(thisByte != -21 && thisByte != -23)
+					continue;
+				if(thisByte == -21 && image.get(offset + 2) != -112)
+					continue;
+				if(image.get(offset + 510) != 85 || image.get(offset + 511) != -86)
+					continue;
+				if(FAT32Analyzer.this.checkBPB(offset)) {
+					//Keep the lowest offset if several tasks find a backup
+					long current = found.get();
+					while(offset < current && !found.compareAndSet(current, offset))
+						current = found.get();
+					break;
+				}
+			}
+			//Counted as read, since every sector looked at is paged in from the image
+			metrics.read((sector - firstSector) * 512);
+		}
+	}
+
+	/**
+	 * Helper method to check a BPB structure, both sector 0 and backup, without
+	 * storing anything from it. Since it has no side effects it's safe to call
+	 * from several threads at once, which the backup scan does.
 	 *
 	 * @param startingOffset the offset the BPB block starts at
 	 * @return false if the BPB is modified/corrupted/missing, true otherwise
 	 */
-	public static boolean parseBPB(int startingOffset) {
-		byte jmpBootByteOne = fileContent[startingOffset];
-		byte jmpBootByteThree = fileContent[startingOffset + 2];
-		byte bytesPerSectorByteOne = fileContent[startingOffset + 11];
-		byte bytesPerSectorByteTwo = fileContent[startingOffset + 12];
-		byte secPerClus = fileContent[startingOffset + 13];
-		byte rsvdSecCntByteOne = fileContent[startingOffset + 14];
-		byte rsvdSecCntByteTwo = fileContent[startingOffset + 15];
-		byte numFAT = fileContent[startingOffset + 16];
-		byte rootEntCntByteOne = fileContent[startingOffset + 17];
-		byte rootEntCntByteTwo = fileContent[startingOffset + 18];
-		byte totSec16ByteOne = fileContent[startingOffset + 19];
-		byte totSec16ByteTwo = fileContent[startingOffset + 20];
-		byte media = fileContent[startingOffset + 21];
-		byte fatSz16ByteOne = fileContent[startingOffset + 22];
-		byte fatSz16ByteTwo = fileContent[startingOffset + 23];
-		byte totSec32ByteOne = fileContent[startingOffset + 34];
-		byte totSec32ByteTwo = fileContent[startingOffset + 35];
-		byte fsVerByteOne = fileContent[startingOffset + 42];
-		byte fsVerByteTwo = fileContent[startingOffset + 43];
-		byte reserved = fileContent[startingOffset + 52];
-		byte drvNum = fileContent[startingOffset + 64];
-		byte reservedOne = fileContent[startingOffset + 65];
-		byte endSignatureByteOne = fileContent[startingOffset + 510];
-		byte endSignatureByteTwo = fileContent[startingOffset + 511];
+	public boolean checkBPB(long startingOffset) {
+		//If there isn't a whole sector left at this offset, it can't be a BPB
+		if(startingOffset < 0 || startingOffset + 512 > image.size())
+			return false;
+
+		byte jmpBootByteOne = image.get(startingOffset);
+		byte jmpBootByteThree = image.get(startingOffset + 2);
+		byte bytesPerSectorByteOne = image.get(startingOffset + 11);
+		byte bytesPerSectorByteTwo = image.get(startingOffset + 12);
+		byte secPerClus = image.get(startingOffset + 13);
+		byte rsvdSecCntByteOne = image.get(startingOffset + 14);
+		byte rsvdSecCntByteTwo = image.get(startingOffset + 15);
+		byte numFAT = image.get(startingOffset + 16);
+		byte rootEntCntByteOne = image.get(startingOffset + 17);
+		byte rootEntCntByteTwo = image.get(startingOffset + 18);
+		byte totSec16ByteOne = image.get(startingOffset + 19);
+		byte totSec16ByteTwo = image.get(startingOffset + 20);
+		byte media = image.get(startingOffset + 21);
+		byte fatSz16ByteOne = image.get(startingOffset + 22);
+		byte fatSz16ByteTwo = image.get(startingOffset + 23);
+		byte totSec32ByteOne = image.get(startingOffset + 34);
+		byte totSec32ByteTwo = image.get(startingOffset + 35);
+		byte fsVerByteOne = image.get(startingOffset + 42);
+		byte fsVerByteTwo = image.get(startingOffset + 43);
+		byte reserved = image.get(startingOffset + 52);
+		byte drvNum = image.get(startingOffset + 64);
+		byte reservedOne = image.get(startingOffset + 65);
+		byte endSignatureByteOne = image.get(startingOffset + 510);
+		byte endSignatureByteTwo = image.get(startingOffset + 511);
 			
 		// Oxeb = -21, 0x90 = -112, 0xe9 = -23
 		//If the first byte is 0xeb 
@@ -382,6 +1077,25 @@ public class FAT32Analyzer {
 			return false;
 
 		//If we made it here, it passed all the previous tests.
+		return true;
+	}
+
+	/**
+	 * Helper method to parse BPB structure, both sector 0 and backup. Also does
+	 * the storing of important information parsed from BPB.
+	 *
+	 * @param startingOffset the offset the BPB block starts at
+	 * @return false if the BPB is modified/corrupted/missing, true otherwise
+	 */
+	public boolean parseBPB(long startingOffset) {
+		//Make sure the BPB is intact before storing anything from it
+		if(!this.checkBPB(startingOffset))
+			return false;
+
+		byte bytesPerSectorByteTwo = image.get(startingOffset + 12);
+		byte secPerClus = image.get(startingOffset + 13);
+		byte numFAT = image.get(startingOffset + 16);
+
 		/*Determine the bytes per sector*/
 		if(bytesPerSectorByteTwo == 2)
 			bytesPerSector = 512;
@@ -399,50 +1113,21 @@ public class FAT32Analyzer {
 			sectorsPerCluster = secPerClus;
 
 		/*Determine the number of reserved sectors*/
-		if(rsvdSecCntByteTwo == 0)
-			reservedSectorCount = rsvdSecCntByteOne;
-		else {
-			reservedSectorCount = (rsvdSecCntByteTwo << 8) + rsvdSecCntByteOne;
-		}
+		//Read as an unsigned little endian field so counts of 128 or more don't go negative
+		reservedSectorCount = image.getShortLE(startingOffset + 14);
 
 		/*Determine the number of FATs*/
 		numFATs = numFAT;
 
 		/*Determine the number of sectors per FAT*/
-		//Create a new byte array to hold the 4 bytes of the sizeOfFAT
-		byte[] temp = new byte[4];
-		//Add the 4 bytes to the array
-		temp[0] = fileContent[startingOffset + 36];
-		temp[1] = fileContent[startingOffset + 37];
-		temp[2] = fileContent[startingOffset + 38];
-		temp[3] = fileContent[startingOffset + 39];
-		//Create a ByteBuffer wrapped around the array
-		ByteBuffer bb = ByteBuffer.wrap(temp);
-		//Change the ByteBuffer to little endian
-		bb.order(ByteOrder.LITTLE_ENDIAN);
-		//Convert it to an int and store
-		sizeOfFAT = bb.getInt();
+		//Read the 4 little endian bytes of the sizeOfFAT straight from the image
+		sizeOfFAT = image.getIntLE(startingOffset + 36);
 
 		/*Determine location of root cluster*/
-		//If the 3 bytes following the least significant byte are 0
-		if(fileContent[startingOffset + 45] == 0 && fileContent[startingOffset + 46] == 0 && fileContent[startingOffset + 47] == 0)
-			//Then the rootCluster field is just in the first byte
-			rootCluster = fileContent[startingOffset + 44];
-		//Otherwise create a new byte array to hold the 4 bytes and convert using ByteBuffer
-		else {
-			byte[] arr = new byte[4];
-			//Add the 4 bytes to the array
-			arr[0] = fileContent[startingOffset + 44];
-			arr[1] = fileContent[startingOffset + 45];
-			arr[2] = fileContent[startingOffset + 46];
-			arr[3] = fileContent[startingOffset + 47];
-			//Override our existing byte buffer to be wrapped around this array
-			bb = ByteBuffer.wrap(arr);
-			//Just to make sure it's using little endian ordering
-			bb.order(ByteOrder.LITTLE_ENDIAN);
-			//Convert it to an int and store
-			rootCluster = bb.getInt();
-		}
+		rootCluster = image.getIntLE(startingOffset + 44);
+
+		/*Determine the total number of sectors*/
+		totalSectors = image.getIntLE(startingOffset + 32);
 
 		//Finally, return true
 		return true;
@@ -460,133 +1145,536 @@ public class FAT32Analyzer {
  	 *		 d) any characters less than 0x20 (except 0x05)
  	 *		 e) 0x22, 0x2A, 0x2B, 0x2C, 0x2E, 0x2F, 0x3A, 0x3B, 0x3C,
  	 *		    0x3D, 0x3E, 0x3F, 0x5B, 0x5C, 0x5D, 0x7C
+	 *
+	 * @return every problem found and repair made
 	 */
-	public static void analyzeRoot() {
+	public List<Finding> analyzeRoot() {
 		/*Locate the root directory*/
-		//Determine the number of sectors before the root by calculating the number
-		//of sectors taken up by the FATs and adding the reserved sectors
-		int sectorsBeforeRoot = numFATs * sizeOfFAT + reservedSectorCount;
-		
-		//Calculate the offset of the root directory start
-		int offsetOfRootStart = sectorsBeforeRoot * bytesPerSector;
-		int currentOffset = offsetOfRootStart;
-		
-		//The number of bytes in the file name field of the directory entry
-		int numBytes = 11;
-		//Store a legal byte to replace illegal characters with
-		byte legalByte = 48;
+		//Load FAT #1 so the root directory can be followed through its cluster
+		//chain instead of assuming it is one contiguous run after the FATs
+		this.loadFAT();
+		List<Finding> findings = new ArrayList<>();
+		this.analyzeDirectory(rootCluster, true, fat.chain(), new LongNameDecoder(), findings, null, null, null);
+		return findings;
+	}
+
+	/**
+	 * Method to analyze every directory on the volume, starting at the root and
+	 * descending into each subdirectory, with the same checks as analyzeRoot.
+	 * Subdirectories are analyzed in parallel, but the findings are written in the
+	 * order a depth first walk of the tree would find them. Then the FATs are
+	 * checked against each other and against the directory tree.
+	 * (Task 6, 7, 8, & 9 for the whole volume, Task 12)
+	 *
+	 * @param cache - the analysis cache to replay unchanged directories from and
+	 *                record this run in, or null
+	 * @param sink - where to write every problem found and repair made
+	 */
+	@SuppressWarnings("try")
+	public void analyzeVolume(AnalysisCache cache, FindingSink sink) throws IOException {
+		try(Metrics.Phase phase = metrics.start("FAT load")) {
+			this.loadFAT();
+		}
+		FindingSink counted = findings -> {
+			metrics.repairs(findings);
+			sink.write(findings);
+		};
+		ClusterBitmap firstClusters = new ClusterBitmap(fat.size());
+		try(Metrics.Phase phase = metrics.start("directory walk");
+				ReadScheduler scheduler = prefetchSize > 0 ? new ReadScheduler(this, prefetchSize) : null) {
+			DirectoryWalker.walk(this, firstClusters, cache, scheduler, counted);
+		}
+		try(Metrics.Phase phase = metrics.start("FAT check")) {
+			counted.write(cache == null ? FatChecker.check(this, firstClusters) : cache.checkFAT(firstClusters));
+		}
+	}
+
+	/**
+	 * Helper method to analyze every entry of one directory by following its
+	 * cluster chain.
+	 *
+	 * @param firstCluster - the first cluster of the directory
+	 * @param isRoot - whether this is the root directory (which has no dot entries)
+	 * @param chain - a chain cursor to walk the directory's clusters with
+	 * @param names - a decoder to reassemble the long names of the directory's entries with
+	 * @param findings - the list to add every problem found to
+	 * @param subdirectories - if not null, the first cluster of every subdirectory
+	 *                         found is added to this list, in entry order
+	 * @param marks - if not null, the first cluster of every live entry is noted in
+	 *                it, for the walker to settle which entries share one
+	 * @param record - if not null, the directory's clusters are recorded in it for
+	 *                 the analysis cache
+	 */
+	public void analyzeDirectory(int firstCluster, boolean isRoot, FatTable.Chain chain, LongNameDecoder names, List<Finding> findings, List<Integer> subdirectories, DirectoryWalker.Marks marks, AnalysisCache.Directory record) {
+		int bytesPerCluster = bytesPerSector * sectorsPerCluster;
 		//Boolean loop control variable
 		boolean done = false;
+		//In recovery mode, the deleted long name entries right before the current entry
+		long[] deletedLFNs = recoveryDirectory != null ? new long[LongNameDecoder.MAX_ENTRIES] : null;
+		int deletedLFNCount = 0;
+		names.reset();
+		//Counted once per directory, not per entry
+		int entryCount = 0;
+		int clusterCount = 0;
+
+		//While we haven't reached the end of the directory (indicated by entries
+		//of 0's), the end of its cluster chain, or run off the end of the image
+		chain.start(firstCluster);
+		for(int cluster = chain.next(); cluster != -1 && done == false; cluster = chain.next()) {
+			long clusterStart = this.clusterOffset(cluster);
+			long clusterEnd = clusterStart + bytesPerCluster;
+			if(clusterEnd > image.size())
+				return;
+			//The entry after the last one in this cluster is at the start of the next cluster in the chain
+			int nextCluster = fat.next(cluster);
+			long nextClusterStart = fat.isDataCluster(nextCluster) ? this.clusterOffset(nextCluster) : -1;
+			clusterCount++;
+			if(record != null)
+				record.cluster(cluster);
+			for(long currentOffset = clusterStart; currentOffset < clusterEnd && done == false; currentOffset += 32) {
+				entryCount++;
+				long nextOffset = currentOffset + 32 < clusterEnd ? currentOffset + 32 : nextClusterStart;
+				byte firstByte = image.get(currentOffset);
+				byte entryAttribute = image.get(currentOffset + 11);
 
-		//While we haven't reached the end of the root directory (indicated by entries
-		//of 0's)
-		while(done == false) {
-			byte firstByte = fileContent[currentOffset];
-			byte entryAttribute = fileContent[currentOffset + numBytes];
-			byte entryReserved = fileContent[currentOffset+ 12];
-			byte[] shortName = new byte[11];
-			char[] shortNameString = new char[11];
-
-			//If the attribute field doesn't equal one of the allowed forms
-			if( (entryAttribute != 1) && 
-				(entryAttribute != 2) && 
-				(entryAttribute != 4) && 
-				(entryAttribute != 8) && 
-				(entryAttribute != 16) && 
-				(entryAttribute != 32) && 
-				(entryAttribute != 15) ) { 
-				//Iterate through the shortname and store the name in a byte array
-				int ji = 0;
-				for(int j = currentOffset;j< (currentOffset+ numBytes); j++){
-					shortName[ji] = fileContent[j];
-					int name = shortName[ji];
-					char Character = (char) name;
-					shortNameString[ji]= Character;
-					ji++;
+				//The . and .. entries of a subdirectory are legal even though their names
+				//use 0x2E and 0x20, so don't "repair" them
+				if(!isRoot && firstByte == 46 && (entryAttribute & 16) != 0) {
+					byte secondByte = image.get(currentOffset + 1);
+					if(secondByte == 32 || (secondByte == 46 && image.get(currentOffset + 2) == 32))
+						continue;
 				}
-				String str = new String(shortNameString);
-				System.out.println(str + " located at offset " + currentOffset + " has an invalid file attribute type.");
-				System.out.println("This repair cannot be done automatically.");
-			}
 
-			//Check to see if rootDirectory reserved bits are what they are supposed to be, if not change and annouce.
-			if(entryReserved != 0){
-				fileContent[currentOffset + 12] =0;
-				System.out.println("Repaired the directory entry's reserved byte at offset " + (currentOffset + 12) + ".");
-			}
+				//Long names are reassembled and checked before the entries are repaired,
+				//deleted (0xE5) or empty (0x00) entries end a run of LFN entries
+				boolean hasLongName = false;
+				if(firstByte == -27 || firstByte == 0)
+					names.end(findings);
+				else if(entryAttribute == 15)
+					names.entry(image, currentOffset, findings);
+				else
+					hasLongName = names.shortEntry(image, currentOffset, findings);
+				int entryFindings = findings.size();
 
-			
-			//Check to see if first byte contains 0xE5 (-27) or 0x20 (32)
-			if(firstByte == -27 || firstByte == 32) {
-				//If so, replace it with a legal character
-				fileContent[currentOffset] = legalByte;
-				System.out.println("Replaced an illegal character in a directory entry's file name at offset " + currentOffset + ".");
-			}
-			//Otherwise check to see if the first byte contains 0
-			else if(firstByte == 0) {
-				//If so, check the next byte and the byte after that
-				if(fileContent[currentOffset + 1] != 0 && fileContent[currentOffset + 2] != 0) {
-					//If they aren't 0 also, change firstByte to non-zero
-					fileContent[currentOffset] = legalByte;
-					System.out.println("Replaced an illegal character in a directory entry's file name at offset " + currentOffset + ".");
+				//Note subdirectories and first clusters before the entry is repaired,
+				//deleted (0xE5) or empty (0x00) entries don't point at live clusters
+				if(entryAttribute != 15 && firstByte != -27 && firstByte != 0) {
+					int entryCluster = (image.getShortLE(currentOffset + 20) << 16) | image.getShortLE(currentOffset + 26);
+					boolean isDirectory = (entryAttribute & 16) != 0;
+					if(subdirectories != null && isDirectory && fat.isDataCluster(entryCluster))
+						subdirectories.add(entryCluster);
+					//Which entry shares a first cluster with an earlier one is settled by the
+					//walker in depth first order, once every directory has been analyzed
+					if(marks != null && fat.isDataCluster(entryCluster))
+						marks.add(entryCluster, currentOffset, isDirectory, findings.size());
 				}
-				//If they are 0,
-				else {
-					//Check the next entry for 0's also
-					if(fileContent[currentOffset + 32] == 0 && fileContent[currentOffset + 33] == 0) {
-						//If they are 0's also, we've reached the end of the directory
-						done = true;
+
+				//In recovery mode deleted entries are evidence, not illegal names
+				if(deletedLFNs != null && firstByte == -27) {
+					if(entryAttribute == 15) {
+						if(deletedLFNCount == deletedLFNs.length)
+							deletedLFNCount = 0;
+						deletedLFNs[deletedLFNCount++] = currentOffset;
+						continue;
 					}
+					Finding deleted = Recovery.deletedEntry(this, currentOffset, isRoot ? 0 : firstCluster, deletedLFNs, deletedLFNCount);
+					if(deleted != null)
+						findings.add(deleted);
+					deletedLFNCount = 0;
+					continue;
+				}
+				deletedLFNCount = 0;
+
+				done = this.analyzeEntry(currentOffset, nextOffset, findings);
+
+				//Name the entry's findings by its long name as well, only made into a String if there are any
+				if(hasLongName && findings.size() > entryFindings) {
+					String longName = names.name();
+					for(int i = entryFindings; i < findings.size(); i++)
+						findings.set(i, findings.get(i).withLongName(longName));
 				}
 			}
+		}
+		//A run of LFN entries at the end of the chain has no short entry
+		names.end(findings);
+		metrics.read((long) clusterCount * bytesPerCluster);
+		metrics.entries(entryCount);
 
-			//Iterate through the file name and check for any illegal characters
-			for(int i = currentOffset; i < currentOffset + numBytes; i++) {
-				byte thisByte = fileContent[i];
-				byte longNameReservedBitOne = fileContent[currentOffset+26];
-				byte longNameReservedBitTwo = fileContent[currentOffset+27];
+		//A chain that is broken before its end marker means the FAT is damaged
+		int directory = isRoot ? 0 : firstCluster;
+		if(done == false && chain.stopReason() == FatTable.Chain.LOOP)
+			findings.add(Finding.chainLoop(directory, chain.stopValue()));
+		else if(done == false && chain.stopReason() != FatTable.Chain.END)
+			findings.add(Finding.chainBroken(directory, chain.stopValue(), chain.length()));
+	}
 
-				//Check to see if we are in a long name entry, if so, break and increment 32 so we iterate through next line for the same.
-				if(entryAttribute == 15){
-					//Check to see if long name entry specific reserved bits are what they are supposed to be, if not change and announce.
-					if((longNameReservedBitOne != 0) || (longNameReservedBitTwo != 0)){
-						fileContent[currentOffset +26] = 0;
-						fileContent[currentOffset +27] = 0;
-						System.out.println("LDIR_FstClusLO reserved slot is invalid, changed to 00 at offset" +(currentOffset+26) +" and "+(currentOffset+27));
-					}
+	/**
+	 * Helper method to analyze a single 32 byte directory entry, searching for and
+	 * repairing illegal characters, invalid attributes and overwritten reserved bytes.
+	 * Uses the table driven EntryValidator kernel unless the legacy checks were asked for.
+	 *
+	 * @param currentOffset - the absolute offset of the directory entry
+	 * @param nextOffset - the absolute offset of the entry that follows it in the
+	 *                     directory, or -1 if it is the last one
+	 * @param findings - the list to add every problem found to
+	 * @return true if this entry marks the end of the directory, false otherwise
+	 */
+	public boolean analyzeEntry(long currentOffset, long nextOffset, List<Finding> findings) {
+		if(legacyValidator)
+			return this.analyzeEntryLegacy(currentOffset, nextOffset, findings);
+		return EntryValidator.validate(image, currentOffset, nextOffset, findings);
+	}
 
-					break;
-				}
+	/**
+	 * Helper method to analyze a single 32 byte directory entry with the original
+	 * branch chains. Kept as the reference EntryValidator has to agree with.
+	 *
+	 * @param currentOffset - the absolute offset of the directory entry
+	 * @param nextOffset - the absolute offset of the entry that follows it in the
+	 *                     directory, or -1 if it is the last one
+	 * @param findings - the list to add every problem found to
+	 * @return true if this entry marks the end of the directory, false otherwise
+	 */
+	public boolean analyzeEntryLegacy(long currentOffset, long nextOffset, List<Finding> findings) {
+		//The number of bytes in the file name field of the directory entry
+		int numBytes = 11;
+		//Store a legal byte to replace illegal characters with
+		byte legalByte = 48;
+		//Whether this entry ends the directory
+		boolean done = false;
+
+		byte firstByte = image.get(currentOffset);
+		byte entryAttribute = image.get(currentOffset + numBytes);
+		byte entryReserved = image.get(currentOffset+ 12);
+		byte[] shortName = new byte[11];
+		char[] shortNameString = new char[11];
+		//The name as it was found, before any of it is repaired (long name entries have none)
+		String entryName = entryAttribute == 15 ? null : Finding.entryName(image, currentOffset);
+
+		//If the attribute field doesn't equal one of the allowed forms
+		if( (entryAttribute != 1) && 
+			(entryAttribute != 2) && 
+			(entryAttribute != 4) && 
+			(entryAttribute != 8) && 
+			(entryAttribute != 16) && 
+			(entryAttribute != 32) && 
+			(entryAttribute != 15) ) { 
+			//Iterate through the shortname and store the name in a byte array
+			int ji = 0;
+			for(long j = currentOffset;j< (currentOffset+ numBytes); j++){
+				shortName[ji] = image.get(j);
+				int name = shortName[ji];
+				char Character = (char) (name & 0xFF);
+				shortNameString[ji]= Character;
+				ji++;
+			}
+			String str = new String(shortNameString);
+			findings.add(Finding.invalidAttribute(currentOffset, entryAttribute, str));
+		}
+
+		//Check to see if rootDirectory reserved bits are what they are supposed to be, if not change and annouce.
+		if(entryReserved != 0){
+			image.put(currentOffset + 12, (byte) 0);
+			findings.add(Finding.reservedByte(currentOffset + 12, entryReserved, entryName));
+		}
 
-				//If this byte is equal to any of the illegal characters, replace it
-				// Check to see if file name contains any character less than(0-4 U 6-25) 0x20 (32) except 0x05
-				// lower case characters 0x61-0x7A = 97-122
-				//0x22 = 34, 0x2A=42-0x2F=47, 0x58=3A-0x3f=63, 0x5B=91-0x5D=93, 0x7c =124
-				if( ((thisByte >= 0) && (thisByte <= 4)) || 
-					((thisByte >=6 ) && (thisByte <= 25)) || 
-					(thisByte == 32) || 
-					(thisByte == 34) ||  
-					((thisByte >= 42) && (thisByte <= 44)) ||
-					(thisByte == 46) ||
-					(thisByte == 47) ||
-					((thisByte >= 58) && (thisByte <= 63)) || 
-					((thisByte >= 91) && (thisByte <= 93)) || 
-					((thisByte >= 97) && (thisByte <= 122)) ||
-					(thisByte == 124) ) {
-					//If so, replace it with a legal character
-					fileContent[i] = legalByte;
-					System.out.println("Replaced an illegal character in a directory entry's file name at offset "+ i + ".");
+		
+		//Check to see if first byte contains 0xE5 (-27) or 0x20 (32)
+		if(firstByte == -27 || firstByte == 32) {
+			//If so, replace it with a legal character
+			image.put(currentOffset, legalByte);
+			findings.add(Finding.illegalCharacter(currentOffset, firstByte, legalByte, entryName));
+		}
+		//Otherwise check to see if the first byte contains 0
+		else if(firstByte == 0) {
+			//If so, check the next byte and the byte after that
+			if(image.get(currentOffset + 1) != 0 && image.get(currentOffset + 2) != 0) {
+				//If they aren't 0 also, change firstByte to non-zero
+				image.put(currentOffset, legalByte);
+				findings.add(Finding.illegalCharacter(currentOffset, firstByte, legalByte, entryName));
+			}
+			//If they are 0,
+			else {
+				//Check the next entry for 0's also
+				if(this.isEndOfDirectory(nextOffset)) {
+					//If they are 0's also, we've reached the end of the directory
+					done = true;
 				}
-				else {
-					if(fileContent[currentOffset + 32] == 0 && fileContent[currentOffset + 33] == 0) {
-						done = true;
-					}
+			}
+		}
+
+		//Iterate through the file name and check for any illegal characters
+		for(long i = currentOffset; i < currentOffset + numBytes; i++) {
+			byte thisByte = image.get(i);
+			byte longNameReservedBitOne = image.get(currentOffset+26);
+			byte longNameReservedBitTwo = image.get(currentOffset+27);
+
+			//Check to see if we are in a long name entry, if so, break and increment 32 so we iterate through next line for the same.
+			if(entryAttribute == 15){
+				//Check to see if long name entry specific reserved bits are what they are supposed to be, if not change and announce.
+				if((longNameReservedBitOne != 0) || (longNameReservedBitTwo != 0)){
+					image.put(currentOffset + 26, (byte) 0);
+					image.put(currentOffset + 27, (byte) 0);
+					findings.add(Finding.lfnReservedBytes(currentOffset + 26, (longNameReservedBitOne & 0xFF) | (longNameReservedBitTwo & 0xFF) << 8));
 				}
 
+				break;
 			}
-		
-			//Increment currentOffset to the offset of the next directory entry
-			currentOffset += 32;
+
+			//If this byte is equal to any of the illegal characters, replace it
+			// Check to see if file name contains any character less than(0-4 U 6-25) 0x20 (32) except 0x05
+			// lower case characters 0x61-0x7A = 97-122
+			//0x22 = 34, 0x2A=42-0x2F=47, 0x58=3A-0x3f=63, 0x5B=91-0x5D=93, 0x7c =124
+			if( ((thisByte >= 0) && (thisByte <= 4)) || 
+				((thisByte >=6 ) && (thisByte <= 25)) || 
+				(thisByte == 32) || 
+				(thisByte == 34) ||  
+				((thisByte >= 42) && (thisByte <= 44)) ||
+				(thisByte == 46) ||
+				(thisByte == 47) ||
+				((thisByte >= 58) && (thisByte <= 63)) || 
+				((thisByte >= 91) && (thisByte <= 93)) || 
+				((thisByte >= 97) && (thisByte <= 122)) ||
+				(thisByte == 124) ) {
+				//If so, replace it with a legal character
+				image.put(i, legalByte);
+				findings.add(Finding.illegalCharacter(i, thisByte, legalByte, entryName));
+			}
+			else {
+				if(this.isEndOfDirectory(nextOffset)) {
+					done = true;
+				}
+			}
+
 		}
+
+		return done;
+	}
+
+	/**
+	 * Helper method to check whether the next directory entry is an end marker
+	 * (its first two bytes are 0), or there is no next entry at all.
+	 *
+	 * @param nextOffset - the absolute offset of the next entry, or -1 if there isn't one
+	 * @return true if the directory ends before the next entry
+	 */
+	public boolean isEndOfDirectory(long nextOffset) {
+		return EntryValidator.isEndOfDirectory(image, nextOffset);
+	}
+
+	/**
+	 * Helper method to load FAT #1 into memory, once
+	 */
+	public void loadFAT() {
+		if(fat != null)
+			return;
+		long entryCount = this.getClusterCount() + 2;
+		//Never read past the end of the image
+		entryCount = Math.min(entryCount, (image.size() - (long) reservedSectorCount * bytesPerSector) / 4);
+		fat = FatTable.load(image, (long) reservedSectorCount * bytesPerSector, (int) Math.max(entryCount, 0));
+		metrics.read((long) fat.size() * 4);
+	}
+
+	/**
+	 * Helper method to find the offset of a data cluster
+	 *
+	 * @param cluster - the cluster number (2 is the first data cluster)
+	 * @return the absolute offset the cluster starts at
+	 */
+	public long clusterOffset(int cluster) {
+		//Determine the number of sectors before the data region by calculating the number
+		//of sectors taken up by the FATs and adding the reserved sectors
+		long firstDataSector = (long) numFATs * sizeOfFAT + reservedSectorCount;
+		return (firstDataSector + (long) (cluster - 2) * sectorsPerCluster) * bytesPerSector;
+	}
+
+	/**
+	 * Method to choose between the table driven entry checks (the default) and the
+	 * original branch chains. Both find and repair exactly the same things.
+	 *
+	 * @param legacyValidator - true to use the original checks
+	 */
+	public void setLegacyValidator(boolean legacyValidator) {
+		this.legacyValidator = legacyValidator;
+	}
+
+	/**
+	 * Method to hash the input (while it is analyzed) and the output (while it is
+	 * written) with MD5 and SHA-256. The digests are printed and written next to
+	 * the output as <output>.hashes.
+	 *
+	 * @param input - the input image file, as named in the list of hashes, or null
+	 *                not to hash
+	 * @param pieceSize - the size of the pieces to hash separately and list in
+	 *                    <output>.input.pieces.csv and <output>.output.pieces.csv,
+	 *                    or 0 for no lists
+	 */
+	public void setHashing(File input, long pieceSize) {
+		this.hashedInput = input;
+		this.hashPieceSize = pieceSize;
+	}
+
+	/**
+	 * Method to turn on recovery mode: deleted entries are listed and kept as they
+	 * were found, and deleted and carved files are written out
+	 *
+	 * @param recoveryDirectory - the directory to write recovered files to, or null
+	 *                            to treat deleted entries as illegal like before
+	 */
+	public void setRecoveryDirectory(File recoveryDirectory) {
+		this.recoveryDirectory = recoveryDirectory;
+	}
+
+	/**
+	 * Method to ask for a summary of the time and throughput of every phase at the
+	 * end of run()
+	 *
+	 * @param metricsOutput - "text" or "json" to print it, a path to write it to as
+	 *                        JSON, or null for no summary
+	 */
+	public void setMetricsOutput(String metricsOutput) {
+		this.metricsOutput = metricsOutput;
+	}
+
+	/**
+	 * Method to keep an analysis cache, replaying the directories that didn't change
+	 * since the last run from it and writing this run to it
+	 *
+	 * @param cacheFile - the cache, which doesn't have to exist yet
+	 */
+	public void setCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Method to read the clusters of the directories the walk is about to visit
+	 * ahead of it, in offset order and coalesced into long reads
+	 *
+	 * @param prefetchSize - how many bytes of directory clusters to keep track of,
+	 *                       half of which may be read ahead, or 0 for no read-ahead
+	 */
+	public void setPrefetch(long prefetchSize) {
+		this.prefetchSize = prefetchSize;
+	}
+
+	/**
+	 * Method to export the live files of the image before it is repaired, with
+	 * their directory tree
+	 *
+	 * @param exportDirectory - the directory to export to
+	 * @param exportGlob - a glob full paths must match, or null for every file
+	 * @param exportSelection - the absolute offsets of the entries to export, or
+	 *                          null for every entry
+	 * @param exportThreads - the number of workers writing files
+	 */
+	public void setExport(File exportDirectory, String exportGlob, Set<Long> exportSelection, int exportThreads) {
+		this.exportDirectory = exportDirectory;
+		this.exportGlob = exportGlob;
+		this.exportSelection = exportSelection;
+		this.exportThreads = exportThreads;
+	}
+
+	/**
+	 * Method to ask for an index of every live and deleted entry, taken before
+	 * anything is repaired, for --query to look entries up in later
+	 *
+	 * @param indexFile - the file to write the index to
+	 */
+	public void setIndex(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Method to ask for a MAC time timeline of every live and deleted entry, taken
+	 * before anything is repaired
+	 *
+	 * @param timelineFile - the timeline, .csv for one row per point in time,
+	 *                       otherwise a body file
+	 * @param memoryBudget - about how many bytes of heap sorting it may take
+	 */
+	public void setTimeline(File timelineFile, long memoryBudget) {
+		this.timelineFile = timelineFile;
+		this.timelineMemory = memoryBudget;
+	}
+
+	/**
+	 * @return the timing and counters of this analyzer's run so far
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the image this analyzer works on
+	 */
+	public ImageSource getImageSource() {
+		return image;
+	}
+
+	/**
+	 * @return FAT #1 of the volume, or null if it hasn't been loaded yet
+	 */
+	public FatTable getFAT() {
+		return fat;
+	}
+
+	/**
+	 * @return the bytes per sector parsed from the BPB
+	 */
+	public int getBytesPerSector() {
+		return bytesPerSector;
+	}
+
+	/**
+	 * @return the sectors per cluster parsed from the BPB
+	 */
+	public int getSectorsPerCluster() {
+		return sectorsPerCluster;
+	}
+
+	/**
+	 * @return the number of reserved sectors parsed from the BPB
+	 */
+	public int getReservedSectorCount() {
+		return reservedSectorCount;
+	}
+
+	/**
+	 * @return the number of FATs parsed from the BPB
+	 */
+	public int getNumFATs() {
+		return numFATs;
+	}
+
+	/**
+	 * @return the size of each FAT in sectors parsed from the BPB
+	 */
+	public int getSizeOfFAT() {
+		return sizeOfFAT;
+	}
+
+	/**
+	 * @return the first cluster of the root directory parsed from the BPB
+	 */
+	public int getRootCluster() {
+		return rootCluster;
+	}
+
+	/**
+	 * @return the total number of sectors parsed from the BPB
+	 */
+	public int getTotalSectors() {
+		return totalSectors;
+	}
+
+	/**
+	 * @return the number of clusters in the data region according to the BPB, capped
+	 *         by what the FAT can describe. The loaded FAT holds fewer when the
+	 *         image is cut short.
+	 */
+	public long getClusterCount() {
+		long firstDataSector = (long) numFATs * sizeOfFAT + reservedSectorCount;
+		long clusterCount = (Integer.toUnsignedLong(totalSectors) - firstDataSector) / sectorsPerCluster;
+		return Math.max(0, Math.min(clusterCount, (long) sizeOfFAT * bytesPerSector / 4 - 2));
 	}
-}
\ No newline at end of file
+}
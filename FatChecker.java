@@ -0,0 +1,447 @@
+/**
+ * Whole-volume checks of the file allocation table, run after the directory
+ * tree has been walked.
+ *
+ * Passes:
+ *		1. Every FAT copy is compared with FAT #1, a sector at a time, in parallel.
+ *		   Ranges of sectors that differ are reported, not repaired: which copy is
+ *		   right is for the examiner to decide.
+ *		2. Every FAT entry is scanned in parallel. Free entries are counted, entries
+ *		   that are neither a cluster nor an end of chain marker (or that link to a
+ *		   free cluster) are reported, and the cluster each entry links to is marked
+ *		   in a bitmap. A cluster marked twice is cross-linked.
+ *		3. Clusters that are allocated but that no entry links to start chains.
+ *		   Those that are also the first cluster of a directory entry are fine; the
+ *		   rest are the heads of lost chains. First clusters that some other
+ *		   cluster links to sit inside another chain.
+ *		4. Every chain starting at an entry's first cluster is followed to mark the
+ *		   reachable clusters, then the lost chains are followed and measured.
+ *		   Allocated clusters still unreached after that can only be loops with no
+ *		   way in, and are reported as lost chains of their own.
+ *		5. FSInfo's free cluster count and next free cluster hint are checked
+ *		   against the FAT. 0xFFFFFFFF ("unknown") is left alone. Only values
+ *		   that can't be right are corrected: a free count larger than the number
+ *		   of clusters the BPB describes, or a hint outside 2..count+1. A free
+ *		   count in range that differs from the FAT is reported, not rewritten.
+ *		   When the image ends before the FAT does, the FAT can't say how many
+ *		   clusters are free, and FSInfo is left alone.
+ *
+ * Only pass 1 reads the image. Passes 2 to 4 don't stream the FAT sectors, they
+ * run over FAT #1 as FatTable already holds it in memory, and read its entries
+ * several times: pass 3 can't tell a chain head from the rest until pass 2 has
+ * marked every link target, and pass 4 follows chains wherever they lead. Apart
+ * from that table, the checks use three bitmaps, so about 3 bits per cluster.
+ * Results are merged in cluster order, so the findings are the same from run to
+ * run whatever the number of threads.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+public class FatChecker {
+
+	//Number of clusters checked directly by one task
+	private static final int CLUSTER_CHUNK = 1 << 16;
+	//Number of sectors compared directly by one task
+	private static final int SECTOR_CHUNK = 1 << 12;
+
+	//FSInfo layout
+	private static final int FSI_LEAD_SIG = 0x41615252;
+	private static final int FSI_STRUC_SIG = 0x61417272;
+	private static final int FSI_STRUC_SIG_OFFSET = 484;
+	private static final int FSI_FREE_COUNT_OFFSET = 488;
+	private static final int FSI_NXT_FREE_OFFSET = 492;
+	private static final int FSI_UNKNOWN = 0xFFFFFFFF;
+
+	private final FAT32Analyzer analyzer;
+	private final ImageSource image;
+	private final FatTable fat;
+	private final ClusterBitmap firstClusters;
+	//Clusters some FAT entry links to
+	private final ClusterBitmap referenced;
+	//Clusters more than one FAT entry links to
+	private final ClusterBitmap multiplyReferenced;
+	//Clusters reached by following chains
+	private final ClusterBitmap reached;
+
+	/**
+	 * Constructor for a checker of one volume
+	 */
+	private FatChecker(FAT32Analyzer analyzer, ClusterBitmap firstClusters) {
+		this.analyzer = analyzer;
+		this.image = analyzer.getImageSource();
+		this.fat = analyzer.getFAT();
+		this.firstClusters = firstClusters;
+		this.referenced = new ClusterBitmap(fat.size());
+		this.multiplyReferenced = new ClusterBitmap(fat.size());
+		this.reached = new ClusterBitmap(fat.size());
+	}
+
+	/**
+	 * Method to check the FAT of a volume whose directory tree has been walked
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded
+	 * @param firstClusters - the first clusters of every live directory entry (and the root)
+	 * @return the findings, in pass order
+	 */
+	public static List<Finding> check(FAT32Analyzer analyzer, ClusterBitmap firstClusters) {
+		return new FatChecker(analyzer, firstClusters).check();
+	}
+
+	/**
+	 * Helper method to run every pass
+	 */
+	private List<Finding> check() {
+		List<Finding> findings = new ArrayList<>();
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+
+		//Pass 1: FAT copies
+		for(int copy = 2; copy <= analyzer.getNumFATs(); copy++)
+			this.compareCopy(copy, findings);
+
+		//Pass 2: link targets, free clusters and bad entries
+		Scan scan = pool.invoke(new Scan(2, fat.size(), false));
+		findings.addAll(scan.findings);
+
+		//Pass 3: cross-links and chain heads
+		Scan heads = pool.invoke(new Scan(2, fat.size(), true));
+		findings.addAll(heads.findings);
+
+		//Pass 4: reachability, first from every entry, then from the lost heads
+		pool.invoke(new Reach(2, fat.size()));
+		for(int i = 0; i < heads.lostHeads.size(); i++) {
+			int head = heads.lostHeads.get(i);
+			findings.add(Finding.lostChain(head, this.follow(head)));
+		}
+		for(int cluster = 2; cluster < fat.size(); cluster++) {
+			if(this.isAllocated(cluster) && !reached.get(cluster))
+				findings.add(Finding.lostChain(cluster, this.follow(cluster)));
+		}
+
+		//Pass 5: FSInfo
+		this.checkFSInfo(scan.freeCount, scan.firstFree, findings);
+		return findings;
+	}
+
+	/**
+	 * Helper method to check whether a cluster's entry marks it as in use
+	 */
+	private boolean isAllocated(int cluster) {
+		int entry = fat.next(cluster);
+		return entry != FatTable.FREE_CLUSTER && entry != FatTable.BAD_CLUSTER;
+	}
+
+	/**
+	 * Helper method to follow a chain, marking its clusters as reached, until it
+	 * leaves the allocated data clusters or meets a cluster that has been reached
+	 * before
+	 *
+	 * @return the number of clusters newly reached
+	 */
+	private int follow(int cluster) {
+		int count = 0;
+		while(fat.isDataCluster(cluster) && this.isAllocated(cluster) && reached.set(cluster)) {
+			count++;
+			cluster = fat.next(cluster);
+		}
+		return count;
+	}
+
+	/**
+	 * Helper method to compare one FAT copy with FAT #1 and report the ranges of
+	 * sectors that differ
+	 */
+	private void compareCopy(int copy, List<Finding> findings) {
+		int bytesPerSector = analyzer.getBytesPerSector();
+		long firstFAT = (long) analyzer.getReservedSectorCount() * bytesPerSector;
+		long thisFAT = firstFAT + (long) (copy - 1) * analyzer.getSizeOfFAT() * bytesPerSector;
+		//Only compare sectors of both copies that are inside the image
+		long sectors = Math.min(analyzer.getSizeOfFAT(), (image.size() - thisFAT) / bytesPerSector);
+		if(sectors <= 0)
+			return;
+		List<long[]> ranges = ForkJoinPool.commonPool().invoke(new Compare(firstFAT, thisFAT, bytesPerSector, 0, sectors));
+		analyzer.getMetrics().read(2 * sectors * bytesPerSector);
+		for(long[] range : ranges) {
+			long offset = thisFAT + range[0] * bytesPerSector;
+			int cluster = (int) Math.min(range[0] * bytesPerSector / 4, Integer.MAX_VALUE);
+			findings.add(Finding.fatMismatch(copy, offset, cluster, (int) range[1]));
+		}
+	}
+
+	/**
+	 * Helper method to check FSInfo against the FAT and correct the values that
+	 * are out of range. Only the FSInfo sector the BPB points at is checked.
+	 *
+	 * @param freeCount - the number of free clusters counted in the FAT
+	 * @param firstFree - the lowest free cluster, or -1 if there is none
+	 */
+	private void checkFSInfo(long freeCount, int firstFree, List<Finding> findings) {
+		int fsInfoSector = image.getShortLE(48);
+		if(fsInfoSector == 0 || fsInfoSector == 0xFFFF)
+			return;
+		long offset = (long) fsInfoSector * analyzer.getBytesPerSector();
+		if(offset + 512 > image.size())
+			return;
+		if(image.getIntLE(offset) != FSI_LEAD_SIG || image.getIntLE(offset + FSI_STRUC_SIG_OFFSET) != FSI_STRUC_SIG) {
+			findings.add(Finding.fsInfoInvalid(offset));
+			return;
+		}
+		//An image cut short holds only part of the FAT, whose free clusters say nothing about the volume's
+		long clusterCount = analyzer.getClusterCount();
+		if(fat.size() - 2L < clusterCount)
+			return;
+
+		//A count no larger than the number of clusters may just be stale, so it is only reported
+		int oldFreeCount = image.getIntLE(offset + FSI_FREE_COUNT_OFFSET);
+		if(oldFreeCount != FSI_UNKNOWN) {
+			if(Integer.toUnsignedLong(oldFreeCount) > clusterCount) {
+				int newFreeCount = (int) freeCount;
+				this.putIntLE(offset + FSI_FREE_COUNT_OFFSET, newFreeCount);
+				findings.add(Finding.fsInfoFreeCount(offset + FSI_FREE_COUNT_OFFSET, oldFreeCount, newFreeCount));
+			}
+			else if(oldFreeCount != freeCount)
+				findings.add(Finding.fsInfoFreeCountMismatch(offset + FSI_FREE_COUNT_OFFSET, oldFreeCount, (int) freeCount));
+		}
+
+		//The hint may name any cluster, it only has to be one
+		int oldNextFree = image.getIntLE(offset + FSI_NXT_FREE_OFFSET);
+		long hint = Integer.toUnsignedLong(oldNextFree);
+		if(oldNextFree != FSI_UNKNOWN && (hint < 2 || hint > clusterCount + 1)) {
+			int newNextFree = firstFree < 0 ? FSI_UNKNOWN : firstFree;
+			this.putIntLE(offset + FSI_NXT_FREE_OFFSET, newNextFree);
+			findings.add(Finding.fsInfoNextFree(offset + FSI_NXT_FREE_OFFSET, oldNextFree, newNextFree));
+		}
+	}
+
+	/**
+	 * Helper method to write a little endian int into the image
+	 */
+	private void putIntLE(long offset, int value) {
+		for(int i = 0; i < 4; i++)
+			image.put(offset + i, (byte) (value >>> (i * 8)));
+	}
+
+	/**
+	 * Fork-join task that compares a range of sectors of a FAT copy with the same
+	 * sectors of FAT #1, eight bytes at a time. Each task returns the ranges that
+	 * differ as {first sector, number of sectors}, in order, and ranges that meet
+	 * at the split are joined back together.
+	 */
+	private class Compare extends RecursiveTask<List<long[]>> {
+		private static final long serialVersionUID = 1L;
+		private final long firstFAT;
+		private final long thisFAT;
+		private final int bytesPerSector;
+		private final long firstSector;
+		private final long endSector;
+
+		Compare(long firstFAT, long thisFAT, int bytesPerSector, long firstSector, long endSector) {
+			this.firstFAT = firstFAT;
+			this.thisFAT = thisFAT;
+			this.bytesPerSector = bytesPerSector;
+			this.firstSector = firstSector;
+			this.endSector = endSector;
+		}
+
+		@Override
+		protected List<long[]> compute() {
+			if(endSector - firstSector > SECTOR_CHUNK) {
+				long middle = (firstSector + endSector) >>> 1;
+				Compare right = new Compare(firstFAT, thisFAT, bytesPerSector, middle, endSector);
+				right.fork();
+				List<long[]> ranges = new Compare(firstFAT, thisFAT, bytesPerSector, firstSector, middle).compute();
+				List<long[]> rightRanges = right.join();
+				if(!ranges.isEmpty() && !rightRanges.isEmpty()) {
+					long[] last = ranges.get(ranges.size() - 1);
+					long[] first = rightRanges.get(0);
+					if(last[0] + last[1] == first[0]) {
+						last[1] += first[1];
+						rightRanges = rightRanges.subList(1, rightRanges.size());
+					}
+				}
+				ranges.addAll(rightRanges);
+				return ranges;
+			}
+
+			List<long[]> ranges = new ArrayList<>();
+			long[] open = null;
+			for(long sector = firstSector; sector < endSector; sector++) {
+				if(this.sectorsMatch(sector)) {
+					open = null;
+				}
+				else if(open != null) {
+					open[1]++;
+				}
+				else {
+					open = new long[] {sector, 1};
+					ranges.add(open);
+				}
+			}
+			return ranges;
+		}
+
+		/**
+		 * Helper method to compare one sector of the two copies
+		 */
+		private boolean sectorsMatch(long sector) {
+			long first = firstFAT + sector * bytesPerSector;
+			long other = thisFAT + sector * bytesPerSector;
+			for(int i = 0; i < bytesPerSector; i += 8) {
+				if(image.getLongLE(first + i) != image.getLongLE(other + i))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Fork-join task over a range of clusters, for passes 2 and 3. Halves are
+	 * merged left to right, so the findings and lost heads stay in cluster order.
+	 */
+	private class Scan extends RecursiveTask<Scan> {
+		private static final long serialVersionUID = 1L;
+		private final int firstCluster;
+		private final int endCluster;
+		//false for pass 2 (entries), true for pass 3 (cross-links and heads)
+		private final boolean heads;
+		final List<Finding> findings = new ArrayList<>();
+		final IntList lostHeads = new IntList();
+		long freeCount;
+		int firstFree = -1;
+
+		Scan(int firstCluster, int endCluster, boolean heads) {
+			this.firstCluster = firstCluster;
+			this.endCluster = endCluster;
+			this.heads = heads;
+		}
+
+		@Override
+		protected Scan compute() {
+			if(endCluster - firstCluster > CLUSTER_CHUNK) {
+				int middle = (firstCluster + endCluster) >>> 1;
+				Scan right = new Scan(middle, endCluster, heads);
+				right.fork();
+				new Scan(firstCluster, middle, heads).compute().mergeInto(this);
+				right.join().mergeInto(this);
+				return this;
+			}
+			if(heads)
+				this.scanHeads();
+			else
+				this.scanEntries();
+			return this;
+		}
+
+		/**
+		 * Helper method to add this task's results after those already in another
+		 */
+		private void mergeInto(Scan total) {
+			total.findings.addAll(findings);
+			total.lostHeads.addAll(lostHeads);
+			total.freeCount += freeCount;
+			if(total.firstFree < 0)
+				total.firstFree = firstFree;
+		}
+
+		/**
+		 * Helper method for pass 2
+		 */
+		private void scanEntries() {
+			for(int cluster = firstCluster; cluster < endCluster; cluster++) {
+				int entry = fat.next(cluster);
+				if(entry == FatTable.FREE_CLUSTER) {
+					freeCount++;
+					if(firstFree < 0)
+						firstFree = cluster;
+				}
+				else if(fat.isDataCluster(entry)) {
+					if(!referenced.set(entry))
+						multiplyReferenced.set(entry);
+					if(fat.next(entry) == FatTable.FREE_CLUSTER)
+						findings.add(Finding.badEndOfChain(cluster, entry));
+				}
+				else if(entry != FatTable.BAD_CLUSTER && entry < FatTable.END_OF_CHAIN) {
+					findings.add(Finding.badEndOfChain(cluster, entry));
+				}
+			}
+		}
+
+		/**
+		 * Helper method for pass 3
+		 */
+		private void scanHeads() {
+			for(int cluster = firstCluster; cluster < endCluster; cluster++) {
+				if(multiplyReferenced.get(cluster))
+					findings.add(Finding.crossLinkedCluster(cluster));
+				if(!referenced.get(cluster)) {
+					if(!firstClusters.get(cluster) && FatChecker.this.isAllocated(cluster))
+						lostHeads.add(cluster);
+				}
+				else if(firstClusters.get(cluster)) {
+					findings.add(Finding.entryInsideChain(cluster));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fork-join task that follows the chain of every entry's first cluster in a
+	 * range. Chains that run into each other stop at the first cluster already
+	 * reached, so every cluster is followed once in all.
+	 */
+	private class Reach extends RecursiveTask<Void> {
+		private static final long serialVersionUID = 1L;
+		private final int firstCluster;
+		private final int endCluster;
+
+		Reach(int firstCluster, int endCluster) {
+			this.firstCluster = firstCluster;
+			this.endCluster = endCluster;
+		}
+
+		@Override
+		protected Void compute() {
+			if(endCluster - firstCluster > CLUSTER_CHUNK) {
+				int middle = (firstCluster + endCluster) >>> 1;
+				invokeAll(new Reach(firstCluster, middle), new Reach(middle, endCluster));
+				return null;
+			}
+			for(int cluster = firstCluster; cluster < endCluster; cluster++) {
+				if(firstClusters.get(cluster))
+					FatChecker.this.follow(cluster);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Growable list of ints, so lost heads aren't boxed one by one
+	 */
+	private static class IntList {
+		private int[] values = new int[16];
+		private int size;
+
+		void add(int value) {
+			if(size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		void addAll(IntList other) {
+			for(int i = 0; i < other.size; i++)
+				this.add(other.values[i]);
+		}
+
+		int get(int index) {
+			return values[index];
+		}
+
+		int size() {
+			return size;
+		}
+	}
+}
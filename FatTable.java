@@ -0,0 +1,217 @@
+/**
+ * In-memory copy of a FAT32 file allocation table.
+ *
+ * FAT #1 is loaded once into a primitive int[] (or, for very large volumes,
+ * an off-heap IntBuffer) so following a cluster chain never has to go back to
+ * the image. Lookups are O(1) and allocate nothing. Chains are walked with a
+ * reusable Chain cursor that detects loops with a bitset of visited clusters.
+ *
+ * FAT32 entry values (only the low 28 bits are used):
+ *		0x0000000				free cluster
+ *		0x0000002 - 0xFFFFFEF	next cluster in the chain
+ *		0xFFFFFF7				bad cluster
+ *		0xFFFFFF8 - 0xFFFFFFF	end of chain
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+
+public class FatTable {
+
+	//Only the low 28 bits of a FAT32 entry hold the cluster number
+	public static final int ENTRY_MASK = 0x0FFFFFFF;
+	public static final int FREE_CLUSTER = 0;
+	public static final int BAD_CLUSTER = 0x0FFFFFF7;
+	public static final int END_OF_CHAIN = 0x0FFFFFF8;
+
+	//FATs with more entries than this (64 MiB worth) are kept off the heap
+	private static final int OFF_HEAP_ENTRIES = 1 << 24;
+	//Number of bytes copied out of the image at a time while loading
+	private static final int LOAD_CHUNK = 1 << 20;
+
+	private final int[] entries;
+	private final IntBuffer offHeapEntries;
+	private final int entryCount;
+
+	/**
+	 * Constructor for a table that has already been loaded
+	 */
+	private FatTable(int[] entries, IntBuffer offHeapEntries, int entryCount) {
+		this.entries = entries;
+		this.offHeapEntries = offHeapEntries;
+		this.entryCount = entryCount;
+	}
+
+	/**
+	 * Method to load a FAT out of the image
+	 *
+	 * @param image - the image holding the FAT
+	 * @param fatOffset - the absolute offset the FAT starts at
+	 * @param entryCount - the number of entries to load (number of clusters + 2)
+	 * @return the loaded table
+	 */
+	public static FatTable load(ImageSource image, long fatOffset, int entryCount) {
+		int[] entries = null;
+		IntBuffer offHeapEntries = null;
+		if(entryCount > OFF_HEAP_ENTRIES)
+			offHeapEntries = ByteBuffer.allocateDirect(entryCount * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		else
+			entries = new int[entryCount];
+
+		//Copy the FAT a chunk at a time, masking every entry down to 28 bits
+		for(int first = 0; first < entryCount; first += LOAD_CHUNK / 4) {
+			int count = Math.min(LOAD_CHUNK / 4, entryCount - first);
+			IntBuffer chunk = image.slice(fatOffset + first * 4L, count * 4).asIntBuffer();
+			for(int i = 0; i < count; i++) {
+				int entry = chunk.get(i) & ENTRY_MASK;
+				if(entries != null)
+					entries[first + i] = entry;
+				else
+					offHeapEntries.put(first + i, entry);
+			}
+		}
+		return new FatTable(entries, offHeapEntries, entryCount);
+	}
+
+	/**
+	 * @return the number of entries in the table (number of clusters + 2)
+	 */
+	public int size() {
+		return entryCount;
+	}
+
+	/**
+	 * Method to look up a cluster's FAT entry
+	 *
+	 * @param cluster - the cluster number
+	 * @return the entry (next cluster, FREE_CLUSTER, BAD_CLUSTER or an end of chain
+	 *         value), or BAD_CLUSTER if the cluster isn't in the table
+	 */
+	public int next(int cluster) {
+		if(cluster < 0 || cluster >= entryCount)
+			return BAD_CLUSTER;
+		return entries != null ? entries[cluster] : offHeapEntries.get(cluster);
+	}
+
+	/**
+	 * Method to check whether a value names a cluster that can be part of a chain
+	 *
+	 * @param cluster - the value to check
+	 * @return true if the cluster is a data cluster inside this table
+	 */
+	public boolean isDataCluster(int cluster) {
+		return cluster >= 2 && cluster < entryCount;
+	}
+
+	/**
+	 * Method to make a new chain cursor. Each cursor owns a bitset with one bit per
+	 * cluster, so reuse it with Chain.start rather than making one per chain.
+	 *
+	 * @return a cursor that hasn't been started
+	 */
+	public Chain chain() {
+		return new Chain();
+	}
+
+	/**
+	 * Method to make a new chain cursor positioned at the start of a chain
+	 *
+	 * @param cluster - the first cluster of the chain
+	 * @return the started cursor
+	 */
+	public Chain chain(int cluster) {
+		return new Chain().start(cluster);
+	}
+
+	/**
+	 * Reusable cursor over a cluster chain. Call next() until it returns -1, then
+	 * stopReason() tells whether the chain ended properly or was broken.
+	 */
+	public class Chain {
+		//Reasons a chain stopped
+		public static final int RUNNING = 0;
+		public static final int END = 1;
+		public static final int FREE = 2;
+		public static final int BAD = 3;
+		public static final int OUT_OF_RANGE = 4;
+		public static final int LOOP = 5;
+
+		private final long[] visited = new long[(entryCount + 63) >>> 6];
+		private int first;
+		private int current;
+		private int length;
+		private int stopReason = END;
+
+		/**
+		 * Method to start (or restart) the cursor at the first cluster of a chain
+		 *
+		 * @param cluster - the first cluster of the chain
+		 * @return this cursor
+		 */
+		public Chain start(int cluster) {
+			//The FAT never changes, so walking the last chain again finds exactly
+			//the bits that were set and avoids clearing the whole bitset
+			int clear = first;
+			for(int i = 0; i < length; i++) {
+				visited[clear >>> 6] &= ~(1L << clear);
+				clear = FatTable.this.next(clear);
+			}
+			first = cluster;
+			current = cluster;
+			length = 0;
+			stopReason = RUNNING;
+			return this;
+		}
+
+		/**
+		 * Method to move to the next cluster of the chain
+		 *
+		 * @return the next cluster, or -1 once the chain has ended
+		 */
+		public int next() {
+			if(stopReason != RUNNING)
+				return -1;
+			int cluster = current;
+			if(cluster == FREE_CLUSTER)
+				stopReason = FREE;
+			else if(cluster == BAD_CLUSTER)
+				stopReason = BAD;
+			else if(cluster >= END_OF_CHAIN)
+				stopReason = END;
+			else if(!isDataCluster(cluster))
+				stopReason = OUT_OF_RANGE;
+			else if((visited[cluster >>> 6] & (1L << cluster)) != 0)
+				stopReason = LOOP;
+			if(stopReason != RUNNING)
+				return -1;
+
+			visited[cluster >>> 6] |= 1L << cluster;
+			length++;
+			current = FatTable.this.next(cluster);
+			return cluster;
+		}
+
+		/**
+		 * @return the number of clusters returned since the cursor was started
+		 */
+		public int length() {
+			return length;
+		}
+
+		/**
+		 * @return why the chain stopped (RUNNING if it hasn't yet)
+		 */
+		public int stopReason() {
+			return stopReason;
+		}
+
+		/**
+		 * @return the value the chain stopped at, e.g. the cluster that closed a loop
+		 */
+		public int stopValue() {
+			return current;
+		}
+	}
+}
@@ -0,0 +1,529 @@
+/**
+ * One problem found (and possibly repaired) on an image.
+ *
+ * Findings are small typed records made on the analysis threads without any
+ * string building. Their messages are only formatted when a FindingWriter
+ * writes them out, as the same text the analyzer has always printed.
+ *
+ * Every field that doesn't apply to a kind of finding is -1 (or null for the
+ * entry name).
+ *
+ * The partitions of a whole-disk image are analyzed through views of their own,
+ * so their findings are made with offsets into the partition and relocated to
+ * offsets into the disk once the partition is done.
+ *
+ * Findings can be written to and read back from the analysis cache, field by
+ * field, so a re-run can reuse those of the parts of an image that didn't change.
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+
+
+public final class Finding {
+
+	/**
+	 * Kinds of findings, with how each is described in a summary
+	 */
+	public enum Kind {
+		ILLEGAL_CHARACTER("illegal file name character(s) replaced"),
+		RESERVED_BYTE("directory entry reserved byte(s) repaired"),
+		LFN_RESERVED_BYTES("long name entry LDIR_FstClusLO slot(s) repaired"),
+		INVALID_ATTRIBUTE("invalid file attribute(s), not repaired"),
+		CHAIN_LOOP("directory cluster chain loop(s)"),
+		CHAIN_BROKEN("broken directory cluster chain(s)"),
+		CROSS_LINKED_DIRECTORY("directory(s) linked from more than one entry"),
+		SHARED_FIRST_CLUSTER("file(s) sharing a first cluster with another entry"),
+		FAT_MISMATCH("range(s) where the FAT copies differ"),
+		BAD_END_OF_CHAIN("bad end of chain marker(s)"),
+		CROSS_LINKED_CLUSTER("cross-linked cluster(s)"),
+		ENTRY_INSIDE_CHAIN("entry first cluster(s) inside another chain"),
+		LOST_CHAIN("lost cluster chain(s)"),
+		FSINFO_FREE_COUNT("FSInfo free cluster count(s) corrected"),
+		FSINFO_FREE_COUNT_MISMATCH("FSInfo free cluster count(s) that differ from the FAT, not corrected"),
+		FSINFO_NEXT_FREE("FSInfo next free hint(s) corrected"),
+		FSINFO_INVALID("damaged FSInfo sector(s)"),
+		ORPHANED_LFN("orphaned long name entry run(s)"),
+		LFN_CHECKSUM_MISMATCH("long name(s) whose checksum doesn't match their short entry"),
+		DELETED_ENTRY("deleted entry(s) listed"),
+		CARVED_FILE("file(s) carved from free clusters");
+
+		private final String summary;
+
+		Kind(String summary) {
+			this.summary = summary;
+		}
+
+		/**
+		 * @return how a number of findings of this kind is described, e.g. "3 " + summary()
+		 */
+		public String summary() {
+			return summary;
+		}
+	}
+
+	//What was found
+	public final Kind kind;
+	//Absolute offset of the first byte concerned
+	public final long offset;
+	//Value found and value it was repaired to (unsigned), -1 if it wasn't repaired
+	public final long oldValue;
+	public final long newValue;
+	//The 11 byte short name of the entry as it was found, null for long name entries.
+	//For a deleted entry its rebuilt name, for a carved file the file it was written to.
+	public final String entryName;
+	//First cluster of the directory concerned (chain and cross link findings),
+	//0 for the root directory as in a .. entry
+	public final int directory;
+	//Cluster the finding is about: where a chain loops back, the first cluster of
+	//a lost chain or of a FAT range that differs, a cross-linked cluster
+	public final int cluster;
+	//Number of clusters followed before a chain broke, clusters in a lost chain,
+	//sectors in a FAT range that differs, free clusters left of a deleted entry
+	//or clusters of a carved file
+	public final int count;
+	//Number of the FAT copy that differs from FAT #1
+	public final int fat;
+	//Size in bytes of a deleted entry or carved file
+	public final long size;
+	//Long name of the entry, reassembled from its LFN entries, null if it has none
+	public final String longName;
+	//Number of the partition of a whole-disk image the finding is in
+	public final int partition;
+
+	/**
+	 * Constructor for a finding, use the factory method of its kind
+	 */
+	private Finding(Kind kind, long offset, long oldValue, long newValue, String entryName, int directory, int cluster, int count, int fat, long size) {
+		this(kind, offset, oldValue, newValue, entryName, directory, cluster, count, fat, size, null, -1);
+	}
+
+	/**
+	 * Constructor for a finding with a long name or in a partition, use withLongName or relocate
+	 */
+	private Finding(Kind kind, long offset, long oldValue, long newValue, String entryName, int directory, int cluster, int count, int fat, long size, String longName, int partition) {
+		this.kind = kind;
+		this.offset = offset;
+		this.oldValue = oldValue;
+		this.newValue = newValue;
+		this.entryName = entryName;
+		this.directory = directory;
+		this.cluster = cluster;
+		this.count = count;
+		this.fat = fat;
+		this.size = size;
+		this.longName = longName;
+		this.partition = partition;
+	}
+
+	/**
+	 * Method to record an illegal file name byte that was replaced
+	 *
+	 * @param offset - the absolute offset of the byte
+	 * @param oldValue - the illegal byte
+	 * @param newValue - the byte it was replaced with
+	 * @param entryName - the entry's short name as it was found
+	 */
+	public static Finding illegalCharacter(long offset, byte oldValue, byte newValue, String entryName) {
+		return new Finding(Kind.ILLEGAL_CHARACTER, offset, oldValue & 0xFF, newValue & 0xFF, entryName, -1, -1, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record a short entry's reserved byte (DIR_NTRes) that was zeroed
+	 *
+	 * @param offset - the absolute offset of the reserved byte
+	 * @param oldValue - the byte found there
+	 * @param entryName - the entry's short name as it was found
+	 */
+	public static Finding reservedByte(long offset, byte oldValue, String entryName) {
+		return new Finding(Kind.RESERVED_BYTE, offset, oldValue & 0xFF, 0, entryName, -1, -1, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record a long name entry's LDIR_FstClusLO that was zeroed
+	 *
+	 * @param offset - the absolute offset of the 2 byte field
+	 * @param oldValue - the little endian value found there
+	 */
+	public static Finding lfnReservedBytes(long offset, int oldValue) {
+		return new Finding(Kind.LFN_RESERVED_BYTES, offset, oldValue, 0, null, -1, -1, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record an invalid attribute, which can't be repaired automatically
+	 *
+	 * @param offset - the absolute offset of the directory entry
+	 * @param attribute - the attribute byte
+	 * @param entryName - the entry's short name
+	 */
+	public static Finding invalidAttribute(long offset, byte attribute, String entryName) {
+		return new Finding(Kind.INVALID_ATTRIBUTE, offset, attribute & 0xFF, -1, entryName, -1, -1, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record a directory whose cluster chain loops
+	 *
+	 * @param directory - the directory's first cluster, 0 for the root
+	 * @param cluster - the cluster the chain loops back at
+	 */
+	public static Finding chainLoop(int directory, int cluster) {
+		return new Finding(Kind.CHAIN_LOOP, -1, -1, -1, null, directory, cluster, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record a directory whose cluster chain breaks before its end marker
+	 *
+	 * @param directory - the directory's first cluster, 0 for the root
+	 * @param fatEntry - the FAT entry that broke the chain
+	 * @param count - the number of clusters followed
+	 */
+	public static Finding chainBroken(int directory, int fatEntry, int count) {
+		return new Finding(Kind.CHAIN_BROKEN, -1, Integer.toUnsignedLong(fatEntry), -1, null, directory, -1, count, -1, -1);
+	}
+
+	/**
+	 * Method to record a directory that more than one entry points at
+	 *
+	 * @param directory - the directory's first cluster
+	 */
+	public static Finding crossLinkedDirectory(int directory) {
+		return new Finding(Kind.CROSS_LINKED_DIRECTORY, -1, -1, -1, null, directory, -1, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record a file whose first cluster is also the first cluster of an
+	 * entry found earlier
+	 *
+	 * @param cluster - the shared first cluster
+	 * @param offset - the absolute offset of the later directory entry
+	 */
+	public static Finding sharedFirstCluster(int cluster, long offset) {
+		return new Finding(Kind.SHARED_FIRST_CLUSTER, offset, -1, -1, null, -1, cluster, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record a range of sectors where a FAT copy differs from FAT #1
+	 *
+	 * @param fat - the number of the FAT copy, 2 or more
+	 * @param offset - the absolute offset of the first sector that differs, in that copy
+	 * @param cluster - the first cluster described by that sector
+	 * @param sectors - the number of sectors in the range
+	 */
+	public static Finding fatMismatch(int fat, long offset, int cluster, int sectors) {
+		return new Finding(Kind.FAT_MISMATCH, offset, -1, -1, null, -1, cluster, sectors, fat, -1);
+	}
+
+	/**
+	 * Method to record a FAT entry that is neither a cluster number nor an end of
+	 * chain marker, or that links to a free cluster
+	 *
+	 * @param cluster - the cluster whose entry is bad
+	 * @param fatEntry - the entry
+	 */
+	public static Finding badEndOfChain(int cluster, int fatEntry) {
+		return new Finding(Kind.BAD_END_OF_CHAIN, -1, Integer.toUnsignedLong(fatEntry), -1, null, -1, cluster, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record a cluster that the FAT entries of more than one cluster link to
+	 *
+	 * @param cluster - the cross-linked cluster
+	 */
+	public static Finding crossLinkedCluster(int cluster) {
+		return new Finding(Kind.CROSS_LINKED_CLUSTER, -1, -1, -1, null, -1, cluster, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record an entry's first cluster that another cluster also links to
+	 *
+	 * @param cluster - the first cluster
+	 */
+	public static Finding entryInsideChain(int cluster) {
+		return new Finding(Kind.ENTRY_INSIDE_CHAIN, -1, -1, -1, null, -1, cluster, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record allocated clusters that no directory entry leads to
+	 *
+	 * @param cluster - the first cluster of the lost chain
+	 * @param count - the number of clusters in it
+	 */
+	public static Finding lostChain(int cluster, int count) {
+		return new Finding(Kind.LOST_CHAIN, -1, -1, -1, null, -1, cluster, count, -1, -1);
+	}
+
+	/**
+	 * Method to record a corrected FSInfo free cluster count
+	 *
+	 * @param offset - the absolute offset of FSI_Free_Count
+	 * @param oldValue - the count found
+	 * @param newValue - the count it was corrected to
+	 */
+	public static Finding fsInfoFreeCount(long offset, int oldValue, int newValue) {
+		return new Finding(Kind.FSINFO_FREE_COUNT, offset, Integer.toUnsignedLong(oldValue), Integer.toUnsignedLong(newValue), null, -1, -1, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record an FSInfo free cluster count that is possible but differs
+	 * from the number of free clusters in the FAT
+	 *
+	 * @param offset - the absolute offset of FSI_Free_Count
+	 * @param value - the count found
+	 * @param freeCount - the number of free clusters in the FAT
+	 */
+	public static Finding fsInfoFreeCountMismatch(long offset, int value, int freeCount) {
+		return new Finding(Kind.FSINFO_FREE_COUNT_MISMATCH, offset, Integer.toUnsignedLong(value), -1, null, -1, -1, freeCount, -1, -1);
+	}
+
+	/**
+	 * Method to record a corrected FSInfo next free cluster hint
+	 *
+	 * @param offset - the absolute offset of FSI_Nxt_Free
+	 * @param oldValue - the hint found
+	 * @param newValue - the hint it was corrected to
+	 */
+	public static Finding fsInfoNextFree(long offset, int oldValue, int newValue) {
+		return new Finding(Kind.FSINFO_NEXT_FREE, offset, Integer.toUnsignedLong(oldValue), Integer.toUnsignedLong(newValue), null, -1, -1, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record an FSInfo sector without its signatures
+	 *
+	 * @param offset - the absolute offset of the sector
+	 */
+	public static Finding fsInfoInvalid(long offset) {
+		return new Finding(Kind.FSINFO_INVALID, offset, -1, -1, null, -1, -1, -1, -1, -1);
+	}
+
+	/**
+	 * Method to record a run of LFN entries that doesn't end in its short entry:
+	 * cut short, out of order, or followed by a deleted entry or the end of the
+	 * directory
+	 *
+	 * @param offset - the absolute offset of the first entry of the run
+	 * @param count - the number of entries in the run
+	 */
+	public static Finding orphanedLongName(long offset, int count) {
+		return new Finding(Kind.ORPHANED_LFN, offset, -1, -1, null, -1, -1, count, -1, -1);
+	}
+
+	/**
+	 * Method to record a complete run of LFN entries whose checksum doesn't match
+	 * the short entry after it
+	 *
+	 * @param offset - the absolute offset of the short entry
+	 * @param lfnChecksum - the checksum the LFN entries carry
+	 * @param shortChecksum - the checksum of the short name
+	 * @param entryName - the short entry's name
+	 * @param longName - the name the LFN entries spell
+	 */
+	public static Finding lfnChecksumMismatch(long offset, byte lfnChecksum, byte shortChecksum, String entryName, String longName) {
+		return new Finding(Kind.LFN_CHECKSUM_MISMATCH, offset, lfnChecksum & 0xFF, shortChecksum & 0xFF, entryName, -1, -1, -1, -1, -1, longName, -1);
+	}
+
+	/**
+	 * Method to record a deleted file or directory entry and how much of its
+	 * likely cluster run is still free
+	 *
+	 * @param offset - the absolute offset of the short entry
+	 * @param name - the long name if it could be rebuilt, otherwise the 8.3 name,
+	 *               ending in / for a directory
+	 * @param directory - the first cluster of the directory holding it, 0 for the root
+	 * @param cluster - the entry's first cluster
+	 * @param count - the number of clusters from the first that are still free, up
+	 *                to the number its size needs
+	 * @param size - the entry's file size
+	 */
+	public static Finding deletedEntry(long offset, String name, int directory, int cluster, int count, long size) {
+		return new Finding(Kind.DELETED_ENTRY, offset, -1, -1, name, directory, cluster, count, -1, size);
+	}
+
+	/**
+	 * Method to record a file carved out of free clusters
+	 *
+	 * @param offset - the absolute offset it starts at
+	 * @param cluster - the cluster it starts at
+	 * @param count - the number of clusters it spans
+	 * @param size - its size in bytes
+	 * @param file - the path of the file it was written to
+	 */
+	public static Finding carvedFile(long offset, int cluster, int count, long size, String file) {
+		return new Finding(Kind.CARVED_FILE, offset, -1, -1, file, -1, cluster, count, -1, size);
+	}
+
+	/**
+	 * Method to move a finding made through a partition's view onto the whole disk
+	 *
+	 * @param start - the absolute offset of the partition on the disk
+	 * @param partition - the number of the partition
+	 * @return the same finding, with its offset (if any) into the disk
+	 */
+	public Finding relocate(long start, int partition) {
+		return new Finding(kind, offset < 0 ? offset : start + offset, oldValue, newValue, entryName, directory, cluster, count, fat, size, longName, partition);
+	}
+
+	/**
+	 * Method to add the long name of the entry a finding is about
+	 *
+	 * @param longName - the entry's long name
+	 * @return the same finding, with the long name
+	 */
+	public Finding withLongName(String longName) {
+		return new Finding(kind, offset, oldValue, newValue, entryName, directory, cluster, count, fat, size, longName, partition);
+	}
+
+	/**
+	 * Method to write every field of the finding to a stream
+	 *
+	 * @param out - the stream
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeByte(kind.ordinal());
+		out.writeLong(offset);
+		out.writeLong(oldValue);
+		out.writeLong(newValue);
+		writeString(out, entryName);
+		out.writeInt(directory);
+		out.writeInt(cluster);
+		out.writeInt(count);
+		out.writeInt(fat);
+		out.writeLong(size);
+		writeString(out, longName);
+		out.writeInt(partition);
+	}
+
+	/**
+	 * Method to read a finding written by write()
+	 *
+	 * @param in - the stream
+	 * @return the finding
+	 */
+	public static Finding read(DataInputStream in) throws IOException {
+		int kind = in.readUnsignedByte();
+		if(kind >= Kind.values().length)
+			throw new IOException("Unknown kind of finding " + kind + ".");
+		return new Finding(Kind.values()[kind], in.readLong(), in.readLong(), in.readLong(), readString(in),
+			in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readLong(), readString(in), in.readInt());
+	}
+
+	/**
+	 * Helper method to write a string that may be null
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if(value != null)
+			out.writeUTF(value);
+	}
+
+	/**
+	 * Helper method to read a string written by writeString()
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Method to decode an entry's short name. Bytes are kept one to one as
+	 * ISO-8859-1 characters, so no byte is lost or merged with another.
+	 *
+	 * @param image - the image holding the entry
+	 * @param offset - the absolute offset of the directory entry
+	 * @return the 11 name bytes as a string
+	 */
+	public static String entryName(ImageSource image, long offset) {
+		char[] name = new char[11];
+		for(int i = 0; i < 11; i++)
+			name[i] = (char) (image.get(offset + i) & 0xFF);
+		return new String(name);
+	}
+
+	/**
+	 * Method to get the message the analyzer prints for this finding. An invalid
+	 * attribute takes two lines.
+	 *
+	 * @return the message
+	 */
+	public String message() {
+		switch(kind) {
+			case ILLEGAL_CHARACTER:
+				return "Replaced an illegal character in a directory entry's file name at offset " + offset + ".";
+			case RESERVED_BYTE:
+				return "Repaired the directory entry's reserved byte at offset " + offset + ".";
+			case LFN_RESERVED_BYTES:
+				return "LDIR_FstClusLO reserved slot is invalid, changed to 00 at offset" + offset + " and " + (offset + 1);
+			case INVALID_ATTRIBUTE:
+				return entryName + (longName != null ? " (" + longName + ")" : "") + " located at offset " + offset + " has an invalid file attribute type."
+					+ System.lineSeparator() + "This repair cannot be done automatically.";
+			case CHAIN_LOOP:
+				return this.directoryName() + " cluster chain loops back on itself at cluster " + cluster + ".";
+			case CHAIN_BROKEN:
+				return this.directoryName() + " cluster chain is broken after " + count + " cluster(s).";
+			case CROSS_LINKED_DIRECTORY:
+				return "The directory at cluster " + directory + " is linked from more than one directory entry, it was only analyzed once.";
+			case SHARED_FIRST_CLUSTER:
+				return "Cluster " + cluster + " is the first cluster of more than one directory entry, again at offset " + offset + ".";
+			case FAT_MISMATCH:
+				return "FAT #" + fat + " differs from FAT #1 in " + count + " sector(s) starting at offset " + offset + " (cluster " + cluster + " on).";
+			case BAD_END_OF_CHAIN:
+				if(oldValue >= 2 && oldValue < FatTable.BAD_CLUSTER)
+					return "Cluster " + cluster + " links to cluster " + oldValue + ", which is free.";
+				return "Cluster " + cluster + "'s FAT entry " + String.format("0x%08X", oldValue) + " is neither a cluster nor an end of chain marker.";
+			case CROSS_LINKED_CLUSTER:
+				return "Cluster " + cluster + " is linked from more than one cluster chain.";
+			case ENTRY_INSIDE_CHAIN:
+				return "Cluster " + cluster + " is the first cluster of a directory entry, but another cluster's chain links to it too.";
+			case LOST_CHAIN:
+				return "Lost cluster chain of " + count + " cluster(s) starting at cluster " + cluster + ", no directory entry leads to it.";
+			case FSINFO_FREE_COUNT:
+				return "Corrected the FSInfo free cluster count at offset " + offset + " from " + oldValue + " to " + newValue + ".";
+			case FSINFO_FREE_COUNT_MISMATCH:
+				return "The FSInfo free cluster count at offset " + offset + " is " + oldValue + ", but the FAT has " + count + " free cluster(s). It was not corrected.";
+			case FSINFO_NEXT_FREE:
+				return "Corrected the FSInfo next free cluster hint at offset " + offset + " from " + oldValue + " to " + newValue + ".";
+			case FSINFO_INVALID:
+				return "The FSInfo sector at offset " + offset + " is missing or damaged, its counts were not checked.";
+			case ORPHANED_LFN:
+				return "Orphaned run of " + count + " long name entry(s) at offset " + offset + ", out of order or not ending in its short entry.";
+			case LFN_CHECKSUM_MISMATCH:
+				return "Long name \"" + longName + "\" doesn't belong to the short entry at offset " + offset
+					+ ", its checksum " + String.format("0x%02X", oldValue) + " doesn't match " + String.format("0x%02X", newValue) + ".";
+			case DELETED_ENTRY:
+				return "Deleted entry " + entryName + " at offset " + offset + ": " + size + " byte(s) from cluster " + cluster
+					+ ", " + count + " contiguous cluster(s) of it still free.";
+			case CARVED_FILE:
+				return "Carved " + size + " byte(s) from free cluster " + cluster + " (offset " + offset + ") to " + entryName + ".";
+			default:
+				throw new IllegalStateException("Unknown kind " + kind);
+		}
+	}
+
+	/**
+	 * Helper method to name the directory of a chain finding
+	 */
+	private String directoryName() {
+		return directory == 0 ? "The root directory's" : "The directory at cluster " + directory + "'s";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if(!(other instanceof Finding))
+			return false;
+		Finding that = (Finding) other;
+		return kind == that.kind && offset == that.offset && oldValue == that.oldValue && newValue == that.newValue
+			&& Objects.equals(entryName, that.entryName) && directory == that.directory && cluster == that.cluster
+			&& count == that.count && fat == that.fat && size == that.size
+			&& Objects.equals(longName, that.longName) && partition == that.partition;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(kind, offset, oldValue, newValue, entryName, directory, cluster, count, fat, size, longName, partition);
+	}
+
+	@Override
+	public String toString() {
+		return this.message();
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * Where the findings of an analysis go as they are made.
+ *
+ * The analysis hands its findings over in batches, in the order they are
+ * reported in, as soon as they are settled, so a run never holds every
+ * finding of a badly damaged image at once. A FindingWriter is a sink, and the
+ * analyzer puts others in front of it to relocate the findings of a partition
+ * or to keep back the few a later phase needs.
+ */
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.List;
+
+
+public interface FindingSink extends Flushable {
+
+	/**
+	 * Method to take a batch of findings. The list must not be changed afterwards.
+	 *
+	 * @param findings - the batch
+	 */
+	void write(List<Finding> findings) throws IOException;
+
+	/**
+	 * Method to wait until every batch taken so far has been written, so that
+	 * anything printed next comes after them. Nothing to wait for by default.
+	 */
+	@Override
+	default void flush() throws IOException {
+	}
+
+	/**
+	 * Method to get a sink that hands every batch to two others
+	 *
+	 * @param first - the sink that gets each batch first
+	 * @param second - the sink that gets it next
+	 * @return the sink
+	 */
+	static FindingSink both(FindingSink first, FindingSink second) {
+		return new FindingSink() {
+			@Override
+			public void write(List<Finding> findings) throws IOException {
+				first.write(findings);
+				second.write(findings);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				first.flush();
+				second.flush();
+			}
+		};
+	}
+}
@@ -0,0 +1,391 @@
+/**
+ * Asynchronous, batched writer of findings.
+ *
+ * Findings are handed over in batches (one list per call) and formatted and
+ * written by a background thread, so the threads producing them never wait on
+ * the console or the disk. A bounded queue keeps a slow target from piling up
+ * memory: producers only block once it's full. Each batch is formatted into
+ * one block of text, which is one write to the target rather than one per
+ * finding.
+ *
+ * Formats:
+ *		TEXT		the messages the analyzer has always printed, one per line
+ *		JSON_LINES	one JSON object per finding, for case management tooling
+ *		CSV			a header line, then one row per finding
+ *
+ * The writer also counts the findings of each kind for the summary. It can be
+ * flushed to wait for the batches queued so far, so that the analyzer's own
+ * messages on the console come after the findings made before them.
+ */
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+public class FindingWriter implements FindingSink, Closeable {
+
+	public enum Format { TEXT, JSON_LINES, CSV }
+
+	//Number of batches that can wait to be written
+	private static final int QUEUE_CAPACITY = 64;
+	//Formatted text is handed to the target in blocks of about this many characters
+	private static final int BLOCK_SIZE = 1 << 16;
+	private static final String CSV_HEADER = "kind,offset,oldValue,newValue,entryName,directory,cluster,count,fat,size,longName,partition,message";
+	//Marks the end of the queue
+	private static final List<Finding> END = List.of();
+
+	private final Appendable target;
+	private final boolean closeTarget;
+	private final Format format;
+	private final BlockingQueue<List<Finding>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final long[] counts = new long[Finding.Kind.values().length];
+	private final Thread thread;
+	private volatile IOException failure;
+	private boolean closed;
+	//Batches queued and batches taken off the queue, guarded by this writer
+	private long queued;
+	private long taken;
+
+	/**
+	 * Constructor for a writer to a target that stays open after this writer is closed,
+	 * such as the console
+	 *
+	 * @param target - where to write the findings
+	 * @param format - how to write them
+	 */
+	public FindingWriter(Appendable target, Format format) {
+		this(target, format, false);
+	}
+
+	/**
+	 * Constructor for a writer, starting its background thread
+	 */
+	private FindingWriter(Appendable target, Format format, boolean closeTarget) {
+		this.target = target;
+		this.format = format;
+		this.closeTarget = closeTarget;
+		this.thread = new Thread(this::drain, "findings-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Method to open a writer to a file. Files ending in .csv get CSV, files ending
+	 * in .txt or .log get text, everything else gets JSON Lines.
+	 *
+	 * @param file - the file to write, replaced if it exists
+	 * @return the writer
+	 */
+	public static FindingWriter open(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		Format format = Format.JSON_LINES;
+		if(name.endsWith(".csv"))
+			format = Format.CSV;
+		else if(name.endsWith(".txt") || name.endsWith(".log"))
+			format = Format.TEXT;
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), BLOCK_SIZE);
+		if(format == Format.CSV)
+			writer.write(CSV_HEADER + "\n");
+		return new FindingWriter(writer, format, true);
+	}
+
+	/**
+	 * Method to queue a batch of findings to be written. The list must not be
+	 * changed afterwards.
+	 *
+	 * @param findings - the batch
+	 */
+	@Override
+	public void write(List<Finding> findings) throws IOException {
+		if(closed)
+			throw new IllegalStateException("The findings writer is closed.");
+		if(findings.isEmpty())
+			return;
+		this.enqueue(findings);
+	}
+
+	/**
+	 * Method to wait until every batch queued so far has been handed to the target
+	 */
+	@Override
+	public void flush() throws IOException {
+		try {
+			synchronized(this) {
+				for(long batches = queued; taken < batches; )
+					this.wait();
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing findings.");
+		}
+		if(failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Method to wait until every queued finding has been written, then stop the
+	 * background thread and flush (and for files, close) the target
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed)
+			return;
+		closed = true;
+		this.enqueue(END);
+		try {
+			thread.join();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing findings.");
+		}
+		if(failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Method to count the findings written, by kind. Only complete once closed.
+	 *
+	 * @param kind - the kind of finding
+	 * @return the number of findings of that kind
+	 */
+	public long count(Finding.Kind kind) {
+		return counts[kind.ordinal()];
+	}
+
+	/**
+	 * Method to describe the findings written in one line. Only complete once closed.
+	 *
+	 * @return the summary
+	 */
+	public String summary() {
+		StringBuilder summary = new StringBuilder();
+		long total = 0;
+		for(Finding.Kind kind : Finding.Kind.values()) {
+			long count = counts[kind.ordinal()];
+			if(count == 0)
+				continue;
+			summary.append(total == 0 ? "Findings: " : ", ").append(count).append(' ').append(kind.summary());
+			total += count;
+		}
+		if(total == 0)
+			return "Findings: none.";
+		return summary.append(" (").append(total).append(" in total).").toString();
+	}
+
+	/**
+	 * Method to count the findings written. Only complete once closed.
+	 *
+	 * @return the number of findings of every kind
+	 */
+	public long total() {
+		long total = 0;
+		for(long count : counts)
+			total += count;
+		return total;
+	}
+
+	/**
+	 * Helper method to put a batch on the queue, waiting for room if it's full
+	 */
+	private void enqueue(List<Finding> findings) throws IOException {
+		try {
+			queue.put(findings);
+			if(findings != END) {
+				synchronized(this) {
+					queued++;
+				}
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing findings.");
+		}
+	}
+
+	/**
+	 * Helper method run by the background thread: format and write batches until
+	 * the end of the queue
+	 */
+	private void drain() {
+		StringBuilder block = new StringBuilder(BLOCK_SIZE + 1024);
+		try {
+			for(List<Finding> batch = queue.take(); batch != END; batch = queue.take()) {
+				//After a failure, keep taking batches so producers never block forever
+				if(failure != null)
+					continue;
+				try {
+					for(Finding finding : batch) {
+						counts[finding.kind.ordinal()]++;
+						this.format(finding, block);
+						if(block.length() >= BLOCK_SIZE) {
+							target.append(block);
+							block.setLength(0);
+						}
+					}
+					target.append(block);
+				} catch(IOException ioe) {
+					failure = ioe;
+				}
+				block.setLength(0);
+				synchronized(this) {
+					taken++;
+					this.notifyAll();
+				}
+			}
+			if(failure == null && target instanceof Flushable)
+				((Flushable) target).flush();
+		} catch(IOException ioe) {
+			failure = ioe;
+		} catch(InterruptedException ie) {
+			failure = new InterruptedIOException("Interrupted while writing findings.");
+		} finally {
+			if(closeTarget && target instanceof Closeable) {
+				try {
+					((Closeable) target).close();
+				} catch(IOException ioe) {
+					if(failure == null)
+						failure = ioe;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper method to format one finding, with its line break, onto a block of text
+	 */
+	private void format(Finding finding, StringBuilder block) {
+		if(format == Format.TEXT) {
+			if(finding.partition >= 0)
+				block.append("Partition ").append(finding.partition).append(": ");
+			block.append(finding.message()).append(System.lineSeparator());
+		}
+		else if(format == Format.JSON_LINES) {
+			block.append("{\"kind\":\"").append(finding.kind.name()).append('"');
+			block.append(",\"offset\":");
+			appendNumber(block, finding.offset);
+			block.append(",\"oldValue\":");
+			appendNumber(block, finding.oldValue);
+			block.append(",\"newValue\":");
+			appendNumber(block, finding.newValue);
+			block.append(",\"entryName\":");
+			if(finding.entryName == null)
+				block.append("null");
+			else
+				appendJsonString(block, finding.entryName);
+			block.append(",\"directory\":");
+			appendNumber(block, finding.directory);
+			block.append(",\"cluster\":");
+			appendNumber(block, finding.cluster);
+			block.append(",\"count\":");
+			appendNumber(block, finding.count);
+			block.append(",\"fat\":");
+			appendNumber(block, finding.fat);
+			block.append(",\"size\":");
+			appendNumber(block, finding.size);
+			block.append(",\"longName\":");
+			if(finding.longName == null)
+				block.append("null");
+			else
+				appendJsonString(block, finding.longName);
+			block.append(",\"partition\":");
+			appendNumber(block, finding.partition);
+			block.append(",\"message\":");
+			appendJsonString(block, finding.message());
+			block.append("}\n");
+		}
+		else {
+			block.append(finding.kind.name()).append(',');
+			appendCsvNumber(block, finding.offset);
+			appendCsvNumber(block, finding.oldValue);
+			appendCsvNumber(block, finding.newValue);
+			if(finding.entryName != null)
+				appendCsvString(block, finding.entryName);
+			block.append(',');
+			appendCsvNumber(block, finding.directory);
+			appendCsvNumber(block, finding.cluster);
+			appendCsvNumber(block, finding.count);
+			appendCsvNumber(block, finding.fat);
+			appendCsvNumber(block, finding.size);
+			if(finding.longName != null)
+				appendCsvString(block, finding.longName);
+			block.append(',');
+			appendCsvNumber(block, finding.partition);
+			appendCsvString(block, finding.message());
+			block.append('\n');
+		}
+	}
+
+	/**
+	 * Helper method to write a JSON number, or null for -1 (doesn't apply)
+	 */
+	private static void appendNumber(StringBuilder block, long value) {
+		if(value == -1)
+			block.append("null");
+		else
+			block.append(value);
+	}
+
+	/**
+	 * Helper method to write a quoted JSON string, escaping quotes, backslashes and
+	 * control characters. Metrics writes its JSON with it too.
+	 */
+	static void appendJsonString(StringBuilder block, String value) {
+		block.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				block.append('\\').append(c);
+			else if(c == '\n')
+				block.append("\\n");
+			else if(c == '\r')
+				block.append("\\r");
+			else if(c < 0x20 || c == 0x7F)
+				block.append(String.format("\\u%04x", (int) c));
+			else
+				block.append(c);
+		}
+		block.append('"');
+	}
+
+	/**
+	 * Helper method to write a CSV number followed by a comma, empty for -1
+	 */
+	private static void appendCsvNumber(StringBuilder block, long value) {
+		if(value != -1)
+			block.append(value);
+		block.append(',');
+	}
+
+	/**
+	 * Helper method to write a CSV field, quoted if it holds a comma, quote or line
+	 * break. Timeline writes its paths with it too.
+	 */
+	static void appendCsvString(StringBuilder block, String value) {
+		boolean quote = false;
+		for(int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if(!quote) {
+			block.append(value);
+			return;
+		}
+		block.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"')
+				block.append('"');
+			block.append(c);
+		}
+		block.append('"');
+	}
+}
@@ -0,0 +1,853 @@
+/**
+ * Generator of synthetic FAT32 images for load, scale and regression testing.
+ *
+ * Writes a valid FAT32 volume (boot sector, FSInfo, their backups at sectors 6
+ * and 7, two FATs and a directory tree) of any size from a few megabytes up to
+ * the 2 TiB FAT32 limit. Only the sectors that hold something are written, so
+ * the image is a sparse file unless asked otherwise, and writing a 500 GB image
+ * with a small tree takes seconds.
+ *
+ * The tree is "depth" levels of "fanout" subdirectories, with "files" files in
+ * every directory. A share of the files get long names (one or more LFN entries
+ * in front of their short entry), and files can be given contents. Every name
+ * fills all 11 bytes of the short name, since the analyzer treats the space
+ * padding of shorter names as illegal, so an image without corruption has
+ * nothing for the analyzer to report.
+ *
+ * Corruption is seeded and reproducible. Entry level damage (illegal name
+ * bytes, nonzero reserved bytes, bad attributes) is injected into a chosen
+ * percentage of entries, FAT loops into a chosen percentage of directories,
+ * and the primary BPB and the backup boot sector can be wiped. The Report
+ * returned by generate counts everything that was written and injected.
+ *
+ * Usage:
+ *     	java ImageGenerator [options] path/to/output.dd
+ *     	java ImageGenerator --size 100G --depth 6 --fanout 4 --files 50 --lfn 30 --illegal-names 1 out.dd
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+
+public class ImageGenerator {
+
+	private static final int RESERVED_SECTORS = 32;
+	private static final int NUM_FATS = 2;
+	private static final int FSINFO_SECTOR = 1;
+	private static final int BACKUP_SECTOR = 6;
+	private static final int END_OF_CHAIN = 0x0FFFFFFF;
+	//Chunk size used to fill non-sparse images with zeros
+	private static final int ZERO_CHUNK = 1 << 23;
+	//Volume label of the boot sector and the root directory, 11 bytes without spaces
+	private static final byte[] VOLUME_LABEL = "SYNTHETIC32".getBytes(StandardCharsets.US_ASCII);
+
+	//Name bytes the analyzer treats as illegal, minus 0x00, 0x05, 0x20 and 0x2E
+	//which would turn an entry into an end marker, a deleted or a dot entry
+	private static final byte[] ILLEGAL_NAME_BYTES;
+	//Attribute values the analyzer rejects, for files and for directories (which keep 0x10)
+	private static final byte[] BAD_FILE_ATTRIBUTES = {0x03, 0x06, 0x21, 0x40, (byte) 0x81};
+	private static final byte[] BAD_DIRECTORY_ATTRIBUTES = {0x11, 0x12, 0x30, 0x50};
+	//Legal attributes for files: read only, hidden, system, archive
+	private static final byte[] FILE_ATTRIBUTES = {0x01, 0x02, 0x04, 0x20};
+
+	static {
+		List<Byte> illegal = new ArrayList<>();
+		for(int b = 1; b < 256; b++) {
+			if(b != 5 && b != 32 && b != 46 && EntryValidator.isIllegalNameByte((byte) b))
+				illegal.add((byte) b);
+		}
+		ILLEGAL_NAME_BYTES = new byte[illegal.size()];
+		for(int i = 0; i < ILLEGAL_NAME_BYTES.length; i++)
+			ILLEGAL_NAME_BYTES[i] = illegal.get(i);
+	}
+
+	//Geometry
+	private long size = 64L << 20;
+	private int bytesPerSector = 512;
+	//0 picks the cluster size from the image size
+	private int clusterSize = 0;
+	//Tree
+	private int depth = 2;
+	private int fanout = 4;
+	private int files = 16;
+	private long fileSize = 0;
+	private double lfnPercent = 25;
+	private int maxNameLength = 64;
+	private boolean fragmented = false;
+	private boolean sparse = true;
+	private long seed = 20191126;
+	//Corruption
+	private boolean wipePrimary = false;
+	private boolean damageBackup = false;
+	private double illegalNamePercent = 0;
+	private double reservedBytePercent = 0;
+	private double badAttributePercent = 0;
+	private double fatLoopPercent = 0;
+
+	//State of one generate call
+	private Random random;
+	private FileChannel out;
+	private long dataStartSector;
+	private int bytesPerCluster;
+	private long maxCluster;
+	private int nextCluster;
+	private int[] fat;
+	private int nameCounter;
+	private Report report;
+
+	/**
+	 * Counts of everything a generate call wrote and injected
+	 */
+	public static class Report {
+		public long imageSize;
+		public int bytesPerCluster;
+		public long clusterCount;
+		public long usedClusters;
+		public long directories;
+		public long files;
+		public long lfnEntries;
+		public long illegalNames;
+		public long reservedBytes;
+		public long badAttributes;
+		public long fatLoops;
+		public boolean wipedPrimary;
+		public boolean damagedBackup;
+
+		@Override
+		public String toString() {
+			return String.format("%,d byte image, %,d of %,d clusters of %,d bytes used%n"
+				+ "%,d directories, %,d files, %,d LFN entries%n"
+				+ "Injected: %,d illegal name bytes, %,d reserved bytes, %,d bad attributes, %,d FAT loops%s%s",
+				imageSize, usedClusters, clusterCount, bytesPerCluster, directories, files, lfnEntries,
+				illegalNames, reservedBytes, badAttributes, fatLoops,
+				wipedPrimary ? ", wiped primary BPB" : "", damagedBackup ? ", damaged backup boot sector" : "");
+		}
+	}
+
+	/**
+	 * Pending directory of the depth first walk that writes the tree
+	 */
+	private static class PendingDirectory {
+		final int firstCluster;
+		final int parentCluster;
+		final int level;
+
+		PendingDirectory(int firstCluster, int parentCluster, int level) {
+			this.firstCluster = firstCluster;
+			this.parentCluster = parentCluster;
+			this.level = level;
+		}
+	}
+
+	/**
+	 * Pending entry of a directory that is being built
+	 */
+	private static class Child {
+		byte[] shortName;
+		String longName;
+		boolean directory;
+		int firstCluster;
+		long size;
+	}
+
+	public static void main(String[] args) throws IOException {
+		ImageGenerator generator = new ImageGenerator();
+		int arg = 0;
+		try {
+			while(arg < args.length - 1 && args[arg].startsWith("--")) {
+				String option = args[arg++];
+				if(option.equals("--no-sparse"))
+					generator.sparse(false);
+				else if(option.equals("--fragmented"))
+					generator.fragmented(true);
+				else if(option.equals("--wipe-bpb"))
+					generator.wipePrimary(true);
+				else if(option.equals("--damage-backup"))
+					generator.damageBackup(true);
+				else if(arg < args.length - 1) {
+					String value = args[arg++];
+					if(option.equals("--size"))
+						generator.size(ImageGenerator.parseSize(value));
+					else if(option.equals("--sector-size"))
+						generator.bytesPerSector(Integer.parseInt(value));
+					else if(option.equals("--cluster-size"))
+						generator.bytesPerCluster((int) ImageGenerator.parseSize(value));
+					else if(option.equals("--depth"))
+						generator.depth(Integer.parseInt(value));
+					else if(option.equals("--fanout"))
+						generator.fanout(Integer.parseInt(value));
+					else if(option.equals("--files"))
+						generator.files(Integer.parseInt(value));
+					else if(option.equals("--file-size"))
+						generator.fileSize(ImageGenerator.parseSize(value));
+					else if(option.equals("--lfn"))
+						generator.lfnPercent(Double.parseDouble(value));
+					else if(option.equals("--name-length"))
+						generator.maxNameLength(Integer.parseInt(value));
+					else if(option.equals("--seed"))
+						generator.seed(Long.parseLong(value));
+					else if(option.equals("--illegal-names"))
+						generator.illegalNamePercent(Double.parseDouble(value));
+					else if(option.equals("--reserved-bytes"))
+						generator.reservedBytePercent(Double.parseDouble(value));
+					else if(option.equals("--bad-attributes"))
+						generator.badAttributePercent(Double.parseDouble(value));
+					else if(option.equals("--fat-loops"))
+						generator.fatLoopPercent(Double.parseDouble(value));
+					else
+						throw new IllegalArgumentException("Unknown option " + option + ".");
+				}
+				else
+					throw new IllegalArgumentException("Missing value for " + option + ".");
+			}
+			if(args.length - arg != 1)
+				throw new IllegalArgumentException("Missing output file.");
+		} catch(IllegalArgumentException iae) {
+			System.out.println(iae.getMessage());
+			System.out.println("Usage: java ImageGenerator [options] path/to/output.dd");
+			System.out.println("  --size n[K|M|G|T]        image size (default 64M)");
+			System.out.println("  --sector-size n          bytes per sector, 512 - 4096 (default 512)");
+			System.out.println("  --cluster-size n[K]      bytes per cluster (default picked from the size)");
+			System.out.println("  --depth n                levels of subdirectories below the root (default 2)");
+			System.out.println("  --fanout n               subdirectories per directory (default 4)");
+			System.out.println("  --files n                files per directory (default 16)");
+			System.out.println("  --file-size n[K|M|G]     contents written to every file (default 0)");
+			System.out.println("  --lfn percent            share of files with long names (default 25)");
+			System.out.println("  --name-length n          longest long name, up to 255 (default 64)");
+			System.out.println("  --fragmented             leave a free cluster after every allocated one");
+			System.out.println("  --no-sparse              write every byte of the image");
+			System.out.println("  --seed n                 seed for names, dates and corruption");
+			System.out.println("  --wipe-bpb               zero the first 90 bytes of the boot sector");
+			System.out.println("  --damage-backup          destroy the signatures of the backup boot sector");
+			System.out.println("  --illegal-names percent  entries with an illegal name byte");
+			System.out.println("  --reserved-bytes percent entries with a nonzero reserved byte");
+			System.out.println("  --bad-attributes percent entries with an invalid attribute");
+			System.out.println("  --fat-loops percent      directories whose cluster chain loops");
+			System.exit(1);
+		}
+
+		long start = System.nanoTime();
+		Report report = generator.generate(new File(args[arg]));
+		System.out.println(report);
+		System.out.println(String.format("Written to %s in %.2f s.", args[arg], (System.nanoTime() - start) / 1e9));
+	}
+
+	/**
+	 * Method to parse a size with an optional K, M, G or T suffix
+	 *
+	 * @param value - the size, such as 512, 4K or 200G
+	 * @return the size in bytes
+	 */
+	public static long parseSize(String value) {
+		String upper = value.toUpperCase();
+		int shift = 0;
+		if(upper.endsWith("K"))
+			shift = 10;
+		else if(upper.endsWith("M"))
+			shift = 20;
+		else if(upper.endsWith("G"))
+			shift = 30;
+		else if(upper.endsWith("T"))
+			shift = 40;
+		if(shift > 0)
+			upper = upper.substring(0, upper.length() - 1);
+		return Long.parseLong(upper) << shift;
+	}
+
+	/**
+	 * Method to set the image size in bytes, rounded down to whole sectors
+	 */
+	public ImageGenerator size(long size) {
+		this.size = size;
+		return this;
+	}
+
+	/**
+	 * Method to set the bytes per sector: 512, 1024, 2048 or 4096
+	 */
+	public ImageGenerator bytesPerSector(int bytesPerSector) {
+		if(bytesPerSector != 512 && bytesPerSector != 1024 && bytesPerSector != 2048 && bytesPerSector != 4096)
+			throw new IllegalArgumentException("Bytes per sector must be 512, 1024, 2048 or 4096.");
+		this.bytesPerSector = bytesPerSector;
+		return this;
+	}
+
+	/**
+	 * Method to set the cluster size in bytes. By default it is picked from the
+	 * image size the way mkfs.fat does (4 KiB up to 8 GiB, up to 32 KiB above that).
+	 */
+	public ImageGenerator bytesPerCluster(int bytesPerCluster) {
+		this.clusterSize = bytesPerCluster;
+		return this;
+	}
+
+	/**
+	 * Method to set the number of subdirectory levels below the root
+	 */
+	public ImageGenerator depth(int depth) {
+		this.depth = depth;
+		return this;
+	}
+
+	/**
+	 * Method to set the number of subdirectories in every directory above the last level
+	 */
+	public ImageGenerator fanout(int fanout) {
+		this.fanout = fanout;
+		return this;
+	}
+
+	/**
+	 * Method to set the number of files in every directory
+	 */
+	public ImageGenerator files(int files) {
+		this.files = files;
+		return this;
+	}
+
+	/**
+	 * Method to set the size of every file. Files with contents get their own
+	 * clusters, filled with a pattern that names the file.
+	 */
+	public ImageGenerator fileSize(long fileSize) {
+		this.fileSize = fileSize;
+		return this;
+	}
+
+	/**
+	 * Method to set the percentage of files that get a long name
+	 */
+	public ImageGenerator lfnPercent(double lfnPercent) {
+		this.lfnPercent = lfnPercent;
+		return this;
+	}
+
+	/**
+	 * Method to set the longest long name, in characters (at most 255)
+	 */
+	public ImageGenerator maxNameLength(int maxNameLength) {
+		this.maxNameLength = Math.max(14, Math.min(255, maxNameLength));
+		return this;
+	}
+
+	/**
+	 * Method to choose whether a free cluster is left after every allocated one, so
+	 * no chain is contiguous
+	 */
+	public ImageGenerator fragmented(boolean fragmented) {
+		this.fragmented = fragmented;
+		return this;
+	}
+
+	/**
+	 * Method to choose whether unused parts of the image are left as holes (the default)
+	 * or written out as zeros
+	 */
+	public ImageGenerator sparse(boolean sparse) {
+		this.sparse = sparse;
+		return this;
+	}
+
+	/**
+	 * Method to set the seed of names, dates, file contents and corruption
+	 */
+	public ImageGenerator seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Method to choose whether the first 90 bytes of the boot sector are zeroed,
+	 * which wipes the whole BPB including BPB_BkBootSec
+	 */
+	public ImageGenerator wipePrimary(boolean wipePrimary) {
+		this.wipePrimary = wipePrimary;
+		return this;
+	}
+
+	/**
+	 * Method to choose whether the jump instruction and the signature of the backup
+	 * boot sector are destroyed
+	 */
+	public ImageGenerator damageBackup(boolean damageBackup) {
+		this.damageBackup = damageBackup;
+		return this;
+	}
+
+	/**
+	 * Method to set the percentage of short entries that get an illegal name byte
+	 */
+	public ImageGenerator illegalNamePercent(double illegalNamePercent) {
+		this.illegalNamePercent = illegalNamePercent;
+		return this;
+	}
+
+	/**
+	 * Method to set the percentage of entries that get a nonzero reserved byte
+	 * (DIR_NTRes of short entries, LDIR_FstClusLO of long name entries)
+	 */
+	public ImageGenerator reservedBytePercent(double reservedBytePercent) {
+		this.reservedBytePercent = reservedBytePercent;
+		return this;
+	}
+
+	/**
+	 * Method to set the percentage of short entries that get an invalid attribute.
+	 * Directories keep their directory bit so they are still walked.
+	 */
+	public ImageGenerator badAttributePercent(double badAttributePercent) {
+		this.badAttributePercent = badAttributePercent;
+		return this;
+	}
+
+	/**
+	 * Method to set the percentage of directories whose last cluster is linked back
+	 * to their first in both FATs
+	 */
+	public ImageGenerator fatLoopPercent(double fatLoopPercent) {
+		this.fatLoopPercent = fatLoopPercent;
+		return this;
+	}
+
+	/**
+	 * Method to write the image
+	 *
+	 * @param file - the file to write, replaced if it exists
+	 * @return counts of everything that was written and injected
+	 */
+	public Report generate(File file) throws IOException {
+		long totalSectors = size / bytesPerSector;
+		if(totalSectors > 0xFFFFFFFFL)
+			throw new IllegalArgumentException("FAT32 volumes can't have more than 2^32 - 1 sectors.");
+		int clusterBytes = clusterSize > 0 ? clusterSize : ImageGenerator.defaultClusterSize(size);
+		int spc = Math.max(1, clusterBytes / bytesPerSector);
+		if(Integer.bitCount(spc) != 1 || spc > 128)
+			throw new IllegalArgumentException("The cluster size must be a power of two multiple of the sector size, at most 128 sectors.");
+
+		//Size the FATs for the most clusters the volume could hold
+		long sizeOfFAT = ((totalSectors - RESERVED_SECTORS) / spc + 2) * 4;
+		sizeOfFAT = (sizeOfFAT + bytesPerSector - 1) / bytesPerSector;
+		dataStartSector = RESERVED_SECTORS + NUM_FATS * sizeOfFAT;
+		if(dataStartSector + spc > totalSectors)
+			throw new IllegalArgumentException("An image of " + size + " bytes is too small for a FAT32 volume.");
+		long clusterCount = (totalSectors - dataStartSector) / spc;
+		maxCluster = Math.min(clusterCount + 1, 0x0FFFFFF5L);
+
+		random = new Random(seed);
+		bytesPerCluster = spc * bytesPerSector;
+		nextCluster = 2;
+		fat = new int[1024];
+		nameCounter = 0;
+		report = new Report();
+		report.imageSize = totalSectors * bytesPerSector;
+		report.bytesPerCluster = bytesPerCluster;
+		report.clusterCount = clusterCount;
+
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+			out = channel;
+			if(sparse) {
+				//Writing the last byte sets the length without allocating anything before it
+				channel.write(ByteBuffer.allocate(1), report.imageSize - 1);
+			}
+			else {
+				ByteBuffer zeros = ByteBuffer.allocateDirect(ZERO_CHUNK);
+				for(long position = 0; position < report.imageSize; position += ZERO_CHUNK) {
+					zeros.clear().limit((int) Math.min(ZERO_CHUNK, report.imageSize - position));
+					this.writeFully(zeros, position);
+				}
+			}
+
+			this.writeTree();
+			this.writeFATs(sizeOfFAT);
+			this.writeBootSectors(totalSectors, spc, sizeOfFAT);
+		} finally {
+			out = null;
+			fat = null;
+		}
+		return report;
+	}
+
+	/**
+	 * Helper method to pick the cluster size mkfs.fat would for a volume size
+	 */
+	private static int defaultClusterSize(long size) {
+		if(size < (8L << 30))
+			return 4096;
+		if(size < (16L << 30))
+			return 8192;
+		if(size < (32L << 30))
+			return 16384;
+		return 32768;
+	}
+
+	/**
+	 * Helper method to write every directory (and file) of the tree, depth first
+	 * with an explicit stack so trees thousands of levels deep are fine
+	 */
+	private void writeTree() throws IOException {
+		Deque<PendingDirectory> pending = new ArrayDeque<>();
+		pending.push(new PendingDirectory(this.allocate(), 0, 0));
+		while(!pending.isEmpty()) {
+			PendingDirectory directory = pending.pop();
+			List<Child> children = this.writeDirectory(directory);
+			//Push in reverse so subdirectories are written in entry order
+			for(int i = children.size() - 1; i >= 0; i--) {
+				Child child = children.get(i);
+				if(child.directory)
+					pending.push(new PendingDirectory(child.firstCluster, directory.firstCluster, directory.level + 1));
+			}
+		}
+	}
+
+	/**
+	 * Helper method to build and write one directory. Its first cluster was allocated
+	 * by its parent, every further cluster is allocated here.
+	 *
+	 * @return the entries of the directory, with subdirectories' first clusters allocated
+	 */
+	private List<Child> writeDirectory(PendingDirectory directory) throws IOException {
+		boolean isRoot = directory.level == 0;
+		report.directories++;
+
+		//Decide names first, they decide how many entries (and clusters) are needed
+		List<Child> children = new ArrayList<>();
+		int subdirectories = directory.level < depth ? fanout : 0;
+		int slots = isRoot ? 1 : 2;
+		for(int i = 0; i < subdirectories + files; i++) {
+			Child child = new Child();
+			child.directory = i < subdirectories;
+			child.shortName = this.shortName(child.directory);
+			if(!child.directory && random.nextDouble() * 100 < lfnPercent) {
+				child.longName = this.longName();
+				//Tell the LFN entries apart from the short name with a tilde, like Windows does
+				child.shortName[6] = '~';
+				slots += (child.longName.length() + LongNameDecoder.CHARACTERS_PER_ENTRY - 1) / LongNameDecoder.CHARACTERS_PER_ENTRY;
+			}
+			slots++;
+			children.add(child);
+		}
+
+		//Allocate the rest of the directory's chain
+		int entriesPerCluster = bytesPerCluster / 32;
+		int clusterCount = Math.max(1, (slots + entriesPerCluster - 1) / entriesPerCluster);
+		int[] chain = new int[clusterCount];
+		chain[0] = directory.firstCluster;
+		for(int i = 1; i < clusterCount; i++)
+			chain[i] = this.allocate();
+		for(int i = 0; i < clusterCount - 1; i++)
+			this.link(chain[i], chain[i + 1]);
+		this.link(chain[clusterCount - 1], END_OF_CHAIN);
+		if(random.nextDouble() * 100 < fatLoopPercent) {
+			this.link(chain[clusterCount - 1], chain[0]);
+			report.fatLoops++;
+		}
+
+		//Children's clusters, files are written as soon as their clusters are known
+		for(Child child : children) {
+			if(child.directory) {
+				child.firstCluster = this.allocate();
+			}
+			else {
+				report.files++;
+				if(fileSize > 0) {
+					child.size = Math.min(fileSize, 0xFFFFFFFFL);
+					child.firstCluster = this.writeFile(child.size);
+				}
+			}
+		}
+
+		ByteBuffer entries = ByteBuffer.allocate(clusterCount * bytesPerCluster).order(ByteOrder.LITTLE_ENDIAN);
+		if(isRoot) {
+			this.putShortEntry(entries, VOLUME_LABEL, (byte) 0x08, 0, 0);
+		}
+		else {
+			this.putShortEntry(entries, ".          ".getBytes(StandardCharsets.US_ASCII), (byte) 0x10, directory.firstCluster, 0);
+			//A parent that is the root is stored as cluster 0
+			int parent = directory.level == 1 ? 0 : directory.parentCluster;
+			this.putShortEntry(entries, "..         ".getBytes(StandardCharsets.US_ASCII), (byte) 0x10, parent, 0);
+		}
+		for(Child child : children) {
+			if(child.longName != null)
+				this.putLongNameEntries(entries, child.longName, child.shortName);
+			int start = entries.position();
+			byte attribute = child.directory ? (byte) 0x10 : FILE_ATTRIBUTES[random.nextInt(FILE_ATTRIBUTES.length)];
+			this.putShortEntry(entries, child.shortName, attribute, child.firstCluster, child.size);
+			this.corruptShortEntry(entries, start, child.directory);
+		}
+
+		for(int i = 0; i < clusterCount; i++)
+			this.writeFully(ByteBuffer.wrap(entries.array(), i * bytesPerCluster, bytesPerCluster), this.clusterOffset(chain[i]));
+		return children;
+	}
+
+	/**
+	 * Helper method to allocate and write the clusters of a file's contents. The
+	 * contents are the file's short name repeated, so carved or exported data can be
+	 * told apart.
+	 *
+	 * @param length - the file size
+	 * @return the first cluster of the file
+	 */
+	private int writeFile(long length) throws IOException {
+		int clusterCount = (int) ((length + bytesPerCluster - 1) / bytesPerCluster);
+		byte[] pattern = String.format("FILE %08d ", nameCounter).getBytes(StandardCharsets.US_ASCII);
+		byte[] cluster = new byte[bytesPerCluster];
+		for(int i = 0; i < cluster.length; i++)
+			cluster[i] = pattern[i % pattern.length];
+
+		int first = this.allocate();
+		int current = first;
+		for(int i = 0; i < clusterCount; i++) {
+			int length32 = (int) Math.min(bytesPerCluster, length - (long) i * bytesPerCluster);
+			this.writeFully(ByteBuffer.wrap(cluster, 0, length32), this.clusterOffset(current));
+			int next = i + 1 < clusterCount ? this.allocate() : END_OF_CHAIN;
+			this.link(current, next);
+			current = next;
+		}
+		return first;
+	}
+
+	/**
+	 * Helper method to make the next unique 11 byte short name. Names never contain
+	 * spaces: 8 characters of name and a 3 character extension.
+	 */
+	private byte[] shortName(boolean directory) {
+		String name = String.format("%c%07d%s", directory ? 'D' : 'F', nameCounter++, directory ? "DIR" : "DAT");
+		return name.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Helper method to make a long name of random length, with lower case letters,
+	 * spaces and dots that a short name couldn't hold
+	 */
+	private String longName() {
+		String base = "Synthetic file number " + nameCounter + " of a generated FAT32 volume, ";
+		int length = 14 + random.nextInt(maxNameLength - 13);
+		StringBuilder name = new StringBuilder(length);
+		while(name.length() < length - 4)
+			name.append(base);
+		name.setLength(length - 4);
+		return name.append(".txt").toString();
+	}
+
+	/**
+	 * Helper method to add a short directory entry at the buffer's position
+	 */
+	private void putShortEntry(ByteBuffer entries, byte[] name, byte attribute, int firstCluster, long size) {
+		int start = entries.position();
+		entries.put(name, 0, 11);
+		entries.put(attribute);
+		entries.put((byte) 0);
+		//Creation time tenths, time and date, last access date
+		entries.put((byte) random.nextInt(200));
+		entries.putShort(this.randomTime());
+		entries.putShort(this.randomDate());
+		entries.putShort(this.randomDate());
+		entries.putShort((short) (firstCluster >>> 16));
+		//Last write time and date
+		entries.putShort(this.randomTime());
+		entries.putShort(this.randomDate());
+		entries.putShort((short) firstCluster);
+		entries.putInt((int) size);
+		entries.position(start + 32);
+	}
+
+	/**
+	 * Helper method to add the LFN entries of a long name at the buffer's position,
+	 * last part first as they are stored on disk
+	 */
+	private void putLongNameEntries(ByteBuffer entries, String longName, byte[] shortName) {
+		int count = (longName.length() + LongNameDecoder.CHARACTERS_PER_ENTRY - 1) / LongNameDecoder.CHARACTERS_PER_ENTRY;
+		byte checksum = ImageGenerator.lfnChecksum(shortName);
+		for(int ordinal = count; ordinal >= 1; ordinal--) {
+			int start = entries.position();
+			entries.put((byte) (ordinal == count ? ordinal | 0x40 : ordinal));
+			int first = (ordinal - 1) * LongNameDecoder.CHARACTERS_PER_ENTRY;
+			for(int i = 0; i < LongNameDecoder.CHARACTERS_PER_ENTRY; i++) {
+				int index = first + i;
+				char c = index < longName.length() ? longName.charAt(index) : index == longName.length() ? 0 : (char) 0xFFFF;
+				entries.putShort(start + LongNameDecoder.CHARACTER_OFFSETS[i], (short) c);
+			}
+			entries.put(start + 11, (byte) 0x0F);
+			entries.put(start + 12, (byte) 0);
+			entries.put(start + 13, checksum);
+			entries.putShort(start + 26, (short) 0);
+			if(random.nextDouble() * 100 < reservedBytePercent) {
+				entries.put(start + 26, (byte) (1 + random.nextInt(255)));
+				report.reservedBytes++;
+			}
+			entries.position(start + 32);
+			report.lfnEntries++;
+		}
+	}
+
+	/**
+	 * Method to compute the checksum of a short name that its LFN entries carry
+	 *
+	 * @param shortName - the 11 byte short name
+	 * @return the checksum
+	 */
+	public static byte lfnChecksum(byte[] shortName) {
+		return LongNameDecoder.checksum(shortName);
+	}
+
+	/**
+	 * Helper method to inject the entry level corruption into a short entry
+	 */
+	private void corruptShortEntry(ByteBuffer entries, int start, boolean directory) {
+		if(random.nextDouble() * 100 < illegalNamePercent) {
+			//Never the tilde or the first byte of a name with LFN entries
+			int position = random.nextInt(11);
+			if(position == 6 && entries.get(start + 6) == '~')
+				position = 7;
+			entries.put(start + position, ILLEGAL_NAME_BYTES[random.nextInt(ILLEGAL_NAME_BYTES.length)]);
+			report.illegalNames++;
+		}
+		if(random.nextDouble() * 100 < reservedBytePercent) {
+			entries.put(start + 12, (byte) (1 + random.nextInt(255)));
+			report.reservedBytes++;
+		}
+		if(random.nextDouble() * 100 < badAttributePercent) {
+			byte[] attributes = directory ? BAD_DIRECTORY_ATTRIBUTES : BAD_FILE_ATTRIBUTES;
+			entries.put(start + 11, attributes[random.nextInt(attributes.length)]);
+			report.badAttributes++;
+		}
+	}
+
+	/**
+	 * Helper method to make a random FAT time, 2 second resolution
+	 */
+	private short randomTime() {
+		return (short) ((random.nextInt(24) << 11) | (random.nextInt(60) << 5) | random.nextInt(30));
+	}
+
+	/**
+	 * Helper method to make a random FAT date between 1995 and 2019
+	 */
+	private short randomDate() {
+		return (short) (((15 + random.nextInt(25)) << 9) | ((1 + random.nextInt(12)) << 5) | (1 + random.nextInt(28)));
+	}
+
+	/**
+	 * Helper method to allocate the next free cluster
+	 */
+	private int allocate() {
+		if(nextCluster > maxCluster)
+			throw new IllegalArgumentException("The image is too small for the requested tree, it ran out of clusters after "
+				+ report.directories + " directories and " + report.files + " files.");
+		int cluster = nextCluster;
+		nextCluster += fragmented ? 2 : 1;
+		report.usedClusters++;
+		if(cluster >= fat.length)
+			fat = Arrays.copyOf(fat, Math.max(fat.length * 2, cluster + 1));
+		return cluster;
+	}
+
+	/**
+	 * Helper method to set a cluster's FAT entry
+	 */
+	private void link(int cluster, int next) {
+		fat[cluster] = next;
+	}
+
+	/**
+	 * Helper method to find the offset of a data cluster
+	 */
+	private long clusterOffset(int cluster) {
+		return (dataStartSector + (long) (cluster - 2) * (bytesPerCluster / bytesPerSector)) * bytesPerSector;
+	}
+
+	/**
+	 * Helper method to write both FATs. Only the entries up to the last allocated
+	 * cluster are written, the rest of each FAT is free (zero).
+	 */
+	private void writeFATs(long sizeOfFAT) throws IOException {
+		int used = Math.min(nextCluster, fat.length);
+		fat[0] = 0x0FFFFFF8;
+		fat[1] = END_OF_CHAIN;
+		ByteBuffer chunk = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		for(int copy = 0; copy < NUM_FATS; copy++) {
+			long fatOffset = (RESERVED_SECTORS + copy * sizeOfFAT) * bytesPerSector;
+			for(int first = 0; first < used; first += chunk.capacity() / 4) {
+				chunk.clear();
+				for(int i = first; i < used && chunk.hasRemaining(); i++)
+					chunk.putInt(fat[i]);
+				chunk.flip();
+				this.writeFully(chunk, fatOffset + first * 4L);
+			}
+		}
+	}
+
+	/**
+	 * Helper method to write the boot sector, FSInfo and their backups, then apply
+	 * the boot sector damage that was asked for
+	 */
+	private void writeBootSectors(long totalSectors, int spc, long sizeOfFAT) throws IOException {
+		ByteBuffer boot = ByteBuffer.allocate(bytesPerSector).order(ByteOrder.LITTLE_ENDIAN);
+		boot.put(0, (byte) 0xEB).put(1, (byte) 0x58).put(2, (byte) 0x90);
+		boot.position(3);
+		boot.put("MSWIN4.1".getBytes(StandardCharsets.US_ASCII));
+		boot.putShort(11, (short) bytesPerSector);
+		boot.put(13, (byte) spc);
+		boot.putShort(14, (short) RESERVED_SECTORS);
+		boot.put(16, (byte) NUM_FATS);
+		boot.put(21, (byte) 0xF8);
+		boot.putShort(24, (short) 63);
+		boot.putShort(26, (short) 255);
+		boot.putInt(32, (int) totalSectors);
+		boot.putInt(36, (int) sizeOfFAT);
+		boot.putInt(44, 2);
+		boot.putShort(48, (short) FSINFO_SECTOR);
+		boot.putShort(50, (short) BACKUP_SECTOR);
+		boot.put(64, (byte) 0x80);
+		boot.put(66, (byte) 0x29);
+		boot.putInt(67, (int) seed);
+		boot.position(71);
+		boot.put(VOLUME_LABEL);
+		boot.put("FAT32   ".getBytes(StandardCharsets.US_ASCII));
+		boot.put(510, (byte) 0x55).put(511, (byte) 0xAA);
+
+		ByteBuffer fsInfo = ByteBuffer.allocate(bytesPerSector).order(ByteOrder.LITTLE_ENDIAN);
+		fsInfo.putInt(0, 0x41615252);
+		fsInfo.putInt(484, 0x61417272);
+		fsInfo.putInt(488, (int) (report.clusterCount - report.usedClusters));
+		fsInfo.putInt(492, nextCluster);
+		fsInfo.putInt(508, 0xAA550000);
+
+		this.writeFully(ByteBuffer.wrap(boot.array()), (long) BACKUP_SECTOR * bytesPerSector);
+		this.writeFully(ByteBuffer.wrap(fsInfo.array()), (long) (BACKUP_SECTOR + 1) * bytesPerSector);
+		this.writeFully(ByteBuffer.wrap(fsInfo.array()), (long) FSINFO_SECTOR * bytesPerSector);
+		if(wipePrimary) {
+			Arrays.fill(boot.array(), 0, 90, (byte) 0);
+			report.wipedPrimary = true;
+		}
+		this.writeFully(ByteBuffer.wrap(boot.array()), 0);
+		if(damageBackup) {
+			//Without the jump instruction and the signature the backup is unrecognizable
+			ByteBuffer damage = ByteBuffer.allocate(3);
+			this.writeFully(damage, (long) BACKUP_SECTOR * bytesPerSector);
+			this.writeFully(ByteBuffer.allocate(2), (long) BACKUP_SECTOR * bytesPerSector + 510);
+			report.damagedBackup = true;
+		}
+	}
+
+	/**
+	 * Helper method to write all of a buffer at a position
+	 */
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining())
+			position += out.write(buffer, position);
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * MD5 and SHA-256 of a whole image, computed while the image is read or written
+ * for some other reason.
+ *
+ * Whoever has the image's bytes in hand (the writer of the repaired copy, which
+ * feeds the hashers of both the input and the copy, or the background reader of
+ * the input when no copy is written) fills buffers taken from a small ring
+ * and submits them, in order. One digest thread per algorithm consumes every
+ * buffer, and a buffer goes back to the ring once all of them are done with
+ * it, so the producer only waits when hashing falls a whole ring behind. The
+ * background reader of the input has the image loaded ahead of it (see
+ * ReadAhead).
+ *
+ * Optionally, a further thread hashes every piece of a fixed size (one sector,
+ * one MiB, ...) with SHA-256 and writes one line per piece to a list, so part
+ * of an image can later be verified without hashing all of it:
+ *		offset,length,sha256
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class ImageHasher {
+
+	//Bytes per buffer of the ring
+	public static final int BUFFER_SIZE = 1 << 22;
+	//Buffers in the ring
+	private static final int RING_SIZE = 4;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * A buffer of the ring and the part of the image it holds
+	 */
+	public final class Buffer {
+		public final byte[] data;
+		public int length;
+		//Number of digest threads that still have to hash this buffer
+		private final AtomicInteger pending = new AtomicInteger();
+
+		private Buffer(int size) {
+			this.data = new byte[size];
+		}
+
+		/**
+		 * Helper method called by each digest thread once it is done with the buffer
+		 */
+		private void release() throws InterruptedException {
+			if(pending.decrementAndGet() == 0)
+				ring.put(this);
+		}
+	}
+
+	//Marks the end of the image on every digest thread's queue
+	private final Buffer end = new Buffer(0);
+
+	private final BlockingQueue<Buffer> ring = new ArrayBlockingQueue<>(RING_SIZE);
+	private final List<DigestThread> threads = new ArrayList<>();
+	private final DigestThread md5;
+	private final DigestThread sha256;
+	private Thread reader;
+	private volatile Throwable failure;
+
+	/**
+	 * Constructor for a hasher, starting its digest threads
+	 *
+	 * @param pieceSize - the size of the pieces to list, or 0 for no list
+	 * @param pieceList - the file to write the list of pieces to, if pieceSize isn't 0
+	 */
+	public ImageHasher(long pieceSize, File pieceList) throws IOException {
+		for(int i = 0; i < RING_SIZE; i++)
+			ring.add(new Buffer(BUFFER_SIZE));
+		this.md5 = new DigestThread("MD5", 0, null);
+		this.sha256 = new DigestThread("SHA-256", 0, null);
+		threads.add(md5);
+		threads.add(sha256);
+		if(pieceSize > 0)
+			threads.add(new DigestThread("SHA-256", pieceSize, new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pieceList), StandardCharsets.US_ASCII), 1 << 16)));
+		for(DigestThread thread : threads)
+			thread.start();
+	}
+
+	/**
+	 * Method to start hashing an image as it is on disk (without any repairs) on a
+	 * background thread that reads it from start to end
+	 *
+	 * @param image - the image to hash
+	 * @param pieceSize - the size of the pieces to list, or 0 for no list
+	 * @param pieceList - the file to write the list of pieces to, if pieceSize isn't 0
+	 * @return the hasher, whose finish() waits for the digests
+	 */
+	public static ImageHasher hashImage(ImageSource image, long pieceSize, File pieceList) throws IOException {
+		ImageHasher hasher = new ImageHasher(pieceSize, pieceList);
+		hasher.reader = new Thread(() -> {
+			try(ReadAhead ahead = new ReadAhead(image, 0, image.size())) {
+				for(long position = 0; position < image.size(); ) {
+					ahead.reached(position);
+					Buffer buffer = hasher.take();
+					buffer.length = (int) Math.min(BUFFER_SIZE, image.size() - position);
+					image.readOriginal(position, buffer.data, 0, buffer.length);
+					hasher.submit(buffer);
+					position += buffer.length;
+				}
+			} catch(IOException | RuntimeException e) {
+				hasher.failure = e;
+			}
+		}, "image-hasher");
+		hasher.reader.setDaemon(true);
+		hasher.reader.start();
+		return hasher;
+	}
+
+	/**
+	 * Method to hash a file from start to end, such as a patch file just written
+	 *
+	 * @param file - the file to hash
+	 * @param pieceSize - the size of the pieces to list, or 0 for no list
+	 * @param pieceList - the file to write the list of pieces to, if pieceSize isn't 0
+	 * @return the MD5 and SHA-256 digests, as lower case hex
+	 */
+	public static String[] hashFile(File file, long pieceSize, File pieceList) throws IOException {
+		ImageHasher hasher = new ImageHasher(pieceSize, pieceList);
+		try(FileInputStream in = new FileInputStream(file)) {
+			for(Buffer buffer = hasher.take(); ; buffer = hasher.take()) {
+				buffer.length = in.readNBytes(buffer.data, 0, BUFFER_SIZE);
+				if(buffer.length == 0) {
+					hasher.ring.add(buffer);
+					break;
+				}
+				hasher.submit(buffer);
+			}
+		}
+		return hasher.finish();
+	}
+
+	/**
+	 * Method to take a free buffer to fill, waiting for one if the ring is empty
+	 *
+	 * @return the buffer
+	 */
+	public Buffer take() throws IOException {
+		try {
+			return ring.take();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while hashing.");
+		}
+	}
+
+	/**
+	 * Method to hand over a filled buffer, the next part of the image after the
+	 * buffer submitted before it. It must not be touched afterwards.
+	 *
+	 * @param buffer - the buffer, with its length set
+	 */
+	public void submit(Buffer buffer) throws IOException {
+		buffer.pending.set(threads.size());
+		this.enqueue(buffer);
+	}
+
+	/**
+	 * Method to wait until everything submitted (or read by the background reader)
+	 * has been hashed, and stop the digest threads
+	 *
+	 * @return the MD5 and SHA-256 digests, as lower case hex
+	 */
+	public String[] finish() throws IOException {
+		try {
+			if(reader != null)
+				reader.join();
+			this.enqueue(end);
+			for(DigestThread thread : threads)
+				thread.join();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while hashing.");
+		}
+		if(failure instanceof IOException)
+			throw (IOException) failure;
+		if(failure != null)
+			throw new IOException("Hashing failed.", failure);
+		return new String[] {hex(md5.digest), hex(sha256.digest)};
+	}
+
+	/**
+	 * Helper method to put a buffer on every digest thread's queue
+	 */
+	private void enqueue(Buffer buffer) throws IOException {
+		try {
+			for(DigestThread thread : threads)
+				thread.queue.put(buffer);
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while hashing.");
+		}
+	}
+
+	/**
+	 * Helper method to format a digest as lower case hex
+	 */
+	private static String hex(byte[] digest) {
+		char[] hex = new char[digest.length * 2];
+		for(int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 15];
+			hex[i * 2 + 1] = HEX[digest[i] & 15];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Thread that hashes every buffer with one algorithm, either the whole image
+	 * or piece by piece
+	 */
+	private final class DigestThread extends Thread {
+		//Room for every buffer of the ring and the end marker
+		private final BlockingQueue<Buffer> queue = new ArrayBlockingQueue<>(RING_SIZE + 1);
+		private final MessageDigest algorithm;
+		private final long pieceSize;
+		private final BufferedWriter pieceList;
+		private byte[] digest;
+
+		DigestThread(String algorithm, long pieceSize, BufferedWriter pieceList) throws IOException {
+			super("image-hasher-" + algorithm + (pieceList != null ? "-pieces" : ""));
+			setDaemon(true);
+			try {
+				this.algorithm = MessageDigest.getInstance(algorithm);
+			} catch(NoSuchAlgorithmException nsae) {
+				throw new IOException(algorithm + " isn't available.", nsae);
+			}
+			this.pieceSize = pieceSize;
+			this.pieceList = pieceList;
+		}
+
+		@Override
+		public void run() {
+			long position = 0;
+			long pieceStart = 0;
+			try {
+				for(Buffer buffer = queue.take(); buffer != end; buffer = queue.take()) {
+					try {
+						if(pieceList == null) {
+							algorithm.update(buffer.data, 0, buffer.length);
+						}
+						else {
+							//Pieces don't have to line up with buffers
+							for(int offset = 0; offset < buffer.length; ) {
+								int count = (int) Math.min(buffer.length - offset, pieceStart + pieceSize - position);
+								algorithm.update(buffer.data, offset, count);
+								offset += count;
+								position += count;
+								if(position == pieceStart + pieceSize) {
+									this.writePiece(pieceStart, position);
+									pieceStart = position;
+								}
+							}
+						}
+					} finally {
+						buffer.release();
+					}
+				}
+				if(pieceList != null) {
+					if(position > pieceStart)
+						this.writePiece(pieceStart, position);
+					pieceList.close();
+				}
+				else {
+					digest = algorithm.digest();
+				}
+			} catch(IOException | RuntimeException e) {
+				failure = e;
+				//Keep releasing buffers so the producer never waits forever
+				this.drain();
+			} catch(InterruptedException ie) {
+				failure = new InterruptedIOException("Interrupted while hashing.");
+			}
+		}
+
+		/**
+		 * Helper method to write the digest of one piece to the list
+		 */
+		private void writePiece(long from, long to) throws IOException {
+			pieceList.write(from + "," + (to - from) + "," + hex(algorithm.digest()) + "\n");
+		}
+
+		/**
+		 * Helper method to release every buffer until the end marker, after a failure
+		 */
+		private void drain() {
+			try {
+				for(Buffer buffer = queue.take(); buffer != end; buffer = queue.take())
+					buffer.release();
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
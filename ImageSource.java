@@ -0,0 +1,539 @@
+/**
+ * Windowed, memory-mapped view of a FAT32 image.
+ *
+ * The image is never loaded onto the heap. Instead it is mapped through a
+ * FileChannel in fixed size windows that are created the first time they are
+ * touched, so a 2 TB image costs no more heap than a 2 MB one. All offsets are
+ * longs, and every accessor uses absolute positions so one ImageSource can be
+ * read from several threads at once.
+ *
+ * The image file itself is opened read only. Repairs are written into a
+ * SectorJournal that overlays the mapped image, so reads see the repaired
+ * bytes while the evidence on disk stays untouched until the journal is
+ * written out.
+ *
+ * A whole-disk image can be cut into views of its partitions. A partition view
+ * takes offsets relative to the start of its partition, but shares the mapped
+ * windows and the journal of the disk, so repairs made through it land at
+ * their absolute offsets in the disk image.
+ *
+ * An acquisition split into raw segments (image.001, image.002, ...) is opened
+ * as one image by opening its first segment: the segments are concatenated
+ * behind the same offsets. Every segment but the last has the same size, and
+ * the last is no larger, as split tools make them, so the segment an offset
+ * falls in takes a division to find, and each segment is mapped in windows of
+ * its own. Holes in sparse segments read as zeros from the mapping without
+ * going to the disk, but they are not free: Java can't ask for the next data
+ * past a hole (SEEK_DATA), so every page of a hole is still faulted in to be
+ * read, and a sparse 1 TB image still takes a pass over 1 TB of zeros.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+public class ImageSource implements Closeable {
+
+	//Each window is 64 MiB, which is a multiple of every legal sector and cluster size
+	private static final int WINDOW_SHIFT = 26;
+	private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+	private static final long WINDOW_MASK = WINDOW_SIZE - 1;
+	//The numbered extension of a segment of a split image, at least three digits
+	private static final Pattern SEGMENT = Pattern.compile("(.*\\.)(\\d{3,})");
+	//Zeros to compare ranges of the image against, never written to
+	private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(1 << 16);
+
+	//The segments of the image file in order, just one unless it is split
+	private final FileChannel[] channels;
+	//Size of every segment but the last, and the number of windows each one takes
+	private final long segmentSize;
+	private final int segmentWindows;
+	//Path of the image file, with the offset of a partition view after an @
+	private final String name;
+	//Absolute offset this view starts at (0 unless it is a partition) and its size
+	private final long base;
+	private final long size;
+	//Windows and journal of the whole image, shared by its partition views
+	private final AtomicReferenceArray<MappedByteBuffer> windows;
+	private final SectorJournal journal;
+	//The view of the whole image
+	private final ImageSource root;
+
+	/**
+	 * Constructor for an image view over already opened segments
+	 *
+	 * @param channels - the channels of the segments of the image file, in order
+	 * @param name - the path of the image file, or of its first segment
+	 */
+	private ImageSource(FileChannel[] channels, String name) throws IOException {
+		this.channels = channels;
+		this.name = name;
+		this.base = 0;
+		this.segmentSize = channels[0].size();
+		if(channels.length > 1 && segmentSize == 0)
+			throw new IOException("The first segment of " + name + " is empty.");
+		long size = 0;
+		for(int i = 0; i < channels.length; i++) {
+			//Offsets are mapped to segments by division, so not even the last segment may be longer
+			if(i < channels.length - 1 ? channels[i].size() != segmentSize : channels[i].size() > segmentSize)
+				throw new IOException("Segment " + (i + 1) + " of " + name + " is " + channels[i].size() + " bytes, but the first segment is " + segmentSize + ".");
+			size += channels[i].size();
+		}
+		this.size = size;
+		this.segmentWindows = (int) ((segmentSize + WINDOW_SIZE - 1) >>> WINDOW_SHIFT);
+		long lastSize = size - (channels.length - 1) * segmentSize;
+		this.windows = new AtomicReferenceArray<>((channels.length - 1) * segmentWindows + (int) ((lastSize + WINDOW_SIZE - 1) >>> WINDOW_SHIFT));
+		this.journal = new SectorJournal();
+		this.root = this;
+
+		//Walk the windows of the last segment: each one, up to its last byte, has to map to a slot of its own
+		for(long position = (channels.length - 1) * segmentSize; position < size; position += WINDOW_SIZE) {
+			long last = Math.min(position + WINDOW_SIZE, size) - 1;
+			if(this.segment(last) >= channels.length || this.windowIndex(last) >= windows.length() || this.windowIndex(last) != this.windowIndex(position))
+				throw new IOException("Offset " + last + " of " + name + " doesn't map to any segment.");
+		}
+	}
+
+	/**
+	 * Constructor for a view of part of an image
+	 */
+	private ImageSource(ImageSource root, long base, long size) {
+		this.channels = root.channels;
+		this.segmentSize = root.segmentSize;
+		this.segmentWindows = root.segmentWindows;
+		this.name = root.name + "@" + base;
+		this.base = base;
+		this.size = size;
+		this.windows = root.windows;
+		this.journal = root.journal;
+		this.root = root;
+	}
+
+	/**
+	 * Method to open an image file as a read only, windowed view. The first segment
+	 * of a split image opens the whole image.
+	 *
+	 * @param file - the image file, or the first segment of a split image
+	 * @return the image view
+	 */
+	public static ImageSource open(File file) throws IOException {
+		List<File> segments = ImageSource.segments(file);
+		FileChannel[] channels = new FileChannel[segments.size()];
+		try {
+			for(int i = 0; i < channels.length; i++)
+				channels[i] = FileChannel.open(segments.get(i).toPath(), StandardOpenOption.READ);
+			return new ImageSource(channels, file.getPath());
+		} catch(IOException | RuntimeException e) {
+			for(FileChannel channel : channels) {
+				if(channel != null)
+					channel.close();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to find the segments of a split image. A file with a numbered extension
+	 * of three or more digits (image.001) is followed by every file numbered after
+	 * it, for as long as they exist.
+	 *
+	 * @param file - the image file, or the first segment of a split image
+	 * @return the segments in order, just the file itself if it isn't split
+	 */
+	public static List<File> segments(File file) {
+		List<File> segments = new ArrayList<>();
+		segments.add(file);
+		Matcher matcher = SEGMENT.matcher(file.getPath());
+		if(!matcher.matches())
+			return segments;
+		String format = "%s%0" + matcher.group(2).length() + "d";
+		for(long number = Long.parseLong(matcher.group(2)) + 1; ; number++) {
+			File next = new File(String.format(format, matcher.group(1), number));
+			if(!next.isFile())
+				return segments;
+			segments.add(next);
+		}
+	}
+
+	/**
+	 * Method to tell whether a file is a segment of a split image other than the
+	 * first, which is opened along with the first
+	 *
+	 * @param file - a file that may be a segment
+	 * @return true if the segment numbered before it exists
+	 */
+	public static boolean isLaterSegment(File file) {
+		Matcher matcher = SEGMENT.matcher(file.getPath());
+		if(!matcher.matches() || Long.parseLong(matcher.group(2)) == 0)
+			return false;
+		String format = "%s%0" + matcher.group(2).length() + "d";
+		return new File(String.format(format, matcher.group(1), Long.parseLong(matcher.group(2)) - 1)).isFile();
+	}
+
+	/**
+	 * Method to make a view of a partition of this image. Offsets into the view
+	 * are relative to the start of the partition.
+	 *
+	 * @param start - the offset of the partition in this view, a multiple of 512
+	 * @param length - the length of the partition, cut short at the end of this view
+	 * @return the partition view, closing it doesn't close this view
+	 */
+	public ImageSource partition(long start, long length) {
+		if(start < 0 || start > size || (start & SectorJournal.SECTOR_MASK) != 0)
+			throw new IllegalArgumentException("A partition can't start at offset " + start + ".");
+		return new ImageSource(root, base + start, Math.min(length, size - start));
+	}
+
+	/**
+	 * @return the path of the image file (of its first segment if it is split),
+	 *         followed by @offset for a partition view
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * @return the image file (its first segment if it is split), the same for a
+	 *         partition view as for the whole image
+	 */
+	public File file() {
+		return new File(root.name);
+	}
+
+	/**
+	 * @return the absolute offset of this view in the image file, 0 unless it is a partition
+	 */
+	public long base() {
+		return base;
+	}
+
+	/**
+	 * @return the size of the image in bytes
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return the journal holding every repair made through this view
+	 */
+	public SectorJournal journal() {
+		return journal;
+	}
+
+	/**
+	 * Method to read a single byte of the image
+	 *
+	 * @param offset - the absolute offset of the byte
+	 * @return the byte at that offset
+	 */
+	public byte get(long offset) {
+		long position = base + offset;
+		if(!journal.isEmpty()) {
+			byte[] repaired = journal.repaired(position);
+			if(repaired != null) {
+				//Bounds check the offset the same way an unrepaired read would
+				window(position);
+				return repaired[(int) (position & SectorJournal.SECTOR_MASK)];
+			}
+		}
+		return window(position).get(windowOffset(position));
+	}
+
+	/**
+	 * Method to repair a single byte of the image. The repair is recorded in the
+	 * journal, the image file is not modified.
+	 *
+	 * @param offset - the absolute offset of the byte
+	 * @param value - the new value of the byte
+	 */
+	public void put(long offset, byte value) {
+		long position = base + offset;
+		//Bounds check the offset the same way a read would
+		window(position);
+		journal.dirty(position, root)[(int) (position & SectorJournal.SECTOR_MASK)] = value;
+	}
+
+	/**
+	 * Method to read an unsigned little endian 16 bit field
+	 *
+	 * @param offset - the absolute offset of the field
+	 * @return the value of the field
+	 */
+	public int getShortLE(long offset) {
+		return (get(offset) & 0xFF) | ((get(offset + 1) & 0xFF) << 8);
+	}
+
+	/**
+	 * Method to read a little endian 32 bit field
+	 *
+	 * @param offset - the absolute offset of the field
+	 * @return the value of the field
+	 */
+	public int getIntLE(long offset) {
+		return getShortLE(offset) | (getShortLE(offset + 2) << 16);
+	}
+
+	/**
+	 * Method to read a little endian 64 bit field. When the field lies inside one
+	 * window and none of it has been repaired, it is read with a single load.
+	 *
+	 * @param offset - the absolute offset of the field
+	 * @return the value of the field
+	 */
+	public long getLongLE(long offset) {
+		long position = base + offset;
+		if(offset >= 0 && offset + 8 <= size && windowRemaining(position) >= 8 && !isDirty(position, 8))
+			return window(position).getLong(windowOffset(position));
+		return (getIntLE(offset) & 0xFFFFFFFFL) | ((long) getIntLE(offset + 4) << 32);
+	}
+
+	/**
+	 * Method to copy a range of the image, with any repairs applied, into a byte array
+	 *
+	 * @param offset - the absolute offset to start reading at
+	 * @param dst - the array to copy into
+	 * @param dstOffset - the index in dst to start copying to
+	 * @param length - the number of bytes to copy
+	 */
+	public void read(long offset, byte[] dst, int dstOffset, int length) {
+		readOriginal(offset, dst, dstOffset, length);
+		if(journal.isEmpty())
+			return;
+		//Lay the repaired copy of every dirty sector in the range over what was read
+		long position = base + offset;
+		long end = position + length;
+		for(long sector = position & ~SectorJournal.SECTOR_MASK; sector < end; sector += SectorJournal.SECTOR_SIZE) {
+			byte[] repaired = journal.repaired(sector);
+			if(repaired != null) {
+				long from = Math.max(sector, position);
+				long to = Math.min(sector + repaired.length, end);
+				System.arraycopy(repaired, (int) (from - sector), dst, dstOffset + (int) (from - position), (int) (to - from));
+			}
+		}
+	}
+
+	/**
+	 * Method to copy a range of the image as it is on disk, ignoring any repairs
+	 *
+	 * @param offset - the absolute offset to start reading at
+	 * @param dst - the array to copy into
+	 * @param dstOffset - the index in dst to start copying to
+	 * @param length - the number of bytes to copy
+	 */
+	public void readOriginal(long offset, byte[] dst, int dstOffset, int length) {
+		long position = base + offset;
+		while(length > 0) {
+			int count = (int) Math.min(length, windowRemaining(position));
+			window(position).get(windowOffset(position), dst, dstOffset, count);
+			position += count;
+			dstOffset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Method to repair a range of the image with the contents of a byte array. The
+	 * repair is recorded in the journal, the image file is not modified.
+	 *
+	 * @param offset - the absolute offset to start writing at
+	 * @param src - the array to copy from
+	 * @param srcOffset - the index in src to start copying from
+	 * @param length - the number of bytes to copy
+	 */
+	public void write(long offset, byte[] src, int srcOffset, int length) {
+		for(int i = 0; i < length; i++)
+			put(offset + i, src[srcOffset + i]);
+	}
+
+	/**
+	 * Method to copy a range of the image file, as it is on disk, to another channel
+	 * without pulling it through the heap, segment by segment if it is split.
+	 *
+	 * @param offset - the absolute offset to start copying from
+	 * @param length - the number of bytes to copy
+	 * @param target - the channel to copy to
+	 */
+	public void transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+		if(offset < 0 || offset + length > size)
+			throw new IndexOutOfBoundsException("Range " + offset + " - " + (offset + length) + " is outside of the image (size " + size + ")");
+		long position = base + offset;
+		while(length > 0) {
+			int segment = segment(position);
+			long segmentOffset = position - segment * segmentSize;
+			long count = channels[segment].transferTo(segmentOffset, channels.length == 1 ? length : Math.min(length, segmentSize - segmentOffset), target);
+			if(count <= 0)
+				throw new IOException("Unable to copy the image at offset " + (position - base) + ".");
+			position += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Method to read a range of the image into memory ahead of its use, as one
+	 * sequential read, so the reads that follow don't have to wait for the disk.
+	 * The range is loaded into the mapped windows every other read goes through.
+	 *
+	 * @param offset - the absolute offset the range starts at
+	 * @param length - the length of the range in bytes
+	 */
+	public void load(long offset, int length) {
+		long position = base + offset;
+		long end = position + Math.min(length, size - offset);
+		while(position < end) {
+			int count = (int) Math.min(end - position, windowRemaining(position));
+			window(position).slice(windowOffset(position), count).load();
+			position += count;
+		}
+	}
+
+	/**
+	 * Method to check whether a range of the image is all zeros as it is on disk,
+	 * ignoring any repairs. A range that isn't zeros is usually told apart by its
+	 * first bytes, but one that is has to be compared to its end. Holes of a sparse
+	 * image read as zeros from the mapping without going to the disk, yet without
+	 * SEEK_DATA every page of them is faulted in and compared, so checking a hole
+	 * costs a pass over memory as long as the hole.
+	 *
+	 * @param offset - the absolute offset the range starts at
+	 * @param length - the length of the range in bytes
+	 * @return true if every byte of the range is 0
+	 */
+	public boolean isZero(long offset, int length) {
+		long position = base + offset;
+		while(length > 0) {
+			int count = (int) Math.min(Math.min(length, windowRemaining(position)), ZEROS.capacity());
+			if(window(position).slice(windowOffset(position), count).mismatch(ZEROS.slice(0, count)) >= 0)
+				return false;
+			position += count;
+			length -= count;
+		}
+		return true;
+	}
+
+	/**
+	 * Method to get a sector or cluster sized window of the image without copying
+	 * it, as long as the range doesn't straddle two mapped windows. Ranges that do
+	 * are copied into a heap buffer instead.
+	 *
+	 * @param offset - the absolute offset the window starts at
+	 * @param length - the length of the window in bytes
+	 * @return a little endian buffer positioned at 0 covering the range
+	 */
+	public ByteBuffer slice(long offset, int length) {
+		long position = base + offset;
+		ByteBuffer slice;
+		if(offset >= 0 && offset + length <= size && length <= windowRemaining(position) && !isDirty(position, length)) {
+			slice = window(position).slice(windowOffset(position), length);
+		}
+		else {
+			byte[] copy = new byte[length];
+			read(offset, copy, 0, length);
+			slice = ByteBuffer.wrap(copy);
+		}
+		return slice.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	public void close() throws IOException {
+		//Partition views share the channels of the whole image
+		if(root == this) {
+			for(FileChannel channel : channels)
+				channel.close();
+		}
+	}
+
+	/**
+	 * Helper method to check whether any sector in a range has been repaired
+	 *
+	 * @param offset - the offset in the image file the range starts at
+	 * @param length - the length of the range in bytes
+	 * @return true if the journal holds a repaired copy of any sector in the range
+	 */
+	private boolean isDirty(long offset, int length) {
+		if(journal.isEmpty())
+			return false;
+		for(long sector = offset & ~SectorJournal.SECTOR_MASK; sector < offset + length; sector += SectorJournal.SECTOR_SIZE) {
+			if(journal.repaired(sector) != null)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Helper method to find the mapped window holding an offset, mapping it the
+	 * first time it is needed.
+	 *
+	 * @param position - the offset in the image file, inside this view
+	 * @return the window containing that offset
+	 */
+	private MappedByteBuffer window(long position) {
+		if(position < base || position >= base + size)
+			throw new IndexOutOfBoundsException("Offset " + (position - base) + " is outside of the image (size " + size + ")");
+		int segment = segment(position);
+		long segmentOffset = position - segment * segmentSize;
+		int index = this.windowIndex(position);
+		MappedByteBuffer window = windows.get(index);
+		if(window == null) {
+			long start = segmentOffset & ~WINDOW_MASK;
+			long segmentLength = segment == channels.length - 1 ? root.size - segment * segmentSize : segmentSize;
+			try {
+				window = channels[segment].map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, segmentLength - start));
+				//Set once before the window is shared, multi-byte reads are little endian like FAT32
+				window.order(ByteOrder.LITTLE_ENDIAN);
+			} catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+			//Another thread may have mapped the same window, keep whichever got there first
+			if(!windows.compareAndSet(index, null, window))
+				window = windows.get(index);
+		}
+		return window;
+	}
+
+	/**
+	 * Helper method to find the slot of the window holding an offset in the image file
+	 */
+	private int windowIndex(long position) {
+		int segment = segment(position);
+		return segment * segmentWindows + (int) ((position - segment * segmentSize) >>> WINDOW_SHIFT);
+	}
+
+	/**
+	 * Helper method to find the segment an offset in the image file falls in
+	 */
+	private int segment(long position) {
+		return channels.length == 1 ? 0 : (int) (position / segmentSize);
+	}
+
+	/**
+	 * Helper method to find where an offset in the image file is in its window
+	 */
+	private int windowOffset(long position) {
+		return (int) ((channels.length == 1 ? position : position % segmentSize) & WINDOW_MASK);
+	}
+
+	/**
+	 * Helper method to find how many bytes its window holds from an offset in the
+	 * image file on, which is less at the end of a segment
+	 */
+	private long windowRemaining(long position) {
+		if(channels.length == 1)
+			return WINDOW_SIZE - (position & WINDOW_MASK);
+		long segmentOffset = position % segmentSize;
+		return Math.min(WINDOW_SIZE - (segmentOffset & WINDOW_MASK), segmentSize - segmentOffset);
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Reassembles long file names from the LFN entries in front of a short entry.
+ *
+ * A long name is stored as a run of LFN entries right before its short entry,
+ * last part first: the first entry of the run has bit 0x40 set in its ordinal,
+ * and the ordinals count down to 1. Each entry holds 13 UTF-16 characters and
+ * the checksum of the short name the run belongs to.
+ *
+ * Entries are fed to the decoder in directory order. Their characters are
+ * copied straight from the image into one char buffer that the decoder keeps
+ * for its whole life, so nothing is allocated per entry and a long name only
+ * becomes a String when a finding needs it. A decoder holds the state of one
+ * directory at a time, so the directory walker lends one to each task that runs.
+ *
+ * A run that is cut short, out of order, or not followed by a short entry is
+ * reported as orphaned. A complete run whose checksum doesn't match its short
+ * entry is reported as a mismatch. Neither is repaired.
+ */
+
+import java.util.List;
+
+
+public class LongNameDecoder {
+
+	//Characters per LFN entry
+	public static final int CHARACTERS_PER_ENTRY = 13;
+	//Most LFN entries in one run (255 characters, 13 per entry)
+	public static final int MAX_ENTRIES = 20;
+	//Where the 13 characters sit in an LFN entry: bytes 1-10, 14-25 and 28-31
+	static final int[] CHARACTER_OFFSETS = {1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30};
+
+	private final char[] name = new char[MAX_ENTRIES * CHARACTERS_PER_ENTRY];
+	//Length of the name in the buffer
+	private int length;
+	//Offset of the first entry of the run being collected, -1 if there is none
+	private long runStart = -1;
+	//Entries in the run so far
+	private int runEntries;
+	//Ordinal the next entry of the run should have, 0 once the run is complete
+	private int expected;
+	//Checksum every entry of the run carries
+	private byte checksum;
+	//Whether the run is known to be broken (it is reported once it ends)
+	private boolean broken;
+	//Whether the name in the buffer belongs to the short entry just checked
+	private boolean hasName;
+
+	/**
+	 * Method to forget any run, before the first entry of a directory
+	 */
+	public void reset() {
+		runStart = -1;
+		runEntries = 0;
+		expected = 0;
+		broken = false;
+		hasName = false;
+	}
+
+	/**
+	 * Method to add a live LFN entry (attribute 0x0F, first byte not 0xE5 or 0x00)
+	 *
+	 * @param image - the image holding the entry
+	 * @param offset - the absolute offset of the entry
+	 * @param findings - the list to add an orphaned run it ends to
+	 */
+	public void entry(ImageSource image, long offset, List<Finding> findings) {
+		hasName = false;
+		int ordinal = image.get(offset) & 0xFF;
+		int sequence = ordinal & 0x1F;
+		byte entryChecksum = image.get(offset + 13);
+
+		//The last part of a name starts a new run, whatever came before it
+		if((ordinal & 0x40) != 0) {
+			this.end(findings);
+			runStart = offset;
+			runEntries = 1;
+			checksum = entryChecksum;
+			if(sequence == 0 || sequence > MAX_ENTRIES || (ordinal & 0xA0) != 0) {
+				broken = true;
+				return;
+			}
+			expected = sequence - 1;
+			length = (sequence - 1) * CHARACTERS_PER_ENTRY + this.copy(image, offset, sequence);
+			return;
+		}
+
+		//Any other entry has to continue the run being collected
+		if(runStart < 0) {
+			runStart = offset;
+			broken = true;
+		}
+		runEntries++;
+		if(broken)
+			return;
+		if(sequence != expected || sequence == 0 || (ordinal & 0xE0) != 0 || entryChecksum != checksum) {
+			broken = true;
+			return;
+		}
+		this.copy(image, offset, sequence);
+		expected--;
+	}
+
+	/**
+	 * Method to check the run collected so far against the short entry that
+	 * follows it, and end the run
+	 *
+	 * @param image - the image holding the entry
+	 * @param offset - the absolute offset of the short entry, before it is repaired
+	 * @param findings - the list to add an orphaned or mismatched run to
+	 * @return true if the run is a long name of this short entry, which name()
+	 *         returns until the next entry is added
+	 */
+	public boolean shortEntry(ImageSource image, long offset, List<Finding> findings) {
+		hasName = false;
+		if(runStart < 0)
+			return false;
+		if(broken || expected != 0) {
+			this.end(findings);
+			return false;
+		}
+		byte shortChecksum = LongNameDecoder.checksum(image, offset);
+		boolean matches = shortChecksum == checksum;
+		if(!matches)
+			findings.add(Finding.lfnChecksumMismatch(offset, checksum, shortChecksum, Finding.entryName(image, offset), new String(name, 0, length)));
+		this.reset();
+		hasName = matches;
+		return matches;
+	}
+
+	/**
+	 * Method to end a run that isn't followed by a short entry, at a deleted entry
+	 * or the end of the directory
+	 *
+	 * @param findings - the list to add the orphaned run to
+	 */
+	public void end(List<Finding> findings) {
+		if(runStart >= 0)
+			findings.add(Finding.orphanedLongName(runStart, runEntries));
+		this.reset();
+	}
+
+	/**
+	 * @return the long name of the short entry just checked, or null if it has none
+	 */
+	public String name() {
+		return hasName ? new String(name, 0, length) : null;
+	}
+
+	/**
+	 * Method to compute the checksum an LFN run carries of the short entry at an offset
+	 *
+	 * @param image - the image holding the entry
+	 * @param offset - the absolute offset of the short entry
+	 * @return the checksum
+	 */
+	public static byte checksum(ImageSource image, long offset) {
+		int sum = 0;
+		for(int i = 0; i < 11; i++)
+			sum = (((sum & 1) << 7) + ((sum & 0xFF) >>> 1) + (image.get(offset + i) & 0xFF)) & 0xFF;
+		return (byte) sum;
+	}
+
+	/**
+	 * Method to compute the checksum an LFN run carries of an 11 byte short name
+	 *
+	 * @param shortName - the short name
+	 * @return the checksum
+	 */
+	public static byte checksum(byte[] shortName) {
+		int sum = 0;
+		for(int i = 0; i < 11; i++)
+			sum = (((sum & 1) << 7) + ((sum & 0xFF) >>> 1) + (shortName[i] & 0xFF)) & 0xFF;
+		return (byte) sum;
+	}
+
+	/**
+	 * Helper method to copy the characters of an entry into its place in the buffer
+	 *
+	 * @return the number of characters before the terminating 0, 13 if there is none
+	 */
+	private int copy(ImageSource image, long offset, int sequence) {
+		int start = (sequence - 1) * CHARACTERS_PER_ENTRY;
+		int count = CHARACTERS_PER_ENTRY;
+		for(int i = 0; i < CHARACTERS_PER_ENTRY; i++) {
+			char c = (char) image.getShortLE(offset + CHARACTER_OFFSETS[i]);
+			if(c == 0 && count == CHARACTERS_PER_ENTRY)
+				count = i;
+			name[start + i] = c;
+		}
+		return count;
+	}
+}
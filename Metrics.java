@@ -0,0 +1,322 @@
+/**
+ * Timing and throughput of one analysis run.
+ *
+ * A run is split into phases (boot sector, FAT load, directory walk, ...)
+ * that follow each other on the analyzing thread, even where a phase does its
+ * work on the fork-join pool. For each phase the wall time, the CPU time of
+ * the whole process (so the pool's threads and any background hashing count
+ * too) and how much the shared counters grew are recorded. The counters are
+ * LongAdders, since the directory walk bumps them from every pool thread:
+ *		bytes read		image bytes read by the phase (FATs, directory
+ *						clusters, free clusters carved, the copy written)
+ *		bytes written	output bytes (repaired copy or patch, recovered files)
+ *		entries			directory entries analyzed
+ *		repairs			findings that changed the image
+ *
+ * Every phase is also committed as a JDK Flight Recorder event, so a run
+ * started with -XX:StartFlightRecording shows its phases next to the GC,
+ * I/O and thread events. When no recording is running, events cost nothing.
+ *
+ * The end of run summary is either a text table or one JSON object.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+
+public class Metrics {
+
+	//CPU time of the whole process, if the JVM can tell
+	private static final com.sun.management.OperatingSystemMXBean OS = processBean();
+
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder entries = new LongAdder();
+	private final LongAdder repairs = new LongAdder();
+	//Finished phases, in the order they ended
+	private final List<Phase> phases = new ArrayList<>();
+	//The image the phases are about, for the JFR events
+	private final String image;
+
+	/**
+	 * JFR event for one phase of a run
+	 */
+	@Name("fat32.AnalysisPhase")
+	@Label("FAT32 Analysis Phase")
+	@Category("FAT32 Analyzer")
+	@Description("One phase of analyzing a FAT32 image")
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+		@Label("Image")
+		String image;
+		@Label("CPU Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long cpuTime;
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesRead;
+		@Label("Bytes Written")
+		@DataAmount
+		long bytesWritten;
+		@Label("Entries")
+		long entries;
+		@Label("Repairs")
+		long repairs;
+	}
+
+	/**
+	 * One phase of a run, timed from start() until it is closed
+	 */
+	public final class Phase implements AutoCloseable {
+		public final String name;
+		private final PhaseEvent event = new PhaseEvent();
+		private final long startWall;
+		private final long startCpu;
+		private final long startRead;
+		private final long startWritten;
+		private final long startEntries;
+		private final long startRepairs;
+		private long wallNanos;
+		//-1 if the process CPU time isn't available
+		private long cpuNanos;
+		private long read;
+		private long written;
+		private long entryCount;
+		private long repairCount;
+
+		private Phase(String name) {
+			this.name = name;
+			event.begin();
+			this.startWall = System.nanoTime();
+			this.startCpu = cpuTime();
+			this.startRead = bytesRead.sum();
+			this.startWritten = bytesWritten.sum();
+			this.startEntries = entries.sum();
+			this.startRepairs = repairs.sum();
+		}
+
+		/**
+		 * Constructor for a phase of another run, copied under a new name
+		 */
+		private Phase(String name, Phase phase) {
+			this.name = name;
+			this.startWall = this.startCpu = this.startRead = this.startWritten = this.startEntries = this.startRepairs = 0;
+			this.wallNanos = phase.wallNanos;
+			this.cpuNanos = phase.cpuNanos;
+			this.read = phase.read;
+			this.written = phase.written;
+			this.entryCount = phase.entryCount;
+			this.repairCount = phase.repairCount;
+		}
+
+		/**
+		 * Method to end the phase, record it and commit its JFR event
+		 */
+		@Override
+		public void close() {
+			wallNanos = System.nanoTime() - startWall;
+			long cpu = cpuTime();
+			cpuNanos = cpu < 0 || startCpu < 0 ? -1 : cpu - startCpu;
+			read = bytesRead.sum() - startRead;
+			written = bytesWritten.sum() - startWritten;
+			entryCount = entries.sum() - startEntries;
+			repairCount = repairs.sum() - startRepairs;
+			synchronized(phases) {
+				phases.add(this);
+			}
+
+			event.end();
+			if(event.shouldCommit()) {
+				event.phase = name;
+				event.image = image;
+				event.cpuTime = cpuNanos;
+				event.bytesRead = read;
+				event.bytesWritten = written;
+				event.entries = entryCount;
+				event.repairs = repairCount;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Constructor for the metrics of one run
+	 *
+	 * @param image - the name of the image analyzed, for the JFR events
+	 */
+	public Metrics(String image) {
+		this.image = image;
+	}
+
+	/**
+	 * Method to start timing a phase
+	 *
+	 * @param name - the name of the phase
+	 * @return the phase, to close when it ends (try-with-resources)
+	 */
+	public Phase start(String name) {
+		return new Phase(name);
+	}
+
+	/**
+	 * Method to count image bytes read
+	 *
+	 * @param bytes - the number of bytes
+	 */
+	public void read(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	/**
+	 * Method to count output bytes written
+	 *
+	 * @param bytes - the number of bytes
+	 */
+	public void written(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	/**
+	 * Method to count directory entries analyzed
+	 *
+	 * @param count - the number of entries
+	 */
+	public void entries(long count) {
+		entries.add(count);
+	}
+
+	/**
+	 * Method to count the findings that changed the image
+	 *
+	 * @param findings - the findings of a phase
+	 */
+	public void repairs(List<Finding> findings) {
+		long count = 0;
+		for(Finding finding : findings) {
+			if(finding.newValue != -1 && finding.kind != Finding.Kind.LFN_CHECKSUM_MISMATCH)
+				count++;
+		}
+		repairs.add(count);
+	}
+
+	/**
+	 * Method to add the phases and counters of another run, such as one partition
+	 * of a disk, which ran at the same time as this one's current phase. Its
+	 * phases are listed under the given prefix.
+	 *
+	 * @param prefix - what to put in front of the other run's phase names
+	 * @param other - the other run's metrics
+	 */
+	public void add(String prefix, Metrics other) {
+		List<Phase> copies = new ArrayList<>();
+		synchronized(other.phases) {
+			for(Phase phase : other.phases)
+				copies.add(new Phase(prefix + phase.name, phase));
+		}
+		synchronized(phases) {
+			phases.addAll(copies);
+		}
+		bytesRead.add(other.bytesRead.sum());
+		bytesWritten.add(other.bytesWritten.sum());
+		entries.add(other.entries.sum());
+		repairs.add(other.repairs.sum());
+	}
+
+	/**
+	 * Method to format the summary as a text table, one line per phase
+	 *
+	 * @return the summary, with a line break at the end of every line
+	 */
+	public String text() {
+		String lineSeparator = System.lineSeparator();
+		StringBuilder text = new StringBuilder();
+		text.append("Metrics:").append(lineSeparator);
+		text.append(String.format("  %-32s %10s %10s %12s %12s %10s %12s%n", "Phase", "Wall (s)", "CPU (s)", "Read (MiB)", "Read MiB/s", "Entries", "Entries/s"));
+		for(Phase phase : this.phases()) {
+			text.append(String.format("  %-32s %10.3f %10s %12.1f %12s %10d %12s%n", phase.name, phase.wallNanos / 1e9,
+				phase.cpuNanos < 0 ? "-" : String.format("%.3f", phase.cpuNanos / 1e9), phase.read / 1048576.0,
+				rate(phase.read / 1048576.0, phase.wallNanos), phase.entryCount, phase.entryCount == 0 ? "-" : rate(phase.entryCount, phase.wallNanos)));
+		}
+		text.append(String.format("  Bytes read: %d, bytes written: %d, entries: %d, repairs: %d%n",
+			bytesRead.sum(), bytesWritten.sum(), entries.sum(), repairs.sum()));
+		return text.toString();
+	}
+
+	/**
+	 * Method to format the summary as one JSON object
+	 *
+	 * @return the summary, with a line break at the end
+	 */
+	public String json() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"image\":");
+		FindingWriter.appendJsonString(json, image);
+		json.append(",\"bytesRead\":").append(bytesRead.sum());
+		json.append(",\"bytesWritten\":").append(bytesWritten.sum());
+		json.append(",\"entries\":").append(entries.sum());
+		json.append(",\"repairs\":").append(repairs.sum());
+		json.append(",\"phases\":[");
+		List<Phase> phases = this.phases();
+		for(int i = 0; i < phases.size(); i++) {
+			Phase phase = phases.get(i);
+			if(i > 0)
+				json.append(',');
+			json.append("{\"name\":");
+			FindingWriter.appendJsonString(json, phase.name);
+			json.append(",\"wallNanos\":").append(phase.wallNanos);
+			json.append(",\"cpuNanos\":").append(phase.cpuNanos < 0 ? "null" : String.valueOf(phase.cpuNanos));
+			json.append(",\"bytesRead\":").append(phase.read);
+			json.append(",\"bytesWritten\":").append(phase.written);
+			json.append(",\"entries\":").append(phase.entryCount);
+			json.append(",\"repairs\":").append(phase.repairCount);
+			json.append('}');
+		}
+		json.append("]}\n");
+		return json.toString();
+	}
+
+	/**
+	 * Helper method to take a snapshot of the finished phases
+	 */
+	private List<Phase> phases() {
+		synchronized(phases) {
+			return new ArrayList<>(phases);
+		}
+	}
+
+	/**
+	 * Helper method to format an amount per second of wall time
+	 */
+	private static String rate(double amount, long wallNanos) {
+		return wallNanos <= 0 ? "-" : String.format("%.1f", amount * 1e9 / wallNanos);
+	}
+
+	/**
+	 * Helper method to read the CPU time of the whole process
+	 *
+	 * @return the CPU time in nanoseconds, or -1 if it isn't available
+	 */
+	private static long cpuTime() {
+		return OS == null ? -1 : OS.getProcessCpuTime();
+	}
+
+	/**
+	 * Helper method to find the platform bean that knows the process CPU time
+	 */
+	private static com.sun.management.OperatingSystemMXBean processBean() {
+		OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+		return bean instanceof com.sun.management.OperatingSystemMXBean ? (com.sun.management.OperatingSystemMXBean) bean : null;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * What one partition of a disk prints and finds, passed on in partition order.
+ *
+ * The partitions of a disk are analyzed at the same time, but what they print
+ * and find has to read as if they were analyzed one after another. Each
+ * partition prints to a stream over its output and writes its findings to it,
+ * and the output holds both back, in the order they came, until the partitions
+ * before it are done. Once its turn has come, it passes on what it held and
+ * then everything else as it comes, so only the partitions waiting for their
+ * turn hold on to findings.
+ *
+ * Findings are relocated onto the disk on the way. The console gets findings
+ * on a background thread, so before passing on text that follows findings the
+ * output waits for them to be written.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class PartitionOutput extends OutputStream implements FindingSink {
+
+	private final PartitionTable.Partition partition;
+	private final PrintStream out;
+	private final FindingSink sink;
+	//What was printed (as byte arrays) and found (as lists) before this partition's turn
+	private final List<Object> held = new ArrayList<>();
+	private boolean passing;
+	//Set when findings were passed on since the last text
+	private boolean findingsPassed;
+
+	/**
+	 * Constructor for the output of one partition
+	 *
+	 * @param partition - the partition
+	 * @param out - where to print what the partition prints
+	 * @param sink - where to write the partition's findings, once relocated
+	 */
+	public PartitionOutput(PartitionTable.Partition partition, PrintStream out, FindingSink sink) {
+		this.partition = partition;
+		this.out = out;
+		this.sink = sink;
+	}
+
+	/**
+	 * Method to pass on everything held back, and everything after it as it comes,
+	 * once the partitions before this one are done
+	 */
+	public synchronized void pass() throws IOException {
+		for(Object item : held) {
+			if(item instanceof byte[])
+				this.print((byte[]) item, 0, ((byte[]) item).length);
+			else
+				this.find(this.cast(item));
+		}
+		held.clear();
+		passing = true;
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		this.write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if(passing)
+			this.print(b, off, len);
+		else
+			held.add(Arrays.copyOfRange(b, off, off + len));
+	}
+
+	@Override
+	public synchronized void write(List<Finding> findings) throws IOException {
+		List<Finding> relocated = new ArrayList<>(findings.size());
+		for(Finding finding : findings)
+			relocated.add(finding.relocate(partition.start, partition.number));
+		if(passing)
+			this.find(relocated);
+		else
+			held.add(relocated);
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if(findingsPassed) {
+			sink.flush();
+			findingsPassed = false;
+		}
+	}
+
+	/**
+	 * Helper method to print text, after the findings passed on before it
+	 */
+	private void print(byte[] b, int off, int len) throws IOException {
+		this.flush();
+		out.write(b, off, len);
+	}
+
+	/**
+	 * Helper method to pass findings on
+	 */
+	private void find(List<Finding> findings) throws IOException {
+		sink.write(findings);
+		findingsPassed = true;
+	}
+
+	/**
+	 * Helper method to get back a list of findings that was held
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Finding> cast(Object item) {
+		return (List<Finding>) item;
+	}
+}
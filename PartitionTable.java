@@ -0,0 +1,307 @@
+/**
+ * Partition table of a whole-disk image, MBR or GPT.
+ *
+ * MBR: the four primary entries at offset 446 of sector 0. Extended partitions
+ * (types 0x05, 0x0F, 0x85) are followed through their chain of extended boot
+ * records, each holding one logical partition and a link to the next record.
+ * A single entry of type 0xEE is a protective MBR, and the disk is read as GPT.
+ *
+ * GPT: the header at LBA 1 (for 512 or 4096 byte logical blocks), checked
+ * against its CRC32, or else the backup header in the last LBA. Its partition
+ * entries are checked against their CRC32 too, and a header asking for far more
+ * or far larger entries than any disk uses is rejected before they are read.
+ *
+ * FAT32 partitions are MBR types 0x0B and 0x0C (and their hidden variants 0x1B
+ * and 0x1C), and GPT basic data and EFI system partitions whose boot sector or
+ * backup boot sector says FAT32 (basic data partitions are often NTFS or exFAT).
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+
+public class PartitionTable {
+
+	//Most extended boot records followed, in case the chain loops
+	private static final int MAX_LOGICAL_PARTITIONS = 128;
+	//Largest GPT entry count and entry size believed. The spec asks for at least
+	//128 entries of 128 bytes, and no disk comes near these.
+	private static final int MAX_GPT_ENTRIES = 16384;
+	private static final int MAX_GPT_ENTRY_SIZE = 4096;
+	//GPT partition type GUIDs, in their on-disk (mixed endian) byte order
+	private static final byte[] GPT_BASIC_DATA = guid("EBD0A0A2-B9E5-4433-87C0-68B6B72699C7");
+	private static final byte[] GPT_EFI_SYSTEM = guid("C12A7328-F81F-11D2-BA4B-00A0C93EC93B");
+
+	/**
+	 * One partition of the disk
+	 */
+	public static final class Partition {
+		//Number of the partition: 1-4 primary, 5 on logical, 1 on for GPT
+		public final int number;
+		//MBR type byte as two hex digits, or the GPT type GUID
+		public final String type;
+		//Absolute offset and length in bytes
+		public final long start;
+		public final long length;
+		public final boolean fat32;
+
+		Partition(int number, String type, long start, long length, boolean fat32) {
+			this.number = number;
+			this.type = type;
+			this.start = start;
+			this.length = length;
+			this.fat32 = fat32;
+		}
+
+		@Override
+		public String toString() {
+			return "Partition " + number + " (type " + type + ", offset " + start + ", " + length + " bytes)";
+		}
+	}
+
+	/**
+	 * Method to read the partition table of a disk image
+	 *
+	 * @param image - the whole-disk image
+	 * @return every partition found, in table order, or an empty list if the image
+	 *         has no valid partition table
+	 */
+	public static List<Partition> read(ImageSource image) {
+		List<Partition> partitions = new ArrayList<>();
+		if(image.size() < 1024 || image.get(510) != 0x55 || image.get(511) != (byte) 0xAA)
+			return partitions;
+
+		//Every entry has to be sane before any of them is believed, boot code at
+		//offset 446 of a volume boot sector could look like anything
+		for(int i = 0; i < 4; i++) {
+			long entry = 446 + i * 16;
+			int status = image.get(entry) & 0xFF;
+			if(status != 0 && status != 0x80)
+				return partitions;
+			if(image.get(entry + 4) == (byte) 0xEE)
+				return PartitionTable.readGPT(image);
+		}
+
+		for(int i = 0; i < 4; i++) {
+			long entry = 446 + i * 16;
+			int type = image.get(entry + 4) & 0xFF;
+			long start = Integer.toUnsignedLong(image.getIntLE(entry + 8)) * 512;
+			long length = Integer.toUnsignedLong(image.getIntLE(entry + 12)) * 512;
+			if(type == 0 || length == 0)
+				continue;
+			if(type == 0x05 || type == 0x0F || type == 0x85)
+				PartitionTable.readLogical(image, start, partitions);
+			else if(start > 0 && start < image.size())
+				partitions.add(new Partition(i + 1, String.format("0x%02X", type), start, length, isFat32Type(type)));
+		}
+		partitions.sort((a, b) -> Integer.compare(a.number, b.number));
+		return partitions;
+	}
+
+	/**
+	 * Helper method to follow the chain of extended boot records of an extended partition
+	 */
+	private static void readLogical(ImageSource image, long extendedStart, List<Partition> partitions) {
+		Set<Long> visited = new HashSet<>();
+		int number = 5;
+		for(long ebr = extendedStart; ebr > 0 && ebr + 512 <= image.size() && visited.add(ebr) && number < 5 + MAX_LOGICAL_PARTITIONS; ) {
+			if(image.get(ebr + 510) != 0x55 || image.get(ebr + 511) != (byte) 0xAA)
+				return;
+			//The logical partition is relative to this record, the next record to the extended partition
+			int type = image.get(ebr + 446 + 4) & 0xFF;
+			long start = ebr + Integer.toUnsignedLong(image.getIntLE(ebr + 446 + 8)) * 512;
+			long length = Integer.toUnsignedLong(image.getIntLE(ebr + 446 + 12)) * 512;
+			if(type != 0 && length != 0 && start < image.size())
+				partitions.add(new Partition(number++, String.format("0x%02X", type), start, length, isFat32Type(type)));
+			long next = Integer.toUnsignedLong(image.getIntLE(ebr + 462 + 8)) * 512;
+			ebr = next == 0 ? 0 : extendedStart + next;
+		}
+	}
+
+	/**
+	 * Helper method to read a GPT, trying 512 then 4096 byte logical blocks and the
+	 * primary header before the backup
+	 */
+	private static List<Partition> readGPT(ImageSource image) {
+		for(int blockSize : new int[] {512, 4096}) {
+			long lastBlock = image.size() / blockSize - 1;
+			for(long headerBlock : new long[] {1, lastBlock}) {
+				List<Partition> partitions = PartitionTable.readGPT(image, blockSize, headerBlock * blockSize);
+				if(partitions != null)
+					return partitions;
+			}
+		}
+		return new ArrayList<>();
+	}
+
+	/**
+	 * Helper method to read a GPT from one header
+	 *
+	 * @return the partitions, or null if the header or its entries are invalid
+	 */
+	private static List<Partition> readGPT(ImageSource image, int blockSize, long header) {
+		if(header <= 0 || header + 92 > image.size())
+			return null;
+		byte[] signature = new byte[8];
+		image.read(header, signature, 0, 8);
+		if(!new String(signature, StandardCharsets.US_ASCII).equals("EFI PART"))
+			return null;
+		int headerSize = image.getIntLE(header + 12);
+		if(headerSize < 92 || headerSize > blockSize)
+			return null;
+		byte[] headerBytes = new byte[headerSize];
+		image.read(header, headerBytes, 0, headerSize);
+		int headerCrc = image.getIntLE(header + 16);
+		for(int i = 16; i < 20; i++)
+			headerBytes[i] = 0;
+		if(crc32(headerBytes) != headerCrc)
+			return null;
+
+		//Every field is checked before it is multiplied, so a damaged header can't overflow
+		long entriesBlock = image.getLongLE(header + 72);
+		int entryCount = image.getIntLE(header + 80);
+		int entrySize = image.getIntLE(header + 84);
+		long blocks = image.size() / blockSize;
+		if(entriesBlock <= 0 || entriesBlock >= blocks || entryCount < 0 || entryCount > MAX_GPT_ENTRIES
+				|| entrySize < 128 || entrySize > MAX_GPT_ENTRY_SIZE)
+			return null;
+		long entriesOffset = entriesBlock * blockSize;
+		if(entriesOffset + (long) entryCount * entrySize > image.size())
+			return null;
+
+		//Entries are read one at a time and checksummed as they go, and the used ones
+		//are only believed once the checksum of all of them matches
+		CRC32 crc = new CRC32();
+		byte[] entry = new byte[entrySize];
+		List<byte[]> types = new ArrayList<>();
+		List<long[]> used = new ArrayList<>();
+		for(int i = 0; i < entryCount; i++) {
+			image.read(entriesOffset + (long) i * entrySize, entry, 0, entrySize);
+			crc.update(entry);
+			byte[] type = Arrays.copyOf(entry, 16);
+			if(isZero(type))
+				continue;
+			long firstBlock = getLongLE(entry, 32);
+			long lastBlock = getLongLE(entry, 40);
+			if(firstBlock <= 0 || firstBlock >= blocks || lastBlock < firstBlock)
+				continue;
+			//A partition running past the end of the disk is cut short there anyway
+			types.add(type);
+			used.add(new long[] {i + 1, firstBlock * blockSize, (Math.min(lastBlock, blocks - 1) + 1 - firstBlock) * blockSize});
+		}
+		if((int) crc.getValue() != image.getIntLE(header + 88))
+			return null;
+
+		List<Partition> partitions = new ArrayList<>();
+		for(int i = 0; i < used.size(); i++) {
+			byte[] type = types.get(i);
+			long start = used.get(i)[1];
+			long length = used.get(i)[2];
+			boolean fat32 = (Arrays.equals(type, GPT_BASIC_DATA) || Arrays.equals(type, GPT_EFI_SYSTEM))
+				&& PartitionTable.saysFat32(image, start, length);
+			partitions.add(new Partition((int) used.get(i)[0], formatGuid(type), start, length, fat32));
+		}
+		return partitions;
+	}
+
+	/**
+	 * Helper method to check whether an MBR partition type is FAT32
+	 */
+	private static boolean isFat32Type(int type) {
+		return type == 0x0B || type == 0x0C || type == 0x1B || type == 0x1C;
+	}
+
+	/**
+	 * Helper method to check whether the boot sector (or the backup in sector 6) of
+	 * a partition names FAT32 as its file system type
+	 */
+	private static boolean saysFat32(ImageSource image, long start, long length) {
+		byte[] fileSystemType = new byte[8];
+		for(long sector : new long[] {0, 6 * 512}) {
+			if(sector + 90 > length || start + sector + 90 > image.size())
+				continue;
+			image.read(start + sector + 82, fileSystemType, 0, 8);
+			if(new String(fileSystemType, StandardCharsets.US_ASCII).equals("FAT32   "))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Helper method to compute the CRC32 of a byte array, as GPT stores it
+	 */
+	private static int crc32(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Helper method to read a little endian 64 bit field of a byte array
+	 */
+	private static long getLongLE(byte[] bytes, int offset) {
+		long value = 0;
+		for(int i = 7; i >= 0; i--)
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		return value;
+	}
+
+	/**
+	 * Helper method to check whether every byte of an array is 0
+	 */
+	private static boolean isZero(byte[] bytes) {
+		for(byte b : bytes) {
+			if(b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Helper method to turn a GUID string into its on-disk bytes: the first three
+	 * groups little endian, the rest as written
+	 */
+	private static byte[] guid(String guid) {
+		String hex = guid.replace("-", "");
+		byte[] bytes = new byte[16];
+		for(int i = 0; i < 16; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		reverse(bytes, 0, 4);
+		reverse(bytes, 4, 2);
+		reverse(bytes, 6, 2);
+		return bytes;
+	}
+
+	/**
+	 * Helper method to format on-disk GUID bytes as a GUID string
+	 */
+	private static String formatGuid(byte[] bytes) {
+		byte[] copy = bytes.clone();
+		reverse(copy, 0, 4);
+		reverse(copy, 4, 2);
+		reverse(copy, 6, 2);
+		StringBuilder guid = new StringBuilder();
+		for(int i = 0; i < 16; i++) {
+			if(i == 4 || i == 6 || i == 8 || i == 10)
+				guid.append('-');
+			guid.append(String.format("%02X", copy[i] & 0xFF));
+		}
+		return guid.toString();
+	}
+
+	/**
+	 * Helper method to reverse part of a byte array in place
+	 */
+	private static void reverse(byte[] bytes, int from, int length) {
+		for(int i = 0; i < length / 2; i++) {
+			byte b = bytes[from + i];
+			bytes[from + i] = bytes[from + length - 1 - i];
+			bytes[from + length - 1 - i] = b;
+		}
+	}
+}
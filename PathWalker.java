@@ -0,0 +1,165 @@
+/**
+ * Walk of the directory tree on one thread that knows every entry's full path.
+ *
+ * The tree is walked from the root, depth first, each directory once, and
+ * every live and deleted short entry is handed to a visitor with its full
+ * path: long names where they check out, otherwise 8.3 names. Deleted entries
+ * are named the way recovery mode names them, their directories aren't walked
+ * since their chains are gone. Volume labels and the dot entries are skipped.
+ *
+ * Nothing is repaired or reported, orphaned and mismatched long names are the
+ * analysis' business (see DirectoryWalker). The timeline and the directory
+ * index are both built from this walk, before any entry is repaired.
+ */
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+
+public class PathWalker {
+
+	/**
+	 * Receiver of the entries of the tree
+	 */
+	public interface Visitor {
+		/**
+		 * @param offset - the offset of the short entry in the volume
+		 * @param path - its full path from the root, starting and, for a
+		 *               directory, ending in /
+		 * @param deleted - whether it is a deleted entry
+		 */
+		void entry(long offset, String path, boolean deleted) throws IOException;
+
+		/**
+		 * Called before the entries of each directory are handed over, so entries
+		 * that share a path can be told apart by the directory they are in
+		 *
+		 * @param cluster - the first cluster of the directory
+		 */
+		default void directory(int cluster) throws IOException {
+		}
+	}
+
+	/**
+	 * One directory still to walk and its path
+	 */
+	private static final class PendingDirectory {
+		final int cluster;
+		final String path;
+
+		PendingDirectory(int cluster, String path) {
+			this.cluster = cluster;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * Method to walk the tree of a volume
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded
+	 * @param visitor - the receiver of every entry
+	 */
+	public static void walk(FAT32Analyzer analyzer, Visitor visitor) throws IOException {
+		ImageSource image = analyzer.getImageSource();
+		FatTable fat = analyzer.getFAT();
+		int bytesPerCluster = analyzer.getBytesPerSector() * analyzer.getSectorsPerCluster();
+		FatTable.Chain chain = fat.chain();
+		LongNameDecoder names = new LongNameDecoder();
+		List<Finding> ignored = new ArrayList<>();
+		long[] deletedLFNs = new long[LongNameDecoder.MAX_ENTRIES];
+		ClusterBitmap walked = new ClusterBitmap(fat.size());
+		Deque<PendingDirectory> pending = new ArrayDeque<>();
+		if(fat.isDataCluster(analyzer.getRootCluster()) && walked.set(analyzer.getRootCluster()))
+			pending.push(new PendingDirectory(analyzer.getRootCluster(), ""));
+
+		while(!pending.isEmpty()) {
+			PendingDirectory directory = pending.pop();
+			visitor.directory(directory.cluster);
+			boolean isRoot = directory.cluster == analyzer.getRootCluster();
+			int deletedLFNCount = 0;
+			long entryCount = 0;
+			names.reset();
+			chain.start(directory.cluster);
+			boolean done = false;
+			for(int cluster = chain.next(); cluster != -1 && !done; cluster = chain.next()) {
+				long clusterStart = analyzer.clusterOffset(cluster);
+				if(clusterStart + bytesPerCluster > image.size())
+					break;
+				analyzer.getMetrics().read(bytesPerCluster);
+				for(long offset = clusterStart; offset < clusterStart + bytesPerCluster; offset += 32) {
+					byte firstByte = image.get(offset);
+					byte attribute = image.get(offset + 11);
+					if(firstByte == 0) {
+						done = true;
+						break;
+					}
+					entryCount++;
+					ignored.clear();
+
+					if(firstByte == -27) {
+						names.end(ignored);
+						if(attribute == 15) {
+							if(deletedLFNCount == deletedLFNs.length)
+								deletedLFNCount = 0;
+							deletedLFNs[deletedLFNCount++] = offset;
+							continue;
+						}
+						Finding deleted = Recovery.deletedEntry(analyzer, offset, isRoot ? 0 : directory.cluster, deletedLFNs, deletedLFNCount);
+						deletedLFNCount = 0;
+						if(deleted != null)
+							visitor.entry(offset, directory.path + "/" + deleted.entryName, true);
+						continue;
+					}
+					deletedLFNCount = 0;
+					if(attribute == 15) {
+						names.entry(image, offset, ignored);
+						continue;
+					}
+					boolean hasLongName = names.shortEntry(image, offset, ignored);
+					//Volume labels and the dot entries aren't files
+					if((attribute & 8) != 0 || firstByte == 46)
+						continue;
+
+					String path = directory.path + "/" + (hasLongName ? names.name() : shortName(image, offset));
+					boolean isDirectory = (attribute & 16) != 0;
+					visitor.entry(offset, isDirectory ? path + "/" : path, false);
+					int entryCluster = (image.getShortLE(offset + 20) << 16) | image.getShortLE(offset + 26);
+					if(isDirectory && fat.isDataCluster(entryCluster) && walked.set(entryCluster))
+						pending.push(new PendingDirectory(entryCluster, path));
+				}
+			}
+			analyzer.getMetrics().entries(entryCount);
+		}
+	}
+
+	/**
+	 * Method to format a live short name as NAME.EXT
+	 *
+	 * @param image - the image holding the entry
+	 * @param offset - the offset of the short entry
+	 * @return the name, without the dot if there is no extension
+	 */
+	public static String shortName(ImageSource image, long offset) {
+		char[] name = new char[12];
+		int length = 0;
+		for(int i = 0; i < 8; i++) {
+			int b = image.get(offset + i) & 0xFF;
+			//0x05 stands in for a leading 0xE5
+			name[length++] = (char) (i == 0 && b == 5 ? 0xE5 : b);
+		}
+		while(length > 0 && name[length - 1] == ' ')
+			length--;
+		int base = length;
+		name[length++] = '.';
+		for(int i = 8; i < 11; i++)
+			name[length++] = (char) (image.get(offset + i) & 0xFF);
+		while(length > base + 1 && name[length - 1] == ' ')
+			length--;
+		if(length == base + 1)
+			length = base;
+		return new String(name, 0, length);
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Background read-ahead for a reader that goes through an image from start to
+ * end, such as the hasher or the writer of a repaired copy.
+ *
+ * The reader reports how far it has got, and a thread of its own loads the
+ * next stretch of the image into the mapping (ImageSource.load) in large
+ * sequential reads, staying up to DISTANCE bytes ahead. The reader then finds
+ * its data in memory instead of waiting on a page fault at a time, which
+ * matters most on spinning disks, network storage and split images whose
+ * segments are separate files the kernel reads ahead of one by one. Holes of
+ * sparse images are loaded as zero pages, without any disk reads.
+ *
+ * Read-ahead is only an optimization: if the thread falls behind or fails, the
+ * reader faults its data in itself.
+ */
+
+public class ReadAhead implements AutoCloseable {
+
+	//Bytes loaded at a time, and how far ahead of the reader loading may go
+	private static final int CHUNK = 4 << 20;
+	private static final long DISTANCE = 64L << 20;
+
+	private final ImageSource image;
+	private final long end;
+	//Guarded by this
+	private long reached;
+	private boolean closed;
+	private final Thread thread;
+
+	/**
+	 * Constructor for a read-ahead over a range of an image, starting its thread
+	 *
+	 * @param image - the image the reader reads
+	 * @param start - the offset the reader starts at
+	 * @param end - the offset the reader stops at
+	 */
+	public ReadAhead(ImageSource image, long start, long end) {
+		this.image = image;
+		this.end = Math.min(end, image.size());
+		this.reached = start;
+		this.thread = new Thread(() -> run(start), "read-ahead");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Method to report how far the reader has got
+	 *
+	 * @param position - the offset the reader reads next
+	 */
+	public synchronized void reached(long position) {
+		if(position > reached) {
+			reached = position;
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Method to stop the thread once the reader is done
+	 */
+	@Override
+	public void close() {
+		synchronized(this) {
+			closed = true;
+			this.notifyAll();
+		}
+		try {
+			thread.join();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Helper method run by the thread: load chunk after chunk, waiting whenever
+	 * it is DISTANCE ahead of the reader
+	 *
+	 * @param loaded - the offset loading starts at
+	 */
+	private void run(long loaded) {
+		try {
+			while(loaded < end) {
+				synchronized(this) {
+					while(!closed && loaded >= reached + DISTANCE)
+						this.wait();
+					if(closed)
+						return;
+					//Nothing is gained by loading what the reader has already read
+					loaded = Math.max(loaded, reached);
+				}
+				int length = (int) Math.min(CHUNK, end - loaded);
+				image.load(loaded, length);
+				loaded += length;
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch(RuntimeException re) {
+			//The reader reads everything it needs itself
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * Read scheduler that loads the clusters of the directories a walk is about to
+ * visit in offset order, instead of letting the walk fault them in one seek at
+ * a time.
+ *
+ * Walkers hand the scheduler their frontier: every directory they have found
+ * but not analyzed yet. A background thread follows each directory's chain
+ * through the in-memory FAT and keeps the pending clusters sorted by number,
+ * which is offset order. It sweeps upwards through them like an elevator,
+ * wrapping around at the end, and coalesces runs of adjacent clusters into
+ * one read of up to MAX_RUN bytes. Spinning disks and network storage then
+ * see long sequential reads rather than one seek per cluster.
+ *
+ * The image is memory-mapped, so a run is read by loading its pages into the
+ * mapping the analysis reads through (ImageSource.load) and the cluster cache
+ * is the mapping itself. Heap copies of clusters would put a lookup in front
+ * of every byte read. The scheduler keeps an LRU of the clusters it loaded,
+ * limited to the cache size. Clusters still in it aren't read again, and
+ * clusters that dropped out are read again if they come up, since the OS may
+ * have evicted their pages by then.
+ *
+ * Read-ahead is bounded: the thread stops loading once the clusters loaded for
+ * directories the walk hasn't reached yet add up to half the cache, so they
+ * aren't pushed out before they are used. Once a walker starts a directory,
+ * its clusters stop counting, and any of them not loaded yet are dropped,
+ * since the walker is faulting them in anyway.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+
+public class ReadScheduler implements AutoCloseable {
+
+	//Longest single read
+	private static final int MAX_RUN = 1 << 20;
+
+	private final FAT32Analyzer analyzer;
+	private final ImageSource image;
+	private final FatTable fat;
+	private final int bytesPerCluster;
+	private final long readAhead;
+	private final int cacheClusters;
+	//Everything below is guarded by this
+	//Clusters waiting to be read, by cluster number, and the directory each is for
+	private final TreeMap<Integer, Integer> pending = new TreeMap<>();
+	//Pending clusters of every directory not started yet
+	private final Map<Integer, List<Integer>> pendingByDirectory = new HashMap<>();
+	//Bytes loaded for every directory not started yet, and their total
+	private final Map<Integer, Long> loadedByDirectory = new HashMap<>();
+	private long ahead;
+	//Directories whose chains still have to be followed, and directories started
+	private final List<Integer> submitted = new ArrayList<>();
+	private final Set<Integer> started = new HashSet<>();
+	//Clusters loaded, least recently used first
+	private final LinkedHashMap<Integer, Boolean> loaded;
+	//Where the sweep is
+	private int position;
+	private boolean closed;
+	private final Thread thread;
+
+	/**
+	 * Constructor for a scheduler over a volume, starting its thread
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded
+	 * @param cacheSize - how many bytes of loaded clusters to keep track of, half
+	 *                    of which may be read ahead of the walk
+	 */
+	public ReadScheduler(FAT32Analyzer analyzer, long cacheSize) {
+		this.analyzer = analyzer;
+		this.image = analyzer.getImageSource();
+		this.fat = analyzer.getFAT();
+		this.bytesPerCluster = analyzer.getBytesPerSector() * analyzer.getSectorsPerCluster();
+		this.readAhead = Math.max(bytesPerCluster, cacheSize / 2);
+		this.cacheClusters = (int) Math.max(1, Math.min(Integer.MAX_VALUE, cacheSize / bytesPerCluster));
+		this.loaded = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+				return size() > cacheClusters;
+			}
+		};
+		this.thread = new Thread(this::run, "read-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Method to add a directory the walk will visit to the frontier
+	 *
+	 * @param firstCluster - the first cluster of the directory
+	 */
+	public synchronized void submit(int firstCluster) {
+		if(closed)
+			return;
+		submitted.add(firstCluster);
+		this.notifyAll();
+	}
+
+	/**
+	 * Method to tell the scheduler a walker is starting on a directory
+	 *
+	 * @param firstCluster - the first cluster of the directory
+	 */
+	public synchronized void started(int firstCluster) {
+		started.add(firstCluster);
+		Long bytes = loadedByDirectory.remove(firstCluster);
+		if(bytes != null)
+			ahead -= bytes;
+		List<Integer> clusters = pendingByDirectory.remove(firstCluster);
+		if(clusters != null) {
+			for(int cluster : clusters)
+				pending.remove(cluster, firstCluster);
+		}
+		submitted.remove((Integer) firstCluster);
+		this.notifyAll();
+	}
+
+	/**
+	 * Method to stop the scheduler's thread once the walk is done
+	 */
+	@Override
+	public void close() {
+		synchronized(this) {
+			closed = true;
+			this.notifyAll();
+		}
+		try {
+			thread.join();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Helper method run by the scheduler's thread: follow the chains of submitted
+	 * directories, then read the next run of the sweep, until closed
+	 */
+	private void run() {
+		FatTable.Chain chain = fat.chain();
+		List<Integer> directories = new ArrayList<>();
+		try {
+			while(true) {
+				long start;
+				int length;
+				int first;
+				synchronized(this) {
+					while(!closed && submitted.isEmpty() && (pending.isEmpty() || ahead >= readAhead))
+						this.wait();
+					if(closed)
+						return;
+					directories.addAll(submitted);
+					submitted.clear();
+				}
+
+				//Chains are followed outside the lock, the FAT doesn't change
+				Map<Integer, List<Integer>> chains = new HashMap<>();
+				for(int directory : directories) {
+					List<Integer> clusters = new ArrayList<>();
+					chain.start(directory);
+					for(int cluster = chain.next(); cluster != -1; cluster = chain.next())
+						clusters.add(cluster);
+					chains.put(directory, clusters);
+				}
+				directories.clear();
+
+				synchronized(this) {
+					for(Map.Entry<Integer, List<Integer>> entry : chains.entrySet()) {
+						if(started.contains(entry.getKey()))
+							continue;
+						List<Integer> clusters = new ArrayList<>();
+						for(int cluster : entry.getValue()) {
+							if(loaded.get(cluster) == null && pending.putIfAbsent(cluster, entry.getKey()) == null)
+								clusters.add(cluster);
+						}
+						if(!clusters.isEmpty())
+							pendingByDirectory.put(entry.getKey(), clusters);
+					}
+					if(pending.isEmpty() || ahead >= readAhead)
+						continue;
+
+					//The next run of adjacent clusters up from where the sweep is
+					Integer next = pending.ceilingKey(position);
+					first = next != null ? next : pending.firstKey();
+					int last = first;
+					while(last - first + 1 < MAX_RUN / bytesPerCluster && pending.containsKey(last + 1))
+						last++;
+					start = analyzer.clusterOffset(first);
+					length = (last - first + 1) * bytesPerCluster;
+					if(start + length > image.size())
+						length = (int) Math.max(0, image.size() - start);
+					for(int cluster = first; cluster <= last; cluster++) {
+						int directory = pending.remove(cluster);
+						loaded.put(cluster, Boolean.TRUE);
+						List<Integer> clusters = pendingByDirectory.get(directory);
+						if(clusters != null) {
+							clusters.remove((Integer) cluster);
+							if(clusters.isEmpty())
+								pendingByDirectory.remove(directory);
+						}
+						loadedByDirectory.merge(directory, (long) bytesPerCluster, Long::sum);
+						ahead += bytesPerCluster;
+					}
+					position = last + 1;
+				}
+				if(length > 0)
+					image.load(start, length);
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch(RuntimeException re) {
+			//Loading ahead is only an optimization, the walk reads everything it needs itself
+		}
+	}
+}
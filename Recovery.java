@@ -0,0 +1,176 @@
+/**
+ * Recovery mode: deleted entries and file carving.
+ *
+ * While the directory tree is walked in recovery mode, deleted (0xE5) entries
+ * are left exactly as they were found instead of being "repaired", and every
+ * deleted short entry is listed with the long name entries in front of it. A
+ * deleted entry's first cluster and size survive, but its FAT chain doesn't,
+ * so its likely cluster run is rebuilt the way undelete tools do: the clusters
+ * its size needs, contiguous from the first, for as long as they are still
+ * free.
+ *
+ * The recovery directory then gets:
+ *		deleted/	the free part of every deleted file's run
+ *		carved/		files carved from the rest of the free clusters (see Carver)
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.List;
+
+
+public class Recovery {
+
+	/**
+	 * Method to describe a deleted short entry
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded
+	 * @param offset - the absolute offset of the deleted short entry
+	 * @param directory - the first cluster of the directory holding it, 0 for the root
+	 * @param lfnOffsets - the offsets of the deleted long name entries right in
+	 *                     front of it, in directory order
+	 * @param lfnCount - the number of those offsets
+	 * @return the finding, or null if the entry is a volume label
+	 */
+	public static Finding deletedEntry(FAT32Analyzer analyzer, long offset, int directory, long[] lfnOffsets, int lfnCount) {
+		ImageSource image = analyzer.getImageSource();
+		FatTable fat = analyzer.getFAT();
+		byte attribute = image.get(offset + 11);
+		if((attribute & 8) != 0)
+			return null;
+		boolean isDirectory = (attribute & 16) != 0;
+
+		byte[] shortName = new byte[11];
+		image.read(offset, shortName, 0, 11);
+		//Either name takes the first byte the long name's checksum recovers
+		String name = Recovery.longName(image, shortName, lfnOffsets, lfnCount);
+		if(name == null || name.isEmpty())
+			name = Recovery.shortName(shortName);
+		if(isDirectory)
+			name += "/";
+
+		int cluster = (image.getShortLE(offset + 20) << 16) | image.getShortLE(offset + 26);
+		long size = Integer.toUnsignedLong(image.getIntLE(offset + 28));
+		//A directory's size is always 0, but its first cluster is worth knowing about
+		long bytesPerCluster = (long) analyzer.getBytesPerSector() * analyzer.getSectorsPerCluster();
+		long needed = isDirectory ? 1 : (size + bytesPerCluster - 1) / bytesPerCluster;
+		int free = 0;
+		while(free < needed && fat.isDataCluster(cluster + free) && fat.next(cluster + free) == FatTable.FREE_CLUSTER)
+			free++;
+		return Finding.deletedEntry(offset, name, directory, cluster, free, size);
+	}
+
+	/**
+	 * Method to write out deleted files and carve the rest of the free clusters
+	 *
+	 * @param analyzer - the analyzer of the volume, after the directory walk
+	 * @param findings - the findings of the walk, whose deleted entries are written out
+	 * @param directory - the recovery directory
+	 * @return the carved files, as findings
+	 */
+	public static List<Finding> recover(FAT32Analyzer analyzer, List<Finding> findings, File directory) throws IOException {
+		ImageSource image = analyzer.getImageSource();
+		FatTable fat = analyzer.getFAT();
+		long bytesPerCluster = (long) analyzer.getBytesPerSector() * analyzer.getSectorsPerCluster();
+		File deletedDirectory = new File(directory, "deleted");
+		Files.createDirectories(deletedDirectory.toPath());
+
+		//Clusters written out as part of a deleted file aren't carved again
+		ClusterBitmap recovered = new ClusterBitmap(fat.size());
+		for(Finding finding : findings) {
+			if(finding.kind != Finding.Kind.DELETED_ENTRY || finding.count == 0 || finding.size == 0)
+				continue;
+			long offset = analyzer.clusterOffset(finding.cluster);
+			long length = Math.min(finding.size, Math.min(finding.count * bytesPerCluster, image.size() - offset));
+			if(length <= 0)
+				continue;
+			for(int i = 0; i < finding.count; i++)
+				recovered.set(finding.cluster + i);
+			File file = new File(deletedDirectory, finding.offset + "-" + Recovery.fileName(finding.entryName));
+			try(FileChannel channel = new FileOutputStream(file).getChannel()) {
+				image.transferTo(offset, length, channel);
+			}
+			analyzer.getMetrics().read(length);
+			analyzer.getMetrics().written(length);
+		}
+
+		return Carver.carve(analyzer, recovered, new File(directory, "carved"), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Helper method to rebuild a deleted entry's long name. The first byte of every
+	 * entry was overwritten with 0xE5, so the entries can't be put in order by their
+	 * ordinals, but they sit in reverse order right in front of the short entry.
+	 * They only belong to it if their checksum matches the short name with some
+	 * first byte, which also tells what the first byte was: it is put back in
+	 * shortName[0].
+	 *
+	 * @return the long name, or null if there is none or it doesn't match
+	 */
+	private static String longName(ImageSource image, byte[] shortName, long[] lfnOffsets, int lfnCount) {
+		if(lfnCount == 0)
+			return null;
+		byte checksum = image.get(lfnOffsets[lfnCount - 1] + 13);
+		for(int i = 0; i < lfnCount; i++) {
+			if(image.get(lfnOffsets[i] + 13) != checksum)
+				return null;
+		}
+		int firstByte = -1;
+		for(int b = 0; b < 256 && firstByte < 0; b++) {
+			shortName[0] = (byte) b;
+			if(LongNameDecoder.checksum(shortName) == checksum)
+				firstByte = b;
+		}
+		shortName[0] = (byte) (firstByte < 0 ? 0xE5 : firstByte);
+		if(firstByte < 0)
+			return null;
+
+		StringBuilder name = new StringBuilder();
+		for(int i = lfnCount - 1; i >= 0; i--) {
+			for(int position : LongNameDecoder.CHARACTER_OFFSETS) {
+				char c = (char) image.getShortLE(lfnOffsets[i] + position);
+				if(c == 0)
+					return name.toString();
+				if(c != 0xFFFF)
+					name.append(c);
+			}
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Helper method to format a deleted short name as NAME.EXT, with _ for the first
+	 * byte unless its long name recovered it
+	 */
+	private static String shortName(byte[] shortName) {
+		StringBuilder name = new StringBuilder();
+		//0x05 stands for a name that really starts with 0xE5
+		if(shortName[0] == (byte) 0xE5)
+			name.append('_');
+		else
+			name.append((char) (shortName[0] == 0x05 ? 0xE5 : shortName[0] & 0xFF));
+		for(int i = 1; i < 8; i++)
+			name.append((char) (shortName[i] & 0xFF));
+		String base = name.toString().trim();
+		name.setLength(0);
+		for(int i = 8; i < 11; i++)
+			name.append((char) (shortName[i] & 0xFF));
+		String extension = name.toString().trim();
+		return extension.isEmpty() ? base : base + "." + extension;
+	}
+
+	/**
+	 * Helper method to make a recovered name safe to use as a file name
+	 */
+	static String fileName(String name) {
+		StringBuilder safe = new StringBuilder(name.length());
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			safe.append(c < 0x20 || "/\\:*?\"<>|".indexOf(c) >= 0 ? '_' : c);
+		}
+		return safe.toString();
+	}
+}
@@ -0,0 +1,363 @@
+/**
+ * Sector-granular journal of the repairs made to an image.
+ *
+ * The input image is only ever read. Every repair lands in a private copy of
+ * the 512 byte sector it touches, next to the sector's original contents, so
+ * writing the result costs time proportional to the number of repaired
+ * sectors rather than the size of the image. The journal can be written out
+ * two ways:
+ *		a) as a patch file holding the original and repaired copy of each
+ *		   changed sector, which can later be applied to or reverted from an
+ *		   image in place
+ *		b) as a full repaired copy of the image, where clean ranges are copied
+ *		   with FileChannel.transferTo and only dirty sectors are written by hand
+ *		   (or, when the input and copy are hashed, streamed through the hashers'
+ *		   buffers, so the image is read once for both)
+ *
+ * A full copy is written sparse: pieces of the image that are all zeros, like
+ * the holes of a sparse image, are skipped rather than written, so they stay
+ * holes in the copy. They still have to be read to tell they are zeros (see
+ * ImageSource.isZero), so a copy takes a pass over the whole image however
+ * sparse it is. The image is read ahead of the copy on a background thread
+ * (see ReadAhead).
+ *
+ * Patch file layout (big endian):
+ *		8 bytes		magic "FAT32PCH"
+ *		int			version (1)
+ *		int			sector size (512)
+ *		long		size of the image the patch was made against
+ *		int			number of sectors
+ *		then for every sector, in offset order:
+ *		long		absolute offset of the sector
+ *		int			length of the sector (512 unless it is the last, short sector)
+ *		byte[]		original contents
+ *		byte[]		repaired contents
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class SectorJournal {
+
+	//Journal granularity. Every legal bytes per sector value is a multiple of this.
+	public static final int SECTOR_SHIFT = 9;
+	public static final int SECTOR_SIZE = 1 << SECTOR_SHIFT;
+	public static final int SECTOR_MASK = SECTOR_SIZE - 1;
+
+	private static final byte[] MAGIC = {'F', 'A', 'T', '3', '2', 'P', 'C', 'H'};
+	private static final int VERSION = 1;
+	//Granularity at which zeros are left out of a copy
+	private static final int PIECE_SIZE = 1 << 16;
+	private static final byte[] ZEROS = new byte[PIECE_SIZE];
+
+	/**
+	 * A dirty sector, holding what was on the image and what the repairs made of it
+	 */
+	public static class Sector {
+		public final long offset;
+		public final byte[] original;
+		public final byte[] repaired;
+
+		Sector(long offset, byte[] original) {
+			this.offset = offset;
+			this.original = original;
+			this.repaired = original.clone();
+		}
+
+		/**
+		 * @return true if the repairs actually changed this sector
+		 */
+		public boolean changed() {
+			return !Arrays.equals(original, repaired);
+		}
+	}
+
+	//Dirty sectors keyed by sector index (offset >>> SECTOR_SHIFT)
+	private final ConcurrentHashMap<Long, Sector> sectors = new ConcurrentHashMap<>();
+
+	/**
+	 * @return true if nothing has been written through the journal
+	 */
+	public boolean isEmpty() {
+		return sectors.isEmpty();
+	}
+
+	/**
+	 * Method to look up the repaired copy of the sector holding an offset
+	 *
+	 * @param offset - an absolute offset in the image
+	 * @return the repaired sector contents, or null if the sector is clean
+	 */
+	public byte[] repaired(long offset) {
+		Sector sector = sectors.get(offset >>> SECTOR_SHIFT);
+		return sector == null ? null : sector.repaired;
+	}
+
+	/**
+	 * Method to get the repaired copy of the sector holding an offset, copying the
+	 * sector out of the image the first time it is dirtied.
+	 *
+	 * @param offset - an absolute offset in the image
+	 * @param image - the image to copy the original sector from
+	 * @return the repaired sector contents, ready to be modified
+	 */
+	byte[] dirty(long offset, ImageSource image) {
+		return sectors.computeIfAbsent(offset >>> SECTOR_SHIFT, index -> {
+			long start = index << SECTOR_SHIFT;
+			byte[] original = new byte[(int) Math.min(SECTOR_SIZE, image.size() - start)];
+			image.readOriginal(start, original, 0, original.length);
+			return new Sector(start, original);
+		}).repaired;
+	}
+
+	/**
+	 * @return the sectors the repairs actually changed, in offset order
+	 */
+	public List<Sector> changedSectors() {
+		List<Sector> changed = new ArrayList<>();
+		for(Sector sector : sectors.values()) {
+			if(sector.changed())
+				changed.add(sector);
+		}
+		Collections.sort(changed, (a, b) -> Long.compare(a.offset, b.offset));
+		return changed;
+	}
+
+	/**
+	 * Method to write the repaired image as a full copy. Clean ranges between dirty
+	 * sectors are handed to FileChannel.transferTo, except for pieces that are all
+	 * zeros, dirty sectors are written at their positions.
+	 *
+	 * @param image - the (unmodified) input image
+	 * @param output - the file to write the repaired image to
+	 * @return the number of repaired sectors written
+	 */
+	public int writeCopy(ImageSource image, File output) throws IOException {
+		List<Sector> changed = changedSectors();
+		try(FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				ReadAhead ahead = new ReadAhead(image, 0, image.size())) {
+			long position = 0;
+			for(Sector sector : changed) {
+				//Copy the clean run up to this sector, then the repaired sector itself
+				copySparse(image, position, sector.offset, out, ahead);
+				writeFully(out, sector.repaired, sector.offset);
+				position = sector.offset + sector.repaired.length;
+			}
+			copySparse(image, position, image.size(), out, ahead);
+			extend(out, image.size());
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Method to write the repaired image as a full copy and hash both the input and
+	 * the copy on the way, in the one pass over the image the copy makes. Each
+	 * piece of the image is read into a buffer of the input's hasher, copied into
+	 * a buffer of the output's hasher with the repairs laid over it, and written
+	 * from there. Both buffers are then handed over, and hashed while the next
+	 * piece is read and written.
+	 *
+	 * @param image - the (unmodified) input image
+	 * @param output - the file to write the repaired image to
+	 * @param inputHasher - the hasher to feed the image as it is on disk to, finished by the caller
+	 * @param outputHasher - the hasher to feed the repaired image to, finished by the caller
+	 * @return the number of repaired sectors written
+	 */
+	public int writeCopy(ImageSource image, File output, ImageHasher inputHasher, ImageHasher outputHasher) throws IOException {
+		List<Sector> changed = changedSectors();
+		int next = 0;
+		try(FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				ReadAhead ahead = new ReadAhead(image, 0, image.size())) {
+			for(long position = 0; position < image.size(); ) {
+				ahead.reached(position);
+				ImageHasher.Buffer original = inputHasher.take();
+				ImageHasher.Buffer buffer = outputHasher.take();
+				int length = (int) Math.min(ImageHasher.BUFFER_SIZE, image.size() - position);
+				original.length = length;
+				buffer.length = length;
+				image.readOriginal(position, original.data, 0, length);
+				System.arraycopy(original.data, 0, buffer.data, 0, length);
+				//Sectors never straddle two buffers, the buffer size is a multiple of theirs
+				for(; next < changed.size() && changed.get(next).offset < position + length; next++) {
+					Sector sector = changed.get(next);
+					System.arraycopy(sector.repaired, 0, buffer.data, (int) (sector.offset - position), sector.repaired.length);
+				}
+				inputHasher.submit(original);
+				//Pieces of zeros are left out, and only the pieces between them written
+				for(int piece = 0; piece < length; ) {
+					int from = piece;
+					while(piece < length && !isZero(buffer.data, piece, Math.min(PIECE_SIZE, length - piece)))
+						piece += PIECE_SIZE;
+					piece = Math.min(piece, length);
+					if(piece > from)
+						writeFully(out, ByteBuffer.wrap(buffer.data, from, piece - from), position + from);
+					piece += PIECE_SIZE;
+				}
+				outputHasher.submit(buffer);
+				position += length;
+			}
+			extend(out, image.size());
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Method to write the journal as a patch file
+	 *
+	 * @param imageSize - the size of the image the repairs were made against
+	 * @param patch - the patch file to write
+	 * @return the number of repaired sectors written
+	 */
+	public int writePatch(long imageSize, File patch) throws IOException {
+		List<Sector> changed = changedSectors();
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(patch)))) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(SECTOR_SIZE);
+			out.writeLong(imageSize);
+			out.writeInt(changed.size());
+			for(Sector sector : changed) {
+				out.writeLong(sector.offset);
+				out.writeInt(sector.original.length);
+				out.write(sector.original);
+				out.write(sector.repaired);
+			}
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Method to apply a patch file to an image in place, or revert one that was
+	 * applied. Every sector is checked against the contents the patch expects to
+	 * find before anything is written, so a patch is never applied to the wrong
+	 * image or applied twice.
+	 *
+	 * @param patch - the patch file
+	 * @param target - the image to modify in place
+	 * @param revert - false to apply the repaired sectors, true to put the originals back
+	 * @return the number of sectors written
+	 */
+	public static int applyPatch(File patch, File target, boolean revert) throws IOException {
+		List<Sector> sectors = new ArrayList<>();
+		long imageSize;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(patch)))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if(!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION || in.readInt() != SECTOR_SIZE)
+				throw new IOException(patch + " is not a FAT32Analyzer patch file.");
+			//Every count, offset and length is checked before anything is allocated for it,
+			//a damaged patch has to fail with a message rather than take the heap down
+			imageSize = in.readLong();
+			int count = in.readInt();
+			if(imageSize < 0 || count < 0 || count > (imageSize + SECTOR_MASK) >>> SECTOR_SHIFT)
+				throw new IOException(patch + " is damaged, it holds " + count + " sector(s) of a " + imageSize + " byte image.");
+			for(int i = 0; i < count; i++) {
+				long offset = in.readLong();
+				int length = in.readInt();
+				if(offset < 0 || offset >= imageSize || (offset & SECTOR_MASK) != 0 || length != Math.min(SECTOR_SIZE, imageSize - offset))
+					throw new IOException(patch + " is damaged, sector " + (i + 1) + " is " + length + " byte(s) at offset " + offset + " of a " + imageSize + " byte image.");
+				byte[] original = new byte[length];
+				in.readFully(original);
+				Sector sector = new Sector(offset, original);
+				in.readFully(sector.repaired);
+				sectors.add(sector);
+			}
+		}
+
+		try(FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if(channel.size() != imageSize)
+				throw new IOException(target + " is " + channel.size() + " bytes, the patch was made against a " + imageSize + " byte image.");
+			//Verify every sector first so a mismatch leaves the image untouched
+			for(Sector sector : sectors) {
+				byte[] expected = revert ? sector.repaired : sector.original;
+				ByteBuffer current = ByteBuffer.allocate(expected.length);
+				while(current.hasRemaining() && channel.read(current, sector.offset + current.position()) >= 0);
+				if(!Arrays.equals(current.array(), expected))
+					throw new IOException("Sector at offset " + sector.offset + " of " + target + " doesn't match the patch.");
+			}
+			for(Sector sector : sectors)
+				writeFully(channel, revert ? sector.original : sector.repaired, sector.offset);
+			channel.force(false);
+		}
+		return sectors.size();
+	}
+
+	/**
+	 * Helper method to copy a clean range of the image with transferTo, leaving out
+	 * the pieces that are all zeros
+	 *
+	 * @param image - the input image
+	 * @param position - the offset the range starts at
+	 * @param end - the offset the range ends at
+	 * @param out - the copy, at the same offsets
+	 * @param ahead - the read-ahead to report the copy's progress to
+	 */
+	private static void copySparse(ImageSource image, long position, long end, FileChannel out, ReadAhead ahead) throws IOException {
+		while(position < end) {
+			ahead.reached(position);
+			//Pieces are aligned to the image, so a hole is left out in whole pieces
+			long pieceEnd = Math.min(end, (position / PIECE_SIZE + 1) * PIECE_SIZE);
+			if(image.isZero(position, (int) (pieceEnd - position))) {
+				position = pieceEnd;
+				continue;
+			}
+			//Copy up to the next piece of zeros in one go.
+			//transferTo writes at the channel's own position, positioned writes don't move it.
+			long runEnd = pieceEnd;
+			while(runEnd < end && !image.isZero(runEnd, (int) Math.min(PIECE_SIZE, end - runEnd)))
+				runEnd = Math.min(end, runEnd + PIECE_SIZE);
+			out.position(position);
+			image.transferTo(position, runEnd - position, out);
+			position = runEnd;
+		}
+	}
+
+	/**
+	 * Helper method to check whether a piece of an array is all zeros
+	 */
+	private static boolean isZero(byte[] data, int offset, int length) {
+		return Arrays.mismatch(data, offset, offset + length, ZEROS, 0, length) < 0;
+	}
+
+	/**
+	 * Helper method to make a copy as long as the image when it ends in zeros that
+	 * were left out
+	 */
+	private static void extend(FileChannel out, long size) throws IOException {
+		if(out.size() < size)
+			writeFully(out, new byte[1], size - 1);
+	}
+
+	/**
+	 * Helper method to do a positioned write of a whole array
+	 */
+	private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+		writeFully(channel, ByteBuffer.wrap(bytes), position);
+	}
+
+	/**
+	 * Helper method to do a positioned write of what is left of a buffer
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long start = buffer.position();
+		while(buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position() - start);
+	}
+}
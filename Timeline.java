@@ -0,0 +1,175 @@
+/**
+ * MAC time timeline of every live and deleted entry on a volume.
+ *
+ * Every short entry holds three timestamps:
+ *		created		DIR_CrtDate/DIR_CrtTime (offsets 16/14), with DIR_CrtTimeTenth
+ *					(offset 13) counting 10 ms steps
+ *		accessed	DIR_LstAccDate (offset 18), a date only
+ *		written		DIR_WrtDate/DIR_WrtTime (offsets 24/22), to 2 seconds
+ * FAT keeps local time without a zone, so the times are written as they are
+ * stored, as if they were UTC. Missing or impossible dates are left out.
+ *
+ * Entries come from a PathWalker, with the full path of every entry (long
+ * names where they check out, otherwise 8.3 names). Deleted entries are named
+ * the way recovery mode names them and marked as deleted.
+ *
+ * Rows go through an ExternalSorter, so a volume with tens of millions of
+ * entries is sorted in a fixed heap budget. Two formats, by file extension:
+ *		.csv		one row per point in time, sorted by time:
+ *					time,macb,size,deleted,offset,cluster,path
+ *					where macb has m, a and b for the times that fall on it
+ *					(FAT has no change time, so c is always .)
+ *		other		a body file (the input format of mactime), one line per
+ *					entry sorted by its earliest time:
+ *					MD5|name|inode|mode|UID|GID|size|atime|mtime|ctime|crtime
+ *					with the entry's offset on the disk as its inode
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+
+public class Timeline {
+
+	private static final String CSV_HEADER = "time,macb,size,deleted,offset,cluster,path";
+	//Days in each month of a year that isn't a leap year
+	private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+	private final ImageSource image;
+	private final ExternalSorter sorter;
+	private final boolean csv;
+
+	private Timeline(FAT32Analyzer analyzer, ExternalSorter sorter, boolean csv) {
+		this.image = analyzer.getImageSource();
+		this.sorter = sorter;
+		this.csv = csv;
+	}
+
+	/**
+	 * Method to write the timeline of a volume
+	 *
+	 * @param analyzer - the analyzer of the volume, with its FAT loaded and its
+	 *                   directories not repaired yet
+	 * @param output - the timeline file, .csv for a CSV timeline, otherwise a body file
+	 * @param memoryBudget - about how many bytes of heap the sort may take
+	 * @return the number of rows written
+	 */
+	public static long write(FAT32Analyzer analyzer, File output, long memoryBudget) throws IOException {
+		boolean csv = output.getName().toLowerCase().endsWith(".csv");
+		File temporaryDirectory = output.getAbsoluteFile().getParentFile();
+		try(ExternalSorter sorter = new ExternalSorter(memoryBudget, temporaryDirectory)) {
+			PathWalker.walk(analyzer, new Timeline(analyzer, sorter, csv)::add);
+			try(Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16)) {
+				if(csv) {
+					out.write(CSV_HEADER);
+					out.write('\n');
+				}
+				sorter.finish((key, text) -> {
+					if(csv) {
+						out.write(Instant.ofEpochMilli(key).toString());
+						out.write(',');
+					}
+					out.write(text);
+					out.write('\n');
+				});
+			}
+			return sorter.count();
+		}
+	}
+
+	/**
+	 * Helper method to add the rows of one short entry to the sorter
+	 *
+	 * @param offset - the offset of the short entry
+	 * @param path - its full path, ending in / for a directory
+	 * @param deleted - whether it is a deleted entry
+	 */
+	private void add(long offset, String path, boolean deleted) throws IOException {
+		long created = epochMillis(image.getShortLE(offset + 16), image.getShortLE(offset + 14), image.get(offset + 13) & 0xFF);
+		long accessed = epochMillis(image.getShortLE(offset + 18), 0, 0);
+		long written = epochMillis(image.getShortLE(offset + 24), image.getShortLE(offset + 22), 0);
+		long size = Integer.toUnsignedLong(image.getIntLE(offset + 28));
+		int cluster = (image.getShortLE(offset + 20) << 16) | image.getShortLE(offset + 26);
+		long diskOffset = image.base() + offset;
+
+		if(!csv) {
+			boolean isDirectory = path.endsWith("/");
+			String name = isDirectory && path.length() > 1 ? path.substring(0, path.length() - 1) : path;
+			StringBuilder line = new StringBuilder(name.length() + 96);
+			line.append("0|").append(name).append(deleted ? " (deleted)" : "").append('|').append(diskOffset).append('|');
+			line.append(isDirectory ? "d/drwxrwxrwx" : "r/rrwxrwxrwx").append("|0|0|").append(size).append('|');
+			line.append(seconds(accessed)).append('|').append(seconds(written)).append("|0|").append(seconds(created));
+			long earliest = Long.MAX_VALUE;
+			for(long time : new long[] {created, accessed, written}) {
+				if(time >= 0)
+					earliest = Math.min(earliest, time);
+			}
+			sorter.add(earliest == Long.MAX_VALUE ? 0 : earliest, line.toString());
+			return;
+		}
+
+		//One row per point in time, with every time that falls on it
+		StringBuilder fields = new StringBuilder(path.length() + 48);
+		fields.append(',').append(size).append(',').append(deleted).append(',').append(diskOffset).append(',').append(cluster).append(',');
+		FindingWriter.appendCsvString(fields, path);
+		String rest = fields.toString();
+		long[] times = {written, accessed, created};
+		for(int i = 0; i < times.length; i++) {
+			long time = times[i];
+			//Only the first of equal times makes a row
+			boolean first = time >= 0;
+			for(int j = 0; j < i && first; j++)
+				first = times[j] != time;
+			if(!first)
+				continue;
+			String macb = (written == time ? "m" : ".") + (accessed == time ? "a" : ".") + "." + (created == time ? "b" : ".");
+			sorter.add(time, macb + rest);
+		}
+	}
+
+	/**
+	 * Helper method to format a time for a body file, in whole seconds, 0 if it is missing
+	 */
+	private static long seconds(long millis) {
+		return millis < 0 ? 0 : millis / 1000;
+	}
+
+	/**
+	 * Method to convert a FAT date and time to milliseconds since 1970, without
+	 * allocating anything
+	 *
+	 * @param date - the date: bits 15-9 years since 1980, 8-5 month, 4-0 day
+	 * @param time - the time: bits 15-11 hours, 10-5 minutes, 4-0 seconds / 2
+	 * @param tenths - the creation time's 10 ms steps (0-199), 0 for other times
+	 * @return the milliseconds, or -1 if the date or time is missing or impossible
+	 */
+	public static long epochMillis(int date, int time, int tenths) {
+		int year = 1980 + (date >>> 9);
+		int month = (date >>> 5) & 15;
+		int day = date & 31;
+		int hour = time >>> 11;
+		int minute = (time >>> 5) & 63;
+		int second = (time & 31) * 2;
+		if(date == 0 || month < 1 || month > 12 || day < 1 || hour > 23 || minute > 59 || second > 59 || tenths > 199)
+			return -1;
+		boolean leapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+		if(day > DAYS_IN_MONTH[month - 1] + (month == 2 && leapYear ? 1 : 0))
+			return -1;
+
+		//Days since 1970-01-01 of a date on the proleptic Gregorian calendar,
+		//counted in eras of 400 years that start on March 1st
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = era * 146097L + dayOfEra - 719468;
+		return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + tenths * 10L;
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Cost of finding the backup boot sector and repairing sector 0 with it
+ * (FAT32Analyzer.bpbBackup) after the BPB, BPB_BkBootSec included, has been
+ * wiped.
+ *
+ * The backup is either at sector 6 (the best case, found by the second tier)
+ * or missing. bpbBackup repairs sector 0, after which BPB_BkBootSec is readable
+ * again, so every invocation gets a freshly opened image.
+ */
+
+package fat32.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BackupBenchmark {
+
+	//Image size in bytes, which bounds how far the aligned scan has to go
+	@Param({"67108864", "1073741824"})
+	public long imageSize;
+
+	//sector6 or missing
+	@Param({"sector6", "missing"})
+	public String backup;
+
+	private File file;
+	private Object image;
+	private Object analyzer;
+
+	@Setup(Level.Trial)
+	public void writeImage() throws IOException {
+		file = new BenchImages().imageSize(imageSize).backup(backup.equals("sector6")).primaryWiped(true)
+			.write(BenchImages.scratch("backup"));
+	}
+
+	@Setup(Level.Invocation)
+	public void openImage() {
+		image = Bridge.open(file);
+		analyzer = Bridge.analyzer(image);
+	}
+
+	@TearDown(Level.Invocation)
+	public void closeImage() {
+		Bridge.close(image);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteImage() {
+		file.delete();
+	}
+
+	@Benchmark
+	public boolean bpbBackup() {
+		return Bridge.bpbBackup(analyzer);
+	}
+}
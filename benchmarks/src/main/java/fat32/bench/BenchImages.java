@@ -0,0 +1,203 @@
+/**
+ * Builder of the FAT32 images the benchmarks run against.
+ *
+ * Images are written as sparse files: only the boot sector, its backup, the
+ * part of both FATs that holds the root directory's chain and the root
+ * directory itself are written, the rest of the volume reads as zeros. The
+ * root directory starts at cluster 2 and fills consecutive clusters. A chosen
+ * share of its entries are filled with random bytes from a fixed seed, so
+ * every run of a benchmark sees the same damage.
+ */
+
+package fat32.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+
+final class BenchImages {
+
+	static final int BYTES_PER_SECTOR = 512;
+	static final int SECTORS_PER_CLUSTER = 8;
+	static final int RESERVED_SECTORS = 32;
+	static final int NUM_FATS = 2;
+	static final int BACKUP_SECTOR = 6;
+	static final int BYTES_PER_CLUSTER = BYTES_PER_SECTOR * SECTORS_PER_CLUSTER;
+
+	private long imageSize = 64L << 20;
+	private int entries = 1000;
+	private int corruptPercent = 0;
+	private boolean backup = true;
+	private boolean primaryWiped = false;
+	private long seed = 20191126;
+
+	/**
+	 * Method to set the size of the image, in bytes. It's rounded down to a
+	 * whole number of sectors.
+	 */
+	BenchImages imageSize(long imageSize) {
+		this.imageSize = imageSize;
+		return this;
+	}
+
+	/**
+	 * Method to set the number of entries in the root directory
+	 */
+	BenchImages entries(int entries) {
+		this.entries = entries;
+		return this;
+	}
+
+	/**
+	 * Method to set the share of root directory entries that are corrupted, 0 - 100
+	 */
+	BenchImages corruptPercent(int corruptPercent) {
+		this.corruptPercent = corruptPercent;
+		return this;
+	}
+
+	/**
+	 * Method to choose whether a backup boot sector is written to sector 6
+	 */
+	BenchImages backup(boolean backup) {
+		this.backup = backup;
+		return this;
+	}
+
+	/**
+	 * Method to choose whether the first 90 bytes of the boot sector are zeroed,
+	 * which wipes the BPB along with BPB_BkBootSec
+	 */
+	BenchImages primaryWiped(boolean primaryWiped) {
+		this.primaryWiped = primaryWiped;
+		return this;
+	}
+
+	/**
+	 * Method to find the smallest image, in bytes, that holds a root directory
+	 * with a number of entries, rounded up to a whole MiB.
+	 */
+	static long minimumSize(int entries) {
+		long rootClusters = Math.max(1, ((long) entries * 32 + BYTES_PER_CLUSTER - 1) / BYTES_PER_CLUSTER);
+		//Room for the FATs of a volume with that many clusters, plus a spare MiB
+		long fatBytes = NUM_FATS * (rootClusters + 2) * 4;
+		long bytes = (long) RESERVED_SECTORS * BYTES_PER_SECTOR + fatBytes + (rootClusters + 1) * BYTES_PER_CLUSTER + (1 << 20);
+		return (bytes + (1 << 20) - 1) & -(1L << 20);
+	}
+
+	/**
+	 * Method to write the image
+	 *
+	 * @param file - the file to write it to, replaced if it exists
+	 * @return the file
+	 */
+	File write(File file) throws IOException {
+		long totalSectors = imageSize / BYTES_PER_SECTOR;
+		if(totalSectors > 0xFFFFFFFFL)
+			throw new IllegalArgumentException("Image of " + imageSize + " bytes is too large for FAT32.");
+		//Sectors per FAT, large enough to describe every cluster of the volume
+		long sizeOfFAT = ((totalSectors / SECTORS_PER_CLUSTER + 2) * 4 + BYTES_PER_SECTOR - 1) / BYTES_PER_SECTOR;
+		long dataStart = (RESERVED_SECTORS + NUM_FATS * sizeOfFAT) * BYTES_PER_SECTOR;
+		int rootClusters = (int) Math.max(1, ((long) entries * 32 + BYTES_PER_CLUSTER - 1) / BYTES_PER_CLUSTER);
+		if(dataStart + (long) rootClusters * BYTES_PER_CLUSTER > totalSectors * BYTES_PER_SECTOR)
+			throw new IllegalArgumentException(entries + " entries don't fit in an image of " + imageSize + " bytes, use at least " + minimumSize(entries) + ".");
+
+		try(RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.setLength(0);
+			out.setLength(totalSectors * BYTES_PER_SECTOR);
+
+			byte[] bootSector = bootSector(totalSectors, sizeOfFAT);
+			if(backup) {
+				out.seek((long) BACKUP_SECTOR * BYTES_PER_SECTOR);
+				out.write(bootSector);
+			}
+			if(primaryWiped) {
+				for(int i = 0; i < 90; i++)
+					bootSector[i] = 0;
+			}
+			out.seek(0);
+			out.write(bootSector);
+
+			//The root directory's chain: 2 -> 3 -> ... -> end of chain
+			ByteBuffer fat = ByteBuffer.allocate((rootClusters + 2) * 4).order(ByteOrder.LITTLE_ENDIAN);
+			fat.putInt(0x0FFFFFF8);
+			fat.putInt(0x0FFFFFFF);
+			for(int cluster = 2; cluster < rootClusters + 1; cluster++)
+				fat.putInt(cluster + 1);
+			fat.putInt(0x0FFFFFFF);
+			for(int copy = 0; copy < NUM_FATS; copy++) {
+				out.seek((RESERVED_SECTORS + copy * sizeOfFAT) * BYTES_PER_SECTOR);
+				out.write(fat.array());
+			}
+
+			out.seek(dataStart);
+			out.write(rootDirectory());
+		}
+		return file;
+	}
+
+	/**
+	 * Helper method to build the boot sector of the image
+	 */
+	private static byte[] bootSector(long totalSectors, long sizeOfFAT) {
+		ByteBuffer boot = ByteBuffer.allocate(BYTES_PER_SECTOR).order(ByteOrder.LITTLE_ENDIAN);
+		boot.put(0, (byte) 0xEB).put(1, (byte) 0x58).put(2, (byte) 0x90);
+		boot.position(3);
+		boot.put("MSWIN4.1".getBytes());
+		boot.putShort(11, (short) BYTES_PER_SECTOR);
+		boot.put(13, (byte) SECTORS_PER_CLUSTER);
+		boot.putShort(14, (short) RESERVED_SECTORS);
+		boot.put(16, (byte) NUM_FATS);
+		boot.put(21, (byte) 0xF8);
+		boot.putInt(32, (int) totalSectors);
+		boot.putInt(36, (int) sizeOfFAT);
+		//Root cluster, FSInfo sector, backup boot sector
+		boot.putInt(44, 2);
+		boot.putShort(48, (short) 1);
+		boot.putShort(50, (short) BACKUP_SECTOR);
+		boot.put(510, (byte) 0x55).put(511, (byte) 0xAA);
+		return boot.array();
+	}
+
+	/**
+	 * Helper method to build the entries of the root directory. Clean entries are
+	 * upper case 8.3 names with legal attributes, corrupted ones are random bytes
+	 * (but never an end of directory marker).
+	 */
+	private byte[] rootDirectory() {
+		Random random = new Random(seed);
+		byte[] directory = new byte[entries * 32];
+		//No directories, so analyzing the root never descends anywhere
+		byte[] attributes = {1, 2, 4, 8, 32};
+		for(int e = 0; e < entries; e++) {
+			int offset = e * 32;
+			if(random.nextInt(100) < corruptPercent) {
+				for(int i = 0; i < 32; i++)
+					directory[offset + i] = (byte) random.nextInt(256);
+				directory[offset] = (byte) (1 + random.nextInt(255));
+			}
+			else {
+				for(int i = 0; i < 11; i++)
+					directory[offset + i] = (byte) (random.nextInt(3) == 0 ? '0' + random.nextInt(10) : 'A' + random.nextInt(26));
+				directory[offset + 11] = attributes[random.nextInt(attributes.length)];
+				//Size and cluster fields, never zero so entries never look like an end marker
+				for(int i = 13; i < 32; i++)
+					directory[offset + i] = (byte) (1 + random.nextInt(255));
+			}
+		}
+		return directory;
+	}
+
+	/**
+	 * Method to create an empty scratch file for an image or output, deleted on exit
+	 */
+	static File scratch(String prefix) throws IOException {
+		File file = File.createTempFile(prefix, ".dd");
+		file.deleteOnExit();
+		return file;
+	}
+}
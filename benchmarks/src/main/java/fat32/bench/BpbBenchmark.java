@@ -0,0 +1,54 @@
+/**
+ * Cost of parsing the BPB of an intact boot sector (FAT32Analyzer.parseBPB).
+ */
+
+package fat32.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BpbBenchmark {
+
+	private File file;
+	private Object image;
+	private Object analyzer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = new BenchImages().write(BenchImages.scratch("bpb"));
+		image = Bridge.open(file);
+		analyzer = Bridge.analyzer(image);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Bridge.close(image);
+		file.delete();
+	}
+
+	@Benchmark
+	public boolean parseBPB() {
+		return Bridge.parseBPB(analyzer, 0);
+	}
+}
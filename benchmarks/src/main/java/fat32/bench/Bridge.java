@@ -0,0 +1,234 @@
+/**
+ * Access to the analyzer's classes from the benchmarks.
+ *
+ * JMH only accepts benchmarks in a named package, and code in a named package
+ * can't name classes in the default package, where FAT32Analyzer and its
+ * helpers live. The handful of methods the benchmarks need are looked up once
+ * as method handles and held in static finals, so the JIT can inline through
+ * them just like direct calls.
+ */
+
+package fat32.bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+
+final class Bridge {
+
+	private static final MethodHandle OPEN;
+	private static final MethodHandle SIZE;
+	private static final MethodHandle JOURNAL;
+	private static final MethodHandle CLOSE;
+	private static final MethodHandle NEW_ANALYZER;
+	private static final MethodHandle PARSE_BPB;
+	private static final MethodHandle BPB_BACKUP;
+	private static final MethodHandle LOCATE_BACKUP;
+	private static final MethodHandle ANALYZE_ROOT;
+	private static final MethodHandle ANALYZE_ENTRY;
+	private static final MethodHandle SET_LEGACY_VALIDATOR;
+	private static final MethodHandle WRITE_COPY;
+	private static final MethodHandle WRITE_PATCH;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> image = Class.forName("ImageSource");
+			Class<?> analyzer = Class.forName("FAT32Analyzer");
+			Class<?> journal = Class.forName("SectorJournal");
+
+			//Every handle is adapted to Object parameters, the benchmarks can't name the real types
+			OPEN = lookup.findStatic(image, "open", MethodType.methodType(image, File.class))
+				.asType(MethodType.methodType(Object.class, File.class));
+			SIZE = lookup.findVirtual(image, "size", MethodType.methodType(long.class))
+				.asType(MethodType.methodType(long.class, Object.class));
+			JOURNAL = lookup.findVirtual(image, "journal", MethodType.methodType(journal))
+				.asType(MethodType.methodType(Object.class, Object.class));
+			CLOSE = lookup.findVirtual(image, "close", MethodType.methodType(void.class))
+				.asType(MethodType.methodType(void.class, Object.class));
+			NEW_ANALYZER = lookup.findConstructor(analyzer, MethodType.methodType(void.class, image))
+				.asType(MethodType.methodType(Object.class, Object.class));
+			PARSE_BPB = lookup.findVirtual(analyzer, "parseBPB", MethodType.methodType(boolean.class, long.class))
+				.asType(MethodType.methodType(boolean.class, Object.class, long.class));
+			BPB_BACKUP = lookup.findVirtual(analyzer, "bpbBackup", MethodType.methodType(boolean.class))
+				.asType(MethodType.methodType(boolean.class, Object.class));
+			LOCATE_BACKUP = lookup.findVirtual(analyzer, "locateBackup", MethodType.methodType(long.class))
+				.asType(MethodType.methodType(long.class, Object.class));
+			ANALYZE_ROOT = lookup.findVirtual(analyzer, "analyzeRoot", MethodType.methodType(List.class))
+				.asType(MethodType.methodType(List.class, Object.class));
+			ANALYZE_ENTRY = lookup.findVirtual(analyzer, "analyzeEntry", MethodType.methodType(boolean.class, long.class, long.class, List.class))
+				.asType(MethodType.methodType(boolean.class, Object.class, long.class, long.class, List.class));
+			SET_LEGACY_VALIDATOR = lookup.findVirtual(analyzer, "setLegacyValidator", MethodType.methodType(void.class, boolean.class))
+				.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+			WRITE_COPY = lookup.findVirtual(journal, "writeCopy", MethodType.methodType(int.class, image, File.class))
+				.asType(MethodType.methodType(int.class, Object.class, Object.class, File.class));
+			WRITE_PATCH = lookup.findVirtual(journal, "writePatch", MethodType.methodType(int.class, long.class, File.class))
+				.asType(MethodType.methodType(int.class, Object.class, long.class, File.class));
+		} catch(ReflectiveOperationException roe) {
+			throw new ExceptionInInitializerError(roe);
+		}
+	}
+
+	private Bridge() {
+	}
+
+	/**
+	 * Method to open an image through ImageSource.open
+	 *
+	 * @param file - the image file
+	 * @return the ImageSource
+	 */
+	static Object open(File file) {
+		try {
+			return OPEN.invokeExact(file);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to get the size of an ImageSource
+	 */
+	static long size(Object image) {
+		try {
+			return (long) SIZE.invokeExact(image);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to get the SectorJournal of an ImageSource
+	 */
+	static Object journal(Object image) {
+		try {
+			return JOURNAL.invokeExact(image);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to close an ImageSource
+	 */
+	static void close(Object image) {
+		try {
+			CLOSE.invokeExact(image);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to create a FAT32Analyzer over an ImageSource
+	 */
+	static Object analyzer(Object image) {
+		try {
+			return NEW_ANALYZER.invokeExact(image);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to call FAT32Analyzer.parseBPB
+	 */
+	static boolean parseBPB(Object analyzer, long offset) {
+		try {
+			return (boolean) PARSE_BPB.invokeExact(analyzer, offset);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to call FAT32Analyzer.bpbBackup
+	 */
+	static boolean bpbBackup(Object analyzer) {
+		try {
+			return (boolean) BPB_BACKUP.invokeExact(analyzer);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to call FAT32Analyzer.locateBackup
+	 */
+	static long locateBackup(Object analyzer) {
+		try {
+			return (long) LOCATE_BACKUP.invokeExact(analyzer);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to call FAT32Analyzer.analyzeRoot
+	 */
+	static List<?> analyzeRoot(Object analyzer) {
+		try {
+			return (List<?>) ANALYZE_ROOT.invokeExact(analyzer);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to call FAT32Analyzer.analyzeEntry
+	 */
+	static boolean analyzeEntry(Object analyzer, long offset, long nextOffset, List<?> findings) {
+		try {
+			return (boolean) ANALYZE_ENTRY.invokeExact(analyzer, offset, nextOffset, findings);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to call FAT32Analyzer.setLegacyValidator
+	 */
+	static void setLegacyValidator(Object analyzer, boolean legacyValidator) {
+		try {
+			SET_LEGACY_VALIDATOR.invokeExact(analyzer, legacyValidator);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to call SectorJournal.writeCopy
+	 */
+	static int writeCopy(Object journal, Object image, File output) {
+		try {
+			return (int) WRITE_COPY.invokeExact(journal, image, output);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Method to call SectorJournal.writePatch
+	 */
+	static int writePatch(Object journal, long imageSize, File patch) {
+		try {
+			return (int) WRITE_PATCH.invokeExact(journal, imageSize, patch);
+		} catch(Throwable t) {
+			throw Bridge.rethrow(t);
+		}
+	}
+
+	/**
+	 * Helper method to pass on whatever the analyzer threw, unchecked
+	 */
+	private static RuntimeException rethrow(Throwable t) {
+		if(t instanceof RuntimeException)
+			return (RuntimeException) t;
+		if(t instanceof Error)
+			throw (Error) t;
+		return new IllegalStateException(t);
+	}
+}
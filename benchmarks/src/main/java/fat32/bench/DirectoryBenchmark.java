@@ -0,0 +1,88 @@
+/**
+ * Cost of analyzing and repairing the root directory (FAT32Analyzer.analyzeRoot),
+ * which includes loading FAT #1 and following the root's cluster chain.
+ *
+ * The root directory holds a chosen number of entries, of which a chosen share
+ * is corrupted, and is checked with either the legacy branch chains or the
+ * EntryValidator kernel. Repairs go to the image's journal, so every invocation
+ * gets a freshly opened image.
+ */
+
+package fat32.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DirectoryBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	public int entries;
+
+	@Param({"0", "5"})
+	public int corruptPercent;
+
+	//legacy or kernel
+	@Param({"legacy", "kernel"})
+	public String validator;
+
+	//Image size in bytes, 0 for the smallest image that holds the directory
+	@Param({"0"})
+	public long imageSize;
+
+	private File file;
+	private Object image;
+	private Object analyzer;
+
+	@Setup(Level.Trial)
+	public void writeImage() throws IOException {
+		long size = imageSize > 0 ? imageSize : BenchImages.minimumSize(entries);
+		file = new BenchImages().imageSize(size).entries(entries).corruptPercent(corruptPercent)
+			.write(BenchImages.scratch("directory"));
+	}
+
+	@Setup(Level.Invocation)
+	public void openImage() {
+		image = Bridge.open(file);
+		analyzer = Bridge.analyzer(image);
+		Bridge.parseBPB(analyzer, 0);
+		Bridge.setLegacyValidator(analyzer, validator.equals("legacy"));
+	}
+
+	@TearDown(Level.Invocation)
+	public void closeImage() {
+		Bridge.close(image);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteImage() {
+		file.delete();
+	}
+
+	@Benchmark
+	public List<?> analyzeRoot() {
+		return Bridge.analyzeRoot(analyzer);
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Throughput of the directory entry checks on their own: the original branch
+ * chains (FAT32Analyzer.analyzeEntryLegacy) against the table driven
+ * EntryValidator kernel, through FAT32Analyzer.analyzeEntry.
+ *
+ * A scratch image holds nothing but directory entries, generated from a fixed
+ * seed with a chosen share of entries that need repairs, so unlike
+ * DirectoryBenchmark no FAT or cluster chain is involved. Repairs go to the
+ * image's journal, so every invocation gets a freshly opened image. That both
+ * paths report the same findings and repairs is checked by EntryValidatorTest.
+ */
+
+package fat32.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EntryValidatorBenchmark {
+
+	//Must match @OperationsPerInvocation, so the score is entries per second
+	private static final int ENTRIES = 1 << 20;
+
+	@Param({"0", "5", "50"})
+	public int corruptPercent;
+
+	//legacy or kernel
+	@Param({"legacy", "kernel"})
+	public String validator;
+
+	private File file;
+	private Object image;
+	private Object analyzer;
+	private final List<Object> findings = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void writeEntries() throws IOException {
+		//Clean entries are upper case 8.3 names with legal attributes, corrupted ones random bytes
+		Random random = new Random(20191126);
+		byte[] entries = new byte[ENTRIES * 32];
+		byte[] attributes = {1, 2, 4, 8, 16, 32};
+		for(int e = 0; e < ENTRIES; e++) {
+			int offset = e * 32;
+			if(random.nextInt(100) < corruptPercent) {
+				for(int i = 0; i < 32; i++)
+					entries[offset + i] = (byte) random.nextInt(256);
+			}
+			else {
+				for(int i = 0; i < 11; i++)
+					entries[offset + i] = (byte) (random.nextInt(3) == 0 ? '0' + random.nextInt(10) : 'A' + random.nextInt(26));
+				entries[offset + 11] = attributes[random.nextInt(attributes.length)];
+				//Keep the rest non-zero so entries never look like an end marker
+				for(int i = 13; i < 32; i++)
+					entries[offset + i] = (byte) (1 + random.nextInt(255));
+			}
+		}
+		file = BenchImages.scratch("entries");
+		try(RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.write(entries);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void openImage() {
+		image = Bridge.open(file);
+		analyzer = Bridge.analyzer(image);
+		Bridge.setLegacyValidator(analyzer, validator.equals("legacy"));
+	}
+
+	@TearDown(Level.Invocation)
+	public void closeImage() {
+		Bridge.close(image);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteEntries() {
+		file.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ENTRIES)
+	public int analyzeEntries() {
+		int ended = 0;
+		long end = ENTRIES * 32L;
+		for(long offset = 0; offset < end; offset += 32) {
+			if(Bridge.analyzeEntry(analyzer, offset, offset + 32 < end ? offset + 32 : -1, findings))
+				ended++;
+			//Findings are only kept long enough to be produced
+			if(findings.size() > 4096)
+				findings.clear();
+		}
+		findings.clear();
+		return ended;
+	}
+}
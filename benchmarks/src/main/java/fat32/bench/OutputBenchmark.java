@@ -0,0 +1,81 @@
+/**
+ * Cost of writing the result of an analysis: the full repaired copy
+ * (SectorJournal.writeCopy) and the patch file (SectorJournal.writePatch).
+ *
+ * The image's root directory is analyzed once per trial, so the journal holds
+ * every sector repaired at the chosen corruption rate, then the same journal
+ * is written out on every invocation.
+ */
+
+package fat32.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class OutputBenchmark {
+
+	@Param({"67108864", "536870912"})
+	public long imageSize;
+
+	@Param({"100000"})
+	public int entries;
+
+	@Param({"0", "1", "10"})
+	public int corruptPercent;
+
+	private File file;
+	private File output;
+	private Object image;
+	private Object journal;
+
+	@Setup(Level.Trial)
+	public void analyzeImage() throws IOException {
+		file = new BenchImages().imageSize(imageSize).entries(entries).corruptPercent(corruptPercent)
+			.write(BenchImages.scratch("output"));
+		output = BenchImages.scratch("repaired");
+		image = Bridge.open(file);
+		Object analyzer = Bridge.analyzer(image);
+		Bridge.parseBPB(analyzer, 0);
+		Bridge.analyzeRoot(analyzer);
+		journal = Bridge.journal(image);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteImage() {
+		Bridge.close(image);
+		file.delete();
+		output.delete();
+	}
+
+	@Benchmark
+	public int writeCopy() {
+		return Bridge.writeCopy(journal, image, output);
+	}
+
+	@Benchmark
+	public int writePatch() {
+		return Bridge.writePatch(journal, Bridge.size(image), output);
+	}
+}
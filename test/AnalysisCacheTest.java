@@ -0,0 +1,109 @@
+/**
+ * Runs with the analysis cache against runs without it: a re-run that replays
+ * every directory, and a re-run after one directory changed, must write the
+ * same findings and the same repaired copy as analyzing the image afresh.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class AnalysisCacheTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void replayedRunMatchesAFullRun() throws IOException {
+		File image = this.damagedImage();
+		File cache = directory.resolve("image.cache").toFile();
+
+		String first = this.analyze(image, cache, "first");
+		assertTrue(first.contains(" directory(s) replayed from the analysis cache, "), first);
+		assertTrue(first.contains("\n0 directory(s) replayed"), "Nothing to replay on the first run");
+
+		String second = this.analyze(image, cache, "second");
+		assertTrue(second.contains(", 0 analyzed, FAT check replayed."), "Everything is replayed on the second run");
+		this.analyze(image, null, "full");
+		assertTrue(Files.size(directory.resolve("full.jsonl")) > 0, "The damaged image has findings");
+		this.assertSameRun("first", "full");
+		this.assertSameRun("second", "full");
+	}
+
+	@Test
+	public void changedDirectoryIsAnalyzedAgain() throws IOException {
+		File image = this.damagedImage();
+		File cache = directory.resolve("image.cache").toFile();
+		this.analyze(image, cache, "first");
+
+		//Make the short name of a file two levels down illegal
+		List<Long> files = new ArrayList<>();
+		try(ImageSource source = ImageSource.open(image)) {
+			FAT32Analyzer analyzer = new FAT32Analyzer(source);
+			assertTrue(analyzer.bpbEntry());
+			analyzer.loadFAT();
+			PathWalker.walk(analyzer, (offset, path, deleted) -> {
+				if(!deleted && !path.endsWith("/") && path.chars().filter(c -> c == '/').count() == 3)
+					files.add(offset);
+			});
+		}
+		try(RandomAccessFile file = new RandomAccessFile(image, "rw")) {
+			file.seek(files.get(files.size() / 2));
+			file.write('+');
+		}
+
+		String cached = this.analyze(image, cache, "cached");
+		assertTrue(cached.contains(", 1 analyzed."), "Only the changed directory is analyzed");
+		this.analyze(image, null, "full");
+		this.assertSameRun("cached", "full");
+	}
+
+	/**
+	 * Helper method to generate an image that needs repairs all over its tree
+	 */
+	private File damagedImage() throws IOException {
+		File image = directory.resolve("image.dd").toFile();
+		new ImageGenerator().size(64L << 20).depth(3).fanout(4).files(20).lfnPercent(40).seed(19)
+			.illegalNamePercent(5).reservedBytePercent(5).badAttributePercent(2).fatLoopPercent(10)
+			.generate(image);
+		return image;
+	}
+
+	/**
+	 * Helper method to analyze the image into a copy and findings named after the run
+	 *
+	 * @return what the run printed
+	 */
+	private String analyze(File image, File cache, String run) throws IOException {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		try(ImageSource source = ImageSource.open(image); PrintStream out = new PrintStream(log, true, "UTF-8")) {
+			FAT32Analyzer analyzer = new FAT32Analyzer(source);
+			if(cache != null)
+				analyzer.setCache(cache);
+			assertTrue(analyzer.run(directory.resolve(run + ".dd").toFile(), false, directory.resolve(run + ".jsonl").toFile(), out));
+		}
+		return log.toString(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Helper method to check that two runs wrote the same findings and the same copy
+	 */
+	private void assertSameRun(String run, String expected) throws IOException {
+		assertEquals(Files.readAllLines(directory.resolve(expected + ".jsonl")), Files.readAllLines(directory.resolve(run + ".jsonl")), "Findings of the " + run + " run");
+		assertEquals(-1, Files.mismatch(directory.resolve(expected + ".dd"), directory.resolve(run + ".dd")), "Copy of the " + run + " run");
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * Lookups in the directory index against a walk of the same tree: every entry
+ * the walk finds must be found by its offset, path, name and first cluster, and
+ * by the lookups of the directories it is in.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class DirectoryIndexTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void lookupsMatchTheWalk() throws IOException {
+		File image = directory.resolve("image.dd").toFile();
+		File indexFile = directory.resolve("image.idx").toFile();
+		new ImageGenerator().size(64L << 20).depth(3).fanout(4).files(25).lfnPercent(40).fragmented(true).seed(18).generate(image);
+
+		//Every entry the walk finds, by offset, with its path as the index keeps it
+		Map<Long, String> walked = new HashMap<>();
+		Map<Long, Integer> clusters = new HashMap<>();
+		try(ImageSource source = ImageSource.open(image)) {
+			FAT32Analyzer analyzer = new FAT32Analyzer(source);
+			assertTrue(analyzer.bpbEntry());
+			analyzer.loadFAT();
+			int entries = DirectoryIndex.build(analyzer, image, indexFile);
+			PathWalker.walk(analyzer, (offset, path, deleted) -> {
+				walked.put(offset, path.endsWith("/") ? path.substring(0, path.length() - 1) : path);
+				clusters.put(offset, (source.getShortLE(offset + 20) << 16) | source.getShortLE(offset + 26));
+			});
+			assertEquals(walked.size(), entries);
+		}
+		assertTrue(walked.size() > 1000, "The tree has over a thousand entries");
+
+		DirectoryIndex index = DirectoryIndex.open(indexFile, image, true);
+		assertEquals(walked.size(), index.size());
+		assertEquals(walked.size(), index.under("/").size());
+		for(Map.Entry<Long, String> entry : walked.entrySet()) {
+			long offset = entry.getKey();
+			String path = entry.getValue();
+			List<DirectoryIndex.Entry> found = index.offset(offset);
+			assertEquals(1, found.size(), "Entry at offset " + offset);
+			assertEquals(path, found.get(0).path);
+			assertEquals((int) clusters.get(offset), found.get(0).cluster);
+
+			assertTrue(DirectoryIndexTest.offsets(index.path(path)).contains(offset), "Path " + path);
+			assertTrue(DirectoryIndexTest.offsets(index.path(path.toLowerCase())).contains(offset), "Path " + path + " in lower case");
+			String name = path.substring(path.lastIndexOf('/') + 1);
+			assertTrue(DirectoryIndexTest.offsets(index.name(name)).contains(offset), "Name " + name);
+			assertTrue(DirectoryIndexTest.offsets(index.cluster(clusters.get(offset))).contains(offset), "Cluster of " + path);
+		}
+
+		//Everything under a directory is every walked path below it
+		for(String path : walked.values()) {
+			if(index.path(path).get(0).directory) {
+				long below = walked.values().stream().filter(other -> other.startsWith(path + "/")).count();
+				assertEquals(below, index.under(path).size(), "Under " + path);
+			}
+		}
+	}
+
+	@Test
+	public void changedImageIsRefused() throws IOException {
+		File image = directory.resolve("image.dd").toFile();
+		File indexFile = directory.resolve("image.idx").toFile();
+		new ImageGenerator().size(32L << 20).seed(18).generate(image);
+		try(ImageSource source = ImageSource.open(image)) {
+			FAT32Analyzer analyzer = new FAT32Analyzer(source);
+			assertTrue(analyzer.bpbEntry());
+			analyzer.loadFAT();
+			DirectoryIndex.build(analyzer, image, indexFile);
+		}
+		new ImageGenerator().size(48L << 20).seed(18).generate(image);
+		assertThrows(IOException.class, () -> DirectoryIndex.open(indexFile, image, false));
+	}
+
+	/**
+	 * Helper method to list the offsets of the entries a lookup found
+	 */
+	private static List<Long> offsets(List<DirectoryIndex.Entry> entries) {
+		List<Long> offsets = new ArrayList<>();
+		for(DirectoryIndex.Entry entry : entries)
+			offsets.add(entry.offset);
+		return offsets;
+	}
+}
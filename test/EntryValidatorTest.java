@@ -0,0 +1,95 @@
+/**
+ * Equivalence of the directory entry checks: the original branch chains
+ * (FAT32Analyzer.analyzeEntryLegacy) against the table driven EntryValidator
+ * kernel.
+ *
+ * A scratch image full of directory entries is generated from a fixed seed,
+ * with a chosen share of entries that need repairs. Both paths are run over
+ * every entry of their own view of it and must report identical findings,
+ * end-of-directory results and repaired sectors. Their speed is measured by
+ * the JMH EntryValidatorBenchmark in benchmarks/.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+
+public class EntryValidatorTest {
+
+	private static final int ENTRIES = 1 << 16;
+
+	@TempDir
+	Path directory;
+
+	@ParameterizedTest
+	@ValueSource(ints = {0, 5, 50, 100})
+	public void kernelMatchesLegacy(int corruptPercent) throws IOException {
+		File scratch = directory.resolve("entries-" + corruptPercent + ".dd").toFile();
+		EntryValidatorTest.writeEntries(scratch, corruptPercent);
+
+		try(ImageSource legacyImage = ImageSource.open(scratch); ImageSource kernelImage = ImageSource.open(scratch)) {
+			FAT32Analyzer legacy = new FAT32Analyzer(legacyImage);
+			List<Finding> legacyFindings = new ArrayList<>();
+			List<Finding> kernelFindings = new ArrayList<>();
+			long end = ENTRIES * 32L;
+			for(long offset = 0; offset < end; offset += 32) {
+				long next = offset + 32 < end ? offset + 32 : -1;
+				legacyFindings.clear();
+				kernelFindings.clear();
+				boolean legacyDone = legacy.analyzeEntryLegacy(offset, next, legacyFindings);
+				boolean kernelDone = EntryValidator.validate(kernelImage, offset, next, kernelFindings);
+				assertEquals(legacyDone, kernelDone, "End of directory at offset " + offset);
+				assertEquals(legacyFindings, kernelFindings, "Findings at offset " + offset);
+			}
+
+			List<SectorJournal.Sector> legacySectors = legacyImage.journal().changedSectors();
+			List<SectorJournal.Sector> kernelSectors = kernelImage.journal().changedSectors();
+			assertEquals(legacySectors.size(), kernelSectors.size(), "Repaired sectors");
+			for(int i = 0; i < legacySectors.size(); i++) {
+				assertEquals(legacySectors.get(i).offset, kernelSectors.get(i).offset);
+				assertArrayEquals(legacySectors.get(i).repaired, kernelSectors.get(i).repaired, "Sector at offset " + legacySectors.get(i).offset);
+			}
+		}
+	}
+
+	/**
+	 * Helper method to fill a scratch image with directory entries. Clean entries
+	 * are upper case 8.3 names with legal attributes; corrupted ones get random
+	 * name bytes, attributes and reserved bytes.
+	 */
+	private static void writeEntries(File scratch, int corruptPercent) throws IOException {
+		Random random = new Random(20191126);
+		byte[] image = new byte[ENTRIES * 32];
+		byte[] attributes = {1, 2, 4, 8, 16, 32};
+		for(int e = 0; e < ENTRIES; e++) {
+			int offset = e * 32;
+			if(random.nextInt(100) < corruptPercent) {
+				for(int i = 0; i < 32; i++)
+					image[offset + i] = (byte) random.nextInt(256);
+			}
+			else {
+				for(int i = 0; i < 11; i++)
+					image[offset + i] = (byte) (random.nextInt(3) == 0 ? '0' + random.nextInt(10) : 'A' + random.nextInt(26));
+				image[offset + 11] = attributes[random.nextInt(attributes.length)];
+				//Keep the rest non-zero so entries never look like an end marker
+				for(int i = 13; i < 32; i++)
+					image[offset + i] = (byte) (1 + random.nextInt(255));
+			}
+		}
+		try(RandomAccessFile file = new RandomAccessFile(scratch, "rw")) {
+			file.write(image);
+		}
+	}
+}
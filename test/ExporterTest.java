@@ -0,0 +1,79 @@
+/**
+ * Export against chains read by hand: every live file of a fragmented image
+ * must be exported at its path, with the bytes its cluster chain holds, cut
+ * off at its size.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class ExporterTest {
+
+	//Three clusters of 4 KiB, the last only partly used
+	private static final long FILE_SIZE = 10000;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void exportedFilesMatchTheirChains() throws IOException {
+		File image = directory.resolve("image.dd").toFile();
+		Path export = directory.resolve("export");
+		new ImageGenerator().size(64L << 20).depth(2).fanout(3).files(10).lfnPercent(40).bytesPerCluster(4096).fileSize(FILE_SIZE).fragmented(true).seed(21).generate(image);
+
+		Map<String, byte[]> expected = new HashMap<>();
+		long[] exported;
+		try(ImageSource source = ImageSource.open(image)) {
+			FAT32Analyzer analyzer = new FAT32Analyzer(source);
+			assertTrue(analyzer.bpbEntry());
+			analyzer.loadFAT();
+			int bytesPerCluster = analyzer.getBytesPerSector() * analyzer.getSectorsPerCluster();
+			PathWalker.walk(analyzer, (offset, path, deleted) -> {
+				if(deleted || path.endsWith("/"))
+					return;
+				long size = Integer.toUnsignedLong(source.getIntLE(offset + 28));
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				byte[] cluster = new byte[bytesPerCluster];
+				int previous = -1;
+				boolean contiguous = true;
+				for(int next = (source.getShortLE(offset + 20) << 16) | source.getShortLE(offset + 26); content.size() < size && next >= 2 && next < FatTable.BAD_CLUSTER; next = analyzer.getFAT().next(next)) {
+					contiguous &= previous == -1 || next == previous + 1;
+					previous = next;
+					source.read(analyzer.clusterOffset(next), cluster, 0, bytesPerCluster);
+					content.write(cluster, 0, (int) Math.min(bytesPerCluster, size - content.size()));
+				}
+				assertEquals(size, content.size(), "Chain of " + path);
+				assertTrue(size <= bytesPerCluster || !contiguous, "Chain of " + path + " is contiguous");
+				expected.put(path, content.toByteArray());
+			});
+			exported = Exporter.export(analyzer, export.toFile(), null, null, 4);
+		}
+
+		assertTrue(expected.size() > 100, "The tree has over a hundred files");
+		assertEquals(expected.size(), exported[0]);
+		assertEquals(expected.size() * FILE_SIZE, exported[1]);
+		assertEquals(0, exported[2]);
+		for(Map.Entry<String, byte[]> file : expected.entrySet()) {
+			Path target = export.resolve(file.getKey().substring(1));
+			assertTrue(Files.isRegularFile(target), "Missing " + file.getKey());
+			assertArrayEquals(file.getValue(), Files.readAllBytes(target), "Content of " + file.getKey());
+		}
+		try(Stream<Path> files = Files.walk(export)) {
+			assertEquals(expected.size(), files.filter(Files::isRegularFile).count());
+		}
+	}
+}
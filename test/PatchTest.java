@@ -0,0 +1,89 @@
+/**
+ * Round trip of the patch output: a patch applied to the input must give the
+ * same image as the repaired copy, and reverted it must give the input back.
+ *
+ * The images are generated with ImageGenerator from a fixed seed, with a wiped
+ * boot sector and entry and FAT damage, so the analysis repairs sectors all
+ * over the volume.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class PatchTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void patchGivesTheRepairedCopy() throws IOException {
+		File input = this.damagedImage();
+		File copy = directory.resolve("copy.dd").toFile();
+		File patch = directory.resolve("repairs.patch").toFile();
+		assertTrue(PatchTest.analyze(input, copy, false));
+		assertTrue(PatchTest.analyze(input, patch, true));
+
+		File target = directory.resolve("target.dd").toFile();
+		Files.copy(input.toPath(), target.toPath());
+		int sectors = SectorJournal.applyPatch(patch, target, false);
+		assertTrue(sectors > 0, "The damaged image needs repairs");
+		assertEquals(-1, Files.mismatch(target.toPath(), copy.toPath()), "Patched image and repaired copy differ");
+
+		//An applied patch doesn't match the image any more, so it isn't applied twice
+		assertThrows(IOException.class, () -> SectorJournal.applyPatch(patch, target, false));
+
+		assertEquals(sectors, SectorJournal.applyPatch(patch, target, true));
+		assertEquals(-1, Files.mismatch(target.toPath(), input.toPath()), "Reverted image and input differ");
+	}
+
+	@Test
+	public void damagedPatchIsRefused() throws IOException {
+		File input = this.damagedImage();
+		File patch = directory.resolve("repairs.patch").toFile();
+		assertTrue(PatchTest.analyze(input, patch, true));
+		File target = directory.resolve("target.dd").toFile();
+		Files.copy(input.toPath(), target.toPath());
+
+		//A sector count far beyond what the image holds
+		try(RandomAccessFile file = new RandomAccessFile(patch, "rw")) {
+			file.seek(24);
+			file.writeInt(Integer.MAX_VALUE);
+		}
+		assertThrows(IOException.class, () -> SectorJournal.applyPatch(patch, target, false));
+		assertEquals(-1, Files.mismatch(target.toPath(), input.toPath()), "A refused patch must leave the image alone");
+	}
+
+	/**
+	 * Helper method to generate the damaged image
+	 */
+	private File damagedImage() throws IOException {
+		File input = directory.resolve("input.dd").toFile();
+		new ImageGenerator().size(64L << 20).depth(3).fanout(3).files(20).lfnPercent(40).seed(17)
+			.wipePrimary(true).illegalNamePercent(5).reservedBytePercent(5).badAttributePercent(2).fatLoopPercent(10)
+			.generate(input);
+		return input;
+	}
+
+	/**
+	 * Helper method to analyze an image into a repaired copy or a patch
+	 */
+	private static boolean analyze(File input, File output, boolean patchOutput) throws IOException {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		try(PrintStream out = new PrintStream(log, true, "UTF-8")) {
+			return FAT32Analyzer.analyze(input, output, patchOutput, null, out);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Runs with directory read-ahead against runs without it: whatever the cache
+ * size, from one that evicts clusters before the walk gets to them to one that
+ * holds the whole tree, the run must print, find and repair the same.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+
+public class ReadSchedulerTest {
+
+	@TempDir
+	Path directory;
+
+	@ParameterizedTest
+	@ValueSource(longs = {4096, 1L << 20, 64L << 20})
+	public void prefetchedRunMatchesAPlainRun(long prefetchSize) throws IOException {
+		File image = directory.resolve("image.dd").toFile();
+		new ImageGenerator().size(64L << 20).depth(3).fanout(4).files(20).lfnPercent(40).fragmented(true).seed(20)
+			.illegalNamePercent(5).reservedBytePercent(5).badAttributePercent(2).fatLoopPercent(10)
+			.generate(image);
+
+		String plain = this.analyze(image, 0, "plain");
+		String prefetched = this.analyze(image, prefetchSize, "prefetched");
+		assertTrue(Files.size(directory.resolve("plain.jsonl")) > 0, "The damaged image has findings");
+		assertEquals(plain, prefetched.replace("prefetched", "plain"));
+		assertEquals(Files.readAllLines(directory.resolve("plain.jsonl")), Files.readAllLines(directory.resolve("prefetched.jsonl")));
+		assertEquals(-1, Files.mismatch(directory.resolve("plain.dd"), directory.resolve("prefetched.dd")), "Repaired copies differ");
+	}
+
+	/**
+	 * Helper method to analyze the image into a copy and findings named after the run
+	 *
+	 * @return what the run printed
+	 */
+	private String analyze(File image, long prefetchSize, String run) throws IOException {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		try(ImageSource source = ImageSource.open(image); PrintStream out = new PrintStream(log, true, "UTF-8")) {
+			FAT32Analyzer analyzer = new FAT32Analyzer(source);
+			analyzer.setPrefetch(prefetchSize);
+			assertTrue(analyzer.run(directory.resolve(run + ".dd").toFile(), false, directory.resolve(run + ".jsonl").toFile(), out));
+		}
+		return log.toString(StandardCharsets.UTF_8);
+	}
+}
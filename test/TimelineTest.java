@@ -0,0 +1,110 @@
+/**
+ * Timelines and the external sort behind them: a timeline sorted in a memory
+ * budget so small that every few rows are spilled to disk must come out the
+ * same as one sorted in memory, and in time order.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+public class TimelineTest {
+
+	//Small enough for a spill every few records, so the runs are merged in more than one round
+	private static final long TINY_BUDGET = 1024;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void sorterSpillsAndMergesInOrder() throws IOException {
+		Random random = new Random(1020);
+		List<long[]> expected = new ArrayList<>();
+		List<String> texts = new ArrayList<>();
+		try(ExternalSorter sorter = new ExternalSorter(TINY_BUDGET, directory.toFile())) {
+			for(int i = 0; i < 20000; i++) {
+				long key = random.nextInt(1000) - 500;
+				String text = Integer.toString(random.nextInt(1 << 20), 36);
+				sorter.add(key, text);
+				expected.add(new long[] {key, texts.size()});
+				texts.add(text);
+			}
+			assertTrue(sorter.runs() > 64, "The budget must force more runs than one merge takes");
+			assertEquals(20000, sorter.count());
+
+			expected.sort(Comparator.<long[]>comparingLong(record -> record[0]).thenComparing(record -> texts.get((int) record[1])));
+			List<String> sorted = new ArrayList<>();
+			sorter.finish((key, text) -> sorted.add(key + " " + text));
+			assertEquals(expected.size(), sorted.size());
+			for(int i = 0; i < sorted.size(); i++)
+				assertEquals(expected.get(i)[0] + " " + texts.get((int) expected.get(i)[1]), sorted.get(i), "Record " + i);
+		}
+		//Every run is gone once the sort is done
+		try(Stream<Path> files = Files.list(directory)) {
+			assertEquals(0, files.count());
+		}
+	}
+
+	@Test
+	public void spilledTimelineMatchesTheInMemoryOne() throws IOException {
+		File image = directory.resolve("image.dd").toFile();
+		new ImageGenerator().size(64L << 20).depth(3).fanout(4).files(25).lfnPercent(40).seed(17).generate(image);
+
+		for(String name : new String[] {"timeline.csv", "timeline.body"}) {
+			File inMemory = directory.resolve("memory-" + name).toFile();
+			File spilled = directory.resolve("spilled-" + name).toFile();
+			long rows;
+			try(ImageSource source = ImageSource.open(image)) {
+				FAT32Analyzer analyzer = new FAT32Analyzer(source);
+				assertTrue(analyzer.bpbEntry());
+				analyzer.loadFAT();
+				rows = Timeline.write(analyzer, inMemory, 1L << 30);
+				assertEquals(rows, Timeline.write(analyzer, spilled, TINY_BUDGET));
+			}
+			assertEquals(-1, Files.mismatch(inMemory.toPath(), spilled.toPath()), name + " differs once spilled");
+
+			List<String> lines = Files.readAllLines(spilled.toPath(), StandardCharsets.UTF_8);
+			boolean csv = name.endsWith(".csv");
+			if(csv)
+				assertEquals("time,macb,size,deleted,offset,cluster,path", lines.remove(0));
+			assertTrue(rows > 1000, "The tree has over a thousand entries");
+			assertEquals(rows, lines.size());
+			long previous = Long.MIN_VALUE;
+			for(String line : lines) {
+				long time = csv ? Instant.parse(line.substring(0, line.indexOf(','))).toEpochMilli() : TimelineTest.earliest(line);
+				assertTrue(time >= previous, "Out of order: " + line);
+				previous = time;
+			}
+		}
+	}
+
+	/**
+	 * Helper method to get the earliest time of a body file line, in seconds
+	 */
+	private static long earliest(String line) {
+		String[] fields = line.split("\\|");
+		long earliest = Long.MAX_VALUE;
+		//atime, mtime and crtime, 0 when missing
+		for(int field : new int[] {7, 8, 10}) {
+			long time = Long.parseLong(fields[field]);
+			if(time > 0)
+				earliest = Math.min(earliest, time);
+		}
+		return earliest == Long.MAX_VALUE ? 0 : earliest;
+	}
+}